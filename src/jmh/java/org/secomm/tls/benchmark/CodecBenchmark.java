@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.record.HandshakeFragment;
+import org.secomm.tls.protocol.record.extensions.ExtendedMasterSecret;
+import org.secomm.tls.protocol.record.extensions.ServerNameIndication;
+import org.secomm.tls.protocol.record.extensions.SignatureAlgorithms;
+import org.secomm.tls.protocol.record.extensions.SupportedEllipticCurves;
+import org.secomm.tls.protocol.record.extensions.SupportedPointFormats;
+import org.secomm.tls.protocol.record.extensions.TlsExtension;
+import org.secomm.tls.protocol.record.handshake.ClientHello;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handshake message encoding and decoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CodecBenchmark {
+
+    private ClientHello clientHello;
+
+    private byte[] encodedClientHello;
+
+    private byte[] encodedFragment;
+
+    @Setup
+    public void setup() {
+
+        // A fixed seed keeps the encoded sizes the same from run to run.
+        Random random = new Random(1);
+        byte[] clientRandom = new byte[ClientHello.CLIENT_RANDOM_LENGTH];
+        random.nextBytes(clientRandom);
+        byte[] sessionId = new byte[32];
+        random.nextBytes(sessionId);
+
+        List<TlsExtension> extensions = Arrays.asList(
+                new ServerNameIndication(Arrays.asList("www.example.com")),
+                new SupportedEllipticCurves(Arrays.asList((short) 0x0017, (short) 0x0018, (short) 0x001d)),
+                new SupportedPointFormats(Arrays.asList((byte) 0)),
+                new SignatureAlgorithms(Arrays.asList(new SignatureAlgorithms.Algorithms((byte) 4, (byte) 1),
+                        new SignatureAlgorithms.Algorithms((byte) 2, (byte) 1))),
+                new ExtendedMasterSecret());
+
+        clientHello = new ClientHello();
+        clientHello.setClientRandom(clientRandom);
+        clientHello.setSessionId(sessionId);
+        clientHello.setCipherSuites(CipherSuites.defaultCipherSuites);
+        clientHello.setExtensions(extensions);
+        encodedClientHello = clientHello.encode();
+        encodedFragment = new HandshakeFragment(clientHello).encode();
+    }
+
+    @Benchmark
+    public byte[] encodeClientHello() {
+        return clientHello.encode();
+    }
+
+    @Benchmark
+    public ClientHello decodeClientHello() throws Exception {
+        ClientHello decoded = new ClientHello();
+        decoded.decode(EncodingByteBuffer.wrap(encodedClientHello));
+        return decoded;
+    }
+
+    @Benchmark
+    public HandshakeFragment decodeHandshakeFragment() throws Exception {
+        HandshakeFragment fragment = new HandshakeFragment();
+        fragment.decode(EncodingByteBuffer.wrap(encodedFragment));
+        return fragment;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The primitive reads and writes every encoder and decoder is built from.
+ * The fixed and pooled variants write the same bytes so the allocation
+ * profiles can be compared directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EncodingByteBufferBenchmark {
+
+    private static final int COUNT = 64;
+
+    private byte[] block;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        block = new byte[32];
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(COUNT * (2 + 3 + 32));
+        fill(buffer);
+        encoded = buffer.array();
+    }
+
+    private void fill(EncodingByteBuffer buffer) {
+        for (int i = 0; i < COUNT; ++i) {
+            buffer.putShort((short) i);
+            buffer.put24Bit(i);
+            buffer.put(block);
+        }
+    }
+
+    @Benchmark
+    public byte[] writeFixed() {
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(COUNT * (2 + 3 + 32));
+        fill(buffer);
+        return buffer.array();
+    }
+
+    @Benchmark
+    public int writePooled() {
+        EncodingByteBuffer buffer = EncodingByteBuffer.pooled();
+        fill(buffer);
+        int length = buffer.position();
+        buffer.release();
+        return length;
+    }
+
+    @Benchmark
+    public int read() {
+        EncodingByteBuffer buffer = EncodingByteBuffer.wrap(encoded);
+        byte[] out = new byte[32];
+        int sum = 0;
+        while (buffer.hasRemaining()) {
+            sum += buffer.getShort();
+            sum += buffer.get24Bit();
+            buffer.get(out);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.secomm.tls.net.LoopbackConnectionManager;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.ClientHandshake;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+import org.secomm.tls.test.ScriptedServer;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Complete client handshakes against a scripted server over a loopback
+ * connection. Everything runs inline on the benchmark thread, so this
+ * measures the handshake itself with no socket or scheduling cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HandshakeBenchmark {
+
+    private SecureRandom random;
+
+    private byte[] helloFlight;
+
+    private byte[] finishedFlight;
+
+    private final List<Short> cipherSuites = List.of(CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256);
+
+    @Setup
+    public void setup() throws Exception {
+        random = new SecureRandom();
+        helloFlight = ScriptedServer.loadFlight("rsa-aes128-gcm-server-hello.bin");
+        finishedFlight = ScriptedServer.finishedFlight();
+    }
+
+    @Benchmark
+    public ConnectionState rsaHandshake() throws Exception {
+
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        new ScriptedServer(client.getPeer())
+                .respondTo(HandshakeMessageTypes.CLIENT_HELLO, helloFlight)
+                .respondTo(HandshakeMessageTypes.CLIENT_KEY_EXCHANGE, finishedFlight)
+                .start();
+
+        ConnectionState connectionState = new ConnectionState(
+                new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random));
+        RecordLayer recordLayer = new RecordLayer(RecordLayer.TLS_1_2, connectionState, client);
+        ClientHandshake clientHandshake = new ClientHandshake(connectionState, recordLayer, random);
+        clientHandshake.setCipherSuites(cipherSuites);
+        clientHandshake.setExtensions(new ArrayList<>());
+        clientHandshake.setCertificateValidator(ScriptedServer.certificateValidator());
+        clientHandshake.setHostName("localhost");
+        // The loopback completes inline, so the handshake is done on return.
+        return clientHandshake.doHandshake().getNow(null);
+    }
+}
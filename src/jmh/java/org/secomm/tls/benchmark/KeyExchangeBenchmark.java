@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.benchmark;
+
+import org.bouncycastle.crypto.agreement.DHStandardGroups;
+import org.bouncycastle.crypto.params.DHParameters;
+import org.bouncycastle.util.BigIntegers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.secomm.tls.crypto.CipherSuiteTranslator;
+import org.secomm.tls.crypto.agreement.AgreementGroupFactory;
+import org.secomm.tls.crypto.agreement.AgreementKey;
+import org.secomm.tls.crypto.agreement.EphemeralKeyPool;
+import org.secomm.tls.protocol.KeyExchangeEngine;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.SignatureAndHashAlgorithm;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.extensions.NamedGroups;
+import org.secomm.tls.protocol.record.handshake.ClientKeyExchange;
+import org.secomm.tls.protocol.record.handshake.ServerKeyExchange;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side key exchange. These are the public key operations in a full
+ * handshake, so they dominate its cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyExchangeBenchmark {
+
+    /**
+     * The engine only needs the public key, so there is no need to build and
+     * sign a real X.509 certificate.
+     */
+    static final class KeyOnlyCertificate extends Certificate {
+
+        private final PublicKey publicKey;
+
+        KeyOnlyCertificate(PublicKey publicKey) {
+            super("X.509");
+            this.publicKey = publicKey;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return publicKey.getEncoded();
+        }
+
+        @Override
+        public void verify(PublicKey key) {
+        }
+
+        @Override
+        public void verify(PublicKey key, String sigProvider) {
+        }
+
+        @Override
+        public String toString() {
+            return "KeyOnlyCertificate";
+        }
+
+        @Override
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+    }
+
+    /**
+     * A tight loop drains any pool, so keys are made inline and the numbers
+     * are the cost a handshake pays when the pool is empty.
+     */
+    private final EphemeralKeyPool unpooled = new EphemeralKeyPool(0);
+
+    private KeyExchangeEngine rsaEngine;
+
+    private KeyExchangeEngine dheEngine;
+
+    private KeyExchangeEngine p256Engine;
+
+    private KeyExchangeEngine x25519Engine;
+
+    @Setup
+    public void setup() throws Exception {
+
+        SecureRandom random = new SecureRandom();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048, random);
+        KeyPair keyPair = generator.generateKeyPair();
+        Certificate certificate = new KeyOnlyCertificate(keyPair.getPublic());
+
+        byte[] clientRandom = new byte[32];
+        random.nextBytes(clientRandom);
+        byte[] serverRandom = new byte[32];
+        random.nextBytes(serverRandom);
+
+        rsaEngine = new KeyExchangeEngine(new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random), random);
+        rsaEngine.setKeyExchangeAlgorithm(CipherSuiteTranslator.KeyExchangeAlgorithm.RSA);
+        rsaEngine.setServerCertificate(certificate);
+
+        // The server side of a 2048 bit DHE exchange.
+        DHParameters group = DHStandardGroups.rfc3526_2048;
+        BigInteger serverPrivate = BigIntegers.createRandomInRange(BigInteger.TWO,
+                group.getP().subtract(BigInteger.TWO), random);
+        ServerKeyExchange.ServerDHParameters dhParameters = new ServerKeyExchange.ServerDHParameters(
+                BigIntegers.asUnsignedByteArray(group.getP()),
+                BigIntegers.asUnsignedByteArray(group.getG()),
+                BigIntegers.asUnsignedByteArray(group.getG().modPow(serverPrivate, group.getP())));
+
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(clientRandom);
+        signer.update(serverRandom);
+        signer.update(signedParameters(dhParameters));
+
+        dheEngine = new KeyExchangeEngine(new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random), random);
+        dheEngine.setKeyExchangeAlgorithm(CipherSuiteTranslator.KeyExchangeAlgorithm.DHE_RSA);
+        dheEngine.setServerCertificate(certificate);
+        dheEngine.setClientRandom(clientRandom);
+        dheEngine.setServerRandom(serverRandom);
+        dheEngine.setServerDHParameters(dhParameters);
+        dheEngine.setSignatureAndHashAlgorithm(new SignatureAndHashAlgorithm(
+                (short) ((TlsConstants.DHE_HASH_SHA1 << 8) | TlsConstants.DHE_SIGNATURE_RSA)));
+        dheEngine.setDhParametersSignature(signer.sign());
+        dheEngine.setKeyPool(unpooled);
+
+        p256Engine = ecdheEngine(NamedGroups.secp256r1, random);
+        x25519Engine = ecdheEngine(NamedGroups.x25519, random);
+    }
+
+    /**
+     * Signatures are not checked here, only the key agreement is measured.
+     */
+    private KeyExchangeEngine ecdheEngine(short namedGroup, SecureRandom random) throws Exception {
+        AgreementKey serverKey = AgreementGroupFactory.getGroup(namedGroup).generateKey(random);
+        KeyExchangeEngine engine = new KeyExchangeEngine(
+                new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random), random);
+        engine.setKeyExchangeAlgorithm(CipherSuiteTranslator.KeyExchangeAlgorithm.ECDHE_RSA);
+        engine.setServerECDHParameters(new ServerKeyExchange.ServerECDHParameters(
+                ServerKeyExchange.ServerECDHParameters.NAMED_CURVE, namedGroup, serverKey.getPublicKey()));
+        engine.setKeyPool(unpooled);
+        return engine;
+    }
+
+    private byte[] signedParameters(ServerKeyExchange.ServerDHParameters dhParameters) {
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(dhParameters.dh_p.length
+                + dhParameters.dh_g.length + dhParameters.dh_Ys.length + 6);
+        buffer.putShort((short) dhParameters.dh_p.length);
+        buffer.put(dhParameters.dh_p);
+        buffer.putShort((short) dhParameters.dh_g.length);
+        buffer.put(dhParameters.dh_g);
+        buffer.putShort((short) dhParameters.dh_Ys.length);
+        buffer.put(dhParameters.dh_Ys);
+        return buffer.array();
+    }
+
+    @Benchmark
+    public ClientKeyExchange rsaClientKeyExchange() throws Exception {
+        return rsaEngine.generateClientKeyExchange();
+    }
+
+    @Benchmark
+    public ClientKeyExchange dheClientKeyExchange() throws Exception {
+        return dheEngine.generateClientKeyExchange();
+    }
+
+    @Benchmark
+    public ClientKeyExchange p256ClientKeyExchange() throws Exception {
+        return p256Engine.generateClientKeyExchange();
+    }
+
+    @Benchmark
+    public ClientKeyExchange x25519ClientKeyExchange() throws Exception {
+        return x25519Engine.generateClientKeyExchange();
+    }
+
+    @Benchmark
+    public boolean verifySignatureWithHash() throws Exception {
+        return dheEngine.verifySignatureWithHash();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.secomm.tls.crypto.AlgorithmFactory;
+import org.secomm.tls.crypto.prf.PRFAlgorithm;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key derivation. The output sizes are a master secret, a GCM key block and
+ * a CBC key block with SHA-256 MACs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PrfBenchmark {
+
+    @Param({ "48", "40", "128" })
+    public int length;
+
+    private PRFAlgorithm prf;
+
+    private byte[] clientRandom;
+
+    private byte[] serverRandom;
+
+    private byte[] output;
+
+    @Setup
+    public void setup() {
+        SecureRandom random = new SecureRandom();
+        byte[] secret = new byte[48];
+        random.nextBytes(secret);
+        clientRandom = new byte[32];
+        random.nextBytes(clientRandom);
+        serverRandom = new byte[32];
+        random.nextBytes(serverRandom);
+        output = new byte[length];
+        prf = AlgorithmFactory.getPrfAlgorithm(AlgorithmFactory.PrfAlgorithms.TLS_PRF_SHA256);
+        prf.initialize(secret);
+    }
+
+    @Benchmark
+    public byte[] keyBlock() {
+        prf.generateRandomBytes("key expansion", serverRandom, clientRandom, output, 0, length);
+        return output;
+    }
+}
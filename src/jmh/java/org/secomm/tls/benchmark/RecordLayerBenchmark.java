@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.secomm.tls.net.ConnectionManager;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.HandshakeFragment;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.TlsPlaintextRecord;
+import org.secomm.tls.protocol.record.handshake.ClientHello;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Framing and decoding of whole records through the record layer. The
+ * connection replays a fixed byte stream in reads of a set size, so small
+ * sizes split records across reads and large ones coalesce them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RecordLayerBenchmark {
+
+    private static final int RECORD_COUNT = 16;
+
+    /**
+     * Completes every read immediately from an in-memory stream.
+     */
+    static final class ReplayConnection implements ConnectionManager {
+
+        private final byte[] stream;
+
+        private final int readSize;
+
+        private int position;
+
+        ReplayConnection(byte[] stream, int readSize) {
+            this.stream = stream;
+            this.readSize = readSize;
+        }
+
+        void rewind() {
+            position = 0;
+        }
+
+        @Override
+        public void read(ByteBuffer buffer, CompletionHandler<Integer, ConnectionManager> readHandler) {
+            if (position == stream.length) {
+                readHandler.completed(-1, this);
+                return;
+            }
+            int length = Math.min(Math.min(readSize, buffer.remaining()), stream.length - position);
+            buffer.put(stream, position, length);
+            position += length;
+            readHandler.completed(length, this);
+        }
+
+        @Override
+        public Future<Integer> read(ByteBuffer buffer) {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            read(buffer, new CompletionHandler<Integer, ConnectionManager>() {
+                @Override
+                public void completed(Integer result, ConnectionManager attachment) {
+                    future.complete(result);
+                }
+
+                @Override
+                public void failed(Throwable exc, ConnectionManager attachment) {
+                    future.completeExceptionally(exc);
+                }
+            });
+            return future;
+        }
+
+        @Override
+        public void read(int length, CompletionHandler<Integer, ConnectionManager> readHandler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ByteBuffer read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, CompletionHandler<Integer, ConnectionManager> writeHandler) {
+            int length = buffer.remaining();
+            buffer.position(buffer.limit());
+            writeHandler.completed(length, this);
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers, CompletionHandler<Long, ConnectionManager> writeHandler) {
+            long length = 0;
+            for (ByteBuffer buffer : buffers) {
+                length += buffer.remaining();
+                buffer.position(buffer.limit());
+            }
+            writeHandler.completed(length, this);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Param({ "512", "4096", "65536" })
+    public int readSize;
+
+    private ReplayConnection connection;
+
+    private RecordLayer recordLayer;
+
+    private int decoded;
+
+    private final CompletionHandler<List<TlsPlaintextRecord>, RecordLayer> recordHandler =
+            new CompletionHandler<List<TlsPlaintextRecord>, RecordLayer>() {
+        @Override
+        public void completed(List<TlsPlaintextRecord> result, RecordLayer attachment) {
+            decoded += result.size();
+        }
+
+        @Override
+        public void failed(Throwable exc, RecordLayer attachment) {
+            throw new IllegalStateException("Record decode failed", exc);
+        }
+    };
+
+    @Setup
+    public void setup() {
+
+        SecureRandom random = new SecureRandom();
+        byte[] clientRandom = new byte[ClientHello.CLIENT_RANDOM_LENGTH];
+        random.nextBytes(clientRandom);
+        ClientHello clientHello = new ClientHello();
+        clientHello.setClientRandom(clientRandom);
+        clientHello.setCipherSuites(CipherSuites.defaultCipherSuites);
+        clientHello.setExtensions(new ArrayList<>());
+        TlsPlaintextRecord record = new TlsPlaintextRecord(TlsConstants.HANDSHAKE, RecordLayer.TLS_1_2);
+        record.setFragment(new HandshakeFragment(clientHello));
+        byte[] encoded = record.encode();
+
+        byte[] stream = new byte[encoded.length * RECORD_COUNT];
+        for (int i = 0; i < RECORD_COUNT; ++i) {
+            System.arraycopy(encoded, 0, stream, i * encoded.length, encoded.length);
+        }
+        connection = new ReplayConnection(stream, readSize);
+        SecurityParameters securityParameters = new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random);
+        recordLayer = new RecordLayer(RecordLayer.TLS_1_2, new ConnectionState(securityParameters), connection);
+    }
+
+    @Benchmark
+    public int frameRecords() {
+        connection.rewind();
+        decoded = 0;
+        while (decoded < RECORD_COUNT) {
+            recordLayer.readRecords(recordHandler);
+        }
+        return decoded;
+    }
+}
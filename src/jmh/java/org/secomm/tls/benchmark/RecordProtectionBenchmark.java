@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.secomm.tls.crypto.CipherSuiteTranslator;
+import org.secomm.tls.crypto.KeySchedule;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.BadRecordMacException;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.RecordProtection;
+import org.secomm.tls.protocol.record.RecordProtectionFactory;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk record protection, GCM (0x9c) against CBC with HMAC-SHA1 (0x33) and
+ * ChaCha20-Poly1305 (0xccaa, which is -13142 as a short).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RecordProtectionBenchmark {
+
+    @Param({ "156", "51", "-13142" })
+    public short cipherSuite;
+
+    @Param({ "1024", "1048576" })
+    public int length;
+
+    private RecordProtection sealer;
+
+    private RecordProtection opener;
+
+    private byte[] content;
+
+    private byte[] record;
+
+    @Setup
+    public void setup() throws Exception {
+        SecureRandom random = new SecureRandom();
+        byte[] clientRandom = new byte[32];
+        random.nextBytes(clientRandom);
+        byte[] serverRandom = new byte[32];
+        random.nextBytes(serverRandom);
+        byte[] premasterSecret = new byte[48];
+        random.nextBytes(premasterSecret);
+
+        ConnectionState[] peers = new ConnectionState[2];
+        SecurityParameters.ConnectionEnd[] ends = SecurityParameters.ConnectionEnd.values();
+        for (int i = 0; i < 2; ++i) {
+            SecurityParameters parameters = new SecurityParameters(ends[i], random);
+            parameters.setClientRandom(clientRandom);
+            parameters.setServerRandom(serverRandom);
+            CipherSuiteTranslator.setSecurityParameters(parameters, cipherSuite);
+            peers[i] = new ConnectionState(parameters);
+            KeySchedule keySchedule = new KeySchedule(parameters);
+            keySchedule.computeMasterSecret(premasterSecret.clone());
+            keySchedule.deriveKeys(peers[i]);
+            peers[i].activateReadState();
+            peers[i].activateWriteState();
+        }
+        sealer = RecordProtectionFactory.getProtection(peers[0].getWriteState());
+        opener = RecordProtectionFactory.getProtection(peers[1].getReadState());
+
+        content = new byte[length];
+        random.nextBytes(content);
+        record = new byte[sealer.getSealedLength(1024)];
+    }
+
+    @Benchmark
+    public byte[] sealRecords() {
+        return sealer.sealRecords(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, content, 0, length);
+    }
+
+    /**
+     * One small record through both directions, the sequence numbers in step.
+     */
+    @Benchmark
+    public int sealAndOpen() throws BadRecordMacException {
+        int fragmentLength = sealer.seal(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, record, 0, 1024);
+        return opener.open(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, record, 0, fragmentLength);
+    }
+}
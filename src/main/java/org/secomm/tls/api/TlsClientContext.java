@@ -22,71 +22,229 @@
 
 package org.secomm.tls.api;
 
+import org.secomm.tls.crypto.CertificateCache;
+import org.secomm.tls.crypto.CertificateValidator;
 import org.secomm.tls.net.ClientConnectionManager;
 import org.secomm.tls.protocol.ClientHandshake;
 import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.ExchangePipeline;
+import org.secomm.tls.protocol.ResumableSession;
 import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.SessionCache;
 import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.extensions.ServerNameIndication;
 import org.secomm.tls.protocol.record.extensions.TlsExtension;
 
 import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.CompletionHandler;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 public class TlsClientContext extends TlsContext {
 
     private final SecureRandom random;
 
-    private final ConnectionState connectionState;
-
-    private final SecurityParameters securityParameters;
-
     private List<TlsExtension> extensions;
 
     private List<Short> cipherSuites;
 
-    private TlsPeer peer;
+    private AsynchronousChannelGroup channelGroup;
+
+    private SessionCache sessionCache;
+
+    private boolean sessionTickets;
+
+    private TlsConnectionPool connectionPool;
+
+    private int maxExchangesInFlight;
+
+    private Executor completionExecutor;
+
+    private CertificateCache certificateCache;
+
+    /**
+     * Loaded from the JVM's default trust store on first use, unless one is set.
+     */
+    private CertificateValidator certificateValidator;
 
     TlsClientContext(final SecureRandom random) {
         this.random = random;
-        this.securityParameters = new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random);
-        this.connectionState = new ConnectionState(securityParameters);
         // Created here to be available if there are no extensions or cipherSuites (unlikely)
         extensions = new ArrayList<>();
         cipherSuites = new ArrayList<>();
+        sessionCache = new SessionCache();
+        sessionTickets = true;
+        connectionPool = new TlsConnectionPool();
+        maxExchangesInFlight = ExchangePipeline.DEFAULT_MAX_IN_FLIGHT;
+        completionExecutor = ForkJoinPool.commonPool();
+        certificateCache = CertificateCache.getDefault();
     }
 
     /**
      * Simple connect on default SSL port 443
      *
      * @param address
-     * @return TlsPeer if connected, otherwise null
+     * @return A future that completes with the peer when the handshake is finished.
+     * @throws IOException
+     */
+    public CompletableFuture<TlsPeer> connect(String address) throws IOException {
+        return connect(address, 443);
+    }
+
+    /**
+     * Non-blocking connect. The connection and the handshake both run on the
+     * channel group threads, so any number of connections can be in progress
+     * on a small pool.
+     *
+     * @param address
+     * @param port
+     * @return A future that completes with the peer when the handshake is finished,
+     *         or exceptionally if the connection or the handshake fails.
      * @throws IOException
      */
-    public TlsPeer connect(String address) throws IOException {
-        connect(address, 443);
-        return peer;
+    public CompletableFuture<TlsPeer> connect(String address, int port) throws IOException {
+        return connect(address, port, null);
     }
 
     /**
+     * Non-blocking connect that sends the given server name indication in
+     * place of any in the context's extensions.
      *
      * @param address
      * @param port
-     * @return TlsPeer if connected, otherwise null.
+     * @param serverName The SNI host name, or null to send the context's extensions unchanged.
+     * @return A future that completes with the peer when the handshake is finished,
+     *         or exceptionally if the connection or the handshake fails.
      * @throws IOException
      */
-    public TlsPeer connect(String address, int port) throws IOException {
-        ClientConnectionManager connectionManager = new ClientConnectionManager(address, port);
+    public CompletableFuture<TlsPeer> connect(String address, int port, String serverName) throws IOException {
+
+        // Handshakes can overlap, so each connection has its own state.
+        SecurityParameters securityParameters = new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random);
+        ConnectionState connectionState = new ConnectionState(securityParameters);
+        ClientConnectionManager connectionManager = new ClientConnectionManager(address, port, channelGroup);
         RecordLayer recordLayer = new RecordLayer(RecordLayer.TLS_1_2, connectionState, connectionManager);
-        boolean isOpen = connectionManager.connect();
-        if (isOpen) {
-            ClientHandshake clientHandshake = new ClientHandshake(connectionState, recordLayer, random);
-            clientHandshake.setCipherSuites(cipherSuites);
-            clientHandshake.setExtensions(extensions);
-            return clientHandshake.doHandshake();
+        CompletableFuture<TlsPeer> peerFuture = new CompletableFuture<>();
+        connectionManager.connect(new CompletionHandler<Void, ClientConnectionManager>() {
+            @Override
+            public void completed(Void result, ClientConnectionManager attachment) {
+                ClientHandshake clientHandshake = new ClientHandshake(connectionState, recordLayer, random);
+                clientHandshake.setCipherSuites(cipherSuites);
+                clientHandshake.setExtensions(connectionExtensions(serverName));
+                ResumableSession offeredSession = sessionCache != null ? sessionCache.get(address, port, serverName) : null;
+                clientHandshake.setOfferedSession(offeredSession);
+                clientHandshake.setSessionTickets(sessionTickets);
+                clientHandshake.setCertificateCache(certificateCache);
+                clientHandshake.setCertificateValidator(certificateValidator());
+                clientHandshake.setHostName(serverName != null ? serverName : address);
+                clientHandshake.doHandshake().whenComplete((state, exc) -> {
+                    if (exc != null) {
+                        if (offeredSession != null) {
+                            sessionCache.remove(address, port, serverName);
+                        }
+                        peerFuture.completeExceptionally(exc);
+                    } else {
+                        cacheSession(address, port, serverName, clientHandshake);
+                        peerFuture.complete(new TlsPeerImpl(state, recordLayer, maxExchangesInFlight, completionExecutor));
+                    }
+                });
+            }
+
+            @Override
+            public void failed(Throwable exc, ClientConnectionManager attachment) {
+                peerFuture.completeExceptionally(exc);
+            }
+        });
+        return peerFuture;
+    }
+
+    /**
+     * Borrow an established peer from the connection pool, or connect if
+     * there is no idle peer for the address and port. The peer should be
+     * released when the caller is done with it.
+     *
+     * @param address
+     * @param port
+     * @return A future that completes with the peer.
+     * @throws IOException
+     */
+    public CompletableFuture<TlsPeer> borrow(String address, int port) throws IOException {
+        return borrow(address, port, null);
+    }
+
+    /**
+     * Borrow an established peer for the address, port and server name.
+     * Peers are never shared between server names.
+     *
+     * @param address
+     * @param port
+     * @param serverName The SNI host name, or null to send the context's extensions unchanged.
+     * @return A future that completes with the peer.
+     * @throws IOException
+     */
+    public CompletableFuture<TlsPeer> borrow(String address, int port, String serverName) throws IOException {
+        return connectionPool.borrow(address, port, serverName, () -> connect(address, port, serverName));
+    }
+
+    /**
+     * Return a borrowed peer to the connection pool.
+     *
+     * @param peer
+     * @return True if the peer was kept for reuse, false if it was closed.
+     */
+    public boolean release(TlsPeer peer) {
+        return connectionPool.release(peer);
+    }
+
+    /**
+     * @return The validator, or null if none was set and the default trust
+     *         store can't be loaded. Handshakes then fail with bad_certificate.
+     */
+    private synchronized CertificateValidator certificateValidator() {
+        if (certificateValidator == null) {
+            try {
+                certificateValidator = CertificateValidator.systemDefault();
+            } catch (GeneralSecurityException e) {
+                // Tried again on the next connection.
+                return null;
+            }
+        }
+        return certificateValidator;
+    }
+
+    private List<TlsExtension> connectionExtensions(String serverName) {
+        if (serverName == null) {
+            return extensions;
+        }
+        List<TlsExtension> connectionExtensions = new ArrayList<>(extensions.size() + 1);
+        for (TlsExtension extension : extensions) {
+            if (!(extension instanceof ServerNameIndication)) {
+                connectionExtensions.add(extension);
+            }
+        }
+        connectionExtensions.add(new ServerNameIndication(List.of(serverName)));
+        return connectionExtensions;
+    }
+
+    private void cacheSession(String address, int port, String serverName, ClientHandshake clientHandshake) {
+        if (sessionCache == null) {
+            return;
+        }
+        ResumableSession session = clientHandshake.getResumableSession();
+        if (session != null) {
+            sessionCache.put(address, port, serverName, session);
         } else {
-            return null;
+            // The server would not resume, or did not offer a session to resume.
+            sessionCache.remove(address, port, serverName);
         }
     }
 
@@ -98,4 +256,101 @@ public class TlsClientContext extends TlsContext {
         this.extensions = extensions;
     }
 
+    /**
+     * Run connections on the given channel group instead of the system default.
+     *
+     * @param channelGroup
+     */
+    public void setChannelGroup(AsynchronousChannelGroup channelGroup) {
+        this.channelGroup = channelGroup;
+    }
+
+    /**
+     * Replace the session cache, for instance to share one between contexts.
+     * Null turns resumption off.
+     *
+     * @param sessionCache
+     */
+    public void setSessionCache(SessionCache sessionCache) {
+        this.sessionCache = sessionCache;
+    }
+
+    /**
+     * Session tickets are requested and used by default. Without them,
+     * sessions are only resumed by session ID.
+     *
+     * @param sessionTickets
+     */
+    public void setSessionTickets(boolean sessionTickets) {
+        this.sessionTickets = sessionTickets;
+    }
+
+    /**
+     * The cache server certificates are looked up in. The shared cache is
+     * used by default.
+     *
+     * @param certificateCache
+     */
+    public void setCertificateCache(CertificateCache certificateCache) {
+        this.certificateCache = certificateCache;
+    }
+
+    /**
+     * Validate the server's certificate chain on every connection the
+     * context makes, pooled ones included. Null goes back to the JVM's
+     * default trust store.
+     *
+     * @param certificateValidator
+     */
+    public synchronized void setCertificateValidator(CertificateValidator certificateValidator) {
+        this.certificateValidator = certificateValidator;
+    }
+
+    /**
+     * Validate server certificate chains against the certificates in a
+     * trust store instead of the JVM's default one.
+     *
+     * @param trustStore
+     * @throws KeyStoreException
+     * @throws InvalidAlgorithmParameterException If the key store has no certificates.
+     */
+    public void setTrustStore(KeyStore trustStore) throws KeyStoreException, InvalidAlgorithmParameterException {
+        setCertificateValidator(new CertificateValidator(trustStore));
+    }
+
+    public TlsConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Replace the connection pool, for instance to configure its limits or
+     * share one between contexts.
+     *
+     * @param connectionPool
+     */
+    public void setConnectionPool(TlsConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * The number of exchanges a peer's conversation may have outstanding
+     * before further exchanges wait. Applies to connections made afterwards.
+     *
+     * @param maxExchangesInFlight
+     */
+    public void setMaxExchangesInFlight(int maxExchangesInFlight) {
+        this.maxExchangesInFlight = maxExchangesInFlight;
+    }
+
+    /**
+     * Run the completions of asynchronous exchanges and writes on the given
+     * executor instead of the common fork join pool. Applies to connections
+     * made afterwards.
+     *
+     * @param completionExecutor
+     */
+    public void setCompletionExecutor(Executor completionExecutor) {
+        this.completionExecutor = completionExecutor;
+    }
+
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.api;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Established client connections kept for reuse, keyed by host, port and
+ * server name. Callers borrow a peer, use it for one exchange at a time and
+ * release it when they are done. A released peer waits in its route's idle
+ * queue until it is borrowed again, sits idle too long, reaches its maximum
+ * lifetime or fails the health check.
+ *
+ * The most recently released peer is borrowed first, so a quiet route keeps
+ * only the connections it actually needs warm. Safe to share between threads.
+ */
+public class TlsConnectionPool {
+
+    public static final int DEFAULT_MAX_IDLE_PER_ROUTE = 8;
+
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 60_000L;
+
+    public static final long DEFAULT_MAX_LIFETIME_MILLIS = 10 * 60_000L;
+
+    /**
+     * Opens a new connection when the route has no idle peer.
+     */
+    @FunctionalInterface
+    public interface Connector {
+        CompletableFuture<TlsPeer> connect() throws IOException;
+    }
+
+    private static final class PooledPeer {
+
+        final TlsPeer peer;
+
+        final String route;
+
+        final long created;
+
+        long idleSince;
+
+        PooledPeer(TlsPeer peer, String route, long created) {
+            this.peer = peer;
+            this.route = route;
+            this.created = created;
+        }
+    }
+
+    private final Map<String, Deque<PooledPeer>> idle;
+
+    private final Map<TlsPeer, PooledPeer> leased;
+
+    private final LongSupplier clock;
+
+    private volatile int maxIdlePerRoute;
+
+    private volatile long maxIdleMillis;
+
+    private volatile long maxLifetimeMillis;
+
+    private volatile Predicate<TlsPeer> healthCheck;
+
+    private volatile boolean closed;
+
+    public TlsConnectionPool() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Milliseconds since the epoch.
+     */
+    public TlsConnectionPool(LongSupplier clock) {
+        this.clock = clock;
+        this.idle = new ConcurrentHashMap<>();
+        this.leased = new ConcurrentHashMap<>();
+        this.maxIdlePerRoute = DEFAULT_MAX_IDLE_PER_ROUTE;
+        this.maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+        this.maxLifetimeMillis = DEFAULT_MAX_LIFETIME_MILLIS;
+        this.healthCheck = TlsPeer::isOpen;
+    }
+
+    /**
+     * Borrow an idle peer for the route, or open a new connection if there
+     * is none. Idle peers that have expired or fail the health check are
+     * closed and passed over.
+     *
+     * @param host
+     * @param port
+     * @param serverName The SNI host name, or null if none is sent.
+     * @param connector
+     * @return A future that completes with the peer.
+     * @throws IOException If the pool is closed, or the connector fails.
+     */
+    public CompletableFuture<TlsPeer> borrow(String host, int port, String serverName, Connector connector)
+            throws IOException {
+
+        if (closed) {
+            throw new IOException("Connection pool is closed");
+        }
+        String route = route(host, port, serverName);
+        PooledPeer pooled = takeIdle(route);
+        if (pooled != null) {
+            leased.put(pooled.peer, pooled);
+            return CompletableFuture.completedFuture(pooled.peer);
+        }
+        return connector.connect().thenApply(peer -> {
+            leased.put(peer, new PooledPeer(peer, route, clock.getAsLong()));
+            return peer;
+        });
+    }
+
+    /**
+     * Return a borrowed peer to its route's idle queue. The peer is closed
+     * instead if the pool is closed, the peer has reached its lifetime or
+     * failed the health check, or the queue is full.
+     *
+     * @param peer
+     * @return True if the peer was kept for reuse.
+     */
+    public boolean release(TlsPeer peer) {
+
+        PooledPeer pooled = leased.remove(peer);
+        if (pooled == null) {
+            // Not ours, or already released.
+            return false;
+        }
+        long now = clock.getAsLong();
+        if (closed || now - pooled.created >= maxLifetimeMillis || !healthCheck.test(peer)) {
+            peer.close();
+            return false;
+        }
+        pooled.idleSince = now;
+        Deque<PooledPeer> queue = idle.computeIfAbsent(pooled.route, r -> new ArrayDeque<>());
+        synchronized (queue) {
+            if (queue.size() < maxIdlePerRoute) {
+                queue.addFirst(pooled);
+                pooled = null;
+            }
+        }
+        if (pooled != null) {
+            peer.close();
+            return false;
+        }
+        // Closed while we were adding it.
+        if (closed) {
+            closeIdle();
+        }
+        return true;
+    }
+
+    /**
+     * Close a borrowed peer that should not be reused, for instance after
+     * a failed exchange.
+     *
+     * @param peer
+     */
+    public void invalidate(TlsPeer peer) {
+        leased.remove(peer);
+        peer.close();
+    }
+
+    /**
+     * Close idle peers that have expired or are no longer open. Expired peers
+     * are otherwise only found when their route is next borrowed.
+     *
+     * @return The number of peers closed.
+     */
+    public int evictExpired() {
+
+        long now = clock.getAsLong();
+        List<PooledPeer> evicted = new ArrayList<>();
+        for (Deque<PooledPeer> queue : idle.values()) {
+            synchronized (queue) {
+                Iterator<PooledPeer> it = queue.iterator();
+                while (it.hasNext()) {
+                    PooledPeer pooled = it.next();
+                    if (expired(pooled, now) || !pooled.peer.isOpen()) {
+                        it.remove();
+                        evicted.add(pooled);
+                    }
+                }
+            }
+        }
+        for (PooledPeer pooled : evicted) {
+            pooled.peer.close();
+        }
+        return evicted.size();
+    }
+
+    /**
+     * Close every idle peer and stop pooling. Borrowed peers are closed when
+     * they are released.
+     */
+    public void close() {
+        closed = true;
+        closeIdle();
+    }
+
+    public int idleCount(String host, int port, String serverName) {
+        Deque<PooledPeer> queue = idle.get(route(host, port, serverName));
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public int leasedCount() {
+        return leased.size();
+    }
+
+    public void setMaxIdlePerRoute(int maxIdlePerRoute) {
+        this.maxIdlePerRoute = maxIdlePerRoute;
+    }
+
+    public void setMaxIdleMillis(long maxIdleMillis) {
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    public void setMaxLifetimeMillis(long maxLifetimeMillis) {
+        this.maxLifetimeMillis = maxLifetimeMillis;
+    }
+
+    /**
+     * Run on idle peers before they are lent out and on peers as they are
+     * released. The default only checks that the connection is open.
+     *
+     * @param healthCheck
+     */
+    public void setHealthCheck(Predicate<TlsPeer> healthCheck) {
+        this.healthCheck = healthCheck;
+    }
+
+    private PooledPeer takeIdle(String route) {
+
+        Deque<PooledPeer> queue = idle.get(route);
+        if (queue == null) {
+            return null;
+        }
+        while (true) {
+            PooledPeer pooled;
+            synchronized (queue) {
+                pooled = queue.pollFirst();
+            }
+            if (pooled == null) {
+                return null;
+            }
+            // The check may block, so it runs outside the lock.
+            if (!expired(pooled, clock.getAsLong()) && healthCheck.test(pooled.peer)) {
+                return pooled;
+            }
+            pooled.peer.close();
+        }
+    }
+
+    private boolean expired(PooledPeer pooled, long now) {
+        return now - pooled.idleSince >= maxIdleMillis || now - pooled.created >= maxLifetimeMillis;
+    }
+
+    private void closeIdle() {
+        List<PooledPeer> evicted = new ArrayList<>();
+        for (Deque<PooledPeer> queue : idle.values()) {
+            synchronized (queue) {
+                evicted.addAll(queue);
+                queue.clear();
+            }
+        }
+        for (PooledPeer pooled : evicted) {
+            pooled.peer.close();
+        }
+    }
+
+    private static String route(String host, int port, String serverName) {
+        return host.toLowerCase(Locale.ROOT) + ':' + port + '/'
+                + (serverName != null ? serverName.toLowerCase(Locale.ROOT) : "");
+    }
+
+}
@@ -23,8 +23,21 @@
 package org.secomm.tls.api;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Request and response exchanges with the peer. Each payload is sent with a
+ * four byte big-endian length, and the peer answers requests in order with
+ * responses framed the same way. Exchanges may overlap, they are pipelined
+ * on the one connection.
+ *
+ * The asynchronous methods never block. Their futures complete on the
+ * conversation's completion executor, never on the connection's I/O threads.
+ * A timed out exchange completes with a response that is not ready, other
+ * failures complete the future exceptionally with the IOException.
+ */
 public interface TlsConversation {
 
     // Byte send methods.
@@ -75,6 +88,32 @@ public interface TlsConversation {
      */
     void send(byte[] payload) throws IOException;
 
+    /**
+     * Asynchronous exchange.
+     *
+     * @param payload
+     * @return A future that completes with the response.
+     */
+    CompletableFuture<TlsResponse> exchangeAsync(byte[] payload);
+
+    /**
+     * Asynchronous exchange with timeout.
+     *
+     * @param payload
+     * @param timeout Zero means no timeout.
+     * @param units
+     * @return A future that completes with the response.
+     */
+    CompletableFuture<TlsResponse> exchangeAsync(byte[] payload, long timeout, TimeUnit units);
+
+    /**
+     * Asynchronous send, no response expected.
+     *
+     * @param payload
+     * @return A stage that completes when the payload has been written.
+     */
+    CompletionStage<Void> sendAsync(byte[] payload);
+
     // String exchange methods.
 
     /**
@@ -123,4 +162,30 @@ public interface TlsConversation {
      */
     void send(String payload) throws IOException;
 
+    /**
+     * Asynchronous exchange of a UTF-8 encoded string.
+     *
+     * @param payload
+     * @return A future that completes with the response.
+     */
+    CompletableFuture<TlsResponse> exchangeAsync(String payload);
+
+    /**
+     * Asynchronous exchange of a UTF-8 encoded string with timeout.
+     *
+     * @param payload
+     * @param timeout Zero means no timeout.
+     * @param units
+     * @return A future that completes with the response.
+     */
+    CompletableFuture<TlsResponse> exchangeAsync(String payload, long timeout, TimeUnit units);
+
+    /**
+     * Asynchronous send of a UTF-8 encoded string, no response expected.
+     *
+     * @param payload
+     * @return A stage that completes when the payload has been written.
+     */
+    CompletionStage<Void> sendAsync(String payload);
+
 }
@@ -22,70 +22,167 @@
 
 package org.secomm.tls.api;
 
+import org.secomm.tls.protocol.ExchangePipeline;
 import org.secomm.tls.protocol.record.RecordLayer;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Conversation over an ExchangePipeline. Blocking exchanges from several
+ * threads, and callback exchanges from one, are all pipelined on the same
+ * connection.
+ */
 class TlsConversationImpl implements TlsConversation {
 
-    private RecordLayer recordLayer;
+    private final ExchangePipeline pipeline;
+
+    /**
+     * Runs the completions of asynchronous exchanges and callbacks.
+     */
+    private final Executor executor;
 
     TlsConversationImpl(RecordLayer recordLayer) {
-        this.recordLayer = recordLayer;
+        this(new ExchangePipeline(recordLayer), ForkJoinPool.commonPool());
     }
 
-    public void connect(String address, int port) throws IOException {
+    TlsConversationImpl(ExchangePipeline pipeline, Executor executor) {
+        this.pipeline = pipeline;
+        this.executor = executor;
     }
 
     @Override
     public TlsResponse exchange(byte[] payload) throws IOException {
-        return null;
+        return exchange(payload, 0, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public TlsResponse exchange(byte[] payload, long timeout) throws IOException {
-        return null;
+        return exchange(payload, timeout, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * A timeout is not an I/O error, the response has error information
+     * instead of bytes.
+     */
     @Override
     public TlsResponse exchange(byte[] payload, long timeout, TimeUnit units) throws IOException {
-        return null;
+        CompletableFuture<byte[]> future = pipeline.exchange(payload, timeout, units);
+        try {
+            return new TlsResponseImpl(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a response");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                return new TlsResponseImpl(e.getCause().getMessage());
+            }
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
     }
 
+    /**
+     * Never blocks. The callback runs on the completion executor.
+     */
     @Override
     public void exchange(byte[] payload, TlsCallback callback) throws IOException {
-
+        exchangeAsync(payload).whenComplete((response, exc) -> {
+            if (exc != null) {
+                Throwable cause = exc instanceof CompletionException ? exc.getCause() : exc;
+                callback.exception(String.valueOf(cause).getBytes(StandardCharsets.UTF_8));
+            } else if (!response.isReady()) {
+                callback.exception(response.getErrorInfo().getBytes(StandardCharsets.UTF_8));
+            } else {
+                callback.response(response.getBytes());
+            }
+        });
     }
 
     @Override
     public void send(byte[] payload) throws IOException {
+        pipeline.send(payload);
+    }
+
+    @Override
+    public CompletableFuture<TlsResponse> exchangeAsync(byte[] payload) {
+        return exchangeAsync(payload, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public CompletableFuture<TlsResponse> exchangeAsync(byte[] payload, long timeout, TimeUnit units) {
+        return pipeline.exchangeAsync(payload, timeout, units).handleAsync((bytes, exc) -> {
+            if (exc == null) {
+                return new TlsResponseImpl(bytes);
+            }
+            if (exc instanceof TimeoutException) {
+                return new TlsResponseImpl(exc.getMessage());
+            }
+            throw new CompletionException(exc);
+        }, executor);
+    }
+
+    @Override
+    public CompletionStage<Void> sendAsync(byte[] payload) {
+        return pipeline.sendAsync(payload).whenCompleteAsync((result, exc) -> { }, executor);
+    }
 
+    /**
+     * Raw bytes, written in order with the framed payloads.
+     *
+     * @param bytes
+     * @return
+     */
+    CompletionStage<Void> writeAsync(byte[] bytes) {
+        return pipeline.writeAsync(bytes).whenCompleteAsync((result, exc) -> { }, executor);
     }
 
     @Override
     public TlsResponse exchange(String payload) throws IOException {
-        return null;
+        return exchange(payload.getBytes(StandardCharsets.UTF_8));
     }
 
     @Override
     public TlsResponse exchange(String payload, long timeout) throws IOException {
-        return null;
+        return exchange(payload.getBytes(StandardCharsets.UTF_8), timeout);
     }
 
     @Override
     public TlsResponse exchange(String payload, long timeout, TimeUnit units) throws IOException {
-        return null;
+        return exchange(payload.getBytes(StandardCharsets.UTF_8), timeout, units);
     }
 
     @Override
     public void exchange(String payload, TlsCallback callback) throws IOException {
-
+        exchange(payload.getBytes(StandardCharsets.UTF_8), callback);
     }
 
     @Override
     public void send(String payload) throws IOException {
+        send(payload.getBytes(StandardCharsets.UTF_8));
+    }
 
+    @Override
+    public CompletableFuture<TlsResponse> exchangeAsync(String payload) {
+        return exchangeAsync(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public CompletableFuture<TlsResponse> exchangeAsync(String payload, long timeout, TimeUnit units) {
+        return exchangeAsync(payload.getBytes(StandardCharsets.UTF_8), timeout, units);
+    }
+
+    @Override
+    public CompletionStage<Void> sendAsync(String payload) {
+        return sendAsync(payload.getBytes(StandardCharsets.UTF_8));
     }
 
 }
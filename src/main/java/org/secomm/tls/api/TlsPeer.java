@@ -24,6 +24,8 @@ package org.secomm.tls.api;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public interface TlsPeer {
 
@@ -91,6 +93,38 @@ public interface TlsPeer {
      */
     void write(byte[] bytes) throws IOException;
 
+    /**
+     * Send raw bytes without blocking. Completes on the completion executor.
+     *
+     * @param bytes
+     * @return A stage that completes when the bytes have been written.
+     */
+    CompletionStage<Void> writeAsync(byte[] bytes);
+
+    /**
+     * Send a UTF-8 encoded string without blocking.
+     *
+     * @param message
+     * @return A stage that completes when the message has been written.
+     */
+    CompletionStage<Void> writeAsync(String message);
+
+    /**
+     * Asynchronous exchange on the peer's conversation.
+     *
+     * @param payload
+     * @return A future that completes with the response.
+     */
+    CompletableFuture<TlsResponse> exchangeAsync(byte[] payload);
+
+    /**
+     * Asynchronous exchange of a UTF-8 encoded string on the peer's conversation.
+     *
+     * @param payload
+     * @return A future that completes with the response.
+     */
+    CompletableFuture<TlsResponse> exchangeAsync(String payload);
+
     /**
      * Get the encrypted input stream.
      *
@@ -111,4 +145,16 @@ public interface TlsPeer {
      * @return
      */
     TlsConversation getConversation();
+
+    /**
+     * False once either end has closed the connection.
+     *
+     * @return
+     */
+    boolean isOpen();
+
+    /**
+     * Close the connection.
+     */
+    void close();
 }
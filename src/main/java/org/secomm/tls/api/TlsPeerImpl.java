@@ -23,16 +23,35 @@
 package org.secomm.tls.api;
 
 import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.ExchangePipeline;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.util.HashedWheelTimer;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 class TlsPeerImpl implements TlsPeer {
 
     private final ConnectionState connectionState;
 
-    TlsPeerImpl(final ConnectionState connectionState) {
+    private final RecordLayer recordLayer;
+
+    private final int maxInFlight;
+
+    private final Executor completionExecutor;
+
+    private TlsConversationImpl conversation;
+
+    TlsPeerImpl(final ConnectionState connectionState, final RecordLayer recordLayer, final int maxInFlight,
+                final Executor completionExecutor) {
         this.connectionState = connectionState;
+        this.recordLayer = recordLayer;
+        this.maxInFlight = maxInFlight;
+        this.completionExecutor = completionExecutor;
     }
 
     @Override
@@ -75,6 +94,26 @@ class TlsPeerImpl implements TlsPeer {
 
     }
 
+    @Override
+    public CompletionStage<Void> writeAsync(byte[] bytes) {
+        return conversation().writeAsync(bytes);
+    }
+
+    @Override
+    public CompletionStage<Void> writeAsync(String message) {
+        return writeAsync(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public CompletableFuture<TlsResponse> exchangeAsync(byte[] payload) {
+        return conversation().exchangeAsync(payload);
+    }
+
+    @Override
+    public CompletableFuture<TlsResponse> exchangeAsync(String payload) {
+        return conversation().exchangeAsync(payload);
+    }
+
     @Override
     public TlsInputStream getInputStream() {
         return null;
@@ -85,8 +124,34 @@ class TlsPeerImpl implements TlsPeer {
         return null;
     }
 
+    /**
+     * Every call returns the same conversation, so all exchanges on the
+     * connection share one pipeline.
+     */
     @Override
     public TlsConversation getConversation() {
-        return null;
+        return conversation();
+    }
+
+    /**
+     * Writes share the conversation's pipeline, which keeps them in order
+     * with the exchanges.
+     */
+    private synchronized TlsConversationImpl conversation() {
+        if (conversation == null) {
+            conversation = new TlsConversationImpl(
+                    new ExchangePipeline(recordLayer, maxInFlight, HashedWheelTimer.getDefault()), completionExecutor);
+        }
+        return conversation;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return recordLayer.isOpen();
+    }
+
+    @Override
+    public void close() {
+        recordLayer.close();
     }
 }
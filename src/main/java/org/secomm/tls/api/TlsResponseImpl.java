@@ -23,36 +23,61 @@
 package org.secomm.tls.api;
 
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 class TlsResponseImpl implements TlsResponse {
 
+    private final byte[] bytes;
+
+    private final String errorInfo;
+
+    TlsResponseImpl(byte[] bytes) {
+        this.bytes = bytes;
+        this.errorInfo = null;
+    }
+
+    TlsResponseImpl(String errorInfo) {
+        this.bytes = new byte[0];
+        this.errorInfo = errorInfo;
+    }
+
     @Override
     public boolean isReady() {
-        return false;
+        return errorInfo == null;
     }
 
     @Override
     public String getErrorInfo() {
-        return null;
+        return errorInfo;
     }
 
     @Override
     public byte[] getBytes() {
-        return new byte[0];
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return toString(StandardCharsets.UTF_8);
     }
 
     @Override
     public String toString(Charset charset) {
-        return null;
+        return new String(bytes, charset);
     }
 
     @Override
     public String toString(String charset) {
-        return null;
+        return toString(Charset.forName(charset));
     }
 
     @Override
     public long copyBytes(int srcOffset, byte[] destination, int offset, int length) {
-        return 0;
+        if (srcOffset < 0 || offset < 0 || length < 0 || srcOffset > bytes.length || offset > destination.length) {
+            return 0;
+        }
+        int count = Math.min(length, Math.min(bytes.length - srcOffset, destination.length - offset));
+        System.arraycopy(bytes, srcOffset, destination, offset, count);
+        return count;
     }
 }
@@ -23,13 +23,19 @@
 package org.secomm.tls.crypto;
 
 import org.secomm.tls.crypto.prf.PRFAlgorithm;
+import org.secomm.tls.crypto.prf.TlsPrfSha256;
+
+import java.security.InvalidParameterException;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class AlgorithmFactory {
 
     public interface PrfBuilder <T extends PRFAlgorithm> {
         public T build();
     }
-/*
+
     public enum PrfAlgorithms { TLS_PRF_SHA256 }
 
     public static Map<PrfAlgorithms, PrfBuilder<?>> prfAlgorithms = Stream.of( new Object[][] {
@@ -43,6 +49,7 @@ public class AlgorithmFactory {
         }
         return (T) prfAlgorithms.get(algorithm).build();
     }
+/*
 
     public enum BulkCipherAlgorithm { NULL, RC4, TRIPLE_DES, AES }
 
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.secomm.tls.util.LruCache;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+/**
+ * Parsed certificates, keyed by a SHA-256 digest of their DER encoding. A
+ * client that reconnects to the same servers sees the same chains over and
+ * over, so after the first handshake a certificate costs one digest instead
+ * of an ASN.1 decode. The certificate keeps its decoded public key, so that
+ * is not rebuilt either.
+ *
+ * A certificate is the same certificate whenever its encoding is the same, so
+ * the time to live only bounds how long an unused entry holds memory. Safe to
+ * share between connections on any number of threads.
+ */
+public class CertificateCache {
+
+    public static final int DEFAULT_MAX_CERTIFICATES = 256;
+
+    public static final long DEFAULT_TIME_TO_LIVE = 24 * 3600000L;
+
+    private static final CertificateCache defaultCache = new CertificateCache();
+
+    private final LruCache<ByteBuffer, X509Certificate> certificates;
+
+    public CertificateCache() {
+        this(DEFAULT_MAX_CERTIFICATES, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param maxCertificates
+     * @param timeToLive Milliseconds.
+     */
+    public CertificateCache(int maxCertificates, long timeToLive) {
+        this.certificates = new LruCache<>(maxCertificates, timeToLive);
+    }
+
+    public static CertificateCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * The certificate with the given encoding, parsed if it isn't cached.
+     *
+     * @param encoded The DER encoding.
+     * @return
+     * @throws CertificateException If the encoding is not a certificate.
+     */
+    public X509Certificate getCertificate(byte[] encoded) throws CertificateException {
+        ByteBuffer key = digest(encoded);
+        X509Certificate certificate = certificates.get(key);
+        if (certificate == null) {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            certificate = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(encoded));
+            // Decode the key now, while this thread is already paying for the parse.
+            certificate.getPublicKey();
+            certificates.put(key, certificate);
+        }
+        return certificate;
+    }
+
+    public int size() {
+        return certificates.size();
+    }
+
+    public void clear() {
+        certificates.clear();
+    }
+
+    private static ByteBuffer digest(byte[] encoded) {
+        SHA256Digest digest = new SHA256Digest();
+        digest.update(encoded, 0, encoded.length);
+        byte[] result = new byte[digest.getDigestSize()];
+        digest.doFinal(result, 0);
+        return ByteBuffer.wrap(result);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto;
+
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.secomm.tls.util.LruCache;
+
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.function.LongSupplier;
+
+/**
+ * PKIX validation of server certificate chains against a set of trust
+ * anchors. Revocation is not checked.
+ *
+ * A chain that validates is remembered by a SHA-256 fingerprint of its
+ * encoding until the earliest notAfter in it, so later connections to the
+ * same server skip the signature checks. Chains that fail are not
+ * remembered. Safe to share between connections on any number of threads.
+ */
+public class CertificateValidator {
+
+    public static final int DEFAULT_MAX_CHAINS = 256;
+
+    /**
+     * Subject alternative name types, from RFC 5280, section 4.2.1.6.
+     */
+    private static final int DNS_NAME = 2;
+    private static final int IP_ADDRESS = 7;
+
+    private static final Pattern IPV4_ADDRESS = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+    private final Set<TrustAnchor> trustAnchors;
+
+    /**
+     * The anchors' own certificates. A chain may end with one of them, or
+     * even be one of them.
+     */
+    private final Set<X509Certificate> trustedCertificates;
+
+    private final LongSupplier clock;
+
+    /**
+     * Fingerprints of chains that validated, with their earliest notAfter.
+     */
+    private final LruCache<ByteBuffer, Boolean> verifiedChains;
+
+    /**
+     * Validate against every certificate entry in the key store.
+     *
+     * @param trustStore
+     * @throws KeyStoreException
+     * @throws InvalidAlgorithmParameterException If the key store has no certificates.
+     */
+    public CertificateValidator(KeyStore trustStore) throws KeyStoreException, InvalidAlgorithmParameterException {
+        this(new PKIXParameters(trustStore).getTrustAnchors());
+    }
+
+    public CertificateValidator(Set<TrustAnchor> trustAnchors) {
+        this(trustAnchors, DEFAULT_MAX_CHAINS, System::currentTimeMillis);
+    }
+
+    /**
+     * @param trustAnchors
+     * @param maxChains The number of verified chains to remember.
+     * @param clock Milliseconds since the epoch.
+     */
+    public CertificateValidator(Set<TrustAnchor> trustAnchors, int maxChains, LongSupplier clock) {
+        this.trustAnchors = Set.copyOf(trustAnchors);
+        this.trustedCertificates = new HashSet<>();
+        for (TrustAnchor anchor : this.trustAnchors) {
+            if (anchor.getTrustedCert() != null) {
+                trustedCertificates.add(anchor.getTrustedCert());
+            }
+        }
+        this.clock = clock;
+        // Entries are always added with their own time to live.
+        this.verifiedChains = new LruCache<>(maxChains, 0, clock);
+    }
+
+    /**
+     * A validator for the JVM's default trust store.
+     *
+     * @return
+     * @throws GeneralSecurityException If the trust store can't be loaded or has no certificates.
+     */
+    public static CertificateValidator systemDefault() throws GeneralSecurityException {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init((KeyStore) null);
+        Set<TrustAnchor> anchors = new HashSet<>();
+        for (TrustManager trustManager : factory.getTrustManagers()) {
+            if (trustManager instanceof X509TrustManager) {
+                for (X509Certificate issuer : ((X509TrustManager) trustManager).getAcceptedIssuers()) {
+                    anchors.add(new TrustAnchor(issuer, null));
+                }
+            }
+        }
+        if (anchors.isEmpty()) {
+            throw new KeyStoreException("The default trust store has no certificates");
+        }
+        return new CertificateValidator(anchors);
+    }
+
+    /**
+     * Validate a chain as the server sent it, then check that the leaf was
+     * issued for the host name.
+     *
+     * @param chain
+     * @param hostName The name or address the client asked for.
+     * @throws CertificateExpiredException If a certificate in the chain has expired.
+     * @throws CertificateException If the chain does not lead to a trust anchor, or
+     *                              the leaf does not name the host.
+     */
+    public void validate(List<X509Certificate> chain, String hostName) throws CertificateException {
+        validate(chain);
+        checkHostName(chain.get(0), hostName);
+    }
+
+    /**
+     * Validate a chain as the server sent it, leaf first.
+     *
+     * @param chain
+     * @throws CertificateExpiredException If a certificate in the chain has expired.
+     * @throws CertificateException If the chain does not lead to a trust anchor.
+     */
+    public void validate(List<X509Certificate> chain) throws CertificateException {
+        if (chain.isEmpty()) {
+            throw new CertificateException("Empty certificate chain");
+        }
+        ByteBuffer fingerprint = fingerprint(chain);
+        if (verifiedChains.get(fingerprint) != null) {
+            return;
+        }
+
+        long now = clock.getAsLong();
+        Date date = new Date(now);
+        // The path stops short of the first certificate that is itself trusted.
+        int pathLength = 0;
+        long notAfter = Long.MAX_VALUE;
+        for (X509Certificate certificate : chain) {
+            if (trustedCertificates.contains(certificate)) {
+                break;
+            }
+            certificate.checkValidity(date);
+            notAfter = Math.min(notAfter, certificate.getNotAfter().getTime());
+            ++pathLength;
+        }
+        if (pathLength > 0) {
+            try {
+                PKIXParameters parameters = new PKIXParameters(trustAnchors);
+                parameters.setRevocationEnabled(false);
+                parameters.setDate(date);
+                CertPathValidator.getInstance("PKIX").validate(
+                        CertificateFactory.getInstance("X.509").generateCertPath(chain.subList(0, pathLength)),
+                        parameters);
+            } catch (GeneralSecurityException e) {
+                throw new CertificateException("Certificate chain validation failed", e);
+            }
+        } else {
+            chain.get(0).checkValidity(date);
+            notAfter = chain.get(0).getNotAfter().getTime();
+        }
+        verifiedChains.put(fingerprint, Boolean.TRUE, notAfter - now);
+    }
+
+    /**
+     * @return The number of remembered chains, including any that have
+     *         expired but not yet been looked up.
+     */
+    public int verifiedChainCount() {
+        return verifiedChains.size();
+    }
+
+    /**
+     * Match the host name against the certificate's DNS names, or an address
+     * against its IP addresses. The common name is only used when there are
+     * no DNS names (RFC 2818, section 3.1). A wildcard stands for the whole
+     * leftmost label and nothing else.
+     *
+     * @param certificate
+     * @param hostName
+     * @throws CertificateException If the certificate does not name the host.
+     */
+    public static void checkHostName(X509Certificate certificate, String hostName) throws CertificateException {
+
+        String name = normalize(hostName);
+        boolean address = IPV4_ADDRESS.matcher(name).matches() || name.indexOf(':') >= 0;
+        boolean hasDnsNames = false;
+        Collection<List<?>> alternativeNames = certificate.getSubjectAlternativeNames();
+        if (alternativeNames != null) {
+            for (List<?> alternativeName : alternativeNames) {
+                int type = (Integer) alternativeName.get(0);
+                if (type == DNS_NAME) {
+                    hasDnsNames = true;
+                    if (!address && matches(name, (String) alternativeName.get(1))) {
+                        return;
+                    }
+                } else if (type == IP_ADDRESS && address && sameAddress(name, (String) alternativeName.get(1))) {
+                    return;
+                }
+            }
+        }
+        if (!hasDnsNames && !address) {
+            RDN[] commonNames = X500Name.getInstance(certificate.getSubjectX500Principal().getEncoded())
+                    .getRDNs(BCStyle.CN);
+            // The most specific common name comes last.
+            if (commonNames.length > 0 && matches(name,
+                    IETFUtils.valueToString(commonNames[commonNames.length - 1].getFirst().getValue()))) {
+                return;
+            }
+        }
+        throw new CertificateException("Certificate is not issued for " + hostName);
+    }
+
+    private static String normalize(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static boolean matches(String name, String pattern) {
+        pattern = normalize(pattern);
+        if (!pattern.startsWith("*.")) {
+            return name.equals(pattern);
+        }
+        // No wildcards for a whole top level domain, and only one label is replaced.
+        String suffix = pattern.substring(1);
+        int dot = name.indexOf('.');
+        return suffix.indexOf('.', 1) > 0 && dot > 0 && name.substring(dot).equals(suffix);
+    }
+
+    private static boolean sameAddress(String name, String address) {
+        try {
+            // Both are literals, so nothing is looked up.
+            return InetAddress.getByName(name).equals(InetAddress.getByName(address));
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private static ByteBuffer fingerprint(List<X509Certificate> chain) throws CertificateEncodingException {
+        SHA256Digest digest = new SHA256Digest();
+        for (X509Certificate certificate : chain) {
+            byte[] encoded = certificate.getEncoded();
+            digest.update((byte) (encoded.length >> 16));
+            digest.update((byte) (encoded.length >> 8));
+            digest.update((byte) encoded.length);
+            digest.update(encoded, 0, encoded.length);
+        }
+        byte[] result = new byte[digest.getDigestSize()];
+        digest.doFinal(result, 0);
+        return ByteBuffer.wrap(result);
+    }
+}
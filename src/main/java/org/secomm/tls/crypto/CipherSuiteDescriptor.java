@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto;
+
+import org.secomm.tls.protocol.SecurityParameters;
+
+/**
+ * Everything the record layer and the key exchange need to know about one
+ * cipher suite. Descriptors are immutable and shared, one per suite code.
+ *
+ * Every suite in CipherSuites has a descriptor, so that any code can be named.
+ * Only the supported ones have algorithms and lengths, the rest have just a
+ * code and a name. All of the lengths are in bytes, as they are in the key
+ * block.
+ */
+public final class CipherSuiteDescriptor {
+
+    private final short code;
+
+    private final String name;
+
+    private final CipherSuiteTranslator.KeyExchangeAlgorithm keyExchangeAlgorithm;
+
+    private final SecurityParameters.BulkCipherAlgorithm bulkCipherAlgorithm;
+
+    private final SecurityParameters.CipherType cipherType;
+
+    private final SecurityParameters.MACAlgorithm macAlgorithm;
+
+    private final byte encryptionKeyLength;
+
+    private final byte blockLength;
+
+    /**
+     * The implicit part of the IV, taken from the key block. Only AEAD suites have one.
+     */
+    private final byte fixedIvLength;
+
+    /**
+     * The explicit IV or nonce sent with each record.
+     */
+    private final byte recordIvLength;
+
+    /**
+     * MAC and MAC key lengths are the same for every HMAC suite.
+     */
+    private final byte macLength;
+
+    /**
+     * A suite this library can't negotiate.
+     */
+    CipherSuiteDescriptor(short code, String name) {
+        this(code, name, null, null, null, null, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0);
+    }
+
+    CipherSuiteDescriptor(short code, String name, CipherSuiteTranslator.KeyExchangeAlgorithm keyExchangeAlgorithm,
+                          SecurityParameters.BulkCipherAlgorithm bulkCipherAlgorithm,
+                          SecurityParameters.CipherType cipherType, SecurityParameters.MACAlgorithm macAlgorithm,
+                          byte encryptionKeyLength, byte blockLength, byte fixedIvLength, byte recordIvLength,
+                          byte macLength) {
+        this.code = code;
+        this.name = name;
+        this.keyExchangeAlgorithm = keyExchangeAlgorithm;
+        this.bulkCipherAlgorithm = bulkCipherAlgorithm;
+        this.cipherType = cipherType;
+        this.macAlgorithm = macAlgorithm;
+        this.encryptionKeyLength = encryptionKeyLength;
+        this.blockLength = blockLength;
+        this.fixedIvLength = fixedIvLength;
+        this.recordIvLength = recordIvLength;
+        this.macLength = macLength;
+    }
+
+    public short getCode() {
+        return code;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isSupported() {
+        return bulkCipherAlgorithm != null;
+    }
+
+    public boolean isEllipticCurve() {
+        return keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.ECDHE_RSA
+                || keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.ECDHE_ECDSA;
+    }
+
+    public CipherSuiteTranslator.KeyExchangeAlgorithm getKeyExchangeAlgorithm() {
+        return keyExchangeAlgorithm;
+    }
+
+    public SecurityParameters.BulkCipherAlgorithm getBulkCipherAlgorithm() {
+        return bulkCipherAlgorithm;
+    }
+
+    public SecurityParameters.CipherType getCipherType() {
+        return cipherType;
+    }
+
+    public SecurityParameters.MACAlgorithm getMacAlgorithm() {
+        return macAlgorithm;
+    }
+
+    public byte getEncryptionKeyLength() {
+        return encryptionKeyLength;
+    }
+
+    public byte getBlockLength() {
+        return blockLength;
+    }
+
+    public byte getFixedIvLength() {
+        return fixedIvLength;
+    }
+
+    public byte getRecordIvLength() {
+        return recordIvLength;
+    }
+
+    public byte getMacLength() {
+        return macLength;
+    }
+
+    public byte getMacKeyLength() {
+        return macLength;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (0x%04x)", name, code & 0xffff);
+    }
+}
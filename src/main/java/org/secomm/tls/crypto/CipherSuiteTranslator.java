@@ -22,96 +22,136 @@
 
 package org.secomm.tls.crypto;
 
+import org.secomm.tls.protocol.CipherSuites;
 import org.secomm.tls.protocol.SecurityParameters;
 import org.secomm.tls.protocol.UnknownCipherSuiteException;
 
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.stream.Stream;
 
+import static org.secomm.tls.crypto.CipherSuiteTranslator.KeyExchangeAlgorithm.DHE_RSA;
+import static org.secomm.tls.crypto.CipherSuiteTranslator.KeyExchangeAlgorithm.ECDHE_ECDSA;
+import static org.secomm.tls.crypto.CipherSuiteTranslator.KeyExchangeAlgorithm.ECDHE_RSA;
+import static org.secomm.tls.crypto.CipherSuiteTranslator.KeyExchangeAlgorithm.RSA;
+import static org.secomm.tls.protocol.SecurityParameters.BulkCipherAlgorithm.AES;
+import static org.secomm.tls.protocol.SecurityParameters.BulkCipherAlgorithm.CHACHA20_POLY1305;
+import static org.secomm.tls.protocol.SecurityParameters.BulkCipherAlgorithm.TRIPLEDES;
+import static org.secomm.tls.protocol.SecurityParameters.CipherType.AEAD;
+import static org.secomm.tls.protocol.SecurityParameters.CipherType.BLOCK;
+import static org.secomm.tls.protocol.SecurityParameters.MACAlgorithm.HMAC_SHA1;
+
+/**
+ * Cipher suite descriptors in a table indexed by the suite code, so finding
+ * a suite is one array load and no boxing. The table never changes, the
+ * negotiated suite is kept by each connection.
+ */
 public class CipherSuiteTranslator {
 
-    public enum KeyExchangeAlgorithm { DH_ANON, DHE_RSA, DHE_DSS, RSA, DH_RSA, DH_DSS }
-
-    private static KeyExchangeAlgorithm keyExchangeAlgorithm;
-
-    private static final Map<Short, String> cipherAlgorithmMap =
-            Stream.of(new Object[][] {
-                    { (short) 0x0a, "TRIPLEDES" },
-                    { (short) 0x33, "AES" },
-                    { (short) 0x39, "AES" },
-                    { (short) 0x9c, "AES"}
-    }).collect(Collectors.toMap(e -> (Short) e[0], e -> (String) e[1]));
-
-    private static final Map<Short, String> cipherTypeMap = Stream.of( new Object[][] {
-            { (short) 0x0a, "BLOCK" },
-            { (short) 0x33, "BLOCK" },
-            { (short) 0x39, "BLOCK" },
-            { (short) 0x9c, "AEAD"}
-    }).collect(Collectors.toMap(e -> (Short) e[0], e -> (String) e[1]));
-
-    private static final Map<Short, String> macAlgorithmMap = Stream.of(new Object[][] {
-            { (short) 0x0a, "HMAC_SHA1" },
-            { (short) 0x33, "HMAC_SHA1" },
-            { (short) 0x39, "HMAC_SHA1" },
-            { (short) 0x9c, "HMAC_SHA256"}
-    }).collect(Collectors.toMap(e -> (Short) e[0], e -> (String) e[1]));
-
-    private static final Map<Short, String> keyExchangeAlgorithmMap = Stream.of(new Object[][] {
-            { (short) 0x0a, KeyExchangeAlgorithm.DH_ANON.toString() },
-            { (short) 0x33, KeyExchangeAlgorithm.DHE_RSA.toString() },
-            { (short) 0x39, KeyExchangeAlgorithm.DHE_RSA.toString() },
-            { (short) 0x9c, KeyExchangeAlgorithm.RSA.toString() }
-    }).collect(Collectors.toMap(e -> (Short) e[0], e -> (String) e[1]));
+    public enum KeyExchangeAlgorithm { DH_ANON, DHE_RSA, DHE_DSS, RSA, DH_RSA, DH_DSS, ECDHE_RSA, ECDHE_ECDSA }
+
+    private static final CipherSuiteDescriptor[] descriptors = new CipherSuiteDescriptor[1 << 16];
+
+    static {
+        // A name for every suite in CipherSuites.
+        for (Field field : CipherSuites.class.getFields()) {
+            if (field.getType() == short.class && Modifier.isStatic(field.getModifiers())) {
+                try {
+                    short code = field.getShort(null);
+                    descriptors[code & 0xffff] = new CipherSuiteDescriptor(code, field.getName());
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
 
-    private static final Map<Short, Byte> encryptionKeyLengthMap = Stream.of(new Object[][] {
-            { (short) 0x0a, (byte) 160 },
-            { (short) 0x33, (byte) 128 },
-            { (short) 0x39, (byte) 256 },
-            { (short) 0x9c, (byte) 128 }
-    }).collect(Collectors.toMap(e -> (short) e[0], e -> (byte) e[1]));
+        // The suites that can be negotiated. The MAC length is also the MAC
+        // key length, AEAD suites have neither.
+        Stream.of(new Object[][] {
+                // suite, key exchange, cipher, type, MAC, key, block, fixed IV, record IV, MAC length
+                { (short) 0x0a, RSA, TRIPLEDES, BLOCK, HMAC_SHA1, 24, 8, 0, 8, 20 },
+                { (short) 0x33, DHE_RSA, AES, BLOCK, HMAC_SHA1, 16, 16, 0, 16, 20 },
+                { (short) 0x39, DHE_RSA, AES, BLOCK, HMAC_SHA1, 32, 16, 0, 16, 20 },
+                { (short) 0x9c, RSA, AES, AEAD, SecurityParameters.MACAlgorithm.NULL, 16, 16, 4, 8, 0 },
+                { (short) 0xccaa, DHE_RSA, CHACHA20_POLY1305, AEAD, SecurityParameters.MACAlgorithm.NULL, 32, 0, 12, 0, 0 },
+                { (short) 0xc009, ECDHE_ECDSA, AES, BLOCK, HMAC_SHA1, 16, 16, 0, 16, 20 },
+                { (short) 0xc00a, ECDHE_ECDSA, AES, BLOCK, HMAC_SHA1, 32, 16, 0, 16, 20 },
+                { (short) 0xc013, ECDHE_RSA, AES, BLOCK, HMAC_SHA1, 16, 16, 0, 16, 20 },
+                { (short) 0xc014, ECDHE_RSA, AES, BLOCK, HMAC_SHA1, 32, 16, 0, 16, 20 },
+                { (short) 0xc02b, ECDHE_ECDSA, AES, AEAD, SecurityParameters.MACAlgorithm.NULL, 16, 16, 4, 8, 0 },
+                { (short) 0xc02f, ECDHE_RSA, AES, AEAD, SecurityParameters.MACAlgorithm.NULL, 16, 16, 4, 8, 0 },
+                { (short) 0xcca8, ECDHE_RSA, CHACHA20_POLY1305, AEAD, SecurityParameters.MACAlgorithm.NULL, 32, 0, 12, 0, 0 },
+                { (short) 0xcca9, ECDHE_ECDSA, CHACHA20_POLY1305, AEAD, SecurityParameters.MACAlgorithm.NULL, 32, 0, 12, 0, 0 }
+        }).forEach(e -> {
+            short code = (short) e[0];
+            CipherSuiteDescriptor named = descriptors[code & 0xffff];
+            descriptors[code & 0xffff] = new CipherSuiteDescriptor(code,
+                    named != null ? named.getName() : String.format("0x%04x", code & 0xffff),
+                    (KeyExchangeAlgorithm) e[1], (SecurityParameters.BulkCipherAlgorithm) e[2],
+                    (SecurityParameters.CipherType) e[3], (SecurityParameters.MACAlgorithm) e[4],
+                    ((Integer) e[5]).byteValue(), ((Integer) e[6]).byteValue(), ((Integer) e[7]).byteValue(),
+                    ((Integer) e[8]).byteValue(), ((Integer) e[9]).byteValue());
+        });
+    }
 
-    private static final Map<Short, Byte> macLengthMap = Stream.of(new Object[][] {
-            { (short) 0x0a, (byte) 160 },
-            { (short) 0x33, (byte) 160 },
-            { (short) 0x39, (byte) 160 },
-            { (short) 0x9c, (byte) 256 }
-    }).collect(Collectors.toMap(e -> (short) e[0], e -> (byte) e[1]));
+    /**
+     * @param cipherSuite
+     * @return The descriptor, or null if the code is not a known suite.
+     */
+    public static CipherSuiteDescriptor getDescriptor(short cipherSuite) {
+        return descriptors[cipherSuite & 0xffff];
+    }
 
-    public static void setSecurityParameters(SecurityParameters parameters, short cipherSuite)
-            throws UnknownCipherSuiteException {
+    /**
+     * @param cipherSuite
+     * @return True if the suite has a descriptor that can be negotiated.
+     */
+    public static boolean isSupported(short cipherSuite) {
+        CipherSuiteDescriptor descriptor = descriptors[cipherSuite & 0xffff];
+        return descriptor != null && descriptor.isSupported();
+    }
 
-        String algorithm = cipherAlgorithmMap.get(cipherSuite);
-        if (algorithm == null) {
-            throw new UnknownCipherSuiteException("Cipher suite " + cipherSuite);
+    /**
+     * The suites in the list that can be negotiated, in the same order. A
+     * client should offer nothing else, or the server may pick a suite the
+     * handshake can't continue with.
+     *
+     * @param cipherSuites
+     * @return
+     */
+    public static List<Short> supportedCipherSuites(List<Short> cipherSuites) {
+        List<Short> supported = new ArrayList<>(cipherSuites.size());
+        for (short cipherSuite : cipherSuites) {
+            if (isSupported(cipherSuite)) {
+                supported.add(cipherSuite);
+            }
         }
-        parameters.setBulkCipherAlgorithm(algorithm);
-        parameters.setCipherType(cipherTypeMap.get(cipherSuite));
-
-        parameters.setEncryptionKeyLength(encryptionKeyLengthMap.get(cipherSuite));
-        parameters.setMacLength(macLengthMap.get(cipherSuite));
-
-        keyExchangeAlgorithm = getKeyExchangeAlgorithm(cipherSuite);
+        return supported;
     }
 
     /**
-     * This really stupid function gets around the fact that you
-     * can't have a map of enums in Java
+     * Set the negotiated suite's parameters.
      *
+     * @param parameters
      * @param cipherSuite
-     * @return
+     * @return The suite's descriptor, for the connection to keep.
+     * @throws UnknownCipherSuiteException If the suite is unknown or not supported.
      */
-    public static KeyExchangeAlgorithm getKeyExchangeAlgorithm(short cipherSuite) {
-        String algorithm = keyExchangeAlgorithmMap.get(cipherSuite);
-        if (algorithm != null) {
-            return KeyExchangeAlgorithm.valueOf(algorithm);
-        } else {
-            return null;
+    public static CipherSuiteDescriptor setSecurityParameters(SecurityParameters parameters, short cipherSuite)
+            throws UnknownCipherSuiteException {
+
+        CipherSuiteDescriptor descriptor = descriptors[cipherSuite & 0xffff];
+        if (descriptor == null || !descriptor.isSupported()) {
+            throw new UnknownCipherSuiteException("Cipher suite " + cipherSuite);
         }
+        parameters.setCipherSuite(descriptor);
+        return descriptor;
     }
 
-    public static KeyExchangeAlgorithm getKeyExchangeAlgorithm() {
-        return keyExchangeAlgorithm;
+    public static KeyExchangeAlgorithm getKeyExchangeAlgorithm(short cipherSuite) {
+        CipherSuiteDescriptor descriptor = descriptors[cipherSuite & 0xffff];
+        return descriptor != null ? descriptor.getKeyExchangeAlgorithm() : null;
     }
 }
-
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA384Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.modes.AEADCipher;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.modes.ChaCha20Poly1305;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.secomm.tls.crypto.digest.DigestFactory;
+import org.secomm.tls.crypto.prf.PRFAlgorithm;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Derives the master secret and the key block (RFC 5246, sections 6.3 and 8.1)
+ * and builds the pending read and write states from it.
+ *
+ * The cipher and MAC engines are keyed here, once per direction. AES and
+ * DESede key setup and the HMAC inner and outer pads are done before the
+ * first record is protected, and never again for the life of the state.
+ */
+public class KeySchedule {
+
+    public interface BlockCipherBuilder <T extends BlockCipher> {
+        T build();
+    }
+
+    public interface AEADCipherBuilder <T extends AEADCipher> {
+        T build();
+    }
+
+    public static final int MASTER_SECRET_LENGTH = 48;
+
+    public static final int AEAD_TAG_LENGTH = 16;
+
+    public static final int VERIFY_DATA_LENGTH = 12;
+
+    public static final String CLIENT_FINISHED = "client finished";
+
+    public static final String SERVER_FINISHED = "server finished";
+
+    private static final Map<String, BlockCipherBuilder<?>> blockCipherMap = Stream.of(new Object[][] {
+            { "AES", (BlockCipherBuilder<AESEngine>) AESEngine::new },
+            { "TRIPLEDES", (BlockCipherBuilder<DESedeEngine>) DESedeEngine::new }
+    }).collect(Collectors.toMap(e -> (String) e[0], e -> (BlockCipherBuilder<?>) e[1]));
+
+    /**
+     * ChaCha20-Poly1305 is not built on a block cipher, so AEAD ciphers have their own map.
+     */
+    private static final Map<String, AEADCipherBuilder<?>> aeadCipherMap = Stream.of(new Object[][] {
+            { "AES", (AEADCipherBuilder<GCMBlockCipher>) () -> new GCMBlockCipher(new AESEngine()) },
+            { "CHACHA20_POLY1305", (AEADCipherBuilder<ChaCha20Poly1305>) ChaCha20Poly1305::new }
+    }).collect(Collectors.toMap(e -> (String) e[0], e -> (AEADCipherBuilder<?>) e[1]));
+
+    /**
+     * The BouncyCastle digests are used directly so that HMac can save the
+     * keyed pad states.
+     */
+    private static final Map<String, DigestFactory.DigestBuilder<?>> macDigestMap = Stream.of(new Object[][] {
+            { "HMAC_SHA1", (DigestFactory.DigestBuilder<SHA1Digest>) SHA1Digest::new },
+            { "HMAC_SHA256", (DigestFactory.DigestBuilder<SHA256Digest>) SHA256Digest::new },
+            { "HMAC_SHA384", (DigestFactory.DigestBuilder<SHA384Digest>) SHA384Digest::new }
+    }).collect(Collectors.toMap(e -> (String) e[0], e -> (DigestFactory.DigestBuilder<?>) e[1]));
+
+    private final SecurityParameters securityParameters;
+
+    private final PRFAlgorithm prf;
+
+    public KeySchedule(SecurityParameters securityParameters) {
+        this.securityParameters = securityParameters;
+        this.prf = AlgorithmFactory.getPrfAlgorithm(AlgorithmFactory.PrfAlgorithms.TLS_PRF_SHA256);
+    }
+
+    /**
+     * master_secret = PRF(pre_master_secret, "master secret",
+     *                     ClientHello.random + ServerHello.random)[0..47]
+     *
+     * The premaster secret is cleared once it has been used.
+     *
+     * @param premasterSecret
+     * @return The master secret, which is also set in the security parameters.
+     */
+    public byte[] computeMasterSecret(byte[] premasterSecret) {
+
+        byte[] masterSecret = new byte[MASTER_SECRET_LENGTH];
+        prf.initialize(premasterSecret);
+        prf.generateRandomBytes("master secret", securityParameters.getClientRandom(),
+                securityParameters.getServerRandom(), masterSecret, 0, MASTER_SECRET_LENGTH);
+        Arrays.fill(premasterSecret, (byte) 0);
+        securityParameters.setMasterSecret(masterSecret);
+        // Everything after this is keyed with the master secret.
+        prf.initialize(masterSecret);
+        return masterSecret;
+    }
+
+    /**
+     * Expand the master secret and set the connection's pending states.
+     *
+     * key_block = PRF(SecurityParameters.master_secret, "key expansion",
+     *                 SecurityParameters.server_random + SecurityParameters.client_random)
+     *
+     * The block is partitioned as client_write_MAC_key, server_write_MAC_key,
+     * client_write_key, server_write_key, client_write_IV and server_write_IV.
+     *
+     * @param connectionState
+     * @throws TlsCryptoException If the suite's cipher or MAC is not supported.
+     */
+    public void deriveKeys(ConnectionState connectionState) throws TlsCryptoException {
+
+        byte[] masterSecret = securityParameters.getMasterSecret();
+        if (masterSecret == null) {
+            throw new TlsCryptoException("Master secret not established");
+        }
+        prf.initialize(masterSecret);
+
+        int macKeyLength = securityParameters.getMacKeyLength();
+        int keyLength = securityParameters.getEncryptionKeyLength();
+        int ivLength = securityParameters.getFixedIvLength();
+        byte[] keyBlock = new byte[2 * (macKeyLength + keyLength + ivLength)];
+        prf.generateRandomBytes("key expansion", securityParameters.getServerRandom(),
+                securityParameters.getClientRandom(), keyBlock, 0, keyBlock.length);
+
+        int offset = 0;
+        byte[] clientMacKey = Arrays.copyOfRange(keyBlock, offset, offset += macKeyLength);
+        byte[] serverMacKey = Arrays.copyOfRange(keyBlock, offset, offset += macKeyLength);
+        byte[] clientKey = Arrays.copyOfRange(keyBlock, offset, offset += keyLength);
+        byte[] serverKey = Arrays.copyOfRange(keyBlock, offset, offset += keyLength);
+        byte[] clientIv = Arrays.copyOfRange(keyBlock, offset, offset += ivLength);
+        byte[] serverIv = Arrays.copyOfRange(keyBlock, offset, offset + ivLength);
+        Arrays.fill(keyBlock, (byte) 0);
+
+        boolean client = securityParameters.getEntity() == SecurityParameters.ConnectionEnd.CLIENT;
+        ConnectionState.CipherState clientWrite =
+                buildCipherState(client, clientKey, clientMacKey, clientIv);
+        ConnectionState.CipherState serverWrite =
+                buildCipherState(!client, serverKey, serverMacKey, serverIv);
+        Arrays.fill(clientMacKey, (byte) 0);
+        Arrays.fill(serverMacKey, (byte) 0);
+        Arrays.fill(clientKey, (byte) 0);
+        Arrays.fill(serverKey, (byte) 0);
+
+        if (client) {
+            connectionState.setPendingStates(serverWrite, clientWrite);
+        } else {
+            connectionState.setPendingStates(clientWrite, serverWrite);
+        }
+    }
+
+    private ConnectionState.CipherState buildCipherState(boolean forEncryption, byte[] key,
+                                                         byte[] macKey, byte[] fixedIv)
+            throws TlsCryptoException {
+
+        String bulkCipher = securityParameters.getBulkCipherAlgorithm().toString();
+        KeyParameter keyParameter = new KeyParameter(key);
+
+        switch (securityParameters.getCipherType()) {
+            case AEAD:
+                AEADCipherBuilder<?> aeadBuilder = aeadCipherMap.get(bulkCipher);
+                if (aeadBuilder == null) {
+                    throw new TlsCryptoException("Unsupported cipher " + bulkCipher);
+                }
+                AEADCipher aead = aeadBuilder.build();
+                // Key it now with a throwaway nonce. Records are then initialized with a
+                // null key, which keeps the key schedule and the GHASH tables. The
+                // throwaway nonce never matches a record nonce. Every record nonce
+                // starts with the first four bytes of the fixed IV, and this one
+                // starts with their complement.
+                byte[] nonce = new byte[fixedIv.length + securityParameters.getRecordIvLength()];
+                for (int i = 0; i < fixedIv.length; ++i) {
+                    nonce[i] = (byte) ~fixedIv[i];
+                }
+                aead.init(forEncryption, new AEADParameters(keyParameter, AEAD_TAG_LENGTH * 8, nonce));
+                return new ConnectionState.CipherState(SecurityParameters.CipherType.AEAD, aead,
+                        null, null, fixedIv, securityParameters.getRecordIvLength());
+            case BLOCK:
+                DigestFactory.DigestBuilder<?> digestBuilder =
+                        macDigestMap.get(securityParameters.getMacAlgorithm().toString());
+                if (digestBuilder == null) {
+                    throw new TlsCryptoException("Unsupported MAC " + securityParameters.getMacAlgorithm());
+                }
+                Mac mac = new HMac(digestBuilder.build());
+                mac.init(new KeyParameter(macKey));
+                BlockCipherBuilder<?> cipherBuilder = blockCipherMap.get(bulkCipher);
+                if (cipherBuilder == null) {
+                    throw new TlsCryptoException("Unsupported cipher " + bulkCipher);
+                }
+                BlockCipher cbc = new CBCBlockCipher(cipherBuilder.build());
+                // Records are initialized with a null key and their own IV.
+                cbc.init(forEncryption, new ParametersWithIV(keyParameter, new byte[cbc.getBlockSize()]));
+                return new ConnectionState.CipherState(SecurityParameters.CipherType.BLOCK, null,
+                        cbc, mac, fixedIv, securityParameters.getRecordIvLength());
+            default:
+                throw new TlsCryptoException("Unsupported cipher type " + securityParameters.getCipherType());
+        }
+    }
+
+    /**
+     * verify_data = PRF(master_secret, finished_label, Hash(handshake_messages))[0..11]
+     *
+     * @param finishedLabel CLIENT_FINISHED or SERVER_FINISHED.
+     * @param transcript The handshake messages so far. It is copied, not finished.
+     * @return
+     */
+    public byte[] computeVerifyData(String finishedLabel, SHA256Digest transcript) {
+        SHA256Digest digest = new SHA256Digest(transcript);
+        byte[] handshakeHash = new byte[digest.getDigestSize()];
+        digest.doFinal(handshakeHash, 0);
+        return prf.generateRandomBytes(finishedLabel, handshakeHash, VERIFY_DATA_LENGTH);
+    }
+
+    /**
+     * The PRF, keyed with the master secret once it is known.
+     *
+     * @return
+     */
+    public PRFAlgorithm getPrf() {
+        return prf;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto.agreement;
+
+import org.secomm.tls.crypto.TlsCryptoException;
+
+import java.security.SecureRandom;
+
+/**
+ * An ECDHE group. Implementations are shared by every handshake, so they hold
+ * nothing but the curve and its precomputed tables, and are thread safe.
+ */
+public interface AgreementGroup {
+
+    /**
+     * The NamedGroups code point.
+     *
+     * @return
+     */
+    short getNamedGroup();
+
+    /**
+     * Generate an ephemeral key pair.
+     *
+     * @param random
+     * @return
+     */
+    AgreementKey generateKey(SecureRandom random);
+
+    /**
+     * Compute the shared secret, which is the premaster secret.
+     *
+     * @param key Our ephemeral key.
+     * @param peerPublicKey The peer's encoded public key.
+     * @return
+     * @throws TlsCryptoException If the peer's key is not valid for the group.
+     */
+    byte[] calculateSecret(AgreementKey key, byte[] peerPublicKey) throws TlsCryptoException;
+}
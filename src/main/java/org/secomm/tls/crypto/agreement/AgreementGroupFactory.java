@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto.agreement;
+
+import org.secomm.tls.crypto.TlsCryptoException;
+import org.secomm.tls.protocol.record.extensions.NamedGroups;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The groups are built once and shared, so their precomputed tables are too.
+ */
+public class AgreementGroupFactory {
+
+    /**
+     * In order of preference, for the supported groups extension.
+     */
+    public static final List<Short> supportedGroups = List.of(NamedGroups.x25519, NamedGroups.secp256r1,
+            NamedGroups.secp384r1);
+
+    private static final Map<Short, AgreementGroup> groupMap = Stream.of(new Object[][] {
+            { NamedGroups.secp256r1, new ECAgreementGroup(NamedGroups.secp256r1, "secp256r1") },
+            { NamedGroups.secp384r1, new ECAgreementGroup(NamedGroups.secp384r1, "secp384r1") },
+            { NamedGroups.x25519, new X25519AgreementGroup(NamedGroups.x25519) }
+    }).collect(Collectors.toMap(e -> (Short) e[0], e -> (AgreementGroup) e[1]));
+
+    public static AgreementGroup getGroup(short namedGroup) throws TlsCryptoException {
+        AgreementGroup group = groupMap.get(namedGroup);
+        if (group == null) {
+            throw new TlsCryptoException("Unsupported named group " + namedGroup);
+        }
+        return group;
+    }
+}
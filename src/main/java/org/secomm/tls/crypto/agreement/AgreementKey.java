@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto.agreement;
+
+/**
+ * An ephemeral key pair. The private part is only visible to the group that
+ * generated it.
+ */
+public class AgreementKey {
+
+    private final short namedGroup;
+
+    private final Object privateKey;
+
+    private final byte[] publicKey;
+
+    AgreementKey(short namedGroup, Object privateKey, byte[] publicKey) {
+        this.namedGroup = namedGroup;
+        this.privateKey = privateKey;
+        this.publicKey = publicKey;
+    }
+
+    public short getNamedGroup() {
+        return namedGroup;
+    }
+
+    Object getPrivateKey() {
+        return privateKey;
+    }
+
+    /**
+     * The public key as it is encoded in a key exchange message.
+     *
+     * @return
+     */
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+}
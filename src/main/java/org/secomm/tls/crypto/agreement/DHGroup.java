@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto.agreement;
+
+import org.bouncycastle.util.BigIntegers;
+import org.secomm.tls.crypto.TlsCryptoException;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * A finite field group, as a server sent it in ServerDHParams.
+ *
+ * Groups from RFC 3526 and RFC 7919 are recognized. Their primes are safe
+ * primes, so they use the short private exponents of RFC 7919 section 5.2,
+ * and g^x is computed from a table of fixed powers of the generator that is
+ * built on first use. Any other group gets a full length exponent and a plain
+ * modPow, because nothing is known about its order.
+ */
+public class DHGroup implements AgreementGroup {
+
+    private static final int WINDOW = 4;
+
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    private final short namedGroup;
+
+    private final BigInteger p;
+
+    private final BigInteger g;
+
+    private final BigInteger pMinusOne;
+
+    /**
+     * The private exponent length in bits, or 0 for the full range.
+     */
+    private final int exponentLength;
+
+    private final int publicKeyLength;
+
+    private volatile BigInteger[][] generatorTable;
+
+    DHGroup(short namedGroup, BigInteger p, BigInteger g, int exponentLength) {
+        this.namedGroup = namedGroup;
+        this.p = p;
+        this.g = g;
+        this.pMinusOne = p.subtract(BigInteger.ONE);
+        this.exponentLength = exponentLength;
+        this.publicKeyLength = (p.bitLength() + 7) / 8;
+    }
+
+    /**
+     * The NamedGroups code point for the RFC 7919 groups, otherwise 0.
+     *
+     * @return
+     */
+    @Override
+    public short getNamedGroup() {
+        return namedGroup;
+    }
+
+    public BigInteger getP() {
+        return p;
+    }
+
+    public BigInteger getG() {
+        return g;
+    }
+
+    public boolean isRecognized() {
+        return exponentLength > 0;
+    }
+
+    @Override
+    public AgreementKey generateKey(SecureRandom random) {
+        BigInteger x;
+        BigInteger y;
+        if (isRecognized()) {
+            // The top bit is set so that every exponent has the full length.
+            x = BigIntegers.createRandomBigInteger(exponentLength - 1, random).setBit(exponentLength - 1);
+            y = fixedBasePow(x);
+        } else {
+            x = BigIntegers.createRandomInRange(TWO, p.subtract(TWO), random);
+            y = g.modPow(x, p);
+        }
+        return new AgreementKey(namedGroup, x, BigIntegers.asUnsignedByteArray(y));
+    }
+
+    /**
+     * Z = Ys^x mod p, with leading zero bytes stripped (RFC 5246 section 8.1.2).
+     * Ys must be in [2, p - 2], as RFC 7919 section 5.1 requires.
+     */
+    @Override
+    public byte[] calculateSecret(AgreementKey key, byte[] peerPublicKey) throws TlsCryptoException {
+        if (peerPublicKey.length > publicKeyLength) {
+            throw new TlsCryptoException("Invalid DH public key");
+        }
+        BigInteger ys = new BigInteger(1, peerPublicKey);
+        if (ys.compareTo(BigInteger.ONE) <= 0 || ys.compareTo(pMinusOne) >= 0) {
+            throw new TlsCryptoException("Invalid DH public key");
+        }
+        BigInteger z = ys.modPow((BigInteger) key.getPrivateKey(), p);
+        if (z.equals(BigInteger.ONE)) {
+            throw new TlsCryptoException("Invalid DH public key");
+        }
+        return BigIntegers.asUnsignedByteArray(z);
+    }
+
+    /**
+     * g^x from the table. Row i holds g^(j * 2^(WINDOW * i)) for each digit j,
+     * so the result is one multiplication per nonzero digit of x and no
+     * squarings.
+     */
+    private BigInteger fixedBasePow(BigInteger x) {
+        BigInteger[][] table = generatorTable();
+        BigInteger result = BigInteger.ONE;
+        for (int row = 0; row < table.length; ++row) {
+            int digit = 0;
+            for (int bit = WINDOW - 1; bit >= 0; --bit) {
+                digit = (digit << 1) | (x.testBit(row * WINDOW + bit) ? 1 : 0);
+            }
+            if (digit != 0) {
+                result = result.multiply(table[row][digit]).mod(p);
+            }
+        }
+        return result;
+    }
+
+    private BigInteger[][] generatorTable() {
+        BigInteger[][] table = generatorTable;
+        if (table == null) {
+            synchronized (this) {
+                table = generatorTable;
+                if (table == null) {
+                    table = new BigInteger[(exponentLength + WINDOW - 1) / WINDOW][1 << WINDOW];
+                    BigInteger base = g;
+                    for (BigInteger[] row : table) {
+                        row[0] = BigInteger.ONE;
+                        row[1] = base;
+                        for (int j = 2; j < row.length; ++j) {
+                            row[j] = row[j - 1].multiply(base).mod(p);
+                        }
+                        base = row[row.length - 1].multiply(base).mod(p);
+                    }
+                    generatorTable = table;
+                }
+            }
+        }
+        return table;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto.agreement;
+
+import org.bouncycastle.crypto.agreement.DHStandardGroups;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.DHParameters;
+import org.bouncycastle.util.BigIntegers;
+import org.secomm.tls.crypto.TlsCryptoException;
+import org.secomm.tls.protocol.record.extensions.NamedGroups;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Parsed DH groups, keyed by a SHA-256 digest of the encoded p and g. Servers
+ * nearly always send one of a handful of well known groups, so after the
+ * first handshake a group costs one digest instead of parsing, and the
+ * recognized groups keep their generator tables.
+ *
+ * Unrecognized groups are cached too, up to MAX_UNRECOGNIZED of them, so a
+ * server that makes up a new group for every handshake can't grow the cache.
+ * They are checked first. A prime shorter than MIN_PRIME_BITS, an even
+ * modulus or a generator outside 2..p-2 is refused and never cached.
+ */
+public class DHGroupCache {
+
+    public static final int MAX_UNRECOGNIZED = 32;
+
+    /**
+     * The smallest prime accepted from a server. Anything shorter is within
+     * reach of precomputation attacks (Logjam).
+     */
+    public static final int MIN_PRIME_BITS = 2048;
+
+    /**
+     * RFC 7919 section 5.2 exponent lengths, by the bit length of p. The
+     * RFC 3526 primes are safe primes of the same sizes.
+     */
+    private static final Map<Integer, Integer> exponentLengthMap = Stream.of(new Object[][] {
+            { 2048, 225 },
+            { 3072, 275 },
+            { 4096, 325 },
+            { 6144, 375 },
+            { 8192, 400 }
+    }).collect(Collectors.toMap(e -> (Integer) e[0], e -> (Integer) e[1]));
+
+    private static final Map<ByteBuffer, DHGroup> groups = new ConcurrentHashMap<>();
+
+    private static final Map<ByteBuffer, DHGroup> unrecognized = new ConcurrentHashMap<>();
+
+    static {
+        Stream.of(new Object[][] {
+                { (short) 0, DHStandardGroups.rfc3526_2048 },
+                { (short) 0, DHStandardGroups.rfc3526_3072 },
+                { (short) 0, DHStandardGroups.rfc3526_4096 },
+                { (short) 0, DHStandardGroups.rfc3526_6144 },
+                { (short) 0, DHStandardGroups.rfc3526_8192 },
+                { NamedGroups.ffdhe2048, DHStandardGroups.rfc7919_ffdhe2048 },
+                { NamedGroups.ffdhe3072, DHStandardGroups.rfc7919_ffdhe3072 },
+                { NamedGroups.ffdhe4096, DHStandardGroups.rfc7919_ffdhe4096 },
+                { NamedGroups.ffdhe6144, DHStandardGroups.rfc7919_ffdhe6144 },
+                { NamedGroups.ffdhe8192, DHStandardGroups.rfc7919_ffdhe8192 }
+        }).forEach(e -> {
+            DHParameters parameters = (DHParameters) e[1];
+            byte[] p = BigIntegers.asUnsignedByteArray(parameters.getP());
+            byte[] g = BigIntegers.asUnsignedByteArray(parameters.getG());
+            groups.put(digest(p, g), new DHGroup((short) e[0], parameters.getP(), parameters.getG(),
+                    exponentLengthMap.get(parameters.getP().bitLength())));
+        });
+    }
+
+    /**
+     * The group for the parameters a server sent.
+     *
+     * @param p dh_p as sent.
+     * @param g dh_g as sent.
+     * @return
+     * @throws TlsCryptoException If the group is too small or malformed.
+     */
+    public static DHGroup getGroup(byte[] p, byte[] g) throws TlsCryptoException {
+        ByteBuffer key = digest(p, g);
+        DHGroup group = groups.get(key);
+        if (group == null) {
+            group = unrecognized.get(key);
+        }
+        if (group == null) {
+            BigInteger prime = new BigInteger(1, p);
+            BigInteger generator = new BigInteger(1, g);
+            if (prime.bitLength() < MIN_PRIME_BITS) {
+                throw new TlsCryptoException("DH prime of " + prime.bitLength() + " bits is too small");
+            }
+            if (!prime.testBit(0) || generator.compareTo(BigInteger.TWO) < 0
+                    || generator.compareTo(prime.subtract(BigInteger.TWO)) > 0) {
+                throw new TlsCryptoException("Invalid DH group");
+            }
+            group = new DHGroup((short) 0, prime, generator, 0);
+            if (unrecognized.size() < MAX_UNRECOGNIZED) {
+                DHGroup existing = unrecognized.putIfAbsent(key, group);
+                if (existing != null) {
+                    group = existing;
+                }
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Leading zeros are not significant, so they are skipped, and each value
+     * is prefixed with its length so that p and g can't run together.
+     */
+    private static ByteBuffer digest(byte[] p, byte[] g) {
+        SHA256Digest digest = new SHA256Digest();
+        update(digest, p);
+        update(digest, g);
+        byte[] result = new byte[digest.getDigestSize()];
+        digest.doFinal(result, 0);
+        return ByteBuffer.wrap(result);
+    }
+
+    private static void update(SHA256Digest digest, byte[] value) {
+        int offset = 0;
+        while (offset < value.length && value[offset] == 0) {
+            ++offset;
+        }
+        int length = value.length - offset;
+        digest.update((byte) (length >> 8));
+        digest.update((byte) length);
+        digest.update(value, offset, length);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto.agreement;
+
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointUtil;
+import org.bouncycastle.util.BigIntegers;
+import org.secomm.tls.crypto.TlsCryptoException;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * ECDHE over a NIST prime curve, using BouncyCastle's custom curve
+ * implementations.
+ *
+ * Key generation multiplies the base point with a fixed-point comb. The comb
+ * table is built here, once, and BouncyCastle caches it on the curve, so every
+ * key generated through this group reuses it.
+ */
+public class ECAgreementGroup implements AgreementGroup {
+
+    private final short namedGroup;
+
+    private final ECDomainParameters domainParameters;
+
+    private final int fieldLength;
+
+    public ECAgreementGroup(short namedGroup, String curveName) {
+        this.namedGroup = namedGroup;
+        X9ECParameters curve = CustomNamedCurves.getByName(curveName);
+        this.domainParameters = new ECDomainParameters(curve.getCurve(), curve.getG(), curve.getN(),
+                curve.getH(), curve.getSeed());
+        this.fieldLength = (curve.getCurve().getFieldSize() + 7) / 8;
+        FixedPointUtil.precompute(domainParameters.getG());
+    }
+
+    @Override
+    public short getNamedGroup() {
+        return namedGroup;
+    }
+
+    @Override
+    public AgreementKey generateKey(SecureRandom random) {
+        ECKeyPairGenerator generator = new ECKeyPairGenerator();
+        generator.init(new ECKeyGenerationParameters(domainParameters, random));
+        AsymmetricCipherKeyPair keyPair = generator.generateKeyPair();
+        // Uncompressed, the only format RFC 8422 allows.
+        byte[] publicKey = ((ECPublicKeyParameters) keyPair.getPublic()).getQ().getEncoded(false);
+        return new AgreementKey(namedGroup, keyPair.getPrivate(), publicKey);
+    }
+
+    /**
+     * RFC 8422 section 5.10. The premaster secret is the x coordinate of the
+     * shared point, left padded to the field length.
+     */
+    @Override
+    public byte[] calculateSecret(AgreementKey key, byte[] peerPublicKey) throws TlsCryptoException {
+        ECPublicKeyParameters peer;
+        try {
+            ECPoint point = domainParameters.getCurve().decodePoint(peerPublicKey);
+            // The constructor checks the point is on the curve and in the right subgroup.
+            peer = new ECPublicKeyParameters(point, domainParameters);
+        } catch (IllegalArgumentException e) {
+            throw new TlsCryptoException("Invalid EC public key", e);
+        }
+        ECDHBasicAgreement agreement = new ECDHBasicAgreement();
+        agreement.init((ECPrivateKeyParameters) key.getPrivateKey());
+        BigInteger z = agreement.calculateAgreement(peer);
+        return BigIntegers.asUnsignedByteArray(fieldLength, z);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto.agreement;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ephemeral keys made ahead of time, so that a handshake takes a key instead
+ * of doing the scalar multiplication or exponentiation itself.
+ *
+ * Each group has its own queue. When a key is taken and the queue has fallen
+ * below the watermark, a single low priority worker thread tops it up again.
+ * An empty queue is never waited on, the key is generated on the caller's
+ * thread as it would have been without the pool. Every key is handed out
+ * exactly once.
+ *
+ * Only shared group instances should be pooled, the groups from
+ * AgreementGroupFactory and the recognized groups from DHGroupCache. Queues
+ * are kept by group instance and never removed.
+ */
+public class EphemeralKeyPool {
+
+    public static final int DEFAULT_WATERMARK = 8;
+
+    private static final EphemeralKeyPool defaultPool = new EphemeralKeyPool(DEFAULT_WATERMARK);
+
+    private static final class GroupQueue {
+
+        final Queue<AgreementKey> keys = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The queue length, ConcurrentLinkedQueue.size() walks the queue.
+         */
+        final AtomicInteger size = new AtomicInteger();
+
+        final AtomicBoolean refilling = new AtomicBoolean();
+    }
+
+    private final Map<AgreementGroup, GroupQueue> queues = new ConcurrentHashMap<>();
+
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile int watermark;
+
+    private volatile ExecutorService worker;
+
+    /**
+     * @param watermark The number of keys to keep for each group. 0 turns
+     *                  the pool off.
+     */
+    public EphemeralKeyPool(int watermark) {
+        setWatermark(watermark);
+    }
+
+    public static EphemeralKeyPool getDefault() {
+        return defaultPool;
+    }
+
+    public int getWatermark() {
+        return watermark;
+    }
+
+    public void setWatermark(int watermark) {
+        if (watermark < 0) {
+            throw new IllegalArgumentException("Negative watermark");
+        }
+        this.watermark = watermark;
+    }
+
+    /**
+     * Take a key for the group, or make one on this thread if none are ready.
+     *
+     * @param group The group. Must be a shared instance.
+     * @param random Used only if a key has to be made here.
+     * @return
+     */
+    public AgreementKey takeKey(AgreementGroup group, SecureRandom random) {
+        if (watermark == 0) {
+            return group.generateKey(random);
+        }
+        GroupQueue queue = queues.computeIfAbsent(group, g -> new GroupQueue());
+        AgreementKey key = queue.keys.poll();
+        if (key != null) {
+            queue.size.decrementAndGet();
+        } else {
+            key = group.generateKey(random);
+        }
+        refill(group, queue);
+        return key;
+    }
+
+    /**
+     * Start filling the queue for a group before the first handshake needs it.
+     *
+     * @param group
+     */
+    public void prefill(AgreementGroup group) {
+        if (watermark > 0) {
+            refill(group, queues.computeIfAbsent(group, g -> new GroupQueue()));
+        }
+    }
+
+    /**
+     * The number of keys ready for a group.
+     *
+     * @param group
+     * @return
+     */
+    public int available(AgreementGroup group) {
+        GroupQueue queue = queues.get(group);
+        return queue == null ? 0 : queue.size.get();
+    }
+
+    private void refill(AgreementGroup group, GroupQueue queue) {
+        if (queue.size.get() < watermark && queue.refilling.compareAndSet(false, true)) {
+            worker().execute(() -> {
+                try {
+                    while (queue.size.get() < watermark) {
+                        queue.keys.add(group.generateKey(random));
+                        queue.size.incrementAndGet();
+                    }
+                } finally {
+                    queue.refilling.set(false);
+                }
+            });
+        }
+    }
+
+    private ExecutorService worker() {
+        ExecutorService executor = worker;
+        if (executor == null) {
+            synchronized (this) {
+                executor = worker;
+                if (executor == null) {
+                    executor = Executors.newSingleThreadExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "EphemeralKeyPool");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    });
+                    worker = executor;
+                }
+            }
+        }
+        return executor;
+    }
+}
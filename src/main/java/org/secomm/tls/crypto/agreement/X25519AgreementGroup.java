@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.crypto.agreement;
+
+import org.bouncycastle.math.ec.rfc7748.X25519;
+import org.secomm.tls.crypto.TlsCryptoException;
+
+import java.security.SecureRandom;
+
+/**
+ * X25519 (RFC 7748). Base point multiplication uses BouncyCastle's static
+ * Ed25519 tables, which are built when the group is created.
+ */
+public class X25519AgreementGroup implements AgreementGroup {
+
+    private final short namedGroup;
+
+    public X25519AgreementGroup(short namedGroup) {
+        this.namedGroup = namedGroup;
+        X25519.precompute();
+    }
+
+    @Override
+    public short getNamedGroup() {
+        return namedGroup;
+    }
+
+    @Override
+    public AgreementKey generateKey(SecureRandom random) {
+        byte[] privateKey = new byte[X25519.SCALAR_SIZE];
+        X25519.generatePrivateKey(random, privateKey);
+        byte[] publicKey = new byte[X25519.POINT_SIZE];
+        X25519.generatePublicKey(privateKey, 0, publicKey, 0);
+        return new AgreementKey(namedGroup, privateKey, publicKey);
+    }
+
+    @Override
+    public byte[] calculateSecret(AgreementKey key, byte[] peerPublicKey) throws TlsCryptoException {
+        if (peerPublicKey.length != X25519.POINT_SIZE) {
+            throw new TlsCryptoException("Invalid X25519 public key");
+        }
+        byte[] secret = new byte[X25519.POINT_SIZE];
+        // RFC 8422 section 5.11, an all zero result must be rejected.
+        if (!X25519.calculateAgreement((byte[]) key.getPrivateKey(), 0, peerPublicKey, 0, secret, 0)) {
+            throw new TlsCryptoException("X25519 agreement produced a zero secret");
+        }
+        return secret;
+    }
+}
@@ -22,7 +22,10 @@
 
 package org.secomm.tls.crypto.cipher;
 
+import org.bouncycastle.crypto.AsymmetricBlockCipher;
 import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.encodings.PKCS1Encoding;
 import org.bouncycastle.crypto.engines.RSAEngine;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
 import org.bouncycastle.crypto.params.RSAPrivateCrtKeyParameters;
@@ -35,11 +38,12 @@ import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 
 /**
- * Werapper for Bouncy Castle lightweight API
+ * Werapper for Bouncy Castle lightweight API. Blocks are PKCS #1 v1.5
+ * padded, as RFC 5246 requires for the encrypted premaster secret.
  */
 public class RSACipher {
 
-    private final RSAEngine rsaEngine;
+    private final AsymmetricBlockCipher rsaEngine;
 
     private RSAPublicKey rsaPublicKey;
 
@@ -48,7 +52,7 @@ public class RSACipher {
     private boolean encrypt;
 
     public RSACipher() {
-        rsaEngine = new RSAEngine();
+        rsaEngine = new PKCS1Encoding(new RSAEngine());
     }
 
     public void initialize(PublicKey publicKey) throws InvalidKeyException {
@@ -78,14 +82,14 @@ public class RSACipher {
         rsaEngine.init(false, cipherParameters);
     }
 
-    public byte[] encrypt(byte[] plaintext) {
+    public byte[] encrypt(byte[] plaintext) throws InvalidCipherTextException {
         if (!encrypt) {
             throw new IllegalStateException("Not initialized for encryption");
         }
         return rsaEngine.processBlock(plaintext, 0, plaintext.length);
     }
 
-    public byte[] decrypt(byte[] plaintext) {
+    public byte[] decrypt(byte[] plaintext) throws InvalidCipherTextException {
         if (encrypt) {
             throw new IllegalStateException("Not initialized for decryption");
         }
@@ -23,6 +23,8 @@
 package org.secomm.tls.crypto.digest;
 
 import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA384Digest;
 
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
@@ -42,7 +44,9 @@ public class DigestFactory {
     }
 
     private static final Map<String, DigestBuilder<?>> digestMap = Stream.of(new Object[][] {
-            { "SHA1", new SHA1DigestWrapper.Builder() }
+            { "SHA1", new SHA1DigestWrapper.Builder() },
+            { "SHA256", (DigestBuilder<SHA256Digest>) SHA256Digest::new },
+            { "SHA384", (DigestBuilder<SHA384Digest>) SHA384Digest::new }
     }).collect(Collectors.toMap(e -> (String) e[0], e -> (DigestBuilder<?>) e[1]));
 
     public static Digest getDigest(String algorithm) throws NoSuchAlgorithmException {
@@ -24,6 +24,39 @@ package org.secomm.tls.crypto.prf;
 
 public interface PRFAlgorithm {
 
+    /**
+     * Key the PRF. The keyed state is kept, so any number of outputs can be
+     * generated from one secret without keying again.
+     *
+     * @param secret
+     */
+    public void initialize(byte[] secret);
+
     public byte[] generateRandomBytes(String label, byte[] seed, int length);
 
+    /**
+     * Write length bytes of PRF(secret, label, seed) into the output.
+     *
+     * @param label
+     * @param seed
+     * @param output
+     * @param offset
+     * @param length
+     */
+    public void generateRandomBytes(String label, byte[] seed, byte[] output, int offset, int length);
+
+    /**
+     * The same, with the seed in two parts. The master secret and key block
+     * seeds are both two randoms, so they never need to be concatenated.
+     *
+     * @param label
+     * @param seed
+     * @param seedContinued
+     * @param output
+     * @param offset
+     * @param length
+     */
+    public void generateRandomBytes(String label, byte[] seed, byte[] seedContinued,
+                                    byte[] output, int offset, int length);
+
 }
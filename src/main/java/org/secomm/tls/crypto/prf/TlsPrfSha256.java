@@ -1,5 +1,5 @@
 /*
- * Copyright (c) 2020 Steve Brenneis. 
+ * Copyright (c) 2020 Steve Brenneis.
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy of this
  * software and associated documentation files (the "Software"), to deal in the Software
@@ -22,8 +22,21 @@
 
 package org.secomm.tls.crypto.prf;
 
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.secomm.tls.crypto.AlgorithmFactory;
 
+/**
+ * The TLS 1.2 PRF with SHA-256 (RFC 5246, section 5).
+ *
+ * One HMAC is keyed in initialize. HMac keeps the keyed inner and outer
+ * digest states and restores them after each MAC, so the key is never hashed
+ * again. Output is written straight into the caller's array, and apart from
+ * a two block scratch area nothing is allocated.
+ *
+ * An instance is not safe to share between threads.
+ */
 public class TlsPrfSha256 implements PRFAlgorithm {
 
     public static final class Builder implements AlgorithmFactory.PrfBuilder<TlsPrfSha256> {
@@ -33,15 +46,46 @@ public class TlsPrfSha256 implements PRFAlgorithm {
         }
     }
 
+    private final HMac hmac;
+
+    /**
+     * A(i) from the P_hash definition.
+     */
+    private final byte[] a;
+
+    /**
+     * The last output block, when only part of it is needed.
+     */
+    private final byte[] block;
+
+    private boolean initialized;
+
+    public TlsPrfSha256() {
+        hmac = new HMac(new SHA256Digest());
+        a = new byte[hmac.getMacSize()];
+        block = new byte[hmac.getMacSize()];
+    }
+
+    @Override
+    public void initialize(byte[] secret) {
+        hmac.init(new KeyParameter(secret));
+        initialized = true;
+    }
 
     @Override
     public byte[] generateRandomBytes(String label, byte[] seed, int length) {
-//        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        return new byte[0];
+        byte[] output = new byte[length];
+        generateRandomBytes(label, seed, null, output, 0, length);
+        return output;
+    }
+
+    @Override
+    public void generateRandomBytes(String label, byte[] seed, byte[] output, int offset, int length) {
+        generateRandomBytes(label, seed, null, output, offset, length);
     }
 
     /**
-     * Phase 1 of the P_hash algorithm. Creates the first HMAC digest.
+     * P_hash, computed iteratively.
      *
      * The form is P_hash(secret, seed) = HMAC_hash(secret, A(1) + seed),
      *                                    HMAC_hash(secret, A(2) + seed),
@@ -52,57 +96,57 @@ public class TlsPrfSha256 implements PRFAlgorithm {
      *
      *  seed = label + seed
      *
-     * @param digest
      * @param label
      * @param seed
+     * @param seedContinued May be null.
+     * @param output
+     * @param offset
      * @param length
-     * @return
      */
-/*
-    private byte[] doPHash(Digest digest, String label, byte[] seed, int length) {
+    @Override
+    public void generateRandomBytes(String label, byte[] seed, byte[] seedContinued,
+                                    byte[] output, int offset, int length) {
 
-        HMac hmac = new HMac(digest);
-        hmac.init(new KeyParameter(secret));
-        hmac.update(label.getBytes(StandardCharsets.UTF_8), 0, label.length());
-        hmac.update(seed, 0, seed.length);
-        byte[] intermediate = new byte[hmac.getMacSize()];
-        hmac.doFinal(intermediate, 0);
+        if (!initialized) {
+            throw new IllegalStateException("PRF not initialized");
+        }
+        if (offset < 0 || length < 0 || offset + length > output.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        // A(1)
+        updateSeed(label, seed, seedContinued);
+        hmac.doFinal(a, 0);
 
-        if (intermediate.length < length) {
-            return doPHash(digest, intermediate, seed, length);
-        } else {
-            return Arrays.copyOf(intermediate, length);
+        int blockSize = a.length;
+        int end = offset + length;
+        while (offset < end) {
+            hmac.update(a, 0, blockSize);
+            updateSeed(label, seed, seedContinued);
+            if (end - offset >= blockSize) {
+                hmac.doFinal(output, offset);
+                offset += blockSize;
+            } else {
+                hmac.doFinal(block, 0);
+                System.arraycopy(block, 0, output, offset, end - offset);
+                offset = end;
+            }
+            if (offset < end) {
+                // A(i + 1)
+                hmac.update(a, 0, blockSize);
+                hmac.doFinal(a, 0);
+            }
         }
     }
 
-*/
-    /**
-     * Recursive hash until length bytes are generated.
-     *
-     * @param digest
-     * @param previous
-     * @param seed
-     * @param length
-     * @return
-     */
-/*
-    private byte[] doPHash(Digest digest, byte[] previous, byte[] seed, int length) {
-
-        digest.reset();
-        HMac hmac = new HMac(digest);
-        hmac.init(new KeyParameter(secret));
-        hmac.update(previous, 0, previous.length);
+    private void updateSeed(String label, byte[] seed, byte[] seedContinued) {
+        // Labels are ASCII.
+        for (int i = 0; i < label.length(); ++i) {
+            hmac.update((byte) label.charAt(i));
+        }
         hmac.update(seed, 0, seed.length);
-        byte[] intermediate = new byte[hmac.getMacSize()];
-        hmac.doFinal(intermediate, 0);
-
-        byte [] result = Arrays.concatenate(previous, intermediate);
-
-        if (result.length < length) {
-            return doPHash(digest, result, seed, length);
-        } else {
-            return Arrays.copyOf(result, length);
+        if (seedContinued != null) {
+            hmac.update(seedContinued, 0, seedContinued.length);
         }
     }
-*/
 }
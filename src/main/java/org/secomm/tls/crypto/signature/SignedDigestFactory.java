@@ -39,11 +39,14 @@ public class SignedDigestFactory {
     }
 
     private static final Map<Integer, SignatureBuilder<?>> signatureMap = Stream.of(new Object[][] {
-            { (int) TlsConstants.DHE_SIGNATURE_RSA, new RSASignatureWithDigest.Builder() }
+            { (int) TlsConstants.DHE_SIGNATURE_RSA, new RSASignatureWithDigest.Builder() },
+            { (int) TlsConstants.DHE_SIGNATURE_ECDSA, new ECDSASignatureWithDigest.Builder() }
     }).collect(Collectors.toMap(e -> (Integer) e[0], e -> (SignatureBuilder<?>) e[1]));
 
     private static final Map<Integer, String> hashNamesMap = Stream.of(new Object[][] {
-            { (int) TlsConstants.DHE_HASH_SHA1, "SHA1" }
+            { (int) TlsConstants.DHE_HASH_SHA1, "SHA1" },
+            { (int) TlsConstants.DHE_HASH_SHA256, "SHA256" },
+            { (int) TlsConstants.DHE_HASH_SHA384, "SHA384" }
     }).collect(Collectors.toMap(e -> (Integer) e[0], e -> (String) e[1]));
 
     public static SignedDigest getDHESignedDigest(SignatureAndHashAlgorithm signatureAndHashAlgorithm) throws NoSuchAlgorithmException {
@@ -27,10 +27,12 @@ import org.secomm.tls.protocol.ConnectionState;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class ClientConnectionManager implements ConnectionManager {
 
@@ -40,20 +42,31 @@ public class ClientConnectionManager implements ConnectionManager {
 
     private final int port;
 
+    /**
+     * Completion handlers run on this group's threads. Null selects the
+     * system-wide default group.
+     */
+    private final AsynchronousChannelGroup channelGroup;
+
     private ByteBuffer lastRead;
 
     public ClientConnectionManager(String address, int port) {
+        this(address, port, null);
+    }
+
+    public ClientConnectionManager(String address, int port, AsynchronousChannelGroup channelGroup) {
         this.address = address;
         this.port = port;
+        this.channelGroup = channelGroup;
     }
 
     public void connect(CompletionHandler<Void, ClientConnectionManager> connectHandler) throws IOException {
-        channel = AsynchronousSocketChannel.open();
+        channel = AsynchronousSocketChannel.open(channelGroup);
         channel.connect(new InetSocketAddress(address, port), this, connectHandler);
     }
 
     public boolean connect() throws IOException {
-        channel = AsynchronousSocketChannel.open();
+        channel = AsynchronousSocketChannel.open(channelGroup);
         Future<Void> future = channel.connect(new InetSocketAddress(address, port));
         try {
             future.get();
@@ -75,6 +88,11 @@ public class ClientConnectionManager implements ConnectionManager {
         return channel.read(buffer);
     }
 
+    @Override
+    public void read(ByteBuffer buffer, CompletionHandler<Integer, ConnectionManager> readHandler) {
+        channel.read(buffer, this, readHandler);
+    }
+
     @Override
     public ByteBuffer read() {
         return lastRead;
@@ -85,6 +103,17 @@ public class ClientConnectionManager implements ConnectionManager {
         channel.write(buffer, this, writeHandler);
     }
 
+    @Override
+    public void write(ByteBuffer[] buffers, CompletionHandler<Long, ConnectionManager> writeHandler) {
+        // A zero timeout means no timeout.
+        channel.write(buffers, 0, buffers.length, 0L, TimeUnit.MILLISECONDS, this, writeHandler);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel != null && channel.isOpen();
+    }
+
     @Override
     public void close() {
         try {
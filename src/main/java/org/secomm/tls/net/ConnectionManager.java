@@ -33,10 +33,38 @@ public interface ConnectionManager {
 
     Future<Integer> read(ByteBuffer buffer);
 
+    /**
+     * Non-blocking read into the caller's buffer. The handler is called with the
+     * number of bytes read, or -1 if the peer closed the connection.
+     *
+     * @param buffer
+     * @param readHandler
+     */
+    void read(ByteBuffer buffer, CompletionHandler<Integer, ConnectionManager> readHandler);
+
     ByteBuffer read();
 
     void write(ByteBuffer buffer, CompletionHandler<Integer, ConnectionManager> writeHandler);
 
+    /**
+     * Gathering write. The handler is called with the number of bytes written,
+     * which may be less than the total remaining in the buffers.
+     *
+     * @param buffers
+     * @param writeHandler
+     */
+    void write(ByteBuffer[] buffers, CompletionHandler<Long, ConnectionManager> writeHandler);
+
     void close();
 
+    /**
+     * False once either end has closed the connection. Managers that cannot
+     * tell report the connection as open.
+     *
+     * @return
+     */
+    default boolean isOpen() {
+        return true;
+    }
+
 }
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.net;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.WritePendingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * One end of an in-memory connection, for testing and load generation
+ * without sockets. Each direction is a fixed size ring buffer. A read with
+ * nothing to deliver waits for the peer's next write, and a write to a full
+ * ring waits for the peer's next read. Both ends see partial reads and writes
+ * the way they would on a socket.
+ *
+ * Completion handlers run on the executor the pair was created with. The
+ * default executor runs them inline on the thread that made the data
+ * available, so a single threaded test is completely deterministic.
+ */
+public class LoopbackConnectionManager implements ConnectionManager {
+
+    public static final int DEFAULT_CAPACITY = 32768;
+
+    /**
+     * One direction of the connection. Pending operations are completed
+     * outside the lock by collecting them in a list for dispatch.
+     */
+    private static final class Ring {
+
+        private final byte[] bytes;
+
+        private int head;
+
+        private int count;
+
+        // The writing end has closed. The reader sees end of stream once the ring is empty.
+        private boolean writerClosed;
+
+        // The reading end has closed. Writes fail from now on.
+        private boolean readerClosed;
+
+        private ByteBuffer readBuffer;
+
+        private CompletionHandler<Integer, ConnectionManager> readHandler;
+
+        private ConnectionManager reader;
+
+        private ByteBuffer[] writeBuffers;
+
+        private CompletionHandler<Long, ConnectionManager> writeHandler;
+
+        private ConnectionManager writer;
+
+        Ring(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        synchronized void read(ByteBuffer buffer, CompletionHandler<Integer, ConnectionManager> handler,
+                               ConnectionManager reader, List<Runnable> completions) {
+            if (readerClosed) {
+                completions.add(() -> handler.failed(new ClosedChannelException(), reader));
+                return;
+            }
+            if (readHandler != null) {
+                throw new ReadPendingException();
+            }
+            readBuffer = buffer;
+            readHandler = handler;
+            this.reader = reader;
+            transfer(completions);
+        }
+
+        synchronized void write(ByteBuffer[] buffers, CompletionHandler<Long, ConnectionManager> handler,
+                                ConnectionManager writer, List<Runnable> completions) {
+            if (writerClosed || readerClosed) {
+                completions.add(() -> handler.failed(new ClosedChannelException(), writer));
+                return;
+            }
+            if (writeHandler != null) {
+                throw new WritePendingException();
+            }
+            writeBuffers = buffers;
+            writeHandler = handler;
+            this.writer = writer;
+            transfer(completions);
+        }
+
+        synchronized boolean isOpen() {
+            return !readerClosed && !writerClosed;
+        }
+
+        synchronized void closeReader(List<Runnable> completions) {
+            readerClosed = true;
+            if (readHandler != null) {
+                CompletionHandler<Integer, ConnectionManager> handler = readHandler;
+                ConnectionManager waiting = reader;
+                readHandler = null;
+                completions.add(() -> handler.failed(new AsynchronousCloseException(), waiting));
+            }
+            if (writeHandler != null) {
+                CompletionHandler<Long, ConnectionManager> handler = writeHandler;
+                ConnectionManager waiting = writer;
+                writeHandler = null;
+                completions.add(() -> handler.failed(new ClosedChannelException(), waiting));
+            }
+        }
+
+        synchronized void closeWriter(List<Runnable> completions) {
+            writerClosed = true;
+            if (writeHandler != null) {
+                CompletionHandler<Long, ConnectionManager> handler = writeHandler;
+                ConnectionManager waiting = writer;
+                writeHandler = null;
+                completions.add(() -> handler.failed(new AsynchronousCloseException(), waiting));
+            }
+            transfer(completions);
+        }
+
+        /**
+         * Complete whatever the current state allows. Reading frees space for a
+         * waiting writer, and writing gives a waiting reader something to read.
+         */
+        private void transfer(List<Runnable> completions) {
+
+            boolean progress = true;
+            while (progress) {
+                progress = false;
+                if (readHandler != null && (count > 0 || writerClosed || !readBuffer.hasRemaining())) {
+                    int result = count > 0 || !readBuffer.hasRemaining() ? take(readBuffer) : -1;
+                    CompletionHandler<Integer, ConnectionManager> handler = readHandler;
+                    ConnectionManager waiting = reader;
+                    readHandler = null;
+                    readBuffer = null;
+                    completions.add(() -> handler.completed(result, waiting));
+                    progress = true;
+                }
+                if (writeHandler != null) {
+                    long result = give(writeBuffers);
+                    if (result > 0 || !hasRemaining(writeBuffers)) {
+                        CompletionHandler<Long, ConnectionManager> handler = writeHandler;
+                        ConnectionManager waiting = writer;
+                        writeHandler = null;
+                        writeBuffers = null;
+                        completions.add(() -> handler.completed(result, waiting));
+                        progress = true;
+                    }
+                }
+            }
+        }
+
+        private static boolean hasRemaining(ByteBuffer[] buffers) {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int take(ByteBuffer buffer) {
+            int length = Math.min(count, buffer.remaining());
+            int first = Math.min(length, bytes.length - head);
+            buffer.put(bytes, head, first);
+            buffer.put(bytes, 0, length - first);
+            head = (head + length) % bytes.length;
+            count -= length;
+            return length;
+        }
+
+        private long give(ByteBuffer[] buffers) {
+            long total = 0;
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining() && count < bytes.length) {
+                    int tail = (head + count) % bytes.length;
+                    int length = Math.min(buffer.remaining(),
+                            Math.min(bytes.length - count, bytes.length - tail));
+                    buffer.get(bytes, tail, length);
+                    count += length;
+                    total += length;
+                }
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+            }
+            return total;
+        }
+    }
+
+    private final Ring inbound;
+
+    private final Ring outbound;
+
+    private final Executor executor;
+
+    private LoopbackConnectionManager peer;
+
+    private ByteBuffer lastRead;
+
+    private LoopbackConnectionManager(Ring inbound, Ring outbound, Executor executor) {
+        this.inbound = inbound;
+        this.outbound = outbound;
+        this.executor = executor;
+    }
+
+    /**
+     * Create a connected pair with the default capacity. Handlers run inline.
+     *
+     * @return The client end. The server end is its peer.
+     */
+    public static LoopbackConnectionManager createPair() {
+        return createPair(DEFAULT_CAPACITY, Runnable::run);
+    }
+
+    /**
+     * Create a connected pair.
+     *
+     * @param capacity The number of bytes each direction can hold before a write waits.
+     * @param executor Runs the completion handlers.
+     * @return The client end. The server end is its peer.
+     */
+    public static LoopbackConnectionManager createPair(int capacity, Executor executor) {
+        Ring toServer = new Ring(capacity);
+        Ring toClient = new Ring(capacity);
+        LoopbackConnectionManager client = new LoopbackConnectionManager(toClient, toServer, executor);
+        LoopbackConnectionManager server = new LoopbackConnectionManager(toServer, toClient, executor);
+        client.peer = server;
+        server.peer = client;
+        return client;
+    }
+
+    public LoopbackConnectionManager getPeer() {
+        return peer;
+    }
+
+    @Override
+    public void read(int length, CompletionHandler<Integer, ConnectionManager> readHandler) {
+        lastRead = ByteBuffer.allocate(length);
+        read(lastRead, readHandler);
+    }
+
+    @Override
+    public Future<Integer> read(ByteBuffer buffer) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        read(buffer, new CompletionHandler<Integer, ConnectionManager>() {
+            @Override
+            public void completed(Integer result, ConnectionManager attachment) {
+                future.complete(result);
+            }
+
+            @Override
+            public void failed(Throwable exc, ConnectionManager attachment) {
+                future.completeExceptionally(exc);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public void read(ByteBuffer buffer, CompletionHandler<Integer, ConnectionManager> readHandler) {
+        List<Runnable> completions = new ArrayList<>(2);
+        inbound.read(buffer, readHandler, this, completions);
+        dispatch(completions);
+    }
+
+    @Override
+    public ByteBuffer read() {
+        return lastRead;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, CompletionHandler<Integer, ConnectionManager> writeHandler) {
+        write(new ByteBuffer[] { buffer }, new CompletionHandler<Long, ConnectionManager>() {
+            @Override
+            public void completed(Long result, ConnectionManager attachment) {
+                writeHandler.completed(result.intValue(), attachment);
+            }
+
+            @Override
+            public void failed(Throwable exc, ConnectionManager attachment) {
+                writeHandler.failed(exc, attachment);
+            }
+        });
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, CompletionHandler<Long, ConnectionManager> writeHandler) {
+        List<Runnable> completions = new ArrayList<>(2);
+        outbound.write(buffers, writeHandler, this, completions);
+        dispatch(completions);
+    }
+
+    /**
+     * Open until either end closes.
+     */
+    @Override
+    public boolean isOpen() {
+        return inbound.isOpen() && outbound.isOpen();
+    }
+
+    /**
+     * The peer reads end of stream once it has read everything already
+     * written. Anything still waiting on this end fails.
+     */
+    @Override
+    public void close() {
+        List<Runnable> completions = new ArrayList<>(4);
+        inbound.closeReader(completions);
+        outbound.closeWriter(completions);
+        dispatch(completions);
+    }
+
+    private void dispatch(List<Runnable> completions) {
+        for (Runnable completion : completions) {
+            executor.execute(completion);
+        }
+    }
+}
@@ -22,20 +22,34 @@
 
 package org.secomm.tls.protocol;
 
-import org.secomm.tls.api.TlsPeer;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.secomm.tls.crypto.CertificateCache;
+import org.secomm.tls.crypto.CertificateValidator;
+import org.secomm.tls.crypto.CipherSuiteDescriptor;
 import org.secomm.tls.crypto.CipherSuiteTranslator;
+import org.secomm.tls.crypto.KeySchedule;
+import org.secomm.tls.crypto.TlsCryptoException;
+import org.secomm.tls.crypto.agreement.AgreementGroupFactory;
+import org.secomm.tls.crypto.agreement.EphemeralKeyPool;
 import org.secomm.tls.protocol.record.AlertFragment;
-import org.secomm.tls.protocol.record.RecordLayerException;
+import org.secomm.tls.protocol.record.extensions.SessionTicket;
+import org.secomm.tls.protocol.record.extensions.SupportedEllipticCurves;
+import org.secomm.tls.protocol.record.extensions.SupportedPointFormats;
 import org.secomm.tls.protocol.record.extensions.TlsExtension;
 import org.secomm.tls.protocol.record.handshake.CertificateRequest;
 import org.secomm.tls.protocol.record.handshake.CertificateVerify;
 import org.secomm.tls.protocol.record.handshake.ClientHello;
 import org.secomm.tls.protocol.record.handshake.ClientKeyExchange;
 import org.secomm.tls.protocol.record.handshake.Finished;
+import org.secomm.tls.protocol.record.HandshakeFlight;
 import org.secomm.tls.protocol.record.HandshakeFragment;
 import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
 import org.secomm.tls.protocol.record.handshake.HelloRequest;
+import org.secomm.tls.protocol.record.handshake.NewSessionTicket;
+import org.secomm.tls.protocol.record.BadRecordMacException;
+import org.secomm.tls.protocol.record.InvalidEncodingException;
 import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.RecordLayerException;
 import org.secomm.tls.protocol.record.handshake.ServerCertificate;
 import org.secomm.tls.protocol.record.handshake.ServerHello;
 import org.secomm.tls.protocol.record.handshake.ServerHelloDone;
@@ -43,16 +57,29 @@ import org.secomm.tls.protocol.record.handshake.ServerKeyExchange;
 import org.secomm.tls.protocol.record.handshake.TlsHandshakeMessage;
 import org.secomm.tls.protocol.record.TlsPlaintextRecord;
 
-import java.io.IOException;
+import java.nio.channels.CompletionHandler;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Event driven client handshake. Nothing here blocks. Each read that completes
+ * one or more records runs the records through the state machine on the
+ * channel group thread that delivered them, and then the next read is issued.
+ * No thread is held while waiting for the server, so the number of handshakes
+ * in progress is not limited by the size of the thread pool.
+ */
 public class ClientHandshake {
 
     private enum HandshakeStep { NOT_STARTED, HELLO_REQUEST, CLIENT_HELLO, SERVER_HELLO, SERVER_CERTIFICATE,
         SERVER_KEY_EXCHANGE, CERTIFICATE_REQUEST, SERVER_HELLO_DONE, CERTIFICATE_VERIFY, CLIENT_KEY_EXCHANGE,
-        SERVER_FINISHED, CLIENT_FINISHED }
+        SERVER_NEW_SESSION_TICKET, SERVER_CHANGE_CIPHER_SPEC, SERVER_FINISHED, CLIENT_FINISHED }
 
     private final static class HandshakeMessages {
         public HelloRequest helloRequest;
@@ -65,6 +92,7 @@ public class ClientHandshake {
         public CertificateVerify certificateVerify;
         public ClientKeyExchange clientKeyExchange;
         public Finished clientFinished;
+        public NewSessionTicket newSessionTicket;
         public Finished serverFinished;
     }
 
@@ -72,7 +100,11 @@ public class ClientHandshake {
 
     private final RecordLayer recordLayer;
 
-    private TlsPeer peer;
+    /**
+     * Completed with the connection state when the server's Finished message
+     * arrives. Completed exceptionally with a HandshakeException otherwise.
+     */
+    private final CompletableFuture<ConnectionState> handshakeFuture;
 
     private Throwable reason;
 
@@ -80,6 +112,14 @@ public class ClientHandshake {
 
     private final KeyExchangeEngine keyExchangeEngine;
 
+    private final KeySchedule keySchedule;
+
+    /**
+     * Hash of every handshake message sent and received, except HelloRequest,
+     * for the Finished messages.
+     */
+    private final SHA256Digest transcript;
+
     private final HandshakeMessages handshakeMessages;
 
     private HandshakeStep handshakeStep;
@@ -90,104 +130,274 @@ public class ClientHandshake {
 
     private short cipherSuite;
 
+    private CertificateCache certificateCache = CertificateCache.getDefault();
+
+    /**
+     * The handshake fails with bad_certificate without one.
+     */
+    private CertificateValidator certificateValidator;
+
+    /**
+     * The name or address the server's certificate must be issued for.
+     */
+    private String hostName;
+
+    /**
+     * Offered in the client hello. Null for a full handshake.
+     */
+    private ResumableSession offeredSession;
+
+    /**
+     * True when the server agreed to resume the offered session. The server
+     * then goes straight from its hello to ChangeCipherSpec and Finished.
+     */
+    private boolean resumed;
+
+    /**
+     * The session ID sent in the client hello. The server echoes it if it
+     * resumes the session.
+     */
+    private byte[] offeredSessionId;
+
+    /**
+     * Ask for and offer RFC 5077 session tickets.
+     */
+    private boolean sessionTickets;
+
+    /**
+     * The server hello had a SessionTicket extension, so a NewSessionTicket
+     * comes before the server's ChangeCipherSpec.
+     */
+    private boolean ticketExpected;
+
     private final SecureRandom random;
 
+    /**
+     * Only one read is outstanding at a time, so the state machine is never
+     * entered by two threads at once.
+     */
+    private final CompletionHandler<List<TlsPlaintextRecord>, RecordLayer> recordHandler =
+            new CompletionHandler<>() {
+        @Override
+        public void completed(List<TlsPlaintextRecord> records, RecordLayer attachment) {
+            try {
+                for (TlsPlaintextRecord record : records) {
+                    if (handshakeFuture.isDone()) {
+                        break;
+                    }
+                    processRecord(record);
+                }
+                if (!handshakeFuture.isDone()) {
+                    recordLayer.readRecords(this);
+                }
+            } catch (HandshakeException e) {
+                abortHandshake(e);
+            } catch (RuntimeException e) {
+                // Nothing else completes the future or closes the socket from here.
+                reason = e;
+                abortHandshake(new HandshakeException(AlertFragment.INTERNAL_ERROR, e));
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, RecordLayer attachment) {
+            reason = exc;
+            byte alertDescription = AlertFragment.INTERNAL_ERROR;
+            if (exc instanceof BadRecordMacException) {
+                alertDescription = AlertFragment.BAD_RECORD_MAC;
+            } else if (exc instanceof InvalidEncodingException) {
+                alertDescription = AlertFragment.DECODE_ERROR;
+            }
+            abortHandshake(new HandshakeException(alertDescription, exc));
+        }
+    };
+
     public ClientHandshake(final ConnectionState connectionState,
                            final RecordLayer recordLayer,
                            final SecureRandom random) {
         this.connectionState = connectionState;
         this.recordLayer = recordLayer;
         this.keyExchangeEngine = new KeyExchangeEngine(connectionState.getSecurityParameters(), random);
+        this.keySchedule = new KeySchedule(connectionState.getSecurityParameters());
+        this.transcript = new SHA256Digest();
+        recordLayer.getHandshakeContext().setTranscript(transcript);
         this.handshakeMessages = new HandshakeMessages();
+        this.handshakeFuture = new CompletableFuture<>();
         this.random = random;
         handshakeStep = HandshakeStep.NOT_STARTED;
-    }
-
-    public TlsPeer doHandshake() {
-        peer = null;
-        startHandshake();
-        return peer;
+        sessionTickets = true;
     }
 
     /**
-     * Start the Tls handshake. The purpose of this method is to
-     * handle handshake exceptions.
+     * Start the Tls handshake and return immediately.
+     *
+     * @return A future that completes when the handshake is finished.
      */
-    private void startHandshake() {
+    public CompletableFuture<ConnectionState> doHandshake() {
         try {
+            connectionState.setCurrentState(ConnectionState.CurrentState.HANDSHAKE_STARTED);
             sendClientHello();
+            recordLayer.readRecords(recordHandler);
         } catch (HandshakeException e) {
-            sendFatalAlert(e.getAlertDescription());
+            abortHandshake(e);
         }
+        return handshakeFuture;
     }
 
     private void sendClientHello() throws HandshakeException {
 
+        if (cipherSuites.isEmpty()) {
+            reason = new UnknownCipherSuiteException("None of the cipher suites can be negotiated");
+            throw new HandshakeException(AlertFragment.HANDSHAKE_FAILURE, reason);
+        }
         ClientHello clientHello = new ClientHello();
         clientHello.setCipherSuites(cipherSuites);
-        clientHello.setExtensions(extensions);
+        List<TlsExtension> helloExtensions = new ArrayList<>(extensions);
+        if (sessionTickets) {
+            // An empty ticket asks the server for one.
+            helloExtensions.add(new SessionTicket(offeredSession != null ? offeredSession.getTicket() : new byte[0]));
+        }
+        if (offersEllipticCurves() && extensions.stream().noneMatch(e -> e instanceof SupportedEllipticCurves)) {
+            // RFC 8422 section 5.1. Without these the server has to guess.
+            helloExtensions.add(new SupportedEllipticCurves(AgreementGroupFactory.supportedGroups));
+            helloExtensions.add(new SupportedPointFormats(List.of(SupportedPointFormats.UNCOMPRESSED)));
+        }
+        clientHello.setExtensions(helloExtensions);
+        if (offeredSession != null) {
+            if (sessionTickets && offeredSession.hasTicket()) {
+                // A fresh ID shows whether the server accepted the ticket (RFC 5077, section 3.4).
+                offeredSessionId = new byte[32];
+                random.nextBytes(offeredSessionId);
+            } else {
+                offeredSessionId = offeredSession.getSessionId();
+            }
+            clientHello.setSessionId(offeredSessionId);
+        }
         byte[] clientRandom = new byte[32];
         random.nextBytes(clientRandom);
         clientHello.setClientRandom(clientRandom);
         keyExchangeEngine.setClientRandom(clientRandom);
-        recordLayer.sendHandshakeRecord(clientHello);
+        connectionState.getSecurityParameters().setClientRandom(clientRandom);
+        handshakeMessages.clientHello = clientHello;
+        HandshakeFlight flight = recordLayer.createFlight();
+        flight.setTranscript(transcript);
+        recordLayer.sendFlight(flight.addHandshakeMessage(clientHello));
         handshakeStep = HandshakeStep.CLIENT_HELLO;
-        nextRecord();
     }
 
-    private void nextRecord() throws HandshakeException {
+    private void processRecord(TlsPlaintextRecord record) throws HandshakeException {
 
-        try {
-            TlsPlaintextRecord record = recordLayer.readPlaintextRecord();
-            HandshakeFragment fragment = record.getFragment();
-            TlsHandshakeMessage handshakeMessage = fragment.getHandshakeMessage();
-            switch (handshakeMessage.getHandshakeMessageType()) {
-                case HandshakeMessageTypes.SERVER_HELLO:
-                    if (handshakeStep == HandshakeStep.CLIENT_HELLO) {
-                        ServerHello serverHello = (ServerHello) handshakeMessage;
-                        processServerHello(serverHello);
-                    } else {
-                        throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
-                    }
-                    break;
-                case HandshakeMessageTypes.CERTIFICATE:
-                    if (handshakeStep == HandshakeStep.SERVER_HELLO) {
-                        ServerCertificate serverCertificate = (ServerCertificate) handshakeMessage;
-                        processServerCertificate(serverCertificate);
-                    } else {
-                        throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+        switch (record.getFragmentType()) {
+            case TlsConstants.HANDSHAKE:
+                HandshakeFragment fragment = record.getFragment();
+                List<TlsHandshakeMessage> messages = fragment.getHandshakeMessages();
+                for (int i = 0; i < messages.size(); ++i) {
+                    if (handshakeFuture.isDone()) {
+                        break;
                     }
-                    break;
-                case HandshakeMessageTypes.SERVER_KEY_EXCHANGE:
-                    // TODO More testing here
-                    if (handshakeStep == HandshakeStep.SERVER_HELLO || handshakeStep == HandshakeStep.SERVER_CERTIFICATE) {
-                        ServerKeyExchange serverKeyExchange = (ServerKeyExchange) handshakeMessage;
-                        processServerKeyExchange(serverKeyExchange);
-                    } else {
-                        throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+                    TlsHandshakeMessage handshakeMessage = messages.get(i);
+                    // Already in the transcript, the record layer adds messages as they are decoded.
+                    if (handshakeMessage.getHandshakeMessageType() == HandshakeMessageTypes.FINISHED) {
+                        processServerFinished((Finished) handshakeMessage);
+                        continue;
                     }
-                    break;
-                case HandshakeMessageTypes.SERVER_HELLO_DONE:
-                    if (handshakeStep == HandshakeStep.SERVER_KEY_EXCHANGE || handshakeStep == HandshakeStep.SERVER_CERTIFICATE) {
-                        handshakeMessages.serverHelloDone = (ServerHelloDone) handshakeMessage;
-                        handshakeStep = HandshakeStep.SERVER_HELLO_DONE;
-                        startClientResponse();
-                    } else {
-                        throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+                    processHandshakeMessage(handshakeMessage);
+                }
+                break;
+            case TlsConstants.CHANGE_CIPHER_SPEC:
+                if (handshakeStep == HandshakeStep.CLIENT_FINISHED
+                        || handshakeStep == HandshakeStep.SERVER_NEW_SESSION_TICKET
+                        || (resumed && handshakeStep == HandshakeStep.SERVER_HELLO)) {
+                    try {
+                        recordLayer.activateReadState();
+                    } catch (RecordLayerException e) {
+                        reason = e;
+                        throw new HandshakeException(AlertFragment.INTERNAL_ERROR, e);
                     }
-                    break;
-                case HandshakeMessageTypes.CERTIFICATE_REQUEST:
+                    handshakeStep = HandshakeStep.SERVER_CHANGE_CIPHER_SPEC;
+                } else {
+                    throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+                }
+                break;
+            case TlsConstants.ALERT:
+                processAlert(record.getFragment());
+                break;
+            // Something really bad happened
+            default:
+                throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+        }
+    }
+
+    private void processHandshakeMessage(TlsHandshakeMessage handshakeMessage) throws HandshakeException {
+
+        switch (handshakeMessage.getHandshakeMessageType()) {
+            case HandshakeMessageTypes.SERVER_HELLO:
+                if (handshakeStep == HandshakeStep.CLIENT_HELLO) {
+                    ServerHello serverHello = (ServerHello) handshakeMessage;
+                    processServerHello(serverHello);
+                } else {
+                    throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+                }
+                break;
+            case HandshakeMessageTypes.CERTIFICATE:
+                if (handshakeStep == HandshakeStep.SERVER_HELLO && !resumed) {
+                    ServerCertificate serverCertificate = (ServerCertificate) handshakeMessage;
+                    processServerCertificate(serverCertificate);
+                } else {
+                    throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+                }
+                break;
+            case HandshakeMessageTypes.SERVER_KEY_EXCHANGE:
+                // TODO More testing here
+                if ((handshakeStep == HandshakeStep.SERVER_HELLO && !resumed)
+                        || handshakeStep == HandshakeStep.SERVER_CERTIFICATE) {
+                    ServerKeyExchange serverKeyExchange = (ServerKeyExchange) handshakeMessage;
+                    processServerKeyExchange(serverKeyExchange);
+                } else {
+                    throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+                }
+                break;
+            case HandshakeMessageTypes.CERTIFICATE_REQUEST:
+                if (handshakeStep == HandshakeStep.SERVER_KEY_EXCHANGE || handshakeStep == HandshakeStep.SERVER_CERTIFICATE) {
                     CertificateRequest certificateRequest = (CertificateRequest) handshakeMessage;
                     processCertificateRequest(certificateRequest);
-                    break;
-                // Something really bad happened
-                default:
+                } else {
                     throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+                }
+                break;
+            case HandshakeMessageTypes.SERVER_HELLO_DONE:
+                if (handshakeStep == HandshakeStep.SERVER_KEY_EXCHANGE || handshakeStep == HandshakeStep.SERVER_CERTIFICATE
+                        || handshakeStep == HandshakeStep.CERTIFICATE_REQUEST) {
+                    handshakeMessages.serverHelloDone = (ServerHelloDone) handshakeMessage;
+                    handshakeStep = HandshakeStep.SERVER_HELLO_DONE;
+                    startClientResponse();
+                } else {
+                    throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+                }
+                break;
+            case HandshakeMessageTypes.NEW_SESSION_TICKET:
+                if (ticketExpected && (handshakeStep == HandshakeStep.CLIENT_FINISHED
+                        || (resumed && handshakeStep == HandshakeStep.SERVER_HELLO))) {
+                    handshakeMessages.newSessionTicket = (NewSessionTicket) handshakeMessage;
+                    handshakeStep = HandshakeStep.SERVER_NEW_SESSION_TICKET;
+                } else {
+                    throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+                }
+                break;
+            // Something really bad happened
+            default:
+                throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+        }
+    }
+
+    private boolean offersEllipticCurves() {
+        for (short offered : cipherSuites) {
+            CipherSuiteDescriptor descriptor = CipherSuiteTranslator.getDescriptor(offered);
+            if (descriptor != null && descriptor.isEllipticCurve()) {
+                return true;
             }
-        } catch (IOException | RecordLayerException e) {
-            reason = e;
-            throw new HandshakeException(AlertFragment.INTERNAL_ERROR);
         }
+        return false;
     }
 
     private void startClientResponse() throws HandshakeException {
@@ -196,13 +406,20 @@ public class ClientHandshake {
             if (keyExchangeEngine.isSigned() && !keyExchangeEngine.verifySignatureWithHash()) {
                     throw new HandshakeException(AlertFragment.DECRYPT_ERROR);
             }
-            recordLayer.sendHandshakeRecord(keyExchangeEngine.generateClientKeyExchange());
-            nextRecord();
+            handshakeMessages.clientKeyExchange = keyExchangeEngine.generateClientKeyExchange();
+            keySchedule.computeMasterSecret(keyExchangeEngine.getPremasterSecret());
+            keySchedule.deriveKeys(connectionState);
+            HandshakeFlight flight = recordLayer.createFlight();
+            flight.setTranscript(transcript);
+            flight.addHandshakeMessage(handshakeMessages.clientKeyExchange);
+            handshakeStep = HandshakeStep.CLIENT_KEY_EXCHANGE;
+            addClientFinished(flight);
+            recordLayer.sendFlight(flight);
         } catch (HandshakeException e) {
             throw e;
         } catch (Exception e) {
             reason = e;
-            throw new HandshakeException(AlertFragment.HANDSHAKE_FAILURE);
+            throw new HandshakeException(AlertFragment.HANDSHAKE_FAILURE, e);
         }
     }
 
@@ -210,47 +427,170 @@ public class ClientHandshake {
         try {
             handshakeMessages.serverHello = serverHello;
             keyExchangeEngine.setServerRandom(serverHello.getServerRandom());
+            connectionState.getSecurityParameters().setServerRandom(serverHello.getServerRandom());
             cipherSuite = serverHello.getCipherSuite();
-            CipherSuiteTranslator.setSecurityParameters(connectionState.getSecurityParameters(), cipherSuite);
-            keyExchangeAlgorithm = CipherSuiteTranslator.getKeyExchangeAlgorithm(cipherSuite);
+            if (offeredSessionId != null && serverHello.getSessionId().length > 0
+                    && Arrays.equals(offeredSessionId, serverHello.getSessionId())) {
+                // The resumed session must keep its cipher suite.
+                if (cipherSuite != offeredSession.getCipherSuite()) {
+                    throw new HandshakeException(AlertFragment.ILLEGAL_PARAMETER);
+                }
+                resumed = true;
+                connectionState.getSecurityParameters().setMasterSecret(offeredSession.getMasterSecret());
+            }
+            if (sessionTickets && serverHello.getExtensions() != null) {
+                for (TlsExtension extension : serverHello.getExtensions()) {
+                    if (extension instanceof SessionTicket) {
+                        ticketExpected = true;
+                    }
+                }
+            }
+            CipherSuiteDescriptor descriptor = CipherSuiteTranslator.setSecurityParameters(
+                    connectionState.getSecurityParameters(), cipherSuite);
+            recordLayer.getHandshakeContext().setCipherSuite(descriptor);
+            keyExchangeAlgorithm = descriptor.getKeyExchangeAlgorithm();
             keyExchangeEngine.setKeyExchangeAlgorithm(keyExchangeAlgorithm);
+            if (resumed) {
+                // No key exchange, the keys come straight from the cached master secret.
+                keySchedule.deriveKeys(connectionState);
+            }
             handshakeStep = HandshakeStep.SERVER_HELLO;
-            nextRecord();
-        } catch (UnknownCipherSuiteException e) {
+        } catch (UnknownCipherSuiteException | TlsCryptoException e) {
             reason = e;
-            throw new HandshakeException(AlertFragment.HANDSHAKE_FAILURE);
+            throw new HandshakeException(AlertFragment.HANDSHAKE_FAILURE, e);
         }
     }
 
     private void processServerCertificate(ServerCertificate serverCertificate) throws HandshakeException {
         try {
             handshakeMessages.serverCertificate = serverCertificate;
+            serverCertificate.setCertificateCache(certificateCache);
+            setServerCertificateChain(serverCertificate);
             keyExchangeEngine.setServerCertificate(serverCertificate.getCertificate(0));
             handshakeStep = HandshakeStep.SERVER_CERTIFICATE;
-            nextRecord();
         } catch (CertificateException e) {
             reason = e;
-            throw new HandshakeException(AlertFragment.HANDSHAKE_FAILURE);
+            throw new HandshakeException(AlertFragment.HANDSHAKE_FAILURE, e);
         }
     }
 
-    private void processServerKeyExchange(ServerKeyExchange serverKeyExchange) throws HandshakeException {
+    private void processServerKeyExchange(ServerKeyExchange serverKeyExchange) {
         handshakeMessages.serverKeyExchange = serverKeyExchange;
         keyExchangeEngine.setSignatureAndHashAlgorithm(serverKeyExchange.getSignatureAndHashAlgorithm());
         keyExchangeEngine.setServerDHParameters(serverKeyExchange.getServerDHParameters());
+        keyExchangeEngine.setServerECDHParameters(serverKeyExchange.getServerECDHParameters());
         keyExchangeEngine.setDhParametersSignature(serverKeyExchange.getSignature());
         handshakeStep = HandshakeStep.SERVER_KEY_EXCHANGE;
-        nextRecord();
     }
 
-    private void processCertificateRequest(CertificateRequest certificateRequest) throws HandshakeException {
+    private void processCertificateRequest(CertificateRequest certificateRequest) {
         handshakeMessages.certificateRequest = certificateRequest;
         handshakeStep = HandshakeStep.CERTIFICATE_REQUEST;
-        nextRecord();
     }
 
-    private void setServerCertificateChain(ServerCertificate serverCertificate) {
+    /**
+     * ChangeCipherSpec and Finished, the end of the client's last flight.
+     *
+     * @param flight
+     * @throws RecordLayerException
+     */
+    private void addClientFinished(HandshakeFlight flight) throws RecordLayerException {
+        flight.addChangeCipherSpec(recordLayer.activateWriteState());
+        Finished clientFinished = new Finished();
+        clientFinished.setVerifyData(keySchedule.computeVerifyData(KeySchedule.CLIENT_FINISHED, transcript));
+        flight.addHandshakeMessage(clientFinished);
+        handshakeMessages.clientFinished = clientFinished;
+        handshakeStep = HandshakeStep.CLIENT_FINISHED;
+    }
+
+    private void processServerFinished(Finished serverFinished) throws HandshakeException {
+
+        if (handshakeStep != HandshakeStep.SERVER_CHANGE_CIPHER_SPEC) {
+            throw new HandshakeException(AlertFragment.UNEXPECTED_MESSAGE);
+        }
+        // Verified against the transcript without the Finished message.
+        byte[] expected = keySchedule.computeVerifyData(KeySchedule.SERVER_FINISHED,
+                recordLayer.getHandshakeContext().getFinishedTranscript());
+        if (!MessageDigest.isEqual(expected, serverFinished.getVerifyData())) {
+            throw new HandshakeException(AlertFragment.DECRYPT_ERROR);
+        }
+        handshakeMessages.serverFinished = serverFinished;
+
+        if (resumed) {
+            // The server finished first, so the client answers.
+            try {
+                HandshakeFlight flight = recordLayer.createFlight();
+                flight.setTranscript(transcript);
+                addClientFinished(flight);
+                recordLayer.sendFlight(flight);
+            } catch (RecordLayerException e) {
+                reason = e;
+                throw new HandshakeException(AlertFragment.INTERNAL_ERROR, e);
+            }
+        }
+        handshakeStep = HandshakeStep.SERVER_FINISHED;
+        connectionState.setCurrentState(ConnectionState.CurrentState.HANDSHAKE_COMPLETE);
+        handshakeFuture.complete(connectionState);
+    }
+
+    /**
+     * Warning alerts are ignored during the handshake, except close_notify.
+     * Anything else from the server ends the handshake without a reply.
+     *
+     * @param alertFragment
+     */
+    private void processAlert(AlertFragment alertFragment) {
+        if (alertFragment.getAlertLevel() == AlertFragment.WARNING
+                && alertFragment.getAlertDescription() != AlertFragment.CLOSE_NOTIFY) {
+            return;
+        }
+        reason = new HandshakeException("Server sent alert " + alertFragment.getAlertDescription());
+        connectionState.setCurrentState(ConnectionState.CurrentState.CLOSED);
+        recordLayer.close();
+        handshakeFuture.completeExceptionally(reason);
+    }
+
+    private void abortHandshake(HandshakeException e) {
+        connectionState.setCurrentState(ConnectionState.CurrentState.CLOSED);
+        // The caller hears of the failure even if the alert can't be sent.
+        handshakeFuture.completeExceptionally(e);
+        try {
+            sendFatalAlert(e.getAlertDescription());
+        } catch (RuntimeException alertFailure) {
+            e.addSuppressed(alertFailure);
+            recordLayer.close();
+        }
+    }
 
+    /**
+     * Validate the server's chain and check the leaf against the host name.
+     *
+     * @param serverCertificate
+     * @throws HandshakeException If the chain does not validate, or there is
+     *                            nothing to validate it with.
+     * @throws CertificateException If a certificate can't be decoded.
+     */
+    private void setServerCertificateChain(ServerCertificate serverCertificate)
+            throws HandshakeException, CertificateException {
+
+        if (certificateValidator == null || hostName == null) {
+            reason = new CertificateException(certificateValidator == null
+                    ? "No certificate validator" : "No host name to check the certificate against");
+            throw new HandshakeException(AlertFragment.BAD_CERTIFICATE, reason);
+        }
+        List<X509Certificate> chain = new ArrayList<>(serverCertificate.getChainLength());
+        for (int i = 0; i < serverCertificate.getChainLength(); ++i) {
+            chain.add(serverCertificate.getCertificate(i));
+        }
+        try {
+            certificateValidator.validate(chain, hostName);
+        } catch (CertificateExpiredException e) {
+            reason = e;
+            throw new HandshakeException(AlertFragment.CERTIFICATE_EXPIRED, e);
+        } catch (CertificateException e) {
+            reason = e;
+            throw new HandshakeException(AlertFragment.BAD_CERTIFICATE, e);
+        }
     }
 
     private void sendFatalAlert(byte alertDescription) {
@@ -258,6 +598,94 @@ public class ClientHandshake {
         recordLayer.sendAlertRecord(alertFragment);
     }
 
+    /**
+     * The session this handshake established or resumed, if the server
+     * allows it to be resumed. Call after the handshake is complete.
+     *
+     * @return The session, or null if it cannot be resumed.
+     */
+    public ResumableSession getResumableSession() {
+        byte[] masterSecret = connectionState.getSecurityParameters().getMasterSecret();
+        NewSessionTicket newSessionTicket = handshakeMessages.newSessionTicket;
+        if (masterSecret != null && newSessionTicket != null && newSessionTicket.getTicket().length > 0) {
+            // A fresh session ID is sent with the ticket each time, so none is kept.
+            return new ResumableSession(new byte[0], cipherSuite, masterSecret,
+                    newSessionTicket.getTicket(), newSessionTicket.getTicketLifetimeHint());
+        }
+        if (resumed) {
+            return offeredSession;
+        }
+        ServerHello serverHello = handshakeMessages.serverHello;
+        if (serverHello == null || serverHello.getSessionId().length == 0 || masterSecret == null) {
+            return null;
+        }
+        return new ResumableSession(serverHello.getSessionId(), cipherSuite, masterSecret);
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Offer a cached session in the client hello. The handshake falls back to
+     * a full one if the server does not resume it.
+     *
+     * @param offeredSession
+     */
+    public void setOfferedSession(ResumableSession offeredSession) {
+        this.offeredSession = offeredSession;
+    }
+
+    /**
+     * Session tickets are on by default.
+     *
+     * @param sessionTickets
+     */
+    public void setSessionTickets(boolean sessionTickets) {
+        this.sessionTickets = sessionTickets;
+    }
+
+    /**
+     * The cache server certificates are looked up in. The shared cache is
+     * used by default.
+     *
+     * @param certificateCache
+     */
+    public void setCertificateCache(CertificateCache certificateCache) {
+        this.certificateCache = certificateCache;
+    }
+
+    /**
+     * Validate the server's certificate chain. The handshake fails with
+     * bad_certificate if there is no validator.
+     *
+     * @param certificateValidator
+     */
+    public void setCertificateValidator(CertificateValidator certificateValidator) {
+        this.certificateValidator = certificateValidator;
+    }
+
+    /**
+     * The name the server's certificate must be issued for, usually the
+     * server name indication or the address connected to. Required along
+     * with the validator.
+     *
+     * @param hostName
+     */
+    public void setHostName(String hostName) {
+        this.hostName = hostName;
+    }
+
+    /**
+     * The pool ephemeral DHE and ECDHE keys are taken from. The shared pool
+     * is used by default.
+     *
+     * @param keyPool
+     */
+    public void setEphemeralKeyPool(EphemeralKeyPool keyPool) {
+        keyExchangeEngine.setKeyPool(keyPool);
+    }
+
     public Throwable getReason() {
         return reason;
     }
@@ -266,7 +694,13 @@ public class ClientHandshake {
         this.extensions = extensions;
     }
 
+    /**
+     * The suites to offer, in order of preference. Suites this client can't
+     * negotiate are left out, so the server can't pick one of them.
+     *
+     * @param cipherSuites
+     */
     public void setCipherSuites(List<Short> cipherSuites) {
-        this.cipherSuites = cipherSuites;
+        this.cipherSuites = CipherSuiteTranslator.supportedCipherSuites(cipherSuites);
     }
 }
@@ -22,7 +22,9 @@
 
 package org.secomm.tls.protocol;
 
-import javax.crypto.SecretKey;
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.modes.AEADCipher;
 
 public class ConnectionState {
 
@@ -31,51 +33,139 @@ public class ConnectionState {
     private CurrentState currentState;
 
     /**
-     * Per the RFC, this contains the current scheduled
-     * key and stream cipher state data.
+     * Per the RFC, this contains the current scheduled key and cipher state
+     * for one direction. The engines are keyed when the state is built, so
+     * protecting a record only has to supply the per-record IV or nonce.
+     *
+     * A state belongs to one direction of one connection and is not thread safe.
      */
     public static final class CipherState {
-        public SecretKey scheduledKey;
-    }
 
-    private CipherState cipherState;
+        private final SecurityParameters.CipherType cipherType;
+
+        /**
+         * Keyed GCM or ChaCha20-Poly1305 for AEAD suites, otherwise null.
+         */
+        private final AEADCipher aeadCipher;
+
+        /**
+         * Keyed CBC for block suites, otherwise null.
+         */
+        private final BlockCipher blockCipher;
+
+        /**
+         * Keyed HMAC for block suites, otherwise null.
+         */
+        private final Mac mac;
+
+        private final byte[] fixedIv;
+
+        private final int recordIvLength;
+
+        /**
+         * Record sequence number. Starts at zero for each new state.
+         */
+        private long sequenceNumber;
+
+        public CipherState(SecurityParameters.CipherType cipherType, AEADCipher aeadCipher,
+                           BlockCipher blockCipher, Mac mac, byte[] fixedIv, int recordIvLength) {
+            this.cipherType = cipherType;
+            this.aeadCipher = aeadCipher;
+            this.blockCipher = blockCipher;
+            this.mac = mac;
+            this.fixedIv = fixedIv;
+            this.recordIvLength = recordIvLength;
+        }
+
+        public SecurityParameters.CipherType getCipherType() {
+            return cipherType;
+        }
+
+        public AEADCipher getAeadCipher() {
+            return aeadCipher;
+        }
+
+        public BlockCipher getBlockCipher() {
+            return blockCipher;
+        }
+
+        public Mac getMac() {
+            return mac;
+        }
+
+        public byte[] getFixedIv() {
+            return fixedIv;
+        }
+
+        public int getRecordIvLength() {
+            return recordIvLength;
+        }
+
+        public long getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        /**
+         * @return The sequence number for the next record.
+         */
+        public long nextSequenceNumber() {
+            return sequenceNumber++;
+        }
+    }
 
-    private byte[] macKey;
+    /**
+     * Null until ChangeCipherSpec, which means records are not protected.
+     */
+    private CipherState readState;
 
-    private SecurityParameters securityParameters;
+    private CipherState writeState;
 
     /**
-     * Current record sequence number.
+     * Built by the key schedule and made current by ChangeCipherSpec.
      */
-    private long sequenceNumber;
+    private CipherState pendingReadState;
+
+    private CipherState pendingWriteState;
+
+    private SecurityParameters securityParameters;
 
     public ConnectionState(SecurityParameters securityParameters) {
         this.securityParameters = securityParameters;
         this.currentState = CurrentState.INITIALIZING;
     }
 
-    public CipherState getCipherState() {
-        return cipherState;
+    public CipherState getReadState() {
+        return readState;
     }
 
-    public void setCipherState(CipherState cipherState) {
-        this.cipherState = cipherState;
+    public CipherState getWriteState() {
+        return writeState;
     }
 
-    public byte[] getMacKey() {
-        return macKey;
+    public void setPendingStates(CipherState pendingReadState, CipherState pendingWriteState) {
+        this.pendingReadState = pendingReadState;
+        this.pendingWriteState = pendingWriteState;
     }
 
-    public void setMacKey(byte[] macKey) {
-        this.macKey = macKey;
+    /**
+     * Make the pending read state current. Called when the peer's
+     * ChangeCipherSpec arrives.
+     */
+    public void activateReadState() {
+        readState = pendingReadState;
+        pendingReadState = null;
     }
 
-    public long getSequenceNumber() {
-        return sequenceNumber;
+    /**
+     * Make the pending write state current. Called after sending ChangeCipherSpec.
+     */
+    public void activateWriteState() {
+        writeState = pendingWriteState;
+        pendingWriteState = null;
     }
 
-    public long incrementSequenceNumber() {
-        return ++sequenceNumber;
+    public boolean hasPendingStates() {
+        return pendingReadState != null && pendingWriteState != null;
     }
 
     public CurrentState getCurrentState() {
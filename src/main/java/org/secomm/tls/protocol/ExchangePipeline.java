@@ -0,0 +1,556 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol;
+
+import org.secomm.tls.protocol.record.AlertFragment;
+import org.secomm.tls.protocol.record.ApplicationDataFragment;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.TlsPlaintextRecord;
+import org.secomm.tls.util.HashedWheelTimer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Request and response exchanges over an established connection, any number
+ * of them outstanding at once.
+ *
+ * Each payload is framed with a four byte big-endian length, and the peer
+ * frames its responses the same way. The peer answers requests in the order
+ * they were sent, so each response completes the oldest outstanding
+ * exchange. Requests queued while a write is in progress are coalesced into
+ * the next write, so many small requests share records and system calls.
+ *
+ * At most maxInFlight exchanges are outstanding. Further blocking exchanges
+ * wait for a response to free a slot, further asynchronous exchanges are
+ * queued and take the next free slot. An exchange that times out keeps its
+ * slot until its response arrives, because the request is still in the
+ * peer's queue. Timeouts run on a shared HashedWheelTimer.
+ *
+ * Futures are completed on the connection's I/O threads. Work that blocks on
+ * another exchange must not run there.
+ */
+public class ExchangePipeline {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    public static final int FRAME_HEADER_LENGTH = 4;
+
+    /**
+     * The largest response accepted. A longer frame is a protocol error.
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 24;
+
+    /**
+     * Queued requests are coalesced into writes of about this size.
+     */
+    private static final int MAX_BATCH_LENGTH = 1 << 16;
+
+    private static final class Exchange {
+
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        HashedWheelTimer.Timeout timeout;
+
+        byte[] frame;
+    }
+
+    private static final class Write {
+
+        final byte[] bytes;
+
+        /**
+         * Null if no one is waiting for the write.
+         */
+        final CompletableFuture<Void> written;
+
+        Write(byte[] bytes, CompletableFuture<Void> written) {
+            this.bytes = bytes;
+            this.written = written;
+        }
+    }
+
+    private final RecordLayer recordLayer;
+
+    private final HashedWheelTimer timer;
+
+    private final Semaphore inFlight;
+
+    /**
+     * Exchanges waiting for a response, oldest first.
+     */
+    private final Deque<Exchange> outstanding;
+
+    /**
+     * Asynchronous exchanges waiting for a slot, oldest first.
+     */
+    private final Deque<Exchange> waiting;
+
+    /**
+     * Framed requests and raw writes waiting to be written.
+     */
+    private final Deque<Write> unsent;
+
+    /**
+     * The writes in the write in progress, null if there is none.
+     */
+    private List<Write> writing;
+
+    private boolean reading;
+
+    private IOException failure;
+
+    /**
+     * Response bytes not yet framed. Only the reader uses them.
+     */
+    private byte[] inbound;
+
+    private int inboundLength;
+
+    private final CompletionHandler<Integer, RecordLayer> writeHandler = new CompletionHandler<>() {
+        @Override
+        public void completed(Integer result, RecordLayer attachment) {
+            List<Write> written;
+            synchronized (ExchangePipeline.this) {
+                written = writing;
+                writing = null;
+            }
+            for (Write write : written) {
+                if (write.written != null) {
+                    write.written.complete(null);
+                }
+            }
+            flush();
+        }
+
+        @Override
+        public void failed(Throwable exc, RecordLayer attachment) {
+            fail(exc);
+        }
+    };
+
+    private final CompletionHandler<List<TlsPlaintextRecord>, RecordLayer> readHandler = new CompletionHandler<>() {
+        @Override
+        public void completed(List<TlsPlaintextRecord> records, RecordLayer attachment) {
+            for (TlsPlaintextRecord record : records) {
+                if (record.getFragmentType() == TlsConstants.APPLICATION_DATA) {
+                    append(((ApplicationDataFragment) record.getFragment()).getData());
+                } else if (record.getFragmentType() == TlsConstants.ALERT) {
+                    AlertFragment alert = record.getFragment();
+                    fail(alert.getAlertDescription() == AlertFragment.CLOSE_NOTIFY
+                            ? new EOFException("Connection closed by peer")
+                            : new IOException("Alert received: " + alert.getAlertDescription()));
+                    return;
+                }
+                // Renegotiation is not supported, other records are ignored.
+            }
+            try {
+                completeResponses();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            synchronized (ExchangePipeline.this) {
+                reading = false;
+            }
+            read();
+        }
+
+        @Override
+        public void failed(Throwable exc, RecordLayer attachment) {
+            fail(exc);
+        }
+    };
+
+    public ExchangePipeline(RecordLayer recordLayer) {
+        this(recordLayer, DEFAULT_MAX_IN_FLIGHT, HashedWheelTimer.getDefault());
+    }
+
+    /**
+     * @param recordLayer The record layer of a connection whose handshake is complete.
+     * @param maxInFlight The number of exchanges that may be outstanding.
+     * @param timer Runs the exchange timeouts.
+     */
+    public ExchangePipeline(RecordLayer recordLayer, int maxInFlight, HashedWheelTimer timer) {
+        this.recordLayer = recordLayer;
+        this.timer = timer;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.outstanding = new ArrayDeque<>();
+        this.waiting = new ArrayDeque<>();
+        this.unsent = new ArrayDeque<>();
+        this.inbound = new byte[1024];
+    }
+
+    /**
+     * Send a request and wait for its response. Blocks only while the
+     * maximum number of exchanges are outstanding.
+     *
+     * @param payload
+     * @param timeout Zero means no timeout. Includes any wait for a free slot.
+     * @param unit
+     * @return A future that completes with the response, or exceptionally with
+     *         TimeoutException or the IOException that ended the connection.
+     * @throws InterruptedIOException If the caller is interrupted waiting for a free slot.
+     */
+    public CompletableFuture<byte[]> exchange(byte[] payload, long timeout, TimeUnit unit)
+            throws InterruptedIOException {
+
+        try {
+            if (timeout <= 0) {
+                inFlight.acquire();
+            } else if (!inFlight.tryAcquire(timeout, unit)) {
+                return CompletableFuture.failedFuture(new TimeoutException("No free exchange slot"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an exchange slot");
+        }
+
+        Exchange exchange = newExchange(payload, timeout, unit);
+        IOException closed;
+        synchronized (this) {
+            closed = failure;
+            if (closed == null) {
+                admit(exchange);
+            }
+        }
+        if (closed != null) {
+            complete(exchange, null, closed);
+            return exchange.future;
+        }
+        flush();
+        read();
+        return exchange.future;
+    }
+
+    /**
+     * Send a request without blocking. If the maximum number of exchanges
+     * are outstanding, the request is queued until a response frees a slot.
+     *
+     * @param payload
+     * @param timeout Zero means no timeout. Includes any wait for a free slot.
+     * @param unit
+     * @return A future that completes with the response, or exceptionally with
+     *         TimeoutException or the IOException that ended the connection.
+     */
+    public CompletableFuture<byte[]> exchangeAsync(byte[] payload, long timeout, TimeUnit unit) {
+
+        Exchange exchange = newExchange(payload, timeout, unit);
+        synchronized (this) {
+            if (failure != null) {
+                exchange.future.completeExceptionally(failure);
+                return exchange.future;
+            }
+            // Slots are only released under the lock, so a queued exchange is never missed.
+            if (!inFlight.tryAcquire()) {
+                waiting.add(exchange);
+                return exchange.future;
+            }
+            admit(exchange);
+        }
+        flush();
+        read();
+        return exchange.future;
+    }
+
+    /**
+     * Send a message the peer does not answer. It is written in order with
+     * the requests and takes no slot.
+     *
+     * @param payload
+     * @throws IOException If the connection has failed or been closed.
+     */
+    public void send(byte[] payload) throws IOException {
+        byte[] frame = frame(payload);
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+            unsent.add(new Write(frame, null));
+        }
+        flush();
+    }
+
+    /**
+     * Send a message the peer does not answer, without blocking. It goes
+     * ahead of any asynchronous exchanges still waiting for a slot.
+     *
+     * @param payload
+     * @return A future that completes when the message has been written.
+     */
+    public CompletableFuture<Void> sendAsync(byte[] payload) {
+        return write(new Write(frame(payload), new CompletableFuture<>()));
+    }
+
+    /**
+     * Write bytes as they are, without a frame header, in order with the
+     * requests.
+     *
+     * @param bytes
+     * @return A future that completes when the bytes have been written.
+     */
+    public CompletableFuture<Void> writeAsync(byte[] bytes) {
+        return write(new Write(bytes.clone(), new CompletableFuture<>()));
+    }
+
+    /**
+     * Close the connection. Outstanding exchanges fail with
+     * ClosedChannelException.
+     */
+    public void close() {
+        fail(new ClosedChannelException());
+    }
+
+    private CompletableFuture<Void> write(Write write) {
+        synchronized (this) {
+            if (failure != null) {
+                write.written.completeExceptionally(failure);
+                return write.written;
+            }
+            unsent.add(write);
+        }
+        flush();
+        return write.written;
+    }
+
+    private Exchange newExchange(byte[] payload, long timeout, TimeUnit unit) {
+        Exchange exchange = new Exchange();
+        exchange.frame = frame(payload);
+        if (timeout > 0) {
+            exchange.timeout = timer.newTimeout(
+                    () -> exchange.future.completeExceptionally(new TimeoutException("Exchange timed out")),
+                    timeout, unit);
+        }
+        return exchange;
+    }
+
+    /**
+     * Queue the request of an exchange that holds a slot. Called with the lock held.
+     *
+     * @param exchange
+     */
+    private void admit(Exchange exchange) {
+        outstanding.add(exchange);
+        unsent.add(new Write(exchange.frame, null));
+        exchange.frame = null;
+    }
+
+    /**
+     * Hand a freed slot to the oldest queued exchange that is still wanted,
+     * or back to the semaphore.
+     */
+    private void releaseSlot() {
+        synchronized (this) {
+            Exchange next = null;
+            while (failure == null && next == null && !waiting.isEmpty()) {
+                next = waiting.poll();
+                // Timed out before it was sent.
+                if (next.future.isDone()) {
+                    next = null;
+                }
+            }
+            if (next == null) {
+                inFlight.release();
+                return;
+            }
+            admit(next);
+        }
+        flush();
+        read();
+    }
+
+    public synchronized int outstandingCount() {
+        return outstanding.size();
+    }
+
+    public synchronized boolean isOpen() {
+        return failure == null && recordLayer.isOpen();
+    }
+
+    private static byte[] frame(byte[] payload) {
+        byte[] frame = new byte[FRAME_HEADER_LENGTH + payload.length];
+        frame[0] = (byte) (payload.length >>> 24);
+        frame[1] = (byte) (payload.length >>> 16);
+        frame[2] = (byte) (payload.length >>> 8);
+        frame[3] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, FRAME_HEADER_LENGTH, payload.length);
+        return frame;
+    }
+
+    /**
+     * Write everything queued, unless a write is already in progress. Its
+     * completion writes whatever was queued in the meantime.
+     */
+    private void flush() {
+
+        byte[] batch;
+        synchronized (this) {
+            if (writing != null || unsent.isEmpty() || failure != null) {
+                return;
+            }
+            writing = new ArrayList<>();
+            int length = 0;
+            // At least one write, however long.
+            while (!unsent.isEmpty() && (length == 0 || length + unsent.peek().bytes.length <= MAX_BATCH_LENGTH)) {
+                Write write = unsent.poll();
+                writing.add(write);
+                length += write.bytes.length;
+            }
+            if (writing.size() == 1) {
+                batch = writing.get(0).bytes;
+            } else {
+                batch = new byte[length];
+                int offset = 0;
+                for (Write write : writing) {
+                    System.arraycopy(write.bytes, 0, batch, offset, write.bytes.length);
+                    offset += write.bytes.length;
+                }
+            }
+        }
+        recordLayer.sendApplicationData(batch, 0, batch.length, writeHandler);
+    }
+
+    /**
+     * Start a read if any exchange is waiting for a response and no read is
+     * in progress.
+     */
+    private void read() {
+        synchronized (this) {
+            if (reading || outstanding.isEmpty() || failure != null) {
+                return;
+            }
+            reading = true;
+        }
+        recordLayer.readRecords(readHandler);
+    }
+
+    private void append(byte[] data) {
+        if (inboundLength + data.length > inbound.length) {
+            inbound = Arrays.copyOf(inbound, Math.max(inbound.length * 2, inboundLength + data.length));
+        }
+        System.arraycopy(data, 0, inbound, inboundLength, data.length);
+        inboundLength += data.length;
+    }
+
+    /**
+     * Hand each complete response frame to the oldest outstanding exchange.
+     *
+     * @throws IOException If a frame is too long or answers no request.
+     */
+    private void completeResponses() throws IOException {
+
+        int index = 0;
+        while (inboundLength - index >= FRAME_HEADER_LENGTH) {
+            int length = ((inbound[index] & 0xff) << 24) | ((inbound[index + 1] & 0xff) << 16)
+                    | ((inbound[index + 2] & 0xff) << 8) | (inbound[index + 3] & 0xff);
+            if (length < 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Response frame too long: " + Integer.toUnsignedString(length));
+            }
+            if (inboundLength - index - FRAME_HEADER_LENGTH < length) {
+                break;
+            }
+            index += FRAME_HEADER_LENGTH;
+            byte[] response = Arrays.copyOfRange(inbound, index, index + length);
+            index += length;
+            Exchange exchange;
+            synchronized (this) {
+                exchange = outstanding.poll();
+            }
+            if (exchange == null) {
+                throw new IOException("Response without a request");
+            }
+            complete(exchange, response, null);
+        }
+        System.arraycopy(inbound, index, inbound, 0, inboundLength - index);
+        inboundLength -= index;
+    }
+
+    private void complete(Exchange exchange, byte[] response, Throwable exc) {
+        if (exchange.timeout != null) {
+            exchange.timeout.cancel();
+        }
+        releaseSlot();
+        if (exc != null) {
+            exchange.future.completeExceptionally(exc);
+        } else {
+            exchange.future.complete(response);
+        }
+    }
+
+    /**
+     * The connection is finished. Every outstanding exchange and unfinished
+     * write fails with the cause and later ones fail immediately.
+     *
+     * @param cause
+     */
+    private void fail(Throwable cause) {
+
+        List<Exchange> failed;
+        List<Exchange> queued;
+        List<Write> unwritten;
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            failed = new ArrayList<>(outstanding);
+            outstanding.clear();
+            queued = new ArrayList<>(waiting);
+            waiting.clear();
+            unwritten = new ArrayList<>(unsent);
+            if (writing != null) {
+                unwritten.addAll(writing);
+            }
+            unsent.clear();
+        }
+        for (Exchange exchange : failed) {
+            complete(exchange, null, failure);
+        }
+        for (Exchange exchange : queued) {
+            // Never sent, so no slot to release.
+            if (exchange.timeout != null) {
+                exchange.timeout.cancel();
+            }
+            exchange.future.completeExceptionally(failure);
+        }
+        for (Write write : unwritten) {
+            if (write.written != null) {
+                write.written.completeExceptionally(failure);
+            }
+        }
+        recordLayer.close();
+    }
+
+}
@@ -35,6 +35,11 @@ public class HandshakeException extends Exception {
         this.alertDescription = alertDescription;
     }
 
+    public HandshakeException(byte alertDescription, Throwable cause) {
+        super(cause);
+        this.alertDescription = alertDescription;
+    }
+
     public byte getAlertDescription() {
         return alertDescription;
     }
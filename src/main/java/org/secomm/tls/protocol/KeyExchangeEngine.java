@@ -22,15 +22,15 @@
 
 package org.secomm.tls.protocol;
 
-import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
-import org.bouncycastle.crypto.agreement.DHAgreement;
-import org.bouncycastle.crypto.generators.DHKeyPairGenerator;
-import org.bouncycastle.crypto.params.DHKeyGenerationParameters;
-import org.bouncycastle.crypto.params.DHParameters;
-import org.bouncycastle.crypto.params.DHPrivateKeyParameters;
-import org.bouncycastle.crypto.params.DHPublicKeyParameters;
-import org.bouncycastle.crypto.params.ParametersWithRandom;
+import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.secomm.tls.crypto.CipherSuiteTranslator;
+import org.secomm.tls.crypto.TlsCryptoException;
+import org.secomm.tls.crypto.agreement.AgreementGroup;
+import org.secomm.tls.crypto.agreement.AgreementGroupFactory;
+import org.secomm.tls.crypto.agreement.AgreementKey;
+import org.secomm.tls.crypto.agreement.DHGroup;
+import org.secomm.tls.crypto.agreement.DHGroupCache;
+import org.secomm.tls.crypto.agreement.EphemeralKeyPool;
 import org.secomm.tls.crypto.cipher.RSACipher;
 import org.secomm.tls.crypto.signature.SignedDigest;
 import org.secomm.tls.crypto.signature.SignedDigestFactory;
@@ -38,7 +38,6 @@ import org.secomm.tls.protocol.record.handshake.ClientKeyExchange;
 import org.secomm.tls.protocol.record.handshake.ServerKeyExchange;
 import org.secomm.tls.util.EncodingByteBuffer;
 
-import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -62,13 +61,18 @@ public class KeyExchangeEngine {
 
     private ServerKeyExchange.ServerDHParameters serverDHParameters;
 
+    private ServerKeyExchange.ServerECDHParameters serverECDHParameters;
+
     private byte[] dhParametersSignature;
 
     private CipherSuiteTranslator.KeyExchangeAlgorithm keyExchangeAlgorithm;
 
-    private BigInteger dhPrivateKey;
+    private EphemeralKeyPool keyPool = EphemeralKeyPool.getDefault();
 
-    private BigInteger dhPublicKey;
+    /**
+     * Kept until the key schedule has derived the master secret from it.
+     */
+    private byte[] premasterSecret;
 
     public KeyExchangeEngine(final SecurityParameters securityParameters, final SecureRandom random) {
         this.securityParameters = securityParameters;
@@ -93,6 +97,12 @@ public class KeyExchangeEngine {
         signedDigest.initialize(SignedDigest.Activity.VERIFY, serverCertificate.getPublicKey());
         signedDigest.updateDigest(clientRandom);
         signedDigest.updateDigest(serverRandom);
+        if (isEllipticCurve()) {
+            EncodingByteBuffer parameters = EncodingByteBuffer.allocate(serverECDHParameters.encodedLength());
+            serverECDHParameters.encodeInto(parameters);
+            signedDigest.updateDigest(parameters.array());
+            return signedDigest.verify(dhParametersSignature);
+        }
         shortBuffer.putShort((short)serverDHParameters.dh_p.length);
         signedDigest.updateDigest(shortBuffer.toArray());
         signedDigest.updateDigest(serverDHParameters.dh_p);
@@ -109,57 +119,85 @@ public class KeyExchangeEngine {
 
     public boolean isSigned() {
         return keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.DHE_RSA
-                || keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.DHE_DSS;
+                || keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.DHE_DSS
+                || isEllipticCurve();
+    }
+
+    private boolean isEllipticCurve() {
+        return keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.ECDHE_RSA
+                || keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.ECDHE_ECDSA;
     }
 
     public ClientKeyExchange generateClientKeyExchange()
-            throws InvalidKeyException {
+            throws InvalidKeyException, InvalidCipherTextException, TlsCryptoException {
 
-        ClientKeyExchange clientKeyExchange = new ClientKeyExchange();
+        ClientKeyExchange clientKeyExchange = new ClientKeyExchange(keyExchangeAlgorithm);
         if (keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.RSA) {
             clientKeyExchange.setPremasterSecret(generateRSAPremasteredSecret());
+        } else if (isEllipticCurve()) {
+            clientKeyExchange.setClientPublicKey(generateECDHPublicKey());
         } else {
             clientKeyExchange.setClientPublicKey(generateDHPublicKey());
         }
         return clientKeyExchange;
     }
 
-    private byte[] generateRSAPremasteredSecret() throws InvalidKeyException {
+    private byte[] generateRSAPremasteredSecret() throws InvalidKeyException, InvalidCipherTextException {
 
         byte[] premasterRandom = new byte[46];
         random.nextBytes(premasterRandom);
         EncodingByteBuffer buffer = EncodingByteBuffer.allocate(48);
         buffer.put(supportedVersion);
         buffer.put(premasterRandom);
-        byte[] secretBytes =  buffer.toArray();
+        premasterSecret = buffer.toArray();
         RSACipher cipher = new RSACipher();
         cipher.initialize(serverCertificate.getPublicKey());
-        return cipher.encrypt(secretBytes);
-    }
-
-    private byte[] generateDHPublicKey() {
-
-        // Generate the key pair
-        DHKeyPairGenerator generator = new DHKeyPairGenerator();
-        // We have to prepend a zero byte so that BigInteger doesn't sign extend
-        // if the msb is 1.
-        EncodingByteBuffer pBuffer = EncodingByteBuffer.allocate(serverDHParameters.dh_p.length + 1);
-        pBuffer.put((byte) 0);
-        pBuffer.put(serverDHParameters.dh_p);
-        BigInteger p = new BigInteger(pBuffer.toArray());
-        // Do the same for the generator in case someone picks something other than 2.
-        EncodingByteBuffer gBuffer = EncodingByteBuffer.allocate(serverDHParameters.dh_p.length + 1);
-        gBuffer.put((byte) 0);
-        gBuffer.put(serverDHParameters.dh_g);
-        BigInteger g = new BigInteger(gBuffer.toArray());
-//        BigInteger q = p.multiply(BigInteger.TWO).add(BigInteger.ONE);
-//        int l = serverDHParameters.dh_p.length * 8;
-//        generator.init(new DHKeyGenerationParameters(random, new DHParameters(p, g, q, l)));
-        generator.init(new DHKeyGenerationParameters(random, new DHParameters(p, g)));
-        AsymmetricCipherKeyPair keyPair = generator.generateKeyPair();
-        dhPrivateKey = ((DHPrivateKeyParameters)keyPair.getPrivate()).getX();
-        dhPublicKey = ((DHPublicKeyParameters)keyPair.getPublic()).getY();
-        return dhPublicKey.toByteArray();
+        return cipher.encrypt(premasterSecret);
+    }
+
+    /**
+     * DHE with the server's group. Well known groups come from DHGroupCache
+     * with short exponents and generator tables, anything else is parsed once
+     * and uses a full length exponent.
+     *
+     * @return The encoded client public key.
+     * @throws TlsCryptoException If the server's public value is out of range.
+     */
+    private byte[] generateDHPublicKey() throws TlsCryptoException {
+
+        DHGroup group = DHGroupCache.getGroup(serverDHParameters.dh_p, serverDHParameters.dh_g);
+        // Unrecognized groups may not be shared instances, so they aren't pooled.
+        AgreementKey key = group.isRecognized() ? keyPool.takeKey(group, random) : group.generateKey(random);
+        premasterSecret = group.calculateSecret(key, serverDHParameters.dh_Ys);
+        return key.getPublicKey();
+    }
+
+    /**
+     * ECDHE with one of the groups from AgreementGroupFactory. The group's
+     * curve tables are shared, only the ephemeral key is made here.
+     *
+     * @return The encoded client public key.
+     * @throws TlsCryptoException If the server chose an unsupported curve or sent a bad point.
+     */
+    private byte[] generateECDHPublicKey() throws TlsCryptoException {
+
+        if (serverECDHParameters.curveType != ServerKeyExchange.ServerECDHParameters.NAMED_CURVE) {
+            throw new TlsCryptoException("Unsupported curve type " + serverECDHParameters.curveType);
+        }
+        AgreementGroup group = AgreementGroupFactory.getGroup(serverECDHParameters.namedCurve);
+        AgreementKey key = keyPool.takeKey(group, random);
+        premasterSecret = group.calculateSecret(key, serverECDHParameters.point);
+        return key.getPublicKey();
+    }
+
+    /**
+     * The premaster secret from the last client key exchange. The key schedule
+     * clears it when the master secret is derived.
+     *
+     * @return
+     */
+    public byte[] getPremasterSecret() {
+        return premasterSecret;
     }
 
     public void setServerCertificate(Certificate serverCertificate) {
@@ -174,10 +212,23 @@ public class KeyExchangeEngine {
         this.serverRandom = serverRandom;
     }
 
+    /**
+     * Where ephemeral keys come from. Defaults to the shared pool.
+     *
+     * @param keyPool
+     */
+    public void setKeyPool(EphemeralKeyPool keyPool) {
+        this.keyPool = keyPool;
+    }
+
     public void setServerDHParameters(ServerKeyExchange.ServerDHParameters serverDHParameters) {
         this.serverDHParameters = serverDHParameters;
     }
 
+    public void setServerECDHParameters(ServerKeyExchange.ServerECDHParameters serverECDHParameters) {
+        this.serverECDHParameters = serverECDHParameters;
+    }
+
     public void setSignatureAndHashAlgorithm(SignatureAndHashAlgorithm signatureAndHashAlgorithm) {
         this.signatureAndHashAlgorithm = signatureAndHashAlgorithm;
     }
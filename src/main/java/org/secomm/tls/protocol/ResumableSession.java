@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol;
+
+import java.util.Arrays;
+
+/**
+ * What a client keeps from a full handshake so that a later connection can
+ * resume the session with an abbreviated handshake. The session is resumed
+ * with its ticket if the server issued one (RFC 5077), otherwise with its
+ * session ID.
+ *
+ * A client may hold a great many of these, so everything is packed into a
+ * single array: the cipher suite, then the master secret, session ID and
+ * ticket, each with a length prefix. The getters return copies.
+ */
+public class ResumableSession {
+
+    private final byte[] packed;
+
+    /**
+     * Seconds, from NewSessionTicket. Zero if there is no ticket or the
+     * server gave no hint.
+     */
+    private final long ticketLifetimeHint;
+
+    public ResumableSession(byte[] sessionId, short cipherSuite, byte[] masterSecret) {
+        this(sessionId, cipherSuite, masterSecret, null, 0);
+    }
+
+    public ResumableSession(byte[] sessionId, short cipherSuite, byte[] masterSecret,
+                            byte[] ticket, long ticketLifetimeHint) {
+        if (ticket == null) {
+            ticket = new byte[0];
+        }
+        packed = new byte[2 + 1 + masterSecret.length + 1 + sessionId.length + 2 + ticket.length];
+        int index = 0;
+        packed[index++] = (byte) (cipherSuite >> 8);
+        packed[index++] = (byte) cipherSuite;
+        index = pack(masterSecret, index, 1);
+        index = pack(sessionId, index, 1);
+        pack(ticket, index, 2);
+        this.ticketLifetimeHint = ticketLifetimeHint;
+    }
+
+    private int pack(byte[] field, int index, int prefixLength) {
+        if (prefixLength == 2) {
+            packed[index++] = (byte) (field.length >> 8);
+        }
+        packed[index++] = (byte) field.length;
+        System.arraycopy(field, 0, packed, index, field.length);
+        return index + field.length;
+    }
+
+    /**
+     * @param field 0 for the master secret, 1 for the session ID, 2 for the ticket.
+     * @return The field.
+     */
+    private byte[] unpack(int field) {
+        int index = 2;
+        int length = 0;
+        for (int i = 0; i <= field; ++i) {
+            index += length;
+            if (i == 2) {
+                length = ((packed[index++] & 0xff) << 8) | (packed[index++] & 0xff);
+            } else {
+                length = packed[index++] & 0xff;
+            }
+        }
+        return Arrays.copyOfRange(packed, index, index + length);
+    }
+
+    public short getCipherSuite() {
+        return (short) (((packed[0] & 0xff) << 8) | (packed[1] & 0xff));
+    }
+
+    public byte[] getMasterSecret() {
+        return unpack(0);
+    }
+
+    public byte[] getSessionId() {
+        return unpack(1);
+    }
+
+    /**
+     * @return The ticket, empty if the server did not issue one.
+     */
+    public byte[] getTicket() {
+        return unpack(2);
+    }
+
+    public boolean hasTicket() {
+        // The ticket is last, so it is empty if its length prefix ends the array.
+        int index = 2;
+        index += 1 + (packed[index] & 0xff);
+        index += 1 + (packed[index] & 0xff);
+        return packed.length > index + 2;
+    }
+
+    public long getTicketLifetimeHint() {
+        return ticketLifetimeHint;
+    }
+}
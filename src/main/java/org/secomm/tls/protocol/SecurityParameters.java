@@ -22,6 +22,8 @@
 
 package org.secomm.tls.protocol;
 
+import org.secomm.tls.crypto.CipherSuiteDescriptor;
+
 import java.security.SecureRandom;
 import java.util.Arrays;
 
@@ -31,7 +33,7 @@ public class SecurityParameters {
 
     public enum PRFAlgorithm { TLS_PRF_SHA256 }
 
-    public enum BulkCipherAlgorithm { NULL, RC4, TRIPLEDES, AES }
+    public enum BulkCipherAlgorithm { NULL, RC4, TRIPLEDES, AES, CHACHA20_POLY1305 }
 
     public enum CipherType { STREAM, BLOCK, AEAD }
 
@@ -43,6 +45,11 @@ public class SecurityParameters {
 
     private PRFAlgorithm prfAlgorithm;
 
+    /**
+     * The negotiated suite. Null until the server hello.
+     */
+    private CipherSuiteDescriptor cipherSuite;
+
     private BulkCipherAlgorithm bulkCipherAlgorithm;
 
     private CipherType cipherType;
@@ -131,6 +138,28 @@ public class SecurityParameters {
         this.prfAlgorithm = PRFAlgorithm.valueOf(prfAlgorithm);
     }
 
+    public CipherSuiteDescriptor getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * Take the suite's algorithms and lengths.
+     *
+     * @param cipherSuite
+     */
+    public void setCipherSuite(CipherSuiteDescriptor cipherSuite) {
+        this.cipherSuite = cipherSuite;
+        this.bulkCipherAlgorithm = cipherSuite.getBulkCipherAlgorithm();
+        this.cipherType = cipherSuite.getCipherType();
+        this.macAlgorithm = cipherSuite.getMacAlgorithm();
+        this.encryptionKeyLength = cipherSuite.getEncryptionKeyLength();
+        this.blockLength = cipherSuite.getBlockLength();
+        this.fixedIvLength = cipherSuite.getFixedIvLength();
+        this.recordIvLength = cipherSuite.getRecordIvLength();
+        this.macLength = cipherSuite.getMacLength();
+        this.macKeyLength = cipherSuite.getMacKeyLength();
+    }
+
     public BulkCipherAlgorithm getBulkCipherAlgorithm() {
         return bulkCipherAlgorithm;
     }
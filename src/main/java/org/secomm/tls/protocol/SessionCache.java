@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol;
+
+import org.secomm.tls.util.LruCache;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side session cache, keyed by the peer's host, port and server name,
+ * so a session negotiated for one virtual host is never offered to another.
+ * Safe to share between connections on any number of threads.
+ */
+public class SessionCache {
+
+    public static final int DEFAULT_MAX_SESSIONS = 1024;
+
+    /**
+     * RFC 5246 suggests an upper limit of 24 hours. Servers usually forget
+     * sessions much sooner than that.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE = 3600000;
+
+    private final LruCache<String, ResumableSession> sessions;
+
+    public SessionCache() {
+        this(DEFAULT_MAX_SESSIONS, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param maxSessions
+     * @param timeToLive Milliseconds.
+     */
+    public SessionCache(int maxSessions, long timeToLive) {
+        this(new LruCache<>(maxSessions, timeToLive));
+    }
+
+    public SessionCache(LruCache<String, ResumableSession> sessions) {
+        this.sessions = sessions;
+    }
+
+    public ResumableSession get(String host, int port) {
+        return get(host, port, null);
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param serverName The SNI host name the session was negotiated for, or null.
+     * @return The session, or null if there is none or it has expired.
+     */
+    public ResumableSession get(String host, int port, String serverName) {
+        return sessions.get(key(host, port, serverName));
+    }
+
+    public void put(String host, int port, ResumableSession session) {
+        put(host, port, null, session);
+    }
+
+    /**
+     * A session with a ticket is kept no longer than the server's lifetime
+     * hint for the ticket.
+     *
+     * @param host
+     * @param port
+     * @param serverName The SNI host name the session was negotiated for, or null.
+     * @param session
+     */
+    public void put(String host, int port, String serverName, ResumableSession session) {
+        long timeToLive = sessions.getTimeToLive();
+        if (session.hasTicket() && session.getTicketLifetimeHint() > 0) {
+            timeToLive = Math.min(timeToLive, TimeUnit.SECONDS.toMillis(session.getTicketLifetimeHint()));
+        }
+        sessions.put(key(host, port, serverName), session, timeToLive);
+    }
+
+    public void remove(String host, int port) {
+        remove(host, port, null);
+    }
+
+    /**
+     * Forget a session the server would not resume.
+     *
+     * @param host
+     * @param port
+     * @param serverName The SNI host name the session was negotiated for, or null.
+     */
+    public void remove(String host, int port, String serverName) {
+        sessions.remove(key(host, port, serverName));
+    }
+
+    private static String key(String host, int port, String serverName) {
+        return host.toLowerCase(Locale.ROOT) + ':' + port + '/'
+                + (serverName != null ? serverName.toLowerCase(Locale.ROOT) : "");
+    }
+}
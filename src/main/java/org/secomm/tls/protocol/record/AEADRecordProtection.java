@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol.record;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.modes.AEADCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.secomm.tls.crypto.KeySchedule;
+import org.secomm.tls.protocol.ConnectionState;
+
+/**
+ * AES-GCM records (RFC 5288). The nonce is the four byte implicit IV from
+ * the key block followed by an eight byte explicit part that is sent with
+ * the record. The explicit part of each sealed record is its sequence
+ * number, which never repeats under one key.
+ *
+ * ChaCha20-Poly1305 records (RFC 7905) send no explicit nonce. The nonce is
+ * the twelve byte implicit IV with the sequence number XORed into the last
+ * eight bytes.
+ *
+ * additional_data = seq_num + TLSCompressed.type +
+ *                   TLSCompressed.version + TLSCompressed.length
+ *
+ * The cipher in the state is already keyed. Each record only sets the nonce,
+ * and the nonce and additional data arrays are reused.
+ */
+public class AEADRecordProtection implements RecordProtection {
+
+    public static final class Builder implements RecordProtectionFactory.ProtectionBuilder<AEADRecordProtection> {
+        @Override
+        public AEADRecordProtection build(ConnectionState.CipherState cipherState) {
+            return new AEADRecordProtection(cipherState);
+        }
+    }
+
+    private static final int ADDITIONAL_DATA_LENGTH = 13;
+
+    private final ConnectionState.CipherState cipherState;
+
+    private final AEADCipher cipher;
+
+    private final int fixedIvLength;
+
+    private final int explicitNonceLength;
+
+    private final byte[] fixedIv;
+
+    private final byte[] nonce;
+
+    private final byte[] additionalData;
+
+    public AEADRecordProtection(ConnectionState.CipherState cipherState) {
+        this.cipherState = cipherState;
+        this.cipher = cipherState.getAeadCipher();
+        this.fixedIvLength = cipherState.getFixedIv().length;
+        this.explicitNonceLength = cipherState.getRecordIvLength();
+        this.fixedIv = cipherState.getFixedIv();
+        this.nonce = new byte[fixedIvLength + explicitNonceLength];
+        System.arraycopy(fixedIv, 0, nonce, 0, fixedIvLength);
+        this.additionalData = new byte[ADDITIONAL_DATA_LENGTH];
+    }
+
+    @Override
+    public int getRecordIvLength() {
+        return explicitNonceLength;
+    }
+
+    @Override
+    public int getSealedLength(int length) {
+        return explicitNonceLength + length + KeySchedule.AEAD_TAG_LENGTH;
+    }
+
+    @Override
+    public int seal(byte contentType, RecordLayer.ProtocolVersion version, byte[] buffer, int offset, int length) {
+
+        long sequenceNumber = cipherState.nextSequenceNumber();
+        if (explicitNonceLength > 0) {
+            putLong(nonce, fixedIvLength, sequenceNumber);
+            System.arraycopy(nonce, fixedIvLength, buffer, offset, explicitNonceLength);
+        } else {
+            xorNonce(sequenceNumber);
+        }
+        setAdditionalData(sequenceNumber, contentType, version, length);
+
+        int contentOffset = offset + explicitNonceLength;
+        cipher.init(true, new AEADParameters(null, KeySchedule.AEAD_TAG_LENGTH * 8, nonce));
+        cipher.processAADBytes(additionalData, 0, ADDITIONAL_DATA_LENGTH);
+        int sealed = cipher.processBytes(buffer, contentOffset, length, buffer, contentOffset);
+        try {
+            sealed += cipher.doFinal(buffer, contentOffset + sealed);
+        } catch (InvalidCipherTextException e) {
+            // Only raised when decrypting.
+            throw new IllegalStateException(e);
+        }
+        return explicitNonceLength + sealed;
+    }
+
+    @Override
+    public int open(byte contentType, RecordLayer.ProtocolVersion version, byte[] buffer, int offset, int length)
+            throws BadRecordMacException {
+
+        int contentLength = length - explicitNonceLength - KeySchedule.AEAD_TAG_LENGTH;
+        if (contentLength < 0) {
+            throw new BadRecordMacException("Record too short");
+        }
+        long sequenceNumber = cipherState.nextSequenceNumber();
+        if (explicitNonceLength > 0) {
+            System.arraycopy(buffer, offset, nonce, fixedIvLength, explicitNonceLength);
+        } else {
+            xorNonce(sequenceNumber);
+        }
+        setAdditionalData(sequenceNumber, contentType, version, contentLength);
+
+        int contentOffset = offset + explicitNonceLength;
+        cipher.init(false, new AEADParameters(null, KeySchedule.AEAD_TAG_LENGTH * 8, nonce));
+        cipher.processAADBytes(additionalData, 0, ADDITIONAL_DATA_LENGTH);
+        int opened = cipher.processBytes(buffer, contentOffset, length - explicitNonceLength, buffer, contentOffset);
+        try {
+            cipher.doFinal(buffer, contentOffset + opened);
+        } catch (InvalidCipherTextException e) {
+            throw new BadRecordMacException("Bad record MAC");
+        }
+        return contentLength;
+    }
+
+    private void xorNonce(long sequenceNumber) {
+        for (int i = fixedIvLength - 1; i >= fixedIvLength - 8; --i) {
+            nonce[i] = (byte) (fixedIv[i] ^ sequenceNumber);
+            sequenceNumber >>>= 8;
+        }
+    }
+
+    private void setAdditionalData(long sequenceNumber, byte contentType,
+                                   RecordLayer.ProtocolVersion version, int length) {
+        putLong(additionalData, 0, sequenceNumber);
+        additionalData[8] = contentType;
+        additionalData[9] = version.majorVersion;
+        additionalData[10] = version.minorVersion;
+        additionalData[11] = (byte) (length >> 8);
+        additionalData[12] = (byte) length;
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; --i) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
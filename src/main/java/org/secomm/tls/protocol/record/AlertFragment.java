@@ -90,8 +90,22 @@ public class AlertFragment implements TlsFragment {
     }
 
     @Override
-    public byte[] encode() {
-        return new byte[] { alertLevel, alertDescription };
+    public int encodedLength() {
+        return 2;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
+        buffer.put(alertLevel);
+        buffer.put(alertDescription);
+    }
+
+    public byte getAlertLevel() {
+        return alertLevel;
+    }
+
+    public byte getAlertDescription() {
+        return alertDescription;
     }
 
 }
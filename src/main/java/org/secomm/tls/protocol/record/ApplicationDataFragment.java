@@ -36,18 +36,40 @@ public class ApplicationDataFragment implements TlsFragment {
         }
     }
 
+    private byte[] data;
+
     public ApplicationDataFragment() {
-        
+        data = new byte[0];
+    }
+
+    public ApplicationDataFragment(byte[] data) {
+        this.data = data;
     }
 
     @Override
-    public byte[] encode() {
-        return new byte[0];
+    public int encodedLength() {
+        return data.length;
     }
 
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
+        buffer.put(data);
+    }
+
+    /**
+     * The fragment is a view of the receive buffer, which is reused, so the
+     * data is copied out.
+     *
+     * @param buffer
+     */
     @Override
     public void decode(EncodingByteBuffer buffer) throws IOException, InvalidHandshakeMessageType, InvalidEncodingException {
+        data = new byte[buffer.remaining()];
+        buffer.get(data);
+    }
 
+    public byte[] getData() {
+        return data;
     }
 
     @Override
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol.record;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.ExtendedDigest;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.secomm.tls.protocol.ConnectionState;
+
+/**
+ * GenericBlockCipher protection. The MAC is written straight after the content
+ * and the padding after that, then the whole thing is encrypted where it sits.
+ *
+ * Opening follows RFC 5246 section 6.2.3.2 and the Lucky Thirteen advice: the
+ * padding check always reads the same number of bytes, a bad padding is treated
+ * as none, and the MAC is always run over the same number of hash blocks.
+ */
+public class BlockRecordProtection implements RecordProtection {
+
+    public static final class Builder implements RecordProtectionFactory.ProtectionBuilder<BlockRecordProtection> {
+        @Override
+        public BlockRecordProtection build(ConnectionState.CipherState cipherState) {
+            return new BlockRecordProtection(cipherState);
+        }
+    }
+
+    private static final int MAC_HEADER_LENGTH = 13;
+
+    private static final int MAX_PADDING = 256;
+
+    private final ConnectionState.CipherState cipherState;
+
+    private final BlockCipher cipher;
+
+    private final Mac mac;
+
+    private final int blockSize;
+
+    private final int macLength;
+
+    private final int digestBlockLength;
+
+    private final int digestLengthOverhead;
+
+    private final byte[] iv;
+
+    private final byte[] zeroIv;
+
+    private final byte[] macHeader;
+
+    private final byte[] macOutput;
+
+    private final byte[] dummyBlock;
+
+    public BlockRecordProtection(ConnectionState.CipherState cipherState) {
+        this.cipherState = cipherState;
+        this.cipher = cipherState.getBlockCipher();
+        this.mac = cipherState.getMac();
+        this.blockSize = cipher.getBlockSize();
+        this.macLength = mac.getMacSize();
+        // SHA-1 and SHA-256 append an 8 byte length to a 64 byte block, SHA-384 16 to 128.
+        this.digestBlockLength = ((ExtendedDigest) ((HMac) mac).getUnderlyingDigest()).getByteLength();
+        this.digestLengthOverhead = digestBlockLength / 8;
+        this.iv = new byte[blockSize];
+        this.zeroIv = new byte[blockSize];
+        this.macHeader = new byte[MAC_HEADER_LENGTH];
+        this.macOutput = new byte[macLength];
+        this.dummyBlock = new byte[digestBlockLength];
+    }
+
+    @Override
+    public int getRecordIvLength() {
+        return blockSize;
+    }
+
+    @Override
+    public int getSealedLength(int length) {
+        // At least one byte of padding, the padding_length itself.
+        int padded = length + macLength + 1;
+        return blockSize + padded + (blockSize - padded % blockSize) % blockSize;
+    }
+
+    @Override
+    public int seal(byte contentType, RecordLayer.ProtocolVersion version, byte[] buffer, int offset, int length) {
+
+        long sequenceNumber = cipherState.nextSequenceNumber();
+        int contentOffset = offset + blockSize;
+        int macOffset = contentOffset + length;
+
+        setMacHeader(sequenceNumber, contentType, version, length);
+        mac.update(macHeader, 0, MAC_HEADER_LENGTH);
+        mac.update(buffer, contentOffset, length);
+        mac.doFinal(buffer, macOffset);
+
+        int fragmentLength = getSealedLength(length);
+        int fragmentEnd = offset + fragmentLength;
+        byte paddingLength = (byte) (fragmentEnd - macOffset - macLength - 1);
+        for (int i = macOffset + macLength; i < fragmentEnd; ++i) {
+            buffer[i] = paddingLength;
+        }
+
+        // The explicit IV is the sequence number encrypted under the write key,
+        // which is unpredictable without the key and never repeats. Chaining from
+        // a zero IV through the sequence block does that and the content in one pass.
+        putLong(buffer, offset, blockSize, sequenceNumber);
+        cipher.init(true, new ParametersWithIV(null, zeroIv));
+        for (int i = offset; i < fragmentEnd; i += blockSize) {
+            cipher.processBlock(buffer, i, buffer, i);
+        }
+        return fragmentLength;
+    }
+
+    @Override
+    public int open(byte contentType, RecordLayer.ProtocolVersion version, byte[] buffer, int offset, int length)
+            throws BadRecordMacException {
+
+        int encryptedLength = length - blockSize;
+        if (encryptedLength < Math.max(blockSize, macLength + 1) || encryptedLength % blockSize != 0) {
+            throw new BadRecordMacException("Bad block cipher fragment length");
+        }
+        long sequenceNumber = cipherState.nextSequenceNumber();
+        int contentOffset = offset + blockSize;
+        int fragmentEnd = offset + length;
+
+        System.arraycopy(buffer, offset, iv, 0, blockSize);
+        cipher.init(false, new ParametersWithIV(null, iv));
+        for (int i = contentOffset; i < fragmentEnd; i += blockSize) {
+            cipher.processBlock(buffer, i, buffer, i);
+        }
+
+        // Padding. Every byte that could be padding is examined, and those
+        // that are included by the padding length must match it.
+        int paddingLength = buffer[fragmentEnd - 1] & 0xff;
+        int totalPadding = paddingLength + 1;
+        int good = ~((encryptedLength - macLength - totalPadding) >> 31);
+        int checked = Math.min(MAX_PADDING, encryptedLength - macLength);
+        int difference = 0;
+        for (int i = 1; i <= checked; ++i) {
+            int included = ~((totalPadding - i) >> 31);
+            difference |= included & ((buffer[fragmentEnd - i] & 0xff) ^ paddingLength);
+        }
+        good &= (difference - 1) >> 31;
+        // Bad padding is treated as none so the MAC below still runs, and fails.
+        totalPadding &= good;
+
+        int maxContentLength = encryptedLength - macLength;
+        int contentLength = maxContentLength - totalPadding;
+        setMacHeader(sequenceNumber, contentType, version, contentLength);
+        mac.update(macHeader, 0, MAC_HEADER_LENGTH);
+        mac.update(buffer, contentOffset, contentLength);
+        mac.doFinal(macOutput, 0);
+
+        // Make up the hash blocks that a shorter content skipped.
+        int extraBlocks = digestBlockCount(MAC_HEADER_LENGTH + maxContentLength)
+                - digestBlockCount(MAC_HEADER_LENGTH + contentLength);
+        while (--extraBlocks >= 0) {
+            mac.update(dummyBlock, 0, digestBlockLength);
+        }
+        mac.update(dummyBlock[0]);
+        mac.reset();
+
+        int macDifference = 0;
+        int macOffset = contentOffset + contentLength;
+        for (int i = 0; i < macLength; ++i) {
+            macDifference |= macOutput[i] ^ buffer[macOffset + i];
+        }
+        good &= ((macDifference & 0xff) - 1) >> 31;
+        if (good == 0) {
+            throw new BadRecordMacException("Bad record MAC");
+        }
+        return contentLength;
+    }
+
+    private int digestBlockCount(int inputLength) {
+        return (inputLength + digestLengthOverhead) / digestBlockLength;
+    }
+
+    private void setMacHeader(long sequenceNumber, byte contentType,
+                              RecordLayer.ProtocolVersion version, int length) {
+        putLong(macHeader, 0, 8, sequenceNumber);
+        macHeader[8] = contentType;
+        macHeader[9] = version.majorVersion;
+        macHeader[10] = version.minorVersion;
+        macHeader[11] = (byte) (length >> 8);
+        macHeader[12] = (byte) length;
+    }
+
+    /**
+     * Big endian, right aligned in a field of the given width.
+     */
+    private static void putLong(byte[] buffer, int offset, int width, long value) {
+        for (int i = width - 1; i >= 0; --i) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
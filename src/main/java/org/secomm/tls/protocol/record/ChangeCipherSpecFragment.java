@@ -56,8 +56,13 @@ public class ChangeCipherSpecFragment implements TlsFragment {
     }
 
     @Override
-    public byte[] encode() {
-        return new byte[] { type };
+    public int encodedLength() {
+        return 1;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
+        buffer.put(type);
     }
 
 }
@@ -26,7 +26,6 @@ import org.secomm.tls.protocol.record.handshake.InvalidHandshakeMessageType;
 import org.secomm.tls.util.EncodingByteBuffer;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 public class GenericAEADCipher implements TlsFragment {
 
@@ -42,14 +41,17 @@ public class GenericAEADCipher implements TlsFragment {
     private byte[] content;
 
     @Override
-    public byte[] encode() {
+    public int encodedLength() {
+        return nonceExplicit.length + content.length + 4;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
 
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
         buffer.putShort((short) nonceExplicit.length);
         buffer.put(nonceExplicit);
         buffer.putShort((short) content.length);
         buffer.put(content);
-        return buffer.array();
     }
 
     @Override
@@ -26,7 +26,6 @@ import org.secomm.tls.protocol.record.handshake.InvalidHandshakeMessageType;
 import org.secomm.tls.util.EncodingByteBuffer;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 public class GenericBlockCipher implements TlsFragment {
 
@@ -48,9 +47,13 @@ public class GenericBlockCipher implements TlsFragment {
     private byte paddingLength;
 
     @Override
-    public byte[] encode() {
+    public int encodedLength() {
+        return iv.length + content.length + mac.length + padding.length + 7;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
 
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
         buffer.putShort((short) iv.length);
         buffer.put(iv);
         buffer.putShort((short) content.length);
@@ -59,7 +62,6 @@ public class GenericBlockCipher implements TlsFragment {
         buffer.put(mac);
         buffer.put(padding);
         buffer.put(paddingLength);
-        return buffer.array();
     }
 
     @Override
@@ -61,14 +61,17 @@ public class GenericStreamCipher implements TlsFragment {
     }
 
     @Override
-    public byte[] encode() {
+    public int encodedLength() {
+        return content.length + mac.length + 4;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
 
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(1024);
         buffer.putShort((short) content.length);
         buffer.put(content);
         buffer.putShort((short) mac.length);
         buffer.put(mac);
-        return buffer.toArray();
     }
 
 }
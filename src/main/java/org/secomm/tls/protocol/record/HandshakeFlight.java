@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol.record;
+
+import org.bouncycastle.crypto.Digest;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.handshake.TlsHandshakeMessage;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds everything one side sends before it waits for the peer, so that the
+ * whole flight goes out in a single gathering write.
+ *
+ * Handshake messages are a byte stream as far as the record layer is concerned
+ * (RFC 5246 section 6.2.1), so consecutive messages are packed into the same
+ * record and a message that does not fit is continued in the next one. A
+ * ChangeCipherSpec closes the open handshake record, because it has its own
+ * content type and anything after it is protected by the new cipher spec.
+ *
+ * Each message is encoded once, header included, into a pooled array. Those
+ * arrays are not copied again. Record headers and message slices go into the
+ * gathering array as separate buffers, and the arrays go back to the pool
+ * when the flight is released after the write. Messages after a
+ * ChangeCipherSpec are copied once more, into the record they are sealed in,
+ * and their arrays are released straight away.
+ */
+public class HandshakeFlight {
+
+    /**
+     * RFC 5246 section 6.2.1. A TLSPlaintext fragment may not exceed 2^14 bytes.
+     */
+    public static final int MAX_PLAINTEXT_LENGTH = 16384;
+
+    private final RecordLayer.ProtocolVersion version;
+
+    private final List<ByteBuffer> buffers;
+
+    /**
+     * Encoded messages the buffers still point into.
+     */
+    private final List<EncodingByteBuffer> encodedMessages;
+
+    /**
+     * Header of the handshake record that is still accepting messages. The
+     * length is updated as messages are added.
+     */
+    private ByteBuffer openHeader;
+
+    private int openLength;
+
+    private int recordCount;
+
+    /**
+     * Protects everything after the ChangeCipherSpec. Null before it.
+     */
+    private RecordProtection protection;
+
+    private Digest transcript;
+
+    public HandshakeFlight(RecordLayer.ProtocolVersion version) {
+        this.version = version;
+        this.buffers = new ArrayList<>();
+        this.encodedMessages = new ArrayList<>();
+    }
+
+    public HandshakeFlight addHandshakeMessage(TlsHandshakeMessage message) {
+
+        // Header and body are encoded together, at the start of a pooled array.
+        int length = message.encodedLength();
+        EncodingByteBuffer encoded = EncodingByteBuffer.pooled(length + 4);
+        encoded.put(message.getHandshakeMessageType());
+        encoded.put24Bit(length);
+        message.encodeInto(encoded);
+        if (transcript != null) {
+            transcript.update(encoded.array(), 0, length + 4);
+        }
+        if (protection != null) {
+            appendProtectedBytes(encoded.array(), length + 4);
+            encoded.release();
+        } else {
+            appendHandshakeBytes(encoded.array(), length + 4);
+            encodedMessages.add(encoded);
+        }
+        return this;
+    }
+
+    public HandshakeFlight addChangeCipherSpec() {
+
+        openHeader = null;
+        buffers.add(ByteBuffer.wrap(new byte[] { TlsConstants.CHANGE_CIPHER_SPEC,
+                version.majorVersion, version.minorVersion, 0, 1, 1 }));
+        recordCount++;
+        return this;
+    }
+
+    /**
+     * ChangeCipherSpec, with the messages that follow protected by the new
+     * write state.
+     *
+     * @param protection
+     * @return
+     */
+    public HandshakeFlight addChangeCipherSpec(RecordProtection protection) {
+        addChangeCipherSpec();
+        this.protection = protection;
+        return this;
+    }
+
+    /**
+     * Add each handshake message to the transcript as it is encoded.
+     *
+     * @param transcript
+     */
+    public void setTranscript(Digest transcript) {
+        this.transcript = transcript;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * The flight in wire order, ready for a gathering write.
+     *
+     * @return
+     */
+    public ByteBuffer[] toBuffers() {
+        return buffers.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Return the encoded messages to the buffer pool. Call once the flight is
+     * written. The buffers from toBuffers can't be used afterwards.
+     */
+    public void release() {
+        for (EncodingByteBuffer encoded : encodedMessages) {
+            encoded.release();
+        }
+        encodedMessages.clear();
+    }
+
+    private void appendHandshakeBytes(byte[] bytes, int end) {
+
+        int offset = 0;
+        while (offset < end) {
+            if (openHeader == null || openLength == MAX_PLAINTEXT_LENGTH) {
+                openHandshakeRecord();
+            }
+            int length = Math.min(MAX_PLAINTEXT_LENGTH - openLength, end - offset);
+            buffers.add(ByteBuffer.wrap(bytes, offset, length));
+            openLength += length;
+            openHeader.putShort(3, (short) openLength);
+            offset += length;
+        }
+    }
+
+    private void appendProtectedBytes(byte[] bytes, int end) {
+
+        int offset = 0;
+        while (offset < end) {
+            int length = Math.min(MAX_PLAINTEXT_LENGTH, end - offset);
+            buffers.add(ByteBuffer.wrap(protection.sealRecord(TlsConstants.HANDSHAKE, version, bytes, offset, length)));
+            recordCount++;
+            offset += length;
+        }
+    }
+
+    private void openHandshakeRecord() {
+
+        openHeader = ByteBuffer.allocate(RecordLayer.RECORD_HEADER_LENGTH);
+        openHeader.put(0, TlsConstants.HANDSHAKE);
+        openHeader.put(1, version.majorVersion);
+        openHeader.put(2, version.minorVersion);
+        openLength = 0;
+        buffers.add(openHeader);
+        recordCount++;
+    }
+}
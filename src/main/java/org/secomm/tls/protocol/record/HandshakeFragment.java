@@ -24,6 +24,7 @@ package org.secomm.tls.protocol.record;
 
 import org.secomm.tls.protocol.TlsConstants;
 import org.secomm.tls.protocol.record.extensions.InvalidExtensionTypeException;
+import org.secomm.tls.protocol.record.handshake.HandshakeContext;
 import org.secomm.tls.protocol.record.handshake.HandshakeMessageFactory;
 import org.secomm.tls.protocol.record.handshake.InvalidHandshakeMessageType;
 import org.secomm.tls.protocol.record.handshake.TlsHandshakeFragment;
@@ -31,7 +32,15 @@ import org.secomm.tls.protocol.record.handshake.TlsHandshakeMessage;
 import org.secomm.tls.util.EncodingByteBuffer;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * A handshake record may carry several handshake messages. Servers usually
+ * send ServerHello through ServerHelloDone in one record. A message may also
+ * span records, the connection's context keeps the part received so far and
+ * the message is decoded with the record that completes it.
+ */
 public class HandshakeFragment implements TlsHandshakeFragment {
 
     public static final class Builder implements FragmentFactory.FragmentBuilder<HandshakeFragment> {
@@ -40,49 +49,109 @@ public class HandshakeFragment implements TlsHandshakeFragment {
         }
     }
 
-    private byte messageType;
+    private final List<TlsHandshakeMessage> messages;
 
     /**
-     * Encoded as a 24 bit integer.
+     * The connection's decoding context. A fragment decoded on its own gets
+     * a fresh one.
      */
-    private int handshakeLength;
-
-    private TlsHandshakeMessage message;
+    private HandshakeContext context;
 
     public HandshakeFragment(TlsHandshakeMessage handshake) {
-        this.message = handshake;
-        this.messageType = handshake.getHandshakeMessageType();
+        this();
+        messages.add(handshake);
     }
 
     public HandshakeFragment() {
+        messages = new ArrayList<>();
     }
 
+    /**
+     * Decode every message in the record. Each one is added to the context's
+     * transcript as it was received, since the decoders can't reproduce the
+     * exact bytes.
+     *
+     * @param handshakeBuffer
+     */
     @Override
     public void decode(EncodingByteBuffer handshakeBuffer)
             throws InvalidHandshakeMessageType, IOException, InvalidExtensionTypeException {
-        
-        messageType = handshakeBuffer.get();
-        message = HandshakeMessageFactory.getHandshake(messageType);
-        int handshakeLength = handshakeBuffer.get24Bit();
-        byte[] bytes = new byte[handshakeLength];
-        handshakeBuffer.get(bytes);
-        EncodingByteBuffer buffer = EncodingByteBuffer.wrap(bytes);
-        message.decode(buffer);
+
+        if (context == null) {
+            context = new HandshakeContext();
+        }
+        while (handshakeBuffer.remaining() > 0) {
+            if (!context.hasPartialMessage() && handshakeBuffer.remaining() >= 4) {
+                EncodingByteBuffer header = handshakeBuffer.slice(4);
+                header.get();
+                // Encoded as a 24 bit integer.
+                int handshakeLength = header.get24Bit();
+                header.reset();
+                if (handshakeBuffer.remaining() >= handshakeLength) {
+                    // Whole in this record, so decoded in place. The body follows the header.
+                    handshakeBuffer.slice(handshakeLength);
+                    decodeMessage(EncodingByteBuffer.wrap(header.array(), header.arrayOffset(), handshakeLength + 4));
+                    continue;
+                }
+                context.assembleMessage(header);
+            }
+            EncodingByteBuffer message = context.assembleMessage(handshakeBuffer);
+            if (message != null) {
+                decodeMessage(message);
+            }
+        }
+    }
+
+    /**
+     * @param encoded One whole message, header included.
+     */
+    private void decodeMessage(EncodingByteBuffer encoded)
+            throws InvalidHandshakeMessageType, IOException, InvalidExtensionTypeException {
+
+        byte messageType = encoded.get();
+        TlsHandshakeMessage message = HandshakeMessageFactory.getHandshake(messageType);
+        int handshakeLength = encoded.get24Bit();
+        EncodingByteBuffer body = encoded.slice(handshakeLength);
+        context.addToTranscript(messageType, encoded.array(), encoded.arrayOffset(), handshakeLength + 4);
+        message.decode(body, context);
+        messages.add(message);
+    }
+
+    public void setContext(HandshakeContext context) {
+        this.context = context;
     }
 
     @Override
-    public byte[] encode() {
-        byte[] handshakeBytes = message.encode();
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(handshakeBytes.length + 4);
-        buffer.put(messageType);
-        handshakeLength = handshakeBytes.length;
-        buffer.put24Bit(handshakeLength);
-        buffer.put(handshakeBytes);
-        return buffer.toArray();
+    public int encodedLength() {
+        int length = 0;
+        for (TlsHandshakeMessage message : messages) {
+            length += message.encodedLength() + 4;
+        }
+        return length;
     }
 
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
+        for (TlsHandshakeMessage message : messages) {
+            buffer.put(message.getHandshakeMessageType());
+            buffer.put24Bit(message.encodedLength());
+            message.encodeInto(buffer);
+        }
+    }
+
+    /**
+     * The first message in the record.
+     *
+     * @param <T>
+     * @return
+     */
     public <T extends TlsHandshakeMessage> T getHandshakeMessage() {
-        return (T) message;
+        return messages.isEmpty() ? null : (T) messages.get(0);
+    }
+
+    @Override
+    public List<TlsHandshakeMessage> getHandshakeMessages() {
+        return messages;
     }
 
     @Override
@@ -92,7 +161,12 @@ public class HandshakeFragment implements TlsHandshakeFragment {
 
     @Override
     public void setHandshakeMessage(TlsHandshakeMessage message) {
-        this.messageType = message.getHandshakeMessageType();
-        this.message = message;
+        messages.clear();
+        messages.add(message);
+    }
+
+    @Override
+    public void addHandshakeMessage(TlsHandshakeMessage message) {
+        messages.add(message);
     }
 }
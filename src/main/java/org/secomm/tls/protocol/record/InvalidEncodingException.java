@@ -26,4 +26,8 @@ public class InvalidEncodingException extends RecordLayerException {
     public InvalidEncodingException(String message) {
         super(message);
     }
+
+    public InvalidEncodingException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
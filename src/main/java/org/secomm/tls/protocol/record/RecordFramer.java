@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol.record;
+
+import org.secomm.tls.net.ConnectionManager;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.handshake.HandshakeContext;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Incremental record decoder. Bytes from the connection are accumulated in a
+ * single receive buffer that lives as long as the connection. Each read may
+ * deliver part of a record, exactly one record, or several coalesced records;
+ * every complete record is decoded and any trailing partial record is kept
+ * for the next read.
+ *
+ * Headers are parsed where they land and fragments are handed to the decoders
+ * as views of the receive buffer, so nothing is allocated or copied before the
+ * fragment is parsed. If a direct receive buffer is requested, each fragment
+ * has to be moved to the heap once for the decoders. That copy goes into a
+ * scratch array that is also reused.
+ *
+ * Once a read protection is set, fragments are opened in place and only the
+ * content is handed to the decoders. Decoding stops after a ChangeCipherSpec,
+ * since the records behind it need the new read state. They stay in the
+ * receive buffer until the next call.
+ */
+public class RecordFramer {
+
+    /**
+     * RFC 5246 section 6.2.3. A TLSCiphertext fragment may not exceed 2^14 + 2048 bytes.
+     */
+    public static final int MAX_FRAGMENT_LENGTH = 16384 + 2048;
+
+    public static final int RECEIVE_BUFFER_SIZE = RecordLayer.RECORD_HEADER_LENGTH + MAX_FRAGMENT_LENGTH;
+
+    private enum State { HEADER, FRAGMENT }
+
+    private final ConnectionManager connectionManager;
+
+    /**
+     * Always in fill mode between calls. Bytes from position 0 to the current
+     * position are received but not yet decoded.
+     */
+    private final ByteBuffer receiveBuffer;
+
+    /**
+     * Only used when the receive buffer is direct.
+     */
+    private final byte[] scratch;
+
+    private final Deque<TlsPlaintextRecord> pendingRecords;
+
+    private State state;
+
+    // Header of the record currently being assembled.
+    private byte contentType;
+
+    private RecordLayer.ProtocolVersion version;
+
+    private int fragmentLength;
+
+    private RecordProtection readProtection;
+
+    private final HandshakeContext handshakeContext;
+
+    public RecordFramer(final ConnectionManager connectionManager, boolean direct) {
+        this.connectionManager = connectionManager;
+        if (direct) {
+            receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+            scratch = new byte[MAX_FRAGMENT_LENGTH];
+        } else {
+            receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+            scratch = null;
+        }
+        pendingRecords = new ArrayDeque<>();
+        handshakeContext = new HandshakeContext();
+        state = State.HEADER;
+    }
+
+    public RecordFramer(final ConnectionManager connectionManager) {
+        this(connectionManager, false);
+    }
+
+    /**
+     * Blocking read of the next record. Records left over from a previous read
+     * are returned without touching the connection.
+     *
+     * @return
+     * @throws IOException
+     * @throws RecordLayerException
+     */
+    public TlsPlaintextRecord readPlaintextRecord() throws IOException, RecordLayerException {
+
+        if (pendingRecords.isEmpty() && hasBufferedBytes()) {
+            decodeRecords(pendingRecords);
+        }
+        while (pendingRecords.isEmpty()) {
+            try {
+                Future<Integer> future = connectionManager.read(receiveBuffer);
+                if (future.get() < 0) {
+                    throw new EOFException("Connection closed by peer");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Record read interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Record read failed", e.getCause());
+            }
+            decodeRecords(pendingRecords);
+        }
+        return pendingRecords.poll();
+    }
+
+    /**
+     * The buffer the connection should read into. Call decodeRecords after
+     * each completed read.
+     *
+     * @return
+     */
+    public ByteBuffer getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    /**
+     * True if bytes were received but not decoded, for instance records
+     * after a ChangeCipherSpec. They may not be a complete record.
+     *
+     * @return
+     */
+    public boolean hasBufferedBytes() {
+        return receiveBuffer.position() > 0;
+    }
+
+    /**
+     * The context handshake messages from this connection are decoded with.
+     *
+     * @return
+     */
+    public HandshakeContext getHandshakeContext() {
+        return handshakeContext;
+    }
+
+    /**
+     * Open every following record with the new read state.
+     *
+     * @param readProtection
+     */
+    public void setReadProtection(RecordProtection readProtection) {
+        this.readProtection = readProtection;
+    }
+
+    /**
+     * Decode every complete record in the receive buffer, including any left
+     * over from a blocking read, and add them to the collection in the order
+     * they arrived.
+     *
+     * @param records
+     * @return The number of records added.
+     * @throws IOException
+     * @throws RecordLayerException
+     */
+    public int decodeRecords(Collection<TlsPlaintextRecord> records) throws IOException, RecordLayerException {
+
+        int count = 0;
+        while (!pendingRecords.isEmpty()) {
+            records.add(pendingRecords.poll());
+            count++;
+        }
+
+        receiveBuffer.flip();
+        try {
+            boolean complete = true;
+            while (complete) {
+                switch (state) {
+                    case HEADER:
+                        if (receiveBuffer.remaining() < RecordLayer.RECORD_HEADER_LENGTH) {
+                            complete = false;
+                        } else {
+                            parseHeader();
+                            state = State.FRAGMENT;
+                        }
+                        break;
+                    case FRAGMENT:
+                        if (receiveBuffer.remaining() < fragmentLength) {
+                            complete = false;
+                        } else {
+                            TlsPlaintextRecord record = decodeFragment();
+                            records.add(record);
+                            count++;
+                            state = State.HEADER;
+                            if (contentType == TlsConstants.CHANGE_CIPHER_SPEC) {
+                                complete = false;
+                            }
+                        }
+                        break;
+                }
+            }
+        } finally {
+            // Keep the partial record, if any, for the next read.
+            receiveBuffer.compact();
+        }
+        return count;
+    }
+
+    private void parseHeader() throws RecordLayerException {
+        contentType = receiveBuffer.get();
+        version = new RecordLayer.ProtocolVersion(receiveBuffer.get(), receiveBuffer.get());
+        fragmentLength = receiveBuffer.getShort() & 0xffff;
+        if (fragmentLength > MAX_FRAGMENT_LENGTH) {
+            throw new RecordLayerException("Record overflow");
+        }
+    }
+
+    private TlsPlaintextRecord decodeFragment() throws IOException, RecordLayerException {
+
+        byte[] fragment;
+        int fragmentOffset;
+        int fragmentStart = receiveBuffer.position();
+        if (scratch != null) {
+            receiveBuffer.get(scratch, 0, fragmentLength);
+            fragment = scratch;
+            fragmentOffset = 0;
+        } else {
+            fragment = receiveBuffer.array();
+            fragmentOffset = receiveBuffer.arrayOffset() + fragmentStart;
+            receiveBuffer.position(fragmentStart + fragmentLength);
+        }
+
+        EncodingByteBuffer fragmentBuffer;
+        if (readProtection != null) {
+            int contentLength = readProtection.open(contentType, version, fragment, fragmentOffset, fragmentLength);
+            if (contentLength > HandshakeFlight.MAX_PLAINTEXT_LENGTH) {
+                throw new RecordLayerException("Record overflow");
+            }
+            fragmentBuffer = EncodingByteBuffer.wrap(fragment,
+                    fragmentOffset + readProtection.getRecordIvLength(), contentLength);
+        } else {
+            fragmentBuffer = EncodingByteBuffer.wrap(fragment, fragmentOffset, fragmentLength);
+        }
+        TlsPlaintextRecord record = new TlsPlaintextRecord(contentType, version);
+        record.decode(fragmentBuffer, handshakeContext);
+        return record;
+    }
+}
@@ -31,17 +31,19 @@ import org.secomm.tls.protocol.record.extensions.Extensions;
 import org.secomm.tls.protocol.record.extensions.TlsExtension;
 import org.secomm.tls.protocol.record.handshake.ClientHello;
 import org.secomm.tls.protocol.record.handshake.ClientKeyExchange;
+import org.secomm.tls.protocol.record.handshake.HandshakeContext;
 import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
-import org.secomm.tls.protocol.record.handshake.TlsHandshakeFragment;
 import org.secomm.tls.protocol.record.handshake.TlsHandshakeMessage;
+import org.secomm.tls.util.BufferPool;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
-import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 /**
  * The record layer manages handshaking and keeps track of
@@ -64,10 +66,45 @@ public class RecordLayer {
 
     public static final int RECORD_HEADER_LENGTH = 5;
 
+    /**
+     * Records waiting for the write ahead of them. The channel allows only
+     * one write at a time.
+     */
+    private static final class PendingWrite {
+
+        final ByteBuffer[] buffers;
+
+        final boolean closeWhenDone;
+
+        final CompletionHandler<Integer, RecordLayer> handler;
+
+        /**
+         * Returns pooled arrays behind the buffers once the write is over,
+         * whether it succeeded or not. May be null.
+         */
+        final Runnable release;
+
+        PendingWrite(ByteBuffer[] buffers, boolean closeWhenDone, CompletionHandler<Integer, RecordLayer> handler,
+                     Runnable release) {
+            this.buffers = buffers;
+            this.closeWhenDone = closeWhenDone;
+            this.handler = handler;
+            this.release = release;
+        }
+
+        void release() {
+            if (release != null) {
+                release.run();
+            }
+        }
+    }
+
     private final ProtocolVersion version;
 
     private final ConnectionManager connectionManager;
 
+    private final RecordFramer recordFramer;
+
     private ConnectionState connectionState;
 
     private SecurityParameters pendingCipherSpec;
@@ -80,6 +117,24 @@ public class RecordLayer {
 
     private List<TlsExtension> currentTlsExtensions;
 
+    /**
+     * Null until ChangeCipherSpec is sent.
+     */
+    private RecordProtection writeProtection;
+
+    /**
+     * Guards the queue and the flags. Records are also sealed under it, so
+     * they go out in sequence number order.
+     */
+    private final ArrayDeque<PendingWrite> writeQueue = new ArrayDeque<>();
+
+    private boolean writing;
+
+    /**
+     * Set once a fatal alert is out or a write fails. Later writes fail.
+     */
+    private boolean writesClosed;
+
     public RecordLayer(final ProtocolVersion version,
                        final ConnectionState connectionState,
                        final ConnectionManager connectionManager) {
@@ -87,46 +142,227 @@ public class RecordLayer {
         this.connectionState = connectionState;
         this.pendingCipherSpec = connectionState.getSecurityParameters();
         this.connectionManager = connectionManager;
+        this.recordFramer = new RecordFramer(connectionManager);
     }
 
     public void sendHandshakeRecord(TlsHandshakeMessage handshakeMessage) {
+        sendFlight(createFlight().addHandshakeMessage(handshakeMessage));
+    }
+
+    public HandshakeFlight createFlight() {
+        return new HandshakeFlight(version);
+    }
 
-        TlsPlaintextRecord record = new TlsPlaintextRecord(TlsConstants.HANDSHAKE, version);
-        TlsHandshakeFragment fragment = new HandshakeFragment(handshakeMessage);
-        record.setFragment(fragment);
-        byte[] encoded = record.encode();
-        ByteBuffer buffer = ByteBuffer.wrap(encoded);
-        connectionManager.write(buffer, new CompletionHandler<Integer, ConnectionManager>() {
+    /**
+     * Send every record in the flight with one gathering write. The write is
+     * continued if the channel accepts only part of it, and waits for any
+     * write already in progress. The flight is released when the write is over.
+     *
+     * @param flight
+     */
+    public void sendFlight(HandshakeFlight flight) {
+        PendingWrite write;
+        synchronized (writeQueue) {
+            write = queueWrite(flight.toBuffers(), false, null, flight::release);
+        }
+        startWrite(write);
+    }
+
+    public void sendAlertRecord(AlertFragment alertFragment) {
+        PendingWrite write;
+        synchronized (writeQueue) {
+            byte[] encoded;
+            if (writeProtection != null) {
+                byte[] alert = alertFragment.encode();
+                encoded = writeProtection.sealRecord(TlsConstants.ALERT, version, alert, 0, alert.length);
+            } else {
+                TlsPlaintextRecord record = new TlsPlaintextRecord(TlsConstants.ALERT, version);
+                record.setFragment(alertFragment);
+                encoded = record.encode();
+            }
+            // The connection is finished after a fatal alert.
+            write = queueWrite(new ByteBuffer[] { ByteBuffer.wrap(encoded) },
+                    alertFragment.getAlertLevel() == AlertFragment.FATAL, null, null);
+        }
+        startWrite(write);
+    }
+
+    /**
+     * Send application data once the handshake is complete. The data is split
+     * into records of at most 2^14 bytes. The records are sealed back to back
+     * in one pooled array, each piece copied into place and encrypted there.
+     * The array goes back to the pool when the write is over.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @param handler Completed with the number of bytes sent. May be null.
+     */
+    public void sendApplicationData(byte[] data, int offset, int length,
+                                    CompletionHandler<Integer, RecordLayer> handler) {
+
+        if (writeProtection == null) {
+            if (handler != null) {
+                handler.failed(new RecordLayerException("Handshake not complete"), this);
+            }
+            return;
+        }
+        CompletionHandler<Integer, RecordLayer> writeHandler = handler == null ? null : new CompletionHandler<>() {
             @Override
-            public void completed(Integer result, ConnectionManager attachment) {
-                // Nothing to do here
+            public void completed(Integer result, RecordLayer attachment) {
+                handler.completed(length, attachment);
             }
 
             @Override
-            public void failed(Throwable exc, ConnectionManager attachment) {
-                // TODO handle sending errors back to handshake engine. Callback?
-                connectionManager.close();
+            public void failed(Throwable exc, RecordLayer attachment) {
+                handler.failed(exc, attachment);
             }
-        });
+        };
+        PendingWrite write;
+        synchronized (writeQueue) {
+            byte[] records = BufferPool.acquire(writeProtection.getSealedRecordsLength(length));
+            int recordsLength = writeProtection.sealRecords(TlsConstants.APPLICATION_DATA, version,
+                    data, offset, length, records, 0);
+            write = queueWrite(new ByteBuffer[] { ByteBuffer.wrap(records, 0, recordsLength) }, false, writeHandler,
+                    () -> BufferPool.release(records));
+        }
+        startWrite(write);
     }
 
-    public void sendAlertRecord(AlertFragment alertFragment) {
-        TlsPlaintextRecord record = new TlsPlaintextRecord(TlsConstants.ALERT, version);
-        record.setFragment(alertFragment);
-        byte[] encoded = record.encode();
-        ByteBuffer buffer = ByteBuffer.wrap(encoded);
-        connectionManager.write(buffer, new CompletionHandler<Integer, ConnectionManager>() {
-            @Override
-            public void completed(Integer result, ConnectionManager attachment) {
+    /**
+     * Make the pending write state current. Everything sent afterwards is
+     * protected, so call this when ChangeCipherSpec is added to a flight.
+     *
+     * @return The protection for the rest of the flight.
+     * @throws RecordLayerException
+     */
+    public RecordProtection activateWriteState() throws RecordLayerException {
+        connectionState.activateWriteState();
+        writeProtection = RecordProtectionFactory.getProtection(connectionState.getWriteState());
+        return writeProtection;
+    }
 
-            }
+    /**
+     * The context received handshake messages are decoded with.
+     *
+     * @return
+     */
+    public HandshakeContext getHandshakeContext() {
+        return recordFramer.getHandshakeContext();
+    }
 
-            @Override
-            public void failed(Throwable exc, ConnectionManager attachment) {
-                // TODO handle sending errors back to handshake engine. Callback?
-                connectionManager.close();
+    /**
+     * Make the pending read state current. Call when the peer's
+     * ChangeCipherSpec arrives. Records the framer held back are opened
+     * with it.
+     *
+     * @throws RecordLayerException
+     */
+    public void activateReadState() throws RecordLayerException {
+        connectionState.activateReadState();
+        recordFramer.setReadProtection(RecordProtectionFactory.getProtection(connectionState.getReadState()));
+    }
+
+    /**
+     * Call with the write queue locked.
+     *
+     * @return The write to start now, or null if it waits its turn.
+     */
+    private PendingWrite queueWrite(ByteBuffer[] buffers, boolean closeWhenDone,
+                                    CompletionHandler<Integer, RecordLayer> handler, Runnable release) {
+        PendingWrite write = new PendingWrite(buffers, closeWhenDone, handler, release);
+        if (writing) {
+            writeQueue.add(write);
+            return null;
+        }
+        writing = true;
+        return write;
+    }
+
+    /**
+     * Write until the buffers are empty, then start the next queued write.
+     * Never called with the write queue locked, since a completion can run
+     * inline and lead to more writes.
+     *
+     * @param write Null does nothing.
+     */
+    private void startWrite(PendingWrite write) {
+
+        if (write == null) {
+            return;
+        }
+        boolean closed;
+        synchronized (writeQueue) {
+            closed = writesClosed;
+        }
+        if (closed) {
+            writeFailed(write, new ClosedChannelException());
+            return;
+        }
+        try {
+            connectionManager.write(write.buffers, new CompletionHandler<Long, ConnectionManager>() {
+                @Override
+                public void completed(Long result, ConnectionManager attachment) {
+                    if (write.buffers[write.buffers.length - 1].hasRemaining()) {
+                        try {
+                            connectionManager.write(write.buffers, this);
+                        } catch (RuntimeException e) {
+                            writeFailed(write, e);
+                        }
+                        return;
+                    }
+                    write.release();
+                    if (write.handler != null) {
+                        write.handler.completed(0, RecordLayer.this);
+                    }
+                    if (write.closeWhenDone) {
+                        closeWrites(new ClosedChannelException());
+                    } else {
+                        PendingWrite next;
+                        synchronized (writeQueue) {
+                            next = writeQueue.poll();
+                            writing = next != null;
+                        }
+                        startWrite(next);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exc, ConnectionManager attachment) {
+                    writeFailed(write, exc);
+                }
+            });
+        } catch (RuntimeException e) {
+            writeFailed(write, e);
+        }
+    }
+
+    private void writeFailed(PendingWrite write, Throwable exc) {
+        write.release();
+        if (write.handler != null) {
+            write.handler.failed(exc, this);
+        }
+        closeWrites(exc);
+    }
+
+    /**
+     * Close the connection and fail every queued write.
+     */
+    private void closeWrites(Throwable exc) {
+        List<PendingWrite> queued;
+        synchronized (writeQueue) {
+            writesClosed = true;
+            writing = false;
+            queued = new ArrayList<>(writeQueue);
+            writeQueue.clear();
+        }
+        connectionManager.close();
+        for (PendingWrite write : queued) {
+            write.release();
+            if (write.handler != null) {
+                write.handler.failed(exc, this);
             }
-        });
+        }
     }
 
 /*
@@ -155,35 +391,76 @@ public class RecordLayer {
 
     public TlsPlaintextRecord readPlaintextRecord()
             throws IOException, RecordLayerException {
+        return recordFramer.readPlaintextRecord();
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(5);
-        Future<Integer> future = connectionManager.read(buffer);
-        try {
-            Integer length = future.get();
-            if (length != 5) {
-                throw new RecordLayerException("Failed to read record header");
+    /**
+     * Non-blocking read. The handler receives every record decoded from the
+     * next read that completes at least one record. Reads that only deliver
+     * part of a record are reissued without waking the handler. Records
+     * already received, but held back at a ChangeCipherSpec, are delivered
+     * without a read. A record that fails to decode, including one that
+     * trips a runtime error in a decoder, fails the handler with an
+     * {@link InvalidEncodingException}.
+     *
+     * @param recordHandler
+     */
+    public void readRecords(CompletionHandler<List<TlsPlaintextRecord>, RecordLayer> recordHandler) {
+
+        if (recordFramer.hasBufferedBytes()) {
+            List<TlsPlaintextRecord> records = new ArrayList<>();
+            try {
+                recordFramer.decodeRecords(records);
+            } catch (IOException | RecordLayerException e) {
+                recordHandler.failed(e, this);
+                return;
+            } catch (RuntimeException e) {
+                recordHandler.failed(new InvalidEncodingException("Malformed record", e), this);
+                return;
             }
-            buffer.flip();
-            TlsPlaintextRecord record = new TlsPlaintextRecord(buffer.get(),
-                    new ProtocolVersion(buffer.get(), buffer.get()));
-            short fragmentLength = buffer.getShort();
-            buffer = ByteBuffer.allocate(fragmentLength);
-            future = connectionManager.read(buffer);
-            length = future.get();
-            if (length.shortValue() != fragmentLength) {
-                throw new RemoteException("Failed to read fragment");
+            if (!records.isEmpty()) {
+                recordHandler.completed(records, this);
+                return;
             }
-            buffer.flip();
-            // We're going through all of this thrashing around because ByteBuffer
-            // isn't really meant for what we're doing.
-            byte[] recordBytes = new byte[length];
-            buffer.get(recordBytes);
-            record.decode(recordBytes);
-            return record;
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
-            return null;
         }
+
+        connectionManager.read(recordFramer.getReceiveBuffer(), new CompletionHandler<Integer, ConnectionManager>() {
+            @Override
+            public void completed(Integer result, ConnectionManager attachment) {
+                if (result < 0) {
+                    recordHandler.failed(new EOFException("Connection closed by peer"), RecordLayer.this);
+                    return;
+                }
+                List<TlsPlaintextRecord> records = new ArrayList<>();
+                try {
+                    recordFramer.decodeRecords(records);
+                } catch (IOException | RecordLayerException e) {
+                    recordHandler.failed(e, RecordLayer.this);
+                    return;
+                } catch (RuntimeException e) {
+                    recordHandler.failed(new InvalidEncodingException("Malformed record", e), RecordLayer.this);
+                    return;
+                }
+                if (records.isEmpty()) {
+                    readRecords(recordHandler);
+                } else {
+                    recordHandler.completed(records, RecordLayer.this);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, ConnectionManager attachment) {
+                recordHandler.failed(exc, RecordLayer.this);
+            }
+        });
+    }
+
+    public void close() {
+        connectionManager.close();
+    }
+
+    public boolean isOpen() {
+        return connectionManager.isOpen();
     }
 
 /*
@@ -26,4 +26,8 @@ public class RecordLayerException extends Exception {
     public RecordLayerException(String message) {
         super(message);
     }
+
+    public RecordLayerException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol.record;
+
+/**
+ * Protects records with the current read or write state. Records are sealed
+ * and opened where they lie, so the fragment is never copied.
+ *
+ * A fragment starts with the record IV, if the cipher has one, followed by
+ * the content. The content is encrypted in place and the MAC, tag and
+ * padding are written after it. The caller leaves room for them.
+ */
+public interface RecordProtection {
+
+    /**
+     * Where the content starts in the fragment.
+     *
+     * @return
+     */
+    int getRecordIvLength();
+
+    /**
+     * The fragment length after sealing length bytes of content.
+     *
+     * @param length
+     * @return
+     */
+    int getSealedLength(int length);
+
+    /**
+     * Encrypt and authenticate the content in place, using the next write
+     * sequence number.
+     *
+     * @param contentType
+     * @param version
+     * @param buffer
+     * @param offset Start of the fragment. The content is at offset + getRecordIvLength().
+     * @param length Content length.
+     * @return The fragment length.
+     */
+    int seal(byte contentType, RecordLayer.ProtocolVersion version, byte[] buffer, int offset, int length);
+
+    /**
+     * Authenticate and decrypt the fragment in place, using the next read
+     * sequence number.
+     *
+     * @param contentType
+     * @param version
+     * @param buffer
+     * @param offset Start of the fragment.
+     * @param length Fragment length.
+     * @return The content length. The content is at offset + getRecordIvLength().
+     * @throws BadRecordMacException
+     */
+    int open(byte contentType, RecordLayer.ProtocolVersion version, byte[] buffer, int offset, int length)
+            throws BadRecordMacException;
+
+    /**
+     * Build a complete record from plaintext. The content is copied once,
+     * into the record, and sealed there.
+     *
+     * @param contentType
+     * @param version
+     * @param content
+     * @param offset
+     * @param length
+     * @return The encoded record.
+     */
+    default byte[] sealRecord(byte contentType, RecordLayer.ProtocolVersion version,
+                              byte[] content, int offset, int length) {
+        byte[] record = new byte[RecordLayer.RECORD_HEADER_LENGTH + getSealedLength(length)];
+        System.arraycopy(content, offset, record, RecordLayer.RECORD_HEADER_LENGTH + getRecordIvLength(), length);
+        int fragmentLength = seal(contentType, version, record, RecordLayer.RECORD_HEADER_LENGTH, length);
+        record[0] = contentType;
+        record[1] = version.majorVersion;
+        record[2] = version.minorVersion;
+        record[3] = (byte) (fragmentLength >> 8);
+        record[4] = (byte) fragmentLength;
+        return record;
+    }
+
+    /**
+     * The length of the records sealRecords builds from length bytes of content.
+     *
+     * @param length
+     * @return
+     */
+    default int getSealedRecordsLength(int length) {
+        int fullRecords = length / HandshakeFlight.MAX_PLAINTEXT_LENGTH;
+        int lastLength = length - fullRecords * HandshakeFlight.MAX_PLAINTEXT_LENGTH;
+        int totalLength = fullRecords * (RecordLayer.RECORD_HEADER_LENGTH
+                + getSealedLength(HandshakeFlight.MAX_PLAINTEXT_LENGTH));
+        if (lastLength > 0 || fullRecords == 0) {
+            totalLength += RecordLayer.RECORD_HEADER_LENGTH + getSealedLength(lastLength);
+        }
+        return totalLength;
+    }
+
+    /**
+     * Split content into as many records as it takes and seal them all into
+     * one array, so a bulk write is one allocation and one buffer.
+     *
+     * @param contentType
+     * @param version
+     * @param content
+     * @param offset
+     * @param length
+     * @return The encoded records, back to back.
+     */
+    default byte[] sealRecords(byte contentType, RecordLayer.ProtocolVersion version,
+                               byte[] content, int offset, int length) {
+        byte[] records = new byte[getSealedRecordsLength(length)];
+        sealRecords(contentType, version, content, offset, length, records, 0);
+        return records;
+    }
+
+    /**
+     * Seal the records into an array the caller provides, for instance one
+     * from the buffer pool.
+     *
+     * @param contentType
+     * @param version
+     * @param content
+     * @param offset
+     * @param length
+     * @param records Room for at least getSealedRecordsLength(length) bytes after recordsOffset.
+     * @param recordsOffset
+     * @return The length of the records.
+     */
+    default int sealRecords(byte contentType, RecordLayer.ProtocolVersion version,
+                            byte[] content, int offset, int length, byte[] records, int recordsOffset) {
+        int recordCount = Math.max(1, (length + HandshakeFlight.MAX_PLAINTEXT_LENGTH - 1)
+                / HandshakeFlight.MAX_PLAINTEXT_LENGTH);
+        int recordOffset = recordsOffset;
+        int end = offset + length;
+        for (int i = 0; i < recordCount; ++i) {
+            int recordLength = Math.min(HandshakeFlight.MAX_PLAINTEXT_LENGTH, end - offset);
+            System.arraycopy(content, offset, records,
+                    recordOffset + RecordLayer.RECORD_HEADER_LENGTH + getRecordIvLength(), recordLength);
+            int fragmentLength = seal(contentType, version, records,
+                    recordOffset + RecordLayer.RECORD_HEADER_LENGTH, recordLength);
+            records[recordOffset] = contentType;
+            records[recordOffset + 1] = version.majorVersion;
+            records[recordOffset + 2] = version.minorVersion;
+            records[recordOffset + 3] = (byte) (fragmentLength >> 8);
+            records[recordOffset + 4] = (byte) fragmentLength;
+            recordOffset += RecordLayer.RECORD_HEADER_LENGTH + fragmentLength;
+            offset += recordLength;
+        }
+        return recordOffset - recordsOffset;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol.record;
+
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class RecordProtectionFactory {
+
+    public interface ProtectionBuilder <T extends RecordProtection> {
+        public T build(ConnectionState.CipherState cipherState);
+    }
+
+    private static final Map<SecurityParameters.CipherType, ProtectionBuilder<?>> protectionMap = Stream.of(new Object[][] {
+            { SecurityParameters.CipherType.AEAD, new AEADRecordProtection.Builder() },
+            { SecurityParameters.CipherType.BLOCK, new BlockRecordProtection.Builder() }
+    }).collect(Collectors.toMap(e -> (SecurityParameters.CipherType) e[0], e -> (ProtectionBuilder<?>) e[1]));
+
+    public static RecordProtection getProtection(ConnectionState.CipherState cipherState)
+            throws RecordLayerException {
+        ProtectionBuilder<?> builder = protectionMap.get(cipherState.getCipherType());
+        if (builder == null) {
+            throw new RecordLayerException("Unsupported cipher type " + cipherState.getCipherType());
+        }
+        return builder.build(cipherState);
+    }
+}
@@ -30,7 +30,20 @@ import java.io.IOException;
 
 public interface TlsFragment {
 
-    byte[] encode();
+    /**
+     * The exact number of bytes encodeInto will write.
+     *
+     * @return
+     */
+    int encodedLength();
+
+    void encodeInto(EncodingByteBuffer buffer);
+
+    default byte[] encode() {
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(encodedLength());
+        encodeInto(buffer);
+        return buffer.array();
+    }
 
     void decode(EncodingByteBuffer fragmentBuffer) throws IOException, InvalidHandshakeMessageType,
             InvalidEncodingException, InvalidExtensionTypeException;
@@ -22,6 +22,7 @@
 
 package org.secomm.tls.protocol.record;
 
+import org.secomm.tls.protocol.record.handshake.HandshakeContext;
 import org.secomm.tls.util.EncodingByteBuffer;
 
 import java.io.IOException;
@@ -38,21 +39,59 @@ public class TlsPlaintextRecord extends TlsRecord {
 */
 
     public void decode(byte[] recordBytes) throws RecordLayerException, IOException {
+        decode(EncodingByteBuffer.wrap(recordBytes));
+    }
+
+    /**
+     * Decode the fragment from a buffer holding exactly the fragment bytes. The
+     * buffer may be a view of the record layer's receive buffer.
+     *
+     * @param fragmentBuffer
+     * @throws RecordLayerException
+     * @throws IOException
+     */
+    public void decode(EncodingByteBuffer fragmentBuffer) throws RecordLayerException, IOException {
+        decode(fragmentBuffer, null);
+    }
 
-        EncodingByteBuffer recordBuffer = EncodingByteBuffer.wrap(recordBytes);
+    /**
+     * Decode the fragment with a connection's handshake context.
+     *
+     * @param fragmentBuffer
+     * @param context Null to decode the record on its own.
+     * @throws RecordLayerException
+     * @throws IOException
+     */
+    public void decode(EncodingByteBuffer fragmentBuffer, HandshakeContext context)
+            throws RecordLayerException, IOException {
         fragment = FragmentFactory.getContent(fragmentType);
-        fragment.decode(recordBuffer);
+        if (fragment instanceof HandshakeFragment) {
+            ((HandshakeFragment) fragment).setContext(context);
+        }
+        fragment.decode(fragmentBuffer);
     }
 
-    public byte[] encode() {
-        byte[] fragmentBytes = fragment.encode();
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(fragmentBytes.length + 5);
+    public int encodedLength() {
+        return fragment.encodedLength() + RecordLayer.RECORD_HEADER_LENGTH;
+    }
+
+    /**
+     * Write the header and the fragment at the buffer's current position.
+     *
+     * @param buffer
+     */
+    public void encodeInto(EncodingByteBuffer buffer) {
         buffer.put(fragmentType);
         buffer.put(version.majorVersion);
         buffer.put(version.minorVersion);
-        buffer.putShort((short) fragmentBytes.length);
-        buffer.put(fragmentBytes);
-        return buffer.toArray();
+        buffer.putShort((short) fragment.encodedLength());
+        fragment.encodeInto(buffer);
+    }
+
+    public byte[] encode() {
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(encodedLength());
+        encodeInto(buffer);
+        return buffer.array();
     }
 
 }
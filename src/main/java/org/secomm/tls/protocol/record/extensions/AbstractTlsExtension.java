@@ -41,19 +41,25 @@ public abstract class AbstractTlsExtension implements TlsExtension {
         this.extensionType = extensionType;
     }
 
-    protected abstract void encodeExtensionData();
+    /**
+     * The exact number of bytes encodeExtensionData will write.
+     *
+     * @return
+     */
+    protected abstract int extensionDataLength();
+
+    protected abstract void encodeExtensionData(EncodingByteBuffer buffer);
 
     @Override
-    public byte[] encode() {
+    public int encodedLength() {
+        return extensionDataLength() + 4;
+    }
 
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(1024);
-        if (extensionData == null) {
-            encodeExtensionData();
-        }
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
         buffer.putShort(extensionType);
-        buffer.putShort((short) extensionData.length);
-        buffer.put(extensionData);
-        return buffer.toArray();
+        buffer.putShort((short) extensionDataLength());
+        encodeExtensionData(buffer);
     }
 
     protected abstract void decodeExtensionData();
@@ -51,11 +51,14 @@ public class ApplicationLayerProtocolNegotiation extends AbstractTlsExtension {
     }
 
     @Override
-    protected void encodeExtensionData() {
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(protocolNameList.length + 2);
+    protected int extensionDataLength() {
+        return protocolNameList.length + 2;
+    }
+
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer buffer) {
         buffer.putShort((short) protocolNameList.length);
         buffer.put(protocolNameList);
-        extensionData = buffer.toArray();
     }
 
     @Override
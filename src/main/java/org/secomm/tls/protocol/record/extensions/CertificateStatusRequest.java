@@ -61,6 +61,7 @@ public class CertificateStatusRequest extends AbstractTlsExtension {
     }
 
     public interface CertificateStatus {
+        int encodedLength();
         void encode(EncodingByteBuffer buffer);
         void decode(EncodingByteBuffer data);
     }
@@ -85,10 +86,17 @@ public class CertificateStatusRequest extends AbstractTlsExtension {
     }
 
     @Override
-    protected void encodeExtensionData() {
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(1024);
-        buffer.put(statusType);
-        request.encode(buffer);
+    protected int extensionDataLength() {
+        return request != null ? request.encodedLength() + 1 : 0;
+    }
+
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer buffer) {
+        // Empty in a ServerHello.
+        if (request != null) {
+            buffer.put(statusType);
+            request.encode(buffer);
+        }
     }
 
     @Override
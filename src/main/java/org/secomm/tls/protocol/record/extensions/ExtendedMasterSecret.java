@@ -23,6 +23,7 @@
 package org.secomm.tls.protocol.record.extensions;
 
 import org.secomm.tls.protocol.record.InvalidEncodingException;
+import org.secomm.tls.util.EncodingByteBuffer;
 
 /**
  * RFC 7627 section 5.1
@@ -40,9 +41,19 @@ public class ExtendedMasterSecret extends AbstractTlsExtension{
         super(Extensions.EXTENDED_MASTER_SECRET);
     }
 
+    /**
+     * The extension data is always empty.
+     *
+     * @return
+     */
     @Override
-    protected void encodeExtensionData() {
-        extensionData = new byte[] { 0x00, 0x17, 0x00, 0x00 };
+    protected int extensionDataLength() {
+        return 0;
+    }
+
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer buffer) {
+        // Nothing to do here.
     }
 
     @Override
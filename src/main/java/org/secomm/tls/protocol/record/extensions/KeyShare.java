@@ -128,30 +128,43 @@ public class KeyShare extends AbstractTlsExtension {
     }
 
     @Override
-    protected void encodeExtensionData() {
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(1024);
+    protected int extensionDataLength() {
         switch (keyShareType) {
             case CLIENT_HELLO:
-                EncodingByteBuffer sharesBuffer = EncodingByteBuffer.allocate(1024);
+                return clientSharesLength() + 2;
+            case HELLO_RETRY:
+                return 2;
+            case SERVER_HELLO:
+                return serverShare.keyExchange.length + 4;
+        }
+        return 0;
+    }
+
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer buffer) {
+        switch (keyShareType) {
+            case CLIENT_HELLO:
+                buffer.putShort((short) clientSharesLength());
                 for (KeyShareEntry entry : clientShares) {
-                    encodeKeyShareEntry(entry, sharesBuffer);
+                    encodeKeyShareEntry(entry, buffer);
                 }
-                byte[] sharesBytes = sharesBuffer.toArray();
-                buffer.putShort((short) sharesBytes.length);
-                buffer.put(sharesBytes);
                 break;
             case HELLO_RETRY:
                 buffer.putShort(selectedGroup);
                 break;
             case SERVER_HELLO:
-                EncodingByteBuffer shareBuffer = EncodingByteBuffer.allocate(1024);
-                encodeKeyShareEntry(serverShare, shareBuffer);
-                byte[] shareBytes = shareBuffer.toArray();
-                buffer.putShort((short) shareBytes.length);
-                buffer.put(shareBytes);
+                // A single entry, no length prefix.
+                encodeKeyShareEntry(serverShare, buffer);
                 break;
         }
-        extensionData = buffer.toArray();
+    }
+
+    private int clientSharesLength() {
+        int length = 0;
+        for (KeyShareEntry entry : clientShares) {
+            length += entry.keyExchange.length + 4;
+        }
+        return length;
     }
 
     @Override
@@ -56,16 +56,18 @@ public class OCSPStatusRequest implements CertificateStatusRequest.CertificateSt
         requestExtensions = new byte[0];
     }
 
+    @Override
+    public int encodedLength() {
+        return responderIdListLength() + requestExtensions.length + 4;
+    }
+
     @Override
     public void encode(EncodingByteBuffer buffer) {
-        EncodingByteBuffer listEncoder = EncodingByteBuffer.allocate(1024);
+        buffer.putShort((short) responderIdListLength());
         for (byte[] responderId : responderIdList) {
-            listEncoder.putShort((short) responderId.length);
-            listEncoder.put(responderId);
+            buffer.putShort((short) responderId.length);
+            buffer.put(responderId);
         }
-        byte[] listBytes = listEncoder.toArray();
-        buffer.putShort((short) listBytes.length);
-        buffer.put(listBytes);
         buffer.putShort((short) requestExtensions.length);
         buffer.put(requestExtensions);
     }
@@ -85,8 +87,17 @@ public class OCSPStatusRequest implements CertificateStatusRequest.CertificateSt
         while (listDecoder.hasRemaining()) {
             short responderIdLength = listDecoder.getShort();
             byte[] responderId = new byte[responderIdLength];
+            listDecoder.get(responderId);
             responderIdList.add(responderId);
         }
     }
 
+    private int responderIdListLength() {
+        int length = 0;
+        for (byte[] responderId : responderIdList) {
+            length += responderId.length + 2;
+        }
+        return length;
+    }
+
 }
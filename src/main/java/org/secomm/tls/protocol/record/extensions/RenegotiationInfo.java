@@ -58,11 +58,14 @@ public class RenegotiationInfo extends AbstractTlsExtension {
     }
 
     @Override
-    protected void encodeExtensionData() {
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(infoLength + 1);
+    protected int extensionDataLength() {
+        return renegotiatedConnection.length + 1;
+    }
+
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer buffer) {
         buffer.put(infoLength);
         buffer.put(renegotiatedConnection);
-        extensionData = buffer.toArray();
     }
 
     @Override
@@ -85,19 +85,27 @@ public class ServerNameIndication extends AbstractTlsExtension {
     }
 
     @Override
-    protected void encodeExtensionData() {
+    protected int extensionDataLength() {
+        return serverNameListLength() + 2;
+    }
+
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer data) {
+
+        data.putShort((short) serverNameListLength());
+        for (ServerName serverName : serverNameList) {
+            data.put(serverName.nameType);
+            data.putShort((short) serverName.hostName.length);
+            data.put(serverName.hostName);
+        }
+    }
 
-        EncodingByteBuffer data = EncodingByteBuffer.allocate(1024);
-        EncodingByteBuffer nameEncoding = EncodingByteBuffer.allocate(256);
+    private int serverNameListLength() {
+        int length = 0;
         for (ServerName serverName : serverNameList) {
-            nameEncoding.put(serverName.nameType);
-            nameEncoding.putShort((short) serverName.hostName.length);
-            nameEncoding.put(serverName.hostName);
+            length += serverName.hostName.length + 3;
         }
-        byte[] encodedNames = nameEncoding.toArray();
-        data.putShort((short) encodedNames.length);
-        data.put(encodedNames);
-        extensionData = data.toArray();
+        return length;
     }
 
     @Override
@@ -23,9 +23,9 @@
 package org.secomm.tls.protocol.record.extensions;
 
 import org.secomm.tls.protocol.record.InvalidEncodingException;
+import org.secomm.tls.util.EncodingByteBuffer;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 public class SessionTicket extends AbstractTlsExtension {
@@ -49,26 +49,29 @@ public class SessionTicket extends AbstractTlsExtension {
         this.ticket = ticket;
     }
 
+    /**
+     * The ticket is the whole of the extension data, with no length of its
+     * own (RFC 5077, section 3.2). Empty asks the server for a new ticket.
+     *
+     * @return
+     */
     @Override
-    protected void encodeExtensionData() {
+    protected int extensionDataLength() {
+        return ticket.length;
+    }
 
-        ByteBuffer data = ByteBuffer.allocate(ticket.length + 2);
-        data.putShort((short) ticket.length);
-        if (ticket.length > 0) {
-            data.put(ticket);
-        }
-        extensionData = data.array();
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer data) {
+        data.put(ticket);
     }
 
     @Override
     protected void decodeExtensionData() {
+        ticket = extensionData;
+    }
 
-        ByteBuffer data = ByteBuffer.wrap(extensionData);
-        short ticketLength = data.getShort();
-        if (ticketLength > 0) {
-            ticket = new byte[ticketLength];
-            data.get(ticket);
-        }
+    public byte[] getTicket() {
+        return ticket;
     }
 
     @Override
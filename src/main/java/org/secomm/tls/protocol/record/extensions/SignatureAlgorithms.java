@@ -23,6 +23,7 @@
 package org.secomm.tls.protocol.record.extensions;
 
 import org.secomm.tls.protocol.record.InvalidEncodingException;
+import org.secomm.tls.util.EncodingByteBuffer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -62,15 +63,18 @@ public class SignatureAlgorithms extends AbstractTlsExtension {
     }
 
     @Override
-    protected void encodeExtensionData() {
+    protected int extensionDataLength() {
+        return (algorithmsList.size() * 2) + 2;
+    }
+
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer data) {
 
-        ByteBuffer data = ByteBuffer.allocate((algorithmsList.size() * 2) + 2);
         data.putShort((short) (algorithmsList.size() * 2));
         for (Algorithms algorithms : algorithmsList) {
             data.put(algorithms.hash);
             data.put(algorithms.signature);
         }
-        extensionData = data.array();
     }
 
     @Override
@@ -26,7 +26,6 @@ import org.secomm.tls.protocol.record.InvalidEncodingException;
 import org.secomm.tls.util.EncodingByteBuffer;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -51,7 +50,7 @@ public class SupportedEllipticCurves extends AbstractTlsExtension {
             {(short) 16, "secp160r1"}, {(short) 17, "secp160r2"}, {(short) 18, "secp192k1"},
             {(short) 19, "secp192r1"}, {(short) 20, "secp224k1"}, {(short) 21, "secp224r1"},
             {(short) 22, "secp256k1"}, {(short) 23, "secp256r1"}, {(short) 24, "secp384r1"},
-            {(short) 25, "secp521r1"},
+            {(short) 25, "secp521r1"}, {(short) 29, "x25519"}, {(short) 30, "x448"},
             {(short) 0xFF01, "arbitrary explicit prime curves"},
             {(short) 0xFF02, "arbitrary explicit char2 curves"}
     }).collect(Collectors.toMap(e -> (short) e[0], e -> (String) e[1]));
@@ -68,13 +67,21 @@ public class SupportedEllipticCurves extends AbstractTlsExtension {
     }
 
     @Override
-    protected void encodeExtensionData() {
-        ByteBuffer data = ByteBuffer.allocate(curves.size() + 2);
-        data.putShort((short) curves.size());
+    protected int extensionDataLength() {
+        return (curves.size() * 2) + 2;
+    }
+
+    /**
+     * The list length is in bytes, two per curve.
+     *
+     * @param data
+     */
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer data) {
+        data.putShort((short) (curves.size() * 2));
         for (short curve : curves) {
             data.putShort(curve);
         }
-        extensionData = data.array();
     }
 
     @Override
@@ -26,7 +26,6 @@ import org.secomm.tls.protocol.record.InvalidEncodingException;
 import org.secomm.tls.util.EncodingByteBuffer;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +41,8 @@ public class SupportedPointFormats extends AbstractTlsExtension {
         }
     }
 
+    public static final byte UNCOMPRESSED = 0;
+
     private static final Map<Byte,String> formatNames = Stream.of(new Object[][] {
             { (byte) 0, "Uncompressed" },
             { (byte) 1, "ANSI X962 compressed prime" },
@@ -60,13 +61,16 @@ public class SupportedPointFormats extends AbstractTlsExtension {
     }
 
     @Override
-    protected void encodeExtensionData() {
-        ByteBuffer data = ByteBuffer.allocate(formats.size() + 2);
+    protected int extensionDataLength() {
+        return formats.size() + 1;
+    }
+
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer data) {
         data.put((byte) formats.size());
         for (byte format : formats) {
             data.put(format);
         }
-        extensionData = data.array();
     }
 
     @Override
@@ -72,6 +72,7 @@ public class SupportedVersions extends AbstractTlsExtension{
         super(Extensions.SUPPORTED_VERSIONS);
         versions = new ArrayList<>();
         versions.add(TLSv1_2);
+        handshakeType = HandshakeType.CLIENT_HELLO;
     }
 
     public SupportedVersions(List<Short> versions) {
@@ -88,16 +89,45 @@ public class SupportedVersions extends AbstractTlsExtension{
     }
 
     @Override
-    protected void encodeExtensionData() {
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(1024);
-        switch (handshakeType) {
+    protected int extensionDataLength() {
+        if (handshakeType == HandshakeType.CLIENT_HELLO) {
+            return (versions.size() * 2) + 1;
+        }
+        return 2;
+    }
 
+    @Override
+    protected void encodeExtensionData(EncodingByteBuffer buffer) {
+        switch (handshakeType) {
+            case CLIENT_HELLO:
+                buffer.put((byte) (versions.size() * 2));
+                for (short version : versions) {
+                    buffer.putShort(version);
+                }
+                break;
+            case SERVER_HELLO:
+            case HELLO_RETRY:
+                buffer.putShort(selectedVersion);
+                break;
         }
     }
 
     @Override
     protected void decodeExtensionData() {
-
+        EncodingByteBuffer data = EncodingByteBuffer.wrap(extensionData);
+        switch (handshakeType) {
+            case CLIENT_HELLO:
+                int versionsLength = data.get() & 0xff;
+                versions = new ArrayList<>();
+                while (versions.size() < versionsLength / 2) {
+                    versions.add(data.getShort());
+                }
+                break;
+            case SERVER_HELLO:
+            case HELLO_RETRY:
+                selectedVersion = data.getShort();
+                break;
+        }
     }
 
     @Override
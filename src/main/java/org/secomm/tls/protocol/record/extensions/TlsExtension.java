@@ -31,7 +31,21 @@ import java.nio.ByteBuffer;
 
 public interface TlsExtension {
 
-    public byte[] encode();
+    /**
+     * The exact number of bytes encodeInto will write, including the type and
+     * length.
+     *
+     * @return
+     */
+    public int encodedLength();
+
+    public void encodeInto(EncodingByteBuffer buffer);
+
+    public default byte[] encode() {
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(encodedLength());
+        encodeInto(buffer);
+        return buffer.array();
+    }
 
     public int decode(EncodingByteBuffer buffer);
 
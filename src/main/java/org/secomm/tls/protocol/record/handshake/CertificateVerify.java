@@ -29,8 +29,12 @@ import java.io.IOException;
 
 public class CertificateVerify implements TlsHandshakeMessage {
     @Override
-    public byte[] encode() {
-        return new byte[0];
+    public int encodedLength() {
+        return 0;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
     }
 
     @Override
@@ -40,6 +44,6 @@ public class CertificateVerify implements TlsHandshakeMessage {
 
     @Override
     public byte getHandshakeMessageType() {
-        return 0;
+        return HandshakeMessageTypes.CERTIFICATE_VERIFY;
     }
 }
@@ -117,9 +117,23 @@ public class ClientHello implements TlsHandshakeMessage {
     }
 
     @Override
-    public byte[] encode() {
+    public int encodedLength() {
+        int length = 2 + CLIENT_RANDOM_LENGTH
+                + 1 + (sessionId != null ? sessionId.length : 0)
+                + 2 + (cipherSuites.size() * 2)
+                + 1 + compressionMethods.length
+                + 2;
+        if (tlsExtensions != null) {
+            for (TlsExtension tlsExtension : tlsExtensions) {
+                length += tlsExtension.encodedLength();
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
 
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(1024);
         buffer.put(version.majorVersion);
         buffer.put(version.minorVersion);
         buffer.put(clientRandom);
@@ -143,17 +157,19 @@ public class ClientHello implements TlsHandshakeMessage {
             buffer.put(compressionMethods);
         }
 
-        EncodingByteBuffer extensionsBuffer = EncodingByteBuffer.allocate(1024);
-        for (TlsExtension tlsExtension : tlsExtensions) {
-            byte [] extensionBytes = tlsExtension.encode();
-            extensionsLength += extensionBytes.length;
-            extensionsBuffer.putShort((short) extensionBytes.length);
-            extensionsBuffer.put(extensionBytes);
+        // Each extension writes its own type and length.
+        extensionsLength = 0;
+        if (tlsExtensions != null) {
+            for (TlsExtension tlsExtension : tlsExtensions) {
+                extensionsLength += tlsExtension.encodedLength();
+            }
+        }
+        buffer.putShort(extensionsLength);
+        if (tlsExtensions != null) {
+            for (TlsExtension tlsExtension : tlsExtensions) {
+                tlsExtension.encodeInto(buffer);
+            }
         }
-        byte[] extensionBytes = extensionsBuffer.toArray();
-        buffer.putShort((short) extensionBytes.length);
-        buffer.put(extensionBytes);
-        return buffer.toArray();
     }
 
     @Override
@@ -172,10 +188,21 @@ public class ClientHello implements TlsHandshakeMessage {
         this.clientRandom = clientRandom;
     }
 
+    /**
+     * @return The session ID, or null if none was sent.
+     */
+    public byte[] getSessionId() {
+        return sessionId;
+    }
+
     public void setSessionId(byte[] sessionId) {
         this.sessionId = sessionId;
     }
 
+    public List<TlsExtension> getExtensions() {
+        return tlsExtensions;
+    }
+
     public void setCipherSuites(List<Short> cipherSuites) {
         this.cipherSuites = cipherSuites;
     }
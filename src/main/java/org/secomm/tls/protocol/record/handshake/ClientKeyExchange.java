@@ -39,41 +39,97 @@ public class ClientKeyExchange implements TlsHandshakeMessage {
     public ClientKeyExchange() {
     }
 
+    public ClientKeyExchange(CipherSuiteTranslator.KeyExchangeAlgorithm keyExchangeAlgorithm) {
+        this.keyExchangeAlgorithm = keyExchangeAlgorithm;
+    }
+
+    /**
+     * The encoding depends on the key exchange. Null is taken as DHE.
+     */
+    private CipherSuiteTranslator.KeyExchangeAlgorithm keyExchangeAlgorithm;
+
     private byte[] premasterSecret;
 
     private byte[] clientPublicKey;
 
     @Override
-    public byte[] encode() {
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(1024);
-        if (CipherSuiteTranslator.getKeyExchangeAlgorithm() == CipherSuiteTranslator.KeyExchangeAlgorithm.RSA) {
+    public int encodedLength() {
+        if (keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.RSA) {
+            return premasterSecret.length + 2;
+        } else if (isEllipticCurve()) {
+            return clientPublicKey.length + 1;
+        } else {
+            return clientPublicKey.length + 2;
+        }
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
+        if (keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.RSA) {
             buffer.putShort((short) premasterSecret.length);
             buffer.put(premasterSecret);
+        } else if (isEllipticCurve()) {
+            // ECPoint has a one byte length (RFC 8422 section 5.7).
+            buffer.put((byte) clientPublicKey.length);
+            buffer.put(clientPublicKey);
         } else {
             buffer.putShort((short) clientPublicKey.length);
             buffer.put(clientPublicKey);
         }
-        return buffer.toArray();
     }
 
     @Override
     public void decode(EncodingByteBuffer handshakeBuffer) throws IOException, InvalidExtensionTypeException {
-        if (CipherSuiteTranslator.getKeyExchangeAlgorithm() == CipherSuiteTranslator.KeyExchangeAlgorithm.RSA) {
-            short secretLength = handshakeBuffer.getShort();
-            premasterSecret = new byte[secretLength];
+        if (keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.RSA) {
+            premasterSecret = new byte[handshakeBuffer.getShort() & 0xffff];
             handshakeBuffer.get(premasterSecret);
+        } else if (isEllipticCurve()) {
+            clientPublicKey = new byte[handshakeBuffer.get() & 0xff];
+            handshakeBuffer.get(clientPublicKey);
         } else {
-            short keyLength = handshakeBuffer.getShort();
-            clientPublicKey = new byte[keyLength];
+            clientPublicKey = new byte[handshakeBuffer.getShort() & 0xffff];
             handshakeBuffer.get(clientPublicKey);
         }
     }
 
+    @Override
+    public void decode(EncodingByteBuffer handshakeBuffer, HandshakeContext context)
+            throws IOException, InvalidExtensionTypeException {
+        keyExchangeAlgorithm = context.getKeyExchangeAlgorithm();
+        decode(handshakeBuffer);
+    }
+
+    private boolean isEllipticCurve() {
+        return keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.ECDHE_RSA
+                || keyExchangeAlgorithm == CipherSuiteTranslator.KeyExchangeAlgorithm.ECDHE_ECDSA;
+    }
+
     @Override
     public byte getHandshakeMessageType() {
         return HandshakeMessageTypes.CLIENT_KEY_EXCHANGE;
     }
 
+    /**
+     * The encrypted premaster secret, for RSA key exchange.
+     *
+     * @return
+     */
+    public byte[] getPremasterSecret() {
+        return premasterSecret;
+    }
+
+    public CipherSuiteTranslator.KeyExchangeAlgorithm getKeyExchangeAlgorithm() {
+        return keyExchangeAlgorithm;
+    }
+
+    public void setKeyExchangeAlgorithm(CipherSuiteTranslator.KeyExchangeAlgorithm keyExchangeAlgorithm) {
+        this.keyExchangeAlgorithm = keyExchangeAlgorithm;
+    }
+
+    public byte[] getClientPublicKey() {
+        return clientPublicKey;
+    }
+
     public void setPremasterSecret(byte[] premasterSecret) {
         this.premasterSecret = premasterSecret;
     }
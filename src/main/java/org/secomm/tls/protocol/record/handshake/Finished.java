@@ -28,18 +28,48 @@ import org.secomm.tls.util.EncodingByteBuffer;
 import java.io.IOException;
 
 public class Finished implements TlsHandshakeMessage {
+
+    public static final class Builder implements HandshakeMessageFactory.HandshakeBuilder<Finished> {
+        public Finished build() {
+            return new Finished();
+        }
+    }
+
+    /**
+     * 12 bytes for every TLS 1.2 cipher suite defined so far.
+     */
+    private byte[] verifyData;
+
+    public Finished() {
+        verifyData = new byte[0];
+    }
+
     @Override
-    public byte[] encode() {
-        return new byte[0];
+    public int encodedLength() {
+        return verifyData.length;
     }
 
     @Override
-    public void decode(EncodingByteBuffer handshakeBuffer) throws IOException, InvalidExtensionTypeException {
+    public void encodeInto(EncodingByteBuffer buffer) {
+        buffer.put(verifyData);
+    }
 
+    @Override
+    public void decode(EncodingByteBuffer handshakeBuffer) throws IOException, InvalidExtensionTypeException {
+        verifyData = new byte[handshakeBuffer.remaining()];
+        handshakeBuffer.get(verifyData);
     }
 
     @Override
     public byte getHandshakeMessageType() {
-        return 0;
+        return HandshakeMessageTypes.FINISHED;
+    }
+
+    public byte[] getVerifyData() {
+        return verifyData;
+    }
+
+    public void setVerifyData(byte[] verifyData) {
+        this.verifyData = verifyData;
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol.record.handshake;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.secomm.tls.crypto.CipherSuiteDescriptor;
+import org.secomm.tls.crypto.CipherSuiteTranslator;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * What one connection's decoders need to know about its handshake. Some
+ * messages can't be decoded without the negotiated suite, ServerKeyExchange
+ * and ClientKeyExchange depend on the key exchange. Each record framer has
+ * its own context, so handshakes on different connections don't share any
+ * decoding state.
+ *
+ * ServerHello sets the suite as it is decoded, so the messages after it in
+ * the same record decode correctly.
+ *
+ * With a transcript set, each received message is added to it as it is
+ * decoded, straight from the record, so the message bytes are never kept.
+ * The peer may not send anything after the message that ends its flight,
+ * so decoding ahead of processing doesn't change the transcript order.
+ *
+ * A handshake message may span records (RFC 5246, section 6.2.1). The part
+ * received so far is kept here until the rest arrives.
+ */
+public class HandshakeContext {
+
+    /**
+     * The longest message that will be reassembled from several records.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 1 << 20;
+
+    private CipherSuiteDescriptor cipherSuite;
+
+    private SHA256Digest transcript;
+
+    /**
+     * The transcript as it was before the last Finished message was added.
+     */
+    private SHA256Digest finishedTranscript;
+
+    /**
+     * A message that started in an earlier record, header included. Sized
+     * for the whole message once the header is in.
+     */
+    private byte[] partialMessage;
+
+    private int partialLength;
+
+    /**
+     * @return The negotiated suite, or null before the server hello.
+     */
+    public CipherSuiteDescriptor getCipherSuite() {
+        return cipherSuite;
+    }
+
+    public void setCipherSuite(CipherSuiteDescriptor cipherSuite) {
+        this.cipherSuite = cipherSuite;
+    }
+
+    /**
+     * Add received handshake messages to the transcript. HelloRequest is
+     * never added (RFC 5246, section 7.4.1.1).
+     *
+     * @param transcript
+     */
+    public void setTranscript(SHA256Digest transcript) {
+        this.transcript = transcript;
+    }
+
+    /**
+     * Add a received message, header included, to the transcript.
+     *
+     * @param messageType
+     * @param encoded
+     * @param offset
+     * @param length
+     */
+    public void addToTranscript(byte messageType, byte[] encoded, int offset, int length) {
+        if (transcript == null || messageType == HandshakeMessageTypes.HELLO_REQUEST) {
+            return;
+        }
+        if (messageType == HandshakeMessageTypes.FINISHED) {
+            finishedTranscript = new SHA256Digest(transcript);
+        }
+        transcript.update(encoded, offset, length);
+    }
+
+    /**
+     * The transcript a received Finished message is verified against, which
+     * doesn't include the Finished message itself.
+     *
+     * @return Null if no Finished message has been received.
+     */
+    public SHA256Digest getFinishedTranscript() {
+        return finishedTranscript;
+    }
+
+    /**
+     * @return True if a message started in an earlier record is incomplete.
+     */
+    public boolean hasPartialMessage() {
+        return partialMessage != null;
+    }
+
+    /**
+     * Add as much of the buffer as the message in progress still needs,
+     * starting a new message if there is none.
+     *
+     * @param buffer
+     * @return The whole message, header included, once it is complete. Null if
+     *         the buffer ran out first.
+     * @throws IOException If the message is longer than MAX_MESSAGE_LENGTH.
+     */
+    public EncodingByteBuffer assembleMessage(EncodingByteBuffer buffer) throws IOException {
+
+        if (partialMessage == null) {
+            partialMessage = new byte[4];
+            partialLength = 0;
+        }
+        if (partialMessage.length == 4) {
+            partialLength += take(buffer);
+            if (partialLength < 4) {
+                return null;
+            }
+            int length = ((partialMessage[1] & 0xff) << 16) | ((partialMessage[2] & 0xff) << 8)
+                    | (partialMessage[3] & 0xff);
+            if (length > MAX_MESSAGE_LENGTH) {
+                throw new IOException("Handshake message too long: " + length);
+            }
+            partialMessage = Arrays.copyOf(partialMessage, 4 + length);
+        }
+        partialLength += take(buffer);
+        if (partialLength < partialMessage.length) {
+            return null;
+        }
+        EncodingByteBuffer message = EncodingByteBuffer.wrap(partialMessage);
+        partialMessage = null;
+        return message;
+    }
+
+    private int take(EncodingByteBuffer buffer) {
+        int count = Math.min(partialMessage.length - partialLength, buffer.remaining());
+        buffer.get(partialMessage, partialLength, count);
+        return count;
+    }
+
+    /**
+     * @return The negotiated key exchange, or null before the server hello.
+     */
+    public CipherSuiteTranslator.KeyExchangeAlgorithm getKeyExchangeAlgorithm() {
+        return cipherSuite != null ? cipherSuite.getKeyExchangeAlgorithm() : null;
+    }
+}
@@ -35,10 +35,12 @@ public class HandshakeMessageFactory {
     private static final Map<Byte, HandshakeBuilder<?>> handshakeBuilderMap = Stream.of( new Object[][] {
             { HandshakeMessageTypes.CLIENT_HELLO, new ClientHello.Builder() },
             { HandshakeMessageTypes.SERVER_HELLO, new ServerHello.Builder() },
+            { HandshakeMessageTypes.NEW_SESSION_TICKET, new NewSessionTicket.Builder() },
             { HandshakeMessageTypes.CERTIFICATE, new ServerCertificate.Builder() },
             { HandshakeMessageTypes.SERVER_KEY_EXCHANGE, new ServerKeyExchange.Builder() },
             { HandshakeMessageTypes.SERVER_HELLO_DONE, new ServerHelloDone.Builder() },
-            { HandshakeMessageTypes.CLIENT_KEY_EXCHANGE, new ClientKeyExchange.Builder() }
+            { HandshakeMessageTypes.CLIENT_KEY_EXCHANGE, new ClientKeyExchange.Builder() },
+            { HandshakeMessageTypes.FINISHED, new Finished.Builder() }
     }).collect(Collectors.toMap(e -> (Byte) e[0], e -> (HandshakeBuilder<?>) e[1]));
 
     public static <T extends TlsHandshakeMessage> T getHandshake(byte handshakeType) throws InvalidHandshakeMessageType {
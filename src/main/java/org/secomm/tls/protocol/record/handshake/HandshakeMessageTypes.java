@@ -27,6 +27,7 @@ public class HandshakeMessageTypes {
     public static final byte HELLO_REQUEST = 0;
     public static final byte CLIENT_HELLO = 1;
     public static final byte SERVER_HELLO = 2;
+    public static final byte NEW_SESSION_TICKET = 4;
     public static final byte CERTIFICATE = 11;
     public static final byte SERVER_KEY_EXCHANGE  = 12;
     public static final byte CERTIFICATE_REQUEST = 13;
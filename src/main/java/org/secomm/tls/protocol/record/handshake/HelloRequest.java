@@ -43,8 +43,12 @@ public class HelloRequest implements TlsHandshakeMessage {
     }
 
     @Override
-    public byte[] encode() {
-        return new byte[0];
+    public int encodedLength() {
+        return 0;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
     }
 
     @Override
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.protocol.record.handshake;
+
+import org.secomm.tls.protocol.record.extensions.InvalidExtensionTypeException;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.io.IOException;
+
+/**
+ * RFC 5077 session ticket. The ticket is opaque to the client. It is sent back
+ * in the SessionTicket extension to resume the session.
+ */
+public class NewSessionTicket implements TlsHandshakeMessage {
+
+    public static final class Builder implements HandshakeMessageFactory.HandshakeBuilder<NewSessionTicket> {
+        public NewSessionTicket build() {
+            return new NewSessionTicket();
+        }
+    }
+
+    /**
+     * Seconds. Zero means the server did not say.
+     */
+    private long ticketLifetimeHint;
+
+    private byte[] ticket;
+
+    public NewSessionTicket() {
+        ticket = new byte[0];
+    }
+
+    @Override
+    public int encodedLength() {
+        return ticket.length + 6;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
+        buffer.putInt((int) ticketLifetimeHint);
+        buffer.putShort((short) ticket.length);
+        buffer.put(ticket);
+    }
+
+    @Override
+    public void decode(EncodingByteBuffer handshakeBuffer) throws IOException, InvalidExtensionTypeException {
+        ticketLifetimeHint = handshakeBuffer.getInt() & 0xffffffffL;
+        ticket = new byte[handshakeBuffer.getShort() & 0xffff];
+        handshakeBuffer.get(ticket);
+    }
+
+    @Override
+    public byte getHandshakeMessageType() {
+        return HandshakeMessageTypes.NEW_SESSION_TICKET;
+    }
+
+    public long getTicketLifetimeHint() {
+        return ticketLifetimeHint;
+    }
+
+    public void setTicketLifetimeHint(long ticketLifetimeHint) {
+        this.ticketLifetimeHint = ticketLifetimeHint;
+    }
+
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    public void setTicket(byte[] ticket) {
+        this.ticket = ticket;
+    }
+}
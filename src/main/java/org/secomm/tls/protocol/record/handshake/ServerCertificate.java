@@ -22,13 +22,12 @@
 
 package org.secomm.tls.protocol.record.handshake;
 
+import org.secomm.tls.crypto.CertificateCache;
 import org.secomm.tls.protocol.record.extensions.InvalidExtensionTypeException;
 import org.secomm.tls.util.EncodingByteBuffer;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
@@ -43,19 +42,33 @@ public class ServerCertificate implements TlsHandshakeMessage {
 
     private int chainLength;
 
+    /**
+     * Certificates already looked up, by index. Filled in on demand.
+     */
+    private X509Certificate[] certificates;
+
+    private CertificateCache certificateCache = CertificateCache.getDefault();
+
     public ServerCertificate() {
         this.certificateChain = new ArrayList<>();
     }
 
     @Override
-    public byte[] encode() {
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(chainLength + 3);
-        buffer.put24Bit(chainLength);
+    public int encodedLength() {
+        chainLength = 0;
+        for (byte[] certBytes : certificateChain) {
+            chainLength += certBytes.length + 3;
+        }
+        return chainLength + 3;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
+        buffer.put24Bit(encodedLength() - 3);
         for (byte[] certBytes : certificateChain) {
             buffer.put24Bit(certBytes.length);
             buffer.put(certBytes);
         }
-        return buffer.toArray();
     }
 
     @Override
@@ -69,6 +82,7 @@ public class ServerCertificate implements TlsHandshakeMessage {
             certificateChain.add(certBytes);
             tempLength -= certLength;
         }
+        certificates = null;
     }
 
     @Override
@@ -77,16 +91,34 @@ public class ServerCertificate implements TlsHandshakeMessage {
     }
 
     /**
-     * Decode and return the certificate at the given index. May throw index out of
-     * bounds exception.
+     * Return the certificate at the given index. Each certificate is decoded
+     * the first time it is asked for, and only if the certificate cache does
+     * not already have it. May throw index out of bounds exception.
      *
      * @param index
      * @return
      * @throws CertificateException
      */
     public X509Certificate getCertificate(int index) throws CertificateException {
-        CertificateFactory factory = CertificateFactory.getInstance("X.509");
-        ByteArrayInputStream in = new ByteArrayInputStream(certificateChain.get(index));
-        return (X509Certificate) factory.generateCertificate(in);
+        if (certificates == null || certificates.length != certificateChain.size()) {
+            certificates = new X509Certificate[certificateChain.size()];
+        }
+        if (certificates[index] == null) {
+            certificates[index] = certificateCache.getCertificate(certificateChain.get(index));
+        }
+        return certificates[index];
+    }
+
+    public int getChainLength() {
+        return certificateChain.size();
+    }
+
+    /**
+     * The cache certificates are looked up in. Defaults to the shared cache.
+     *
+     * @param certificateCache
+     */
+    public void setCertificateCache(CertificateCache certificateCache) {
+        this.certificateCache = certificateCache;
     }
 }
@@ -22,6 +22,7 @@
 
 package org.secomm.tls.protocol.record.handshake;
 
+import org.secomm.tls.crypto.CipherSuiteTranslator;
 import org.secomm.tls.protocol.record.RecordLayer;
 import org.secomm.tls.protocol.record.extensions.ExtensionFactory;
 import org.secomm.tls.protocol.record.extensions.InvalidExtensionTypeException;
@@ -58,8 +59,36 @@ public class ServerHello implements TlsHandshakeMessage {
     private List<TlsExtension> tlsExtensions;
 
     @Override
-    public byte[] encode() {
-        return new byte[0];
+    public int encodedLength() {
+        int length = 2 + SERVER_RANDOM_LENGTH + 1 + sessionId.length + 2 + 1;
+        if (tlsExtensions != null) {
+            length += 2;
+            for (TlsExtension tlsExtension : tlsExtensions) {
+                length += tlsExtension.encodedLength();
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
+        buffer.put(version.majorVersion);
+        buffer.put(version.minorVersion);
+        buffer.put(serverRandom);
+        buffer.put((byte) sessionId.length);
+        buffer.put(sessionId);
+        buffer.putShort(cipherSuite);
+        buffer.put(compressionMethod);
+        if (tlsExtensions != null) {
+            extensionsLength = 0;
+            for (TlsExtension tlsExtension : tlsExtensions) {
+                extensionsLength += tlsExtension.encodedLength();
+            }
+            buffer.putShort(extensionsLength);
+            for (TlsExtension tlsExtension : tlsExtensions) {
+                tlsExtension.encodeInto(buffer);
+            }
+        }
     }
 
     @Override
@@ -101,6 +130,16 @@ public class ServerHello implements TlsHandshakeMessage {
         }
     }
 
+    /**
+     * The rest of the server's flight is decoded with the suite chosen here.
+     */
+    @Override
+    public void decode(EncodingByteBuffer buffer, HandshakeContext context)
+            throws IOException, InvalidExtensionTypeException {
+        decode(buffer);
+        context.setCipherSuite(CipherSuiteTranslator.getDescriptor(cipherSuite));
+    }
+
     @Override
     public byte getHandshakeMessageType() {
         return HandshakeMessageTypes.SERVER_HELLO;
@@ -113,4 +152,15 @@ public class ServerHello implements TlsHandshakeMessage {
     public short getCipherSuite() {
         return cipherSuite;
     }
+
+    public byte[] getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return The extensions, or null if the server sent none.
+     */
+    public List<TlsExtension> getExtensions() {
+        return tlsExtensions;
+    }
 }
@@ -36,8 +36,12 @@ public class ServerHelloDone implements TlsHandshakeMessage {
     }
     
     @Override
-    public byte[] encode() {
-        return new byte[0];
+    public int encodedLength() {
+        return 0;
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
     }
 
     @Override
@@ -45,16 +45,82 @@ public class ServerKeyExchange implements TlsHandshakeMessage {
         }
     }
 
+    /**
+     * RFC 8422 section 5.4. Only named curves are supported.
+     */
+    public static final class ServerECDHParameters {
+        public static final byte NAMED_CURVE = 3;
+        public byte curveType;
+        public short namedCurve;
+        public byte[] point;
+        public ServerECDHParameters(byte curveType, short namedCurve, byte[] point) {
+            this.curveType = curveType;
+            this.namedCurve = namedCurve;
+            this.point = point;
+        }
+
+        public int encodedLength() {
+            return point.length + 4;
+        }
+
+        /**
+         * This is also the signed form of the parameters.
+         *
+         * @param buffer
+         */
+        public void encodeInto(EncodingByteBuffer buffer) {
+            buffer.put(curveType);
+            buffer.putShort(namedCurve);
+            buffer.put((byte) point.length);
+            buffer.put(point);
+        }
+    }
+
+    /**
+     * The encoding depends on the key exchange.
+     */
+    private CipherSuiteTranslator.KeyExchangeAlgorithm keyExchangeAlgorithm;
+
     private ServerDHParameters serverDHParameters;
 
+    private ServerECDHParameters serverECDHParameters;
+
     private SignatureAndHashAlgorithm signatureAndHashAlgorithm;
 
     private byte[] signature;
 
+    public ServerKeyExchange() {
+    }
+
+    public ServerKeyExchange(CipherSuiteTranslator.KeyExchangeAlgorithm keyExchangeAlgorithm) {
+        this.keyExchangeAlgorithm = keyExchangeAlgorithm;
+    }
+
     @Override
-    public byte[] encode() {
-        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(2048);
-        switch(CipherSuiteTranslator.getKeyExchangeAlgorithm()) {
+    public int encodedLength() {
+        if (keyExchangeAlgorithm == null) {
+            return 0;
+        }
+        switch(keyExchangeAlgorithm) {
+            case DH_ANON:
+                return dhParametersLength();
+            case DHE_DSS:
+            case DHE_RSA:
+                return dhParametersLength() + signature.length + 4;
+            case ECDHE_RSA:
+            case ECDHE_ECDSA:
+                return serverECDHParameters.encodedLength() + signature.length + 4;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public void encodeInto(EncodingByteBuffer buffer) {
+        if (keyExchangeAlgorithm == null) {
+            return;
+        }
+        switch(keyExchangeAlgorithm) {
             case DH_ANON:
                 encodeDHParameters(buffer);
                 break;
@@ -64,28 +130,58 @@ public class ServerKeyExchange implements TlsHandshakeMessage {
                 buffer.putShort(signatureAndHashAlgorithm.getAlgorithm());
                 buffer.putShort((short) signature.length);
                 buffer.put(signature);
+                break;
+            case ECDHE_RSA:
+            case ECDHE_ECDSA:
+                serverECDHParameters.encodeInto(buffer);
+                buffer.putShort(signatureAndHashAlgorithm.getAlgorithm());
+                buffer.putShort((short) signature.length);
+                buffer.put(signature);
+                break;
             case DH_DSS:
             case DH_RSA:
                 break;
         }
-        return buffer.toArray();
     }
 
+    /**
+     * Decode with the key exchange from the context.
+     *
+     * @param handshakeBuffer
+     * @param context
+     */
+    @Override
+    public void decode(EncodingByteBuffer handshakeBuffer, HandshakeContext context) {
+        keyExchangeAlgorithm = context.getKeyExchangeAlgorithm();
+        decode(handshakeBuffer);
+    }
+
+    /**
+     * Decode with the key exchange already set. Without one there is nothing
+     * to decode.
+     *
+     * @param handshakeBuffer
+     */
     @Override
     public void decode(EncodingByteBuffer handshakeBuffer) {
 
-        switch (CipherSuiteTranslator.getKeyExchangeAlgorithm()) {
+        if (keyExchangeAlgorithm == null) {
+            return;
+        }
+        switch (keyExchangeAlgorithm) {
             case DH_ANON:
                 decodeDHParameters(handshakeBuffer);
                 break;
             case DHE_DSS:
             case DHE_RSA:
                 decodeDHParameters(handshakeBuffer);
-                short algorithm = handshakeBuffer.getShort();
-                signatureAndHashAlgorithm = new SignatureAndHashAlgorithm(algorithm);
-                short sigLength = handshakeBuffer.getShort();
-                signature = new byte[sigLength];
-                handshakeBuffer.get(signature);
+                decodeSignature(handshakeBuffer);
+                break;
+            case ECDHE_RSA:
+            case ECDHE_ECDSA:
+                decodeECDHParameters(handshakeBuffer);
+                decodeSignature(handshakeBuffer);
+                break;
             case RSA:
             case DH_DSS:
             case DH_RSA:
@@ -106,6 +202,26 @@ public class ServerKeyExchange implements TlsHandshakeMessage {
         serverDHParameters = new ServerDHParameters(dh_p, dh_g, dh_Ys);
     }
 
+    private void decodeECDHParameters(EncodingByteBuffer buffer) {
+        byte curveType = buffer.get();
+        short namedCurve = buffer.getShort();
+        byte[] point = new byte[buffer.get() & 0xff];
+        buffer.get(point);
+        serverECDHParameters = new ServerECDHParameters(curveType, namedCurve, point);
+    }
+
+    private void decodeSignature(EncodingByteBuffer buffer) {
+        short algorithm = buffer.getShort();
+        signatureAndHashAlgorithm = new SignatureAndHashAlgorithm(algorithm);
+        signature = new byte[buffer.getShort() & 0xffff];
+        buffer.get(signature);
+    }
+
+    private int dhParametersLength() {
+        return serverDHParameters.dh_p.length + serverDHParameters.dh_g.length
+                + serverDHParameters.dh_Ys.length + 6;
+    }
+
     void encodeDHParameters(EncodingByteBuffer buffer) {
         buffer.putShort((short) serverDHParameters.dh_p.length);
         buffer.put(serverDHParameters.dh_p);
@@ -120,10 +236,22 @@ public class ServerKeyExchange implements TlsHandshakeMessage {
         return HandshakeMessageTypes.SERVER_KEY_EXCHANGE;
     }
 
+    public CipherSuiteTranslator.KeyExchangeAlgorithm getKeyExchangeAlgorithm() {
+        return keyExchangeAlgorithm;
+    }
+
+    public void setKeyExchangeAlgorithm(CipherSuiteTranslator.KeyExchangeAlgorithm keyExchangeAlgorithm) {
+        this.keyExchangeAlgorithm = keyExchangeAlgorithm;
+    }
+
     public ServerDHParameters getServerDHParameters() {
         return serverDHParameters;
     }
 
+    public ServerECDHParameters getServerECDHParameters() {
+        return serverECDHParameters;
+    }
+
     public byte[] getSignature() {
         return signature;
     }
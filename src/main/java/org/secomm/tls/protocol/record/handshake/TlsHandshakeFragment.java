@@ -24,9 +24,15 @@ package org.secomm.tls.protocol.record.handshake;
 
 import org.secomm.tls.protocol.record.TlsFragment;
 
+import java.util.List;
+
 public interface TlsHandshakeFragment extends TlsFragment {
 
     <T extends TlsHandshakeMessage> T getHandshakeMessage();
 
+    List<TlsHandshakeMessage> getHandshakeMessages();
+
     void setHandshakeMessage(TlsHandshakeMessage message);
+
+    void addHandshakeMessage(TlsHandshakeMessage message);
 }
@@ -32,9 +32,42 @@ import java.nio.ByteBuffer;
 
 public interface TlsHandshakeMessage {
 
-    byte[] encode();
+    /**
+     * The exact number of bytes encodeInto will write, not counting the
+     * handshake header.
+     *
+     * @return
+     */
+    int encodedLength();
+
+    /**
+     * Write the message body at the buffer's current position.
+     *
+     * @param buffer
+     */
+    void encodeInto(EncodingByteBuffer buffer);
+
+    default byte[] encode() {
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(encodedLength());
+        encodeInto(buffer);
+        return buffer.array();
+    }
 
     void decode(EncodingByteBuffer handshakeBuffer) throws IOException, InvalidExtensionTypeException;
 
+    /**
+     * Decode a message received on a connection. Messages that depend on the
+     * negotiated suite take it from the context.
+     *
+     * @param handshakeBuffer
+     * @param context
+     * @throws IOException
+     * @throws InvalidExtensionTypeException
+     */
+    default void decode(EncodingByteBuffer handshakeBuffer, HandshakeContext context)
+            throws IOException, InvalidExtensionTypeException {
+        decode(handshakeBuffer);
+    }
+
     byte getHandshakeMessageType();
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * Thread-local pool of byte arrays in power of two size classes. Arrays are
+ * handed out by acquire and come back through release. An array released on a
+ * different thread simply joins that thread's pool. Nothing is shared, so no
+ * locking is needed.
+ *
+ * Arrays larger than the largest size class are allocated normally and are
+ * dropped on release.
+ */
+public final class BufferPool {
+
+    public static final int MIN_SIZE = 256;
+
+    /**
+     * Large enough for a full TLSCiphertext record.
+     */
+    public static final int MAX_SIZE = 32768;
+
+    /**
+     * Arrays kept per size class per thread.
+     */
+    public static final int CLASS_DEPTH = 8;
+
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE)
+            - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+    private static final ThreadLocal<ArrayDeque<byte[]>[]> pools = ThreadLocal.withInitial(() -> {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<byte[]>[] classes = new ArrayDeque[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; ++i) {
+            classes[i] = new ArrayDeque<>(CLASS_DEPTH);
+        }
+        return classes;
+    });
+
+    private BufferPool() {
+    }
+
+    /**
+     * Get an array of at least the given size. The contents are not cleared.
+     *
+     * @param minimumSize
+     * @return
+     */
+    public static byte[] acquire(int minimumSize) {
+        if (minimumSize > MAX_SIZE) {
+            return new byte[minimumSize];
+        }
+        int sizeClass = sizeClass(minimumSize);
+        byte[] array = pools.get()[sizeClass].pollFirst();
+        return array != null ? array : new byte[MIN_SIZE << sizeClass];
+    }
+
+    /**
+     * Return an array to the pool. Arrays that did not come from acquire are
+     * ignored unless their length happens to be a size class.
+     *
+     * @param array
+     */
+    public static void release(byte[] array) {
+        int length = array.length;
+        if (length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1) {
+            return;
+        }
+        ArrayDeque<byte[]> pool = pools.get()[sizeClass(length)];
+        if (pool.size() < CLASS_DEPTH) {
+            pool.offerFirst(array);
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+}
@@ -24,24 +24,89 @@ package org.secomm.tls.util;
 
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+/**
+ * Big endian codec buffer. There are three kinds:
+ *
+ * Fixed buffers from allocate have exactly the requested capacity.
+ *
+ * Pooled buffers from pooled take their backing array from the thread-local
+ * BufferPool and grow on demand, so encoders do not have to guess a capacity.
+ * Call release when the buffer is no longer needed to return the array.
+ *
+ * Views from wrap and slice are read-only windows on an existing array. No
+ * bytes are copied.
+ */
 public class EncodingByteBuffer {
 
     private byte[] buffer;
 
+    /**
+     * Start of this buffer's window in the backing array. Non-zero only for views.
+     */
+    int offset;
+
     int position;
 
     int limit;
 
     boolean immutable;
 
+    /**
+     * True if the backing array came from the pool.
+     */
+    boolean pooled;
+
     public static EncodingByteBuffer allocate(int size) {
         return new EncodingByteBuffer(size);
     }
 
+    /**
+     * A growable buffer backed by a pooled array.
+     *
+     * @return
+     */
+    public static EncodingByteBuffer pooled() {
+        return pooled(BufferPool.MIN_SIZE);
+    }
+
+    /**
+     * A growable buffer backed by a pooled array of at least sizeHint bytes.
+     *
+     * @param sizeHint
+     * @return
+     */
+    public static EncodingByteBuffer pooled(int sizeHint) {
+        return new EncodingByteBuffer(BufferPool.acquire(sizeHint), true);
+    }
+
+    /**
+     * Create a read-only view of an array. Nothing is copied, so the caller must
+     * not modify the array while the view is in use.
+     *
+     * @param bytes
+     * @return
+     */
     public static EncodingByteBuffer wrap(byte[] bytes) {
-        return new EncodingByteBuffer(bytes);
+        return new EncodingByteBuffer(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Create a read-only view of a region of an array. Nothing is copied, so the
+     * caller must not modify the region while the view is in use.
+     *
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static EncodingByteBuffer wrap(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new EncodingByteBuffer(bytes, offset, length);
     }
 
     private EncodingByteBuffer(int size) {
@@ -51,15 +116,39 @@ public class EncodingByteBuffer {
         immutable = false;
     }
 
-    private EncodingByteBuffer(byte[] buffer) {
-        this.buffer = Arrays.copyOf(buffer, buffer.length);
+    private EncodingByteBuffer(byte[] buffer, boolean pooled) {
+        this.buffer = buffer;
+        this.pooled = pooled;
         limit = buffer.length;
         position = 0;
+        immutable = false;
+    }
+
+    private EncodingByteBuffer(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        limit = offset + length;
+        position = offset;
         immutable = true;
     }
 
+    /**
+     * Returns a read-only view of the next length bytes and advances past them.
+     *
+     * @param length
+     * @return
+     */
+    public EncodingByteBuffer slice(int length) {
+        if (length < 0 || position + length > limit) {
+            throw new BufferUnderflowException();
+        }
+        EncodingByteBuffer slice = new EncodingByteBuffer(buffer, position, length);
+        position += length;
+        return slice;
+    }
+
     public byte get() {
-        if (position > limit) {
+        if (position >= limit) {
             throw new BufferUnderflowException();
         }
         return buffer[position++];
@@ -73,6 +162,14 @@ public class EncodingByteBuffer {
         position += out.length;
     }
 
+    public void get(byte[] out, int offset, int length) {
+        if (position + length > limit) {
+            throw new BufferUnderflowException();
+        }
+        System.arraycopy(buffer, position, out, offset, length);
+        position += length;
+    }
+
     public short getShort() {
         if (position + 2 > limit) {
             throw new BufferUnderflowException();
@@ -98,34 +195,34 @@ public class EncodingByteBuffer {
         return upper | middle | lower;
     }
 
-    public void put(byte b) {
-        if (position > limit) {
-            throw new BufferOverflowException();
+    public int getInt() {
+        if (position + 4 > limit) {
+            throw new BufferUnderflowException();
         }
-        if (immutable) {
-            throw new RuntimeException("Trying to modify an immutable buffer");
+        int result = 0;
+        for (int i = 0; i < 4; ++i) {
+            result = (result << 8) | (buffer[position++] & 0xff);
         }
+        return result;
+    }
+
+    public void put(byte b) {
+        ensureWritable(1);
         buffer[position++] = b;
     }
 
     public void put(byte[] bytes) {
-        if (bytes.length + position > limit) {
-            throw new BufferOverflowException();
-        }
-        if (immutable) {
-            throw new RuntimeException("Trying to modify an immutable buffer");
-        }
-        System.arraycopy(bytes, 0, buffer, position, bytes.length);
-        position += bytes.length;
+        put(bytes, 0, bytes.length);
+    }
+
+    public void put(byte[] bytes, int from, int length) {
+        ensureWritable(length);
+        System.arraycopy(bytes, from, buffer, position, length);
+        position += length;
     }
 
     public void putShort(short s) {
-        if (position + 2 > limit) {
-            throw new BufferOverflowException();
-        }
-        if (immutable) {
-            throw new RuntimeException("Trying to modify an immutable buffer");
-        }
+        ensureWritable(2);
         int upper = (s >> 8) & 0xff;
         int lower = s & 0xff;
         // Network order (Big endian)
@@ -133,27 +230,117 @@ public class EncodingByteBuffer {
         buffer[position++] = (byte) lower;
     }
 
-    public void put24Bit(int i24) {
-        if (position + 3 > limit) {
-            throw new BufferOverflowException();
-        }
+    /**
+     * Absolute put, used to fill in a length prefix after the data it covers
+     * has been written.
+     *
+     * @param index Relative to the start of the buffer, as returned by position().
+     * @param s
+     */
+    public void putShort(int index, short s) {
         if (immutable) {
             throw new RuntimeException("Trying to modify an immutable buffer");
         }
+        if (index < 0 || offset + index + 2 > position) {
+            throw new IndexOutOfBoundsException();
+        }
+        buffer[offset + index] = (byte) ((s >> 8) & 0xff);
+        buffer[offset + index + 1] = (byte) (s & 0xff);
+    }
+
+    public void put24Bit(int i24) {
+        ensureWritable(3);
         buffer[position++] = (byte) ((i24 >> 16) & 0xff);
         buffer[position++] = (byte) ((i24 >> 8) & 0xff);
         buffer[position++] = (byte) (i24 & 0xff);
     }
 
+    public void putInt(int i) {
+        ensureWritable(4);
+        buffer[position++] = (byte) ((i >> 24) & 0xff);
+        buffer[position++] = (byte) ((i >> 16) & 0xff);
+        buffer[position++] = (byte) ((i >> 8) & 0xff);
+        buffer[position++] = (byte) (i & 0xff);
+    }
+
     public void reset() {
-        position = 0;
+        position = offset;
+    }
+
+    /**
+     * The number of bytes written or read so far.
+     *
+     * @return
+     */
+    public int position() {
+        return position - offset;
     }
 
     public byte[] toArray() {
-        return Arrays.copyOf(buffer, position);
+        return Arrays.copyOfRange(buffer, offset, position);
+    }
+
+    /**
+     * The backing array itself, not a copy. Intended for buffers from allocate
+     * that were sized exactly and completely filled.
+     *
+     * @return
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Where this buffer's window starts in array(). Non-zero only for views.
+     *
+     * @return
+     */
+    public int arrayOffset() {
+        return offset;
+    }
+
+    /**
+     * Copy everything written so far into a NIO buffer.
+     *
+     * @param out
+     */
+    public void writeTo(ByteBuffer out) {
+        out.put(buffer, offset, position - offset);
+    }
+
+    /**
+     * Return the backing array to the pool. The buffer can't be used afterwards.
+     * Does nothing for buffers that aren't pooled.
+     */
+    public void release() {
+        if (pooled && buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+            position = limit = 0;
+        }
     }
 
     public boolean hasRemaining() {
         return position < limit;
     }
+
+    public int remaining() {
+        return limit - position;
+    }
+
+    private void ensureWritable(int count) {
+        if (immutable) {
+            throw new RuntimeException("Trying to modify an immutable buffer");
+        }
+        if (position + count > limit) {
+            if (!pooled) {
+                throw new BufferOverflowException();
+            }
+            byte[] grown = BufferPool.acquire(Math.max(buffer.length * 2, position + count));
+            System.arraycopy(buffer, 0, grown, 0, position);
+            BufferPool.release(buffer);
+            buffer = grown;
+            limit = grown.length;
+        }
+    }
 }
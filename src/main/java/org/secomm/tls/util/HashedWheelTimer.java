@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coarse timer for large numbers of timeouts that are nearly always
+ * cancelled, such as one per outstanding request. Scheduling and cancelling
+ * are constant time. Cancelling never locks, and scheduling only locks the
+ * timer to start its thread, the first time.
+ *
+ * Timeouts are kept in a ring of buckets, one per tick. A single daemon
+ * thread wakes every tick, moves newly scheduled timeouts into their
+ * buckets and runs the timeouts in the current bucket that are due on this
+ * turn of the wheel. A timeout runs up to one tick late. Cancelled timeouts
+ * are dropped when their bucket comes round.
+ *
+ * Tasks run on the timer thread, so they should only hand work off or
+ * complete a future. A task that throws does not stop the timer. The
+ * exception is kept by its timeout, see Timeout.getFailure.
+ */
+public class HashedWheelTimer {
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final HashedWheelTimer defaultTimer =
+            new HashedWheelTimer(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+
+    private static final int PENDING = 0;
+
+    private static final int CANCELLED = 1;
+
+    private static final int EXPIRED = 2;
+
+    public static final class Timeout {
+
+        private final Runnable task;
+
+        /**
+         * Nanoseconds after the timer started.
+         */
+        private final long deadline;
+
+        private final AtomicInteger state;
+
+        /**
+         * Turns of the wheel left before the timeout is due. Only the timer
+         * thread uses it.
+         */
+        private long remainingRounds;
+
+        private volatile RuntimeException failure;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.state = new AtomicInteger(PENDING);
+        }
+
+        /**
+         * @return True if the task will not run. False if it has already run,
+         *         or is running.
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        /**
+         * @return What the task threw when it ran, or null.
+         */
+        public RuntimeException getFailure() {
+            return failure;
+        }
+    }
+
+    private final long tickNanos;
+
+    private final List<Timeout>[] wheel;
+
+    private final int mask;
+
+    private final Queue<Timeout> scheduled;
+
+    private final long startTime;
+
+    private volatile Thread worker;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param tick The timer's resolution.
+     * @param unit
+     * @param wheelSize The number of buckets, rounded up to a power of two.
+     */
+    public HashedWheelTimer(long tick, TimeUnit unit, int wheelSize) {
+        if (tick <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+        this.tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<Timeout>[] buckets = new List[size];
+        for (int i = 0; i < size; ++i) {
+            buckets[i] = new ArrayList<>();
+        }
+        this.wheel = buckets;
+        this.mask = size - 1;
+        this.scheduled = new ConcurrentLinkedQueue<>();
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * The timer shared by every conversation that is not given its own.
+     *
+     * @return
+     */
+    public static HashedWheelTimer getDefault() {
+        return defaultTimer;
+    }
+
+    /**
+     * Run the task once the delay has passed, unless the timeout is cancelled
+     * first. The timer thread is started by the first call.
+     *
+     * @param task
+     * @param delay
+     * @param unit
+     * @return The handle to cancel the timeout with.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) {
+            throw new IllegalStateException("Timer is stopped");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        scheduled.add(timeout);
+        if (worker == null) {
+            start();
+        }
+        return timeout;
+    }
+
+    /**
+     * Stop the timer thread. Timeouts that have not run never will.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    private synchronized void start() {
+        if (worker == null && !stopped) {
+            worker = new Thread(this::run, "tls-wheel-timer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void run() {
+
+        long tick = 0;
+        while (!stopped) {
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    // Only stop() interrupts.
+                    return;
+                }
+            }
+            transferScheduled(tick);
+            expire(wheel[(int) (tick & mask)]);
+            ++tick;
+        }
+    }
+
+    private void transferScheduled(long tick) {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            // Already due timeouts go in the current bucket.
+            long due = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.isCancelled()) {
+                it.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                it.remove();
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        // One bad task must not stop the timer.
+                        timeout.failure = e;
+                    }
+                }
+            } else {
+                --timeout.remainingRounds;
+            }
+        }
+    }
+
+}
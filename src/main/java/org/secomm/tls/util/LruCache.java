@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded map with least recently used eviction and a time to live. When the
+ * cache is full, adding an entry drops the one that was used longest ago.
+ * An entry older than the time to live is dropped the next time it is looked
+ * up.
+ *
+ * Every operation is a constant time map update under one lock. That is
+ * cheap next to anything worth caching here.
+ */
+public class LruCache<K, V> {
+
+    private static final class Timed<V> {
+        final V value;
+        final long expires;
+        Timed(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxEntries;
+
+    private final long timeToLive;
+
+    private final LongSupplier clock;
+
+    private final LinkedHashMap<K, Timed<V>> entries;
+
+    /**
+     * @param maxEntries
+     * @param timeToLive Milliseconds.
+     */
+    public LruCache(int maxEntries, long timeToLive) {
+        this(maxEntries, timeToLive, System::currentTimeMillis);
+    }
+
+    /**
+     * @param maxEntries
+     * @param timeToLive In the units of the clock.
+     * @param clock
+     */
+    public LruCache(int maxEntries, long timeToLive, LongSupplier clock) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.clock = clock;
+        // Access order, so iteration starts at the least recently used entry.
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Timed<V>> eldest) {
+                return size() > LruCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param key
+     * @return The value, or null if there is none or it has expired.
+     */
+    public synchronized V get(K key) {
+        Timed<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (clock.getAsLong() - entry.expires >= 0) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, timeToLive);
+    }
+
+    /**
+     * Add an entry that expires sooner or later than the default.
+     *
+     * @param key
+     * @param value
+     * @param timeToLive
+     */
+    public synchronized void put(K key, V value, long timeToLive) {
+        entries.put(key, new Timed<>(value, clock.getAsLong() + timeToLive));
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public synchronized V remove(K key) {
+        Timed<V> entry = entries.remove(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * @return The number of entries, including any that have expired but not
+     *         yet been looked up.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
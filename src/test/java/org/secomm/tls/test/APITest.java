@@ -65,7 +65,7 @@ public class APITest {
 
         context.setCipherSuites(CipherSuites.defaultCipherSuites);
         context.setExtensions(new ArrayList<>());   // No extensions
-        TlsPeer peer = context.connect("localhost", 5556);
+        TlsPeer peer = context.connect("localhost", 5556).get();
 //        TlsPeer peer = context.connect("www.example.com", 443);
 //        TlsPeer peer = context.connect("206.74.33.52", 9100);
         Assert.assertNotNull(peer);
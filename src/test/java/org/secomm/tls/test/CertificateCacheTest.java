@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.crypto.CertificateCache;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+import org.secomm.tls.protocol.record.handshake.ServerCertificate;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+public class CertificateCacheTest {
+
+    private static ServerCertificate decodeCertificate(CertificateCache cache) throws Exception {
+        byte[] message = ScriptedServer.findMessage(ScriptedServer.loadFlight("rsa-aes128-gcm-server-hello.bin"),
+                HandshakeMessageTypes.CERTIFICATE);
+        ServerCertificate serverCertificate = new ServerCertificate();
+        serverCertificate.decode(EncodingByteBuffer.wrap(message, 4, message.length - 4));
+        serverCertificate.setCertificateCache(cache);
+        return serverCertificate;
+    }
+
+    @Test
+    public void testCachedChain() throws Exception {
+
+        CertificateCache cache = new CertificateCache(4, CertificateCache.DEFAULT_TIME_TO_LIVE);
+        ServerCertificate first = decodeCertificate(cache);
+        Assert.assertEquals(0, cache.size());
+        X509Certificate certificate = first.getCertificate(0);
+        Assert.assertSame(certificate, first.getCertificate(0));
+        // Only the certificate that was asked for has been decoded.
+        Assert.assertEquals(1, cache.size());
+
+        // The same chain from another handshake is not decoded again.
+        ServerCertificate second = decodeCertificate(cache);
+        Assert.assertSame(certificate, second.getCertificate(0));
+        Assert.assertSame(certificate.getPublicKey(), second.getCertificate(0).getPublicKey());
+        Assert.assertEquals(1, cache.size());
+        for (int i = 1; i < second.getChainLength(); ++i) {
+            Assert.assertNotSame(certificate, second.getCertificate(i));
+        }
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(certificate, decodeCertificate(cache).getCertificate(0));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test(expected = CertificateException.class)
+    public void testInvalidEncoding() throws Exception {
+        new CertificateCache().getCertificate(new byte[] { 0x30, 0x03, 0x02, 0x01, 0x01 });
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.crypto.CertificateValidator;
+import org.secomm.tls.net.LoopbackConnectionManager;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.ClientHandshake;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.HandshakeException;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.record.AlertFragment;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.extensions.NamedGroups;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CertificateValidatorTest {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static X509Certificate serverCertificate() throws Exception {
+        return ScriptedServer.serverCertificate();
+    }
+
+    /**
+     * An anchor with the server's name and someone else's key.
+     */
+    private static TrustAnchor impostor(X509Certificate certificate) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048, random);
+        return new TrustAnchor(certificate.getIssuerX500Principal(), generator.generateKeyPair().getPublic(), null);
+    }
+
+    @Test
+    public void testVerifiedChainCache() throws Exception {
+
+        X509Certificate certificate = serverCertificate();
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        CertificateValidator validator = new CertificateValidator(
+                Set.of(new TrustAnchor(certificate, null)), 4, now::get);
+        validator.validate(List.of(certificate));
+        Assert.assertEquals(1, validator.verifiedChainCount());
+        validator.validate(List.of(certificate));
+        Assert.assertEquals(1, validator.verifiedChainCount());
+
+        // The remembered result ends at notAfter, and the chain is checked again.
+        now.set(certificate.getNotAfter().getTime() + 1000);
+        try {
+            validator.validate(List.of(certificate));
+            Assert.fail("Expired certificate accepted");
+        } catch (CertificateExpiredException e) {
+            // Expected
+        }
+
+        CertificateValidator untrusted = new CertificateValidator(Set.of(impostor(certificate)));
+        for (int i = 0; i < 2; ++i) {
+            try {
+                untrusted.validate(List.of(certificate));
+                Assert.fail("Untrusted chain accepted");
+            } catch (CertificateException e) {
+                // Expected, and not remembered.
+                Assert.assertEquals(0, untrusted.verifiedChainCount());
+            }
+        }
+    }
+
+    @Test
+    public void testHostName() throws Exception {
+
+        X509Certificate certificate = serverCertificate();
+        CertificateValidator.checkHostName(certificate, "localhost");
+        CertificateValidator.checkHostName(certificate, "LocalHost.");
+        for (String hostName : new String[] { "example.com", "localhost.example.com", "127.0.0.1" }) {
+            try {
+                CertificateValidator.checkHostName(certificate, hostName);
+                Assert.fail("Certificate accepted for " + hostName);
+            } catch (CertificateException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testHandshakeValidation() throws Exception {
+
+        X509Certificate certificate = serverCertificate();
+        CertificateValidator trusted = new CertificateValidator(Set.of(new TrustAnchor(certificate, null)));
+        CompletableFuture<ConnectionState> handshake = startHandshake(trusted, "localhost").doHandshake();
+        Assert.assertNotNull(handshake.getNow(null));
+        Assert.assertEquals(1, trusted.verifiedChainCount());
+
+        // An untrusted chain, the wrong host and no validator at all are refused alike.
+        ClientHandshake[] refused = {
+                startHandshake(new CertificateValidator(Set.of(impostor(certificate))), "localhost"),
+                startHandshake(trusted, "example.com"),
+                startHandshake(null, "localhost")
+        };
+        for (ClientHandshake clientHandshake : refused) {
+            handshake = clientHandshake.doHandshake();
+            Assert.assertTrue(handshake.isCompletedExceptionally());
+            Assert.assertTrue(clientHandshake.getReason() instanceof CertificateException);
+            try {
+                handshake.get();
+                Assert.fail("Handshake should have failed");
+            } catch (ExecutionException e) {
+                Assert.assertEquals(AlertFragment.BAD_CERTIFICATE,
+                        ((HandshakeException) e.getCause()).getAlertDescription());
+            }
+        }
+    }
+
+    private static ClientHandshake startHandshake(CertificateValidator validator, String hostName) throws Exception {
+
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        ScriptedServer server = new ScriptedServer(client.getPeer());
+        server.respondTo(HandshakeMessageTypes.CLIENT_HELLO,
+                server.ecdheFlight(CipherSuites.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256, NamedGroups.x25519))
+                .respondTo(HandshakeMessageTypes.CLIENT_KEY_EXCHANGE, ScriptedServer.finishedFlight());
+        server.start();
+
+        ConnectionState connectionState = new ConnectionState(
+                new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random));
+        RecordLayer recordLayer = new RecordLayer(RecordLayer.TLS_1_2, connectionState, client);
+        ClientHandshake clientHandshake = new ClientHandshake(connectionState, recordLayer, random);
+        clientHandshake.setCipherSuites(List.of(CipherSuites.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256));
+        clientHandshake.setExtensions(new ArrayList<>());
+        clientHandshake.setCertificateValidator(validator);
+        clientHandshake.setHostName(hostName);
+        return clientHandshake;
+    }
+}
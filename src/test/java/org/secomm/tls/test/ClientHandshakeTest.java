@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.crypto.CipherSuiteTranslator;
+import org.secomm.tls.net.ConnectionManager;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.ClientHandshake;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.HandshakeException;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.AlertFragment;
+import org.secomm.tls.protocol.record.HandshakeFragment;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.TlsPlaintextRecord;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+import org.secomm.tls.protocol.record.handshake.ServerHelloDone;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.WritePendingException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class ClientHandshakeTest {
+
+    /**
+     * Completes reads inline from a canned server flight. A read with nothing
+     * left to deliver stays pending, like a quiet socket.
+     */
+    private static final class ScriptedConnection implements ConnectionManager {
+
+        private final ByteBuffer serverBytes;
+
+        final List<byte[]> written = new ArrayList<>();
+
+        boolean closed;
+
+        /**
+         * Writes after this many throw, like a channel that was shut down.
+         */
+        int writeLimit = Integer.MAX_VALUE;
+
+        ScriptedConnection(byte[] serverBytes) {
+            this.serverBytes = ByteBuffer.wrap(serverBytes);
+        }
+
+        @Override
+        public void read(ByteBuffer buffer, CompletionHandler<Integer, ConnectionManager> readHandler) {
+            if (serverBytes.hasRemaining()) {
+                int count = Math.min(buffer.remaining(), serverBytes.remaining());
+                ByteBuffer chunk = serverBytes.slice();
+                chunk.limit(count);
+                buffer.put(chunk);
+                serverBytes.position(serverBytes.position() + count);
+                readHandler.completed(count, this);
+            }
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, CompletionHandler<Integer, ConnectionManager> writeHandler) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            written.add(bytes);
+            writeHandler.completed(bytes.length, this);
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers, CompletionHandler<Long, ConnectionManager> writeHandler) {
+            if (written.size() >= writeLimit) {
+                throw new WritePendingException();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer.get());
+                }
+            }
+            written.add(out.toByteArray());
+            writeHandler.completed((long) out.size(), this);
+        }
+
+        @Override
+        public void read(int length, CompletionHandler<Integer, ConnectionManager> readHandler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Integer> read(ByteBuffer buffer) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ByteBuffer read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testServerAlert() throws Exception {
+
+        TlsPlaintextRecord alert = new TlsPlaintextRecord(TlsConstants.ALERT, RecordLayer.TLS_1_2);
+        alert.setFragment(new AlertFragment(AlertFragment.FATAL, AlertFragment.HANDSHAKE_FAILURE));
+        ScriptedConnection connection = new ScriptedConnection(alert.encode());
+
+        CompletableFuture<ConnectionState> future = startHandshake(connection);
+        Assert.assertTrue(future.isCompletedExceptionally());
+        Assert.assertEquals(1, connection.written.size());
+        Assert.assertEquals(TlsConstants.HANDSHAKE, connection.written.get(0)[0]);
+        Assert.assertTrue(connection.closed);
+    }
+
+    @Test
+    public void testUnexpectedMessage() throws Exception {
+
+        TlsPlaintextRecord helloDone = new TlsPlaintextRecord(TlsConstants.HANDSHAKE, RecordLayer.TLS_1_2);
+        helloDone.setFragment(new HandshakeFragment(new ServerHelloDone()));
+        ScriptedConnection connection = new ScriptedConnection(helloDone.encode());
+
+        CompletableFuture<ConnectionState> future = startHandshake(connection);
+        Assert.assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+            Assert.fail("Handshake should have failed");
+        } catch (ExecutionException e) {
+            HandshakeException handshakeException = (HandshakeException) e.getCause();
+            Assert.assertEquals(AlertFragment.UNEXPECTED_MESSAGE, handshakeException.getAlertDescription());
+        }
+        byte[] reply = connection.written.get(connection.written.size() - 1);
+        Assert.assertArrayEquals(new byte[] { TlsConstants.ALERT, 0x03, 0x03, 0x00, 0x02,
+                AlertFragment.FATAL, AlertFragment.UNEXPECTED_MESSAGE }, reply);
+        Assert.assertTrue(connection.closed);
+    }
+
+    @Test
+    public void testTruncatedServerHello() throws Exception {
+
+        // A server hello that claims two bytes of body, far short of the version and random.
+        byte[] truncated = new byte[] { TlsConstants.HANDSHAKE, 0x03, 0x03, 0x00, 0x06,
+                HandshakeMessageTypes.SERVER_HELLO, 0x00, 0x00, 0x02, 0x03, 0x03 };
+        ScriptedConnection connection = new ScriptedConnection(truncated);
+
+        CompletableFuture<ConnectionState> future = startHandshake(connection);
+        Assert.assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+            Assert.fail("Handshake should have failed");
+        } catch (ExecutionException e) {
+            HandshakeException handshakeException = (HandshakeException) e.getCause();
+            Assert.assertEquals(AlertFragment.DECODE_ERROR, handshakeException.getAlertDescription());
+        }
+        Assert.assertTrue(connection.closed);
+    }
+
+    @Test
+    public void testAlertWriteFails() throws Exception {
+
+        TlsPlaintextRecord helloDone = new TlsPlaintextRecord(TlsConstants.HANDSHAKE, RecordLayer.TLS_1_2);
+        helloDone.setFragment(new HandshakeFragment(new ServerHelloDone()));
+        ScriptedConnection connection = new ScriptedConnection(helloDone.encode());
+        // Only the client hello goes out.
+        connection.writeLimit = 1;
+
+        CompletableFuture<ConnectionState> future = startHandshake(connection);
+        Assert.assertTrue(future.isCompletedExceptionally());
+        Assert.assertEquals(1, connection.written.size());
+        Assert.assertTrue(connection.closed);
+    }
+
+    @Test
+    public void testOffersSupportedSuites() throws Exception {
+
+        ScriptedConnection connection = new ScriptedConnection(new byte[0]);
+        startHandshake(connection);
+        // Record and message headers, version, random and session ID, then the suites.
+        ByteBuffer hello = ByteBuffer.wrap(connection.written.get(0));
+        hello.position(5 + 4 + 2 + 32);
+        hello.position(hello.position() + 1 + hello.get());
+        int count = hello.getShort() / 2;
+        List<Short> offered = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            offered.add(hello.getShort());
+        }
+        Assert.assertEquals(CipherSuiteTranslator.supportedCipherSuites(CipherSuites.defaultCipherSuites), offered);
+        Assert.assertFalse(offered.isEmpty());
+        Assert.assertFalse(offered.contains(CipherSuites.TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384));
+        Assert.assertFalse(offered.contains(CipherSuites.TLS_AES_128_GCM_SHA256));
+    }
+
+    @Test
+    public void testWaitsForServer() throws Exception {
+
+        ScriptedConnection connection = new ScriptedConnection(new byte[0]);
+        CompletableFuture<ConnectionState> future = startHandshake(connection);
+        // The client hello is out and nothing is blocked waiting for the reply.
+        Assert.assertFalse(future.isDone());
+        Assert.assertEquals(1, connection.written.size());
+    }
+
+    private CompletableFuture<ConnectionState> startHandshake(ConnectionManager connection) throws Exception {
+
+        SecureRandom random = new SecureRandom();
+        ConnectionState connectionState = new ConnectionState(
+                new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random));
+        RecordLayer recordLayer = new RecordLayer(RecordLayer.TLS_1_2, connectionState, connection);
+        ClientHandshake clientHandshake = new ClientHandshake(connectionState, recordLayer, random);
+        clientHandshake.setCipherSuites(CipherSuites.defaultCipherSuites);
+        clientHandshake.setExtensions(new ArrayList<>());
+        return clientHandshake.doHandshake();
+    }
+}
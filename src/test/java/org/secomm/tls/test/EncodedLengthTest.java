@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.protocol.record.HandshakeFragment;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.TlsPlaintextRecord;
+import org.secomm.tls.protocol.record.extensions.ExtendedMasterSecret;
+import org.secomm.tls.protocol.record.extensions.ServerNameIndication;
+import org.secomm.tls.protocol.record.extensions.SignatureAlgorithms;
+import org.secomm.tls.protocol.record.extensions.SupportedEllipticCurves;
+import org.secomm.tls.protocol.record.extensions.SupportedPointFormats;
+import org.secomm.tls.protocol.record.extensions.TlsExtension;
+import org.secomm.tls.protocol.record.handshake.ClientHello;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class EncodedLengthTest {
+
+    private List<TlsExtension> extensions() {
+        return Arrays.asList(
+                new ServerNameIndication(Arrays.asList("www.example.com")),
+                new SupportedEllipticCurves(Arrays.asList((short) 0x0017, (short) 0x0018, (short) 0x001d)),
+                new SupportedPointFormats(Arrays.asList((byte) 0)),
+                new SignatureAlgorithms(Arrays.asList(new SignatureAlgorithms.Algorithms((byte) 4, (byte) 1),
+                        new SignatureAlgorithms.Algorithms((byte) 4, (byte) 3))),
+                new ExtendedMasterSecret());
+    }
+
+    private ClientHello clientHello() {
+        ClientHello clientHello = new ClientHello();
+        clientHello.setClientRandom(new byte[ClientHello.CLIENT_RANDOM_LENGTH]);
+        clientHello.setSessionId(new byte[32]);
+        clientHello.setCipherSuites(Arrays.asList((short) 0xc02f, (short) 0x009e, (short) 0x002f));
+        clientHello.setExtensions(extensions());
+        return clientHello;
+    }
+
+    @Test
+    public void testExtensionLengths() throws Exception {
+
+        for (TlsExtension extension : extensions()) {
+            byte[] encoded = extension.encode();
+            Assert.assertEquals(extension.getClass().getSimpleName(), extension.encodedLength(), encoded.length);
+            // The length field counts only the extension data.
+            EncodingByteBuffer buffer = EncodingByteBuffer.wrap(encoded);
+            buffer.getShort();
+            Assert.assertEquals(encoded.length - 4, buffer.getShort());
+        }
+    }
+
+    @Test
+    public void testClientHelloRoundTrip() throws Exception {
+
+        ClientHello clientHello = clientHello();
+        byte[] encoded = clientHello.encode();
+        Assert.assertEquals(clientHello.encodedLength(), encoded.length);
+
+        ClientHello decoded = new ClientHello();
+        decoded.decode(EncodingByteBuffer.wrap(encoded));
+        Assert.assertArrayEquals(encoded, decoded.encode());
+    }
+
+    @Test
+    public void testRecordLength() throws Exception {
+
+        HandshakeFragment fragment = new HandshakeFragment();
+        fragment.setHandshakeMessage(clientHello());
+        TlsPlaintextRecord record = new TlsPlaintextRecord(fragment.getFragmentType(), RecordLayer.TLS_1_2);
+        record.setFragment(fragment);
+        byte[] encoded = record.encode();
+        Assert.assertEquals(record.encodedLength(), encoded.length);
+        Assert.assertEquals(encoded.length - 5, ((encoded[3] & 0xff) << 8) | (encoded[4] & 0xff));
+    }
+}
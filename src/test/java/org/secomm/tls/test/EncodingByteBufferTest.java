@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.util.BufferPool;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+public class EncodingByteBufferTest {
+
+    @Test
+    public void testPooledBufferGrows() {
+
+        EncodingByteBuffer buffer = EncodingByteBuffer.pooled();
+        buffer.putShort((short) 0);
+        byte[] payload = new byte[3000];
+        payload[2999] = 0x55;
+        buffer.put(payload);
+        buffer.putShort(0, (short) payload.length);
+        byte[] encoded = buffer.toArray();
+        buffer.release();
+
+        Assert.assertEquals(3002, encoded.length);
+        EncodingByteBuffer decoder = EncodingByteBuffer.wrap(encoded);
+        Assert.assertEquals(3000, decoder.getShort());
+        Assert.assertEquals(0x55, encoded[3001]);
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testFixedBufferDoesNotGrow() {
+
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(2);
+        buffer.putShort((short) 1);
+        buffer.put((byte) 1);
+    }
+
+    @Test
+    public void testReleasedArrayIsReused() {
+
+        byte[] first = BufferPool.acquire(1000);
+        Assert.assertEquals(1024, first.length);
+        BufferPool.release(first);
+        Assert.assertSame(first, BufferPool.acquire(600));
+    }
+
+    @Test
+    public void testWrapDoesNotCopy() {
+
+        byte[] bytes = new byte[] { 0, 1, 2, 3, 4, 5 };
+        EncodingByteBuffer view = EncodingByteBuffer.wrap(bytes, 2, 3);
+        bytes[2] = 9;
+        Assert.assertEquals(9, view.get());
+        EncodingByteBuffer slice = view.slice(2);
+        Assert.assertEquals(0, view.remaining());
+        Assert.assertEquals(3, slice.get());
+
+        ByteBuffer out = ByteBuffer.allocate(8);
+        EncodingByteBuffer.wrap(bytes).slice(4).writeTo(out);
+        Assert.assertEquals(0, out.position());
+        EncodingByteBuffer written = EncodingByteBuffer.pooled();
+        written.put(bytes, 1, 4);
+        written.writeTo(out);
+        written.release();
+        Assert.assertEquals(4, out.position());
+        Assert.assertEquals(4, out.get(3));
+    }
+}
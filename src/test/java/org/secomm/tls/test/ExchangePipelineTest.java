@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.net.LoopbackConnectionManager;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.ClientHandshake;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.ExchangePipeline;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+import org.secomm.tls.util.HashedWheelTimer;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExchangePipelineTest {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 64);
+
+    /**
+     * A record layer whose handshake with a scripted server is complete.
+     *
+     * @param client
+     * @param echo The server echoes application data, otherwise it never answers.
+     */
+    private static RecordLayer connect(LoopbackConnectionManager client, boolean echo) throws Exception {
+
+        ScriptedServer server = new ScriptedServer(client.getPeer())
+                .respondTo(HandshakeMessageTypes.CLIENT_HELLO, ScriptedServer.loadFlight("rsa-aes128-gcm-server-hello.bin"))
+                .respondTo(HandshakeMessageTypes.CLIENT_KEY_EXCHANGE, ScriptedServer.finishedFlight());
+        if (echo) {
+            server.respondToApplicationData(data -> data);
+        }
+        server.start();
+
+        ConnectionState connectionState = new ConnectionState(
+                new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random));
+        RecordLayer recordLayer = new RecordLayer(RecordLayer.TLS_1_2, connectionState, client);
+        ClientHandshake clientHandshake = new ClientHandshake(connectionState, recordLayer, random);
+        clientHandshake.setCipherSuites(List.of(CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256));
+        clientHandshake.setExtensions(new ArrayList<>());
+        clientHandshake.setCertificateValidator(ScriptedServer.certificateValidator());
+        clientHandshake.setHostName("localhost");
+        clientHandshake.doHandshake().get(10, TimeUnit.SECONDS);
+        return recordLayer;
+    }
+
+    @Test
+    public void testPipelinedExchanges() throws Exception {
+
+        final int exchanges = 500;
+        final int maxInFlight = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            LoopbackConnectionManager client =
+                    LoopbackConnectionManager.createPair(LoopbackConnectionManager.DEFAULT_CAPACITY, executor);
+            ExchangePipeline pipeline = new ExchangePipeline(connect(client, true), maxInFlight, timer);
+
+            AtomicInteger mostOutstanding = new AtomicInteger();
+            List<CompletableFuture<byte[]>> futures = new ArrayList<>(exchanges);
+            for (int i = 0; i < exchanges; ++i) {
+                // Some requests span records.
+                byte[] request = new byte[i % 50 == 0 ? 20000 : 1 + i % 7];
+                random.nextBytes(request);
+                request[0] = (byte) i;
+                futures.add(pipeline.exchange(request, 0, TimeUnit.MILLISECONDS));
+                mostOutstanding.accumulateAndGet(pipeline.outstandingCount(), Math::max);
+            }
+            for (int i = 0; i < exchanges; ++i) {
+                byte[] response = futures.get(i).get(10, TimeUnit.SECONDS);
+                Assert.assertEquals(i % 50 == 0 ? 20000 : 1 + i % 7, response.length);
+                Assert.assertEquals((byte) i, response[0]);
+            }
+            Assert.assertTrue(mostOutstanding.get() <= maxInFlight);
+            Assert.assertEquals(0, pipeline.outstandingCount());
+
+            pipeline.send("No answer expected".getBytes(StandardCharsets.UTF_8));
+            Assert.assertTrue(pipeline.isOpen());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncExchanges() throws Exception {
+
+        final int exchanges = 2000;
+        final int maxInFlight = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            LoopbackConnectionManager client =
+                    LoopbackConnectionManager.createPair(LoopbackConnectionManager.DEFAULT_CAPACITY, executor);
+            ExchangePipeline pipeline = new ExchangePipeline(connect(client, true), maxInFlight, timer);
+
+            // None of these wait for a slot.
+            List<CompletableFuture<Integer>> futures = new ArrayList<>(exchanges);
+            for (int i = 0; i < exchanges; ++i) {
+                byte[] request = Integer.toString(i).getBytes(StandardCharsets.UTF_8);
+                futures.add(pipeline.exchangeAsync(request, 0, TimeUnit.MILLISECONDS)
+                        .thenApply(response -> Integer.parseInt(new String(response, StandardCharsets.UTF_8))));
+                Assert.assertTrue(pipeline.outstandingCount() <= maxInFlight);
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            for (int i = 0; i < exchanges; ++i) {
+                Assert.assertEquals(Integer.valueOf(i), futures.get(i).get());
+            }
+            Assert.assertEquals(0, pipeline.outstandingCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimeoutAndClose() throws Exception {
+
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        ExchangePipeline pipeline = new ExchangePipeline(connect(client, false), 1, timer);
+
+        CompletableFuture<byte[]> timedOut = pipeline.exchange(new byte[] { 1 }, 20, TimeUnit.MILLISECONDS);
+        try {
+            timedOut.get(10, TimeUnit.SECONDS);
+            Assert.fail("Exchange did not time out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // The request is still queued at the server, so it keeps its slot.
+        Assert.assertEquals(1, pipeline.outstandingCount());
+        CompletableFuture<byte[]> noSlot = pipeline.exchange(new byte[] { 2 }, 20, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(noSlot.isCompletedExceptionally());
+
+        // Writes complete without a slot.
+        pipeline.sendAsync(new byte[] { 4 }).get(10, TimeUnit.SECONDS);
+        pipeline.writeAsync(new byte[] { 0, 0, 0, 0 }).get(10, TimeUnit.SECONDS);
+
+        // Queued until the slot is free, then failed with the connection.
+        CompletableFuture<byte[]> queued = pipeline.exchangeAsync(new byte[] { 5 }, 0, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(queued.isDone());
+        pipeline.close();
+        try {
+            queued.get(10, TimeUnit.SECONDS);
+            Assert.fail("Queued exchange survived the close");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ClosedChannelException);
+        }
+        Assert.assertEquals(0, pipeline.outstandingCount());
+        Assert.assertFalse(pipeline.isOpen());
+        try {
+            pipeline.exchange(new byte[] { 3 }, 0, TimeUnit.MILLISECONDS).get();
+            Assert.fail("Exchanged on a closed pipeline");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ClosedChannelException);
+        }
+    }
+
+    @Test
+    public void testWheelTimer() throws Exception {
+
+        CountDownLatch fired = new CountDownLatch(2);
+        AtomicInteger cancelledRuns = new AtomicInteger();
+        long start = System.nanoTime();
+        // Longer than one turn of the wheel.
+        HashedWheelTimer.Timeout late = timer.newTimeout(fired::countDown, 400, TimeUnit.MILLISECONDS);
+        timer.newTimeout(fired::countDown, 10, TimeUnit.MILLISECONDS);
+        HashedWheelTimer.Timeout cancelled = timer.newTimeout(cancelledRuns::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(cancelled.cancel());
+        IllegalStateException thrown = new IllegalStateException();
+        HashedWheelTimer.Timeout failing = timer.newTimeout(() -> {
+            throw thrown;
+        }, 10, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(fired.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+        Assert.assertTrue(late.isExpired());
+        Assert.assertFalse(late.cancel());
+        Assert.assertNull(late.getFailure());
+        // The timer carried on after the failure.
+        Assert.assertSame(thrown, failing.getFailure());
+        Assert.assertTrue(cancelled.isCancelled());
+        Assert.assertEquals(0, cancelledRuns.get());
+    }
+
+}
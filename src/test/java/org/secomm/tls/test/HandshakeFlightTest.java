@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.net.ConnectionManager;
+import org.secomm.tls.net.LoopbackConnectionManager;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.AlertFragment;
+import org.secomm.tls.protocol.record.HandshakeFlight;
+import org.secomm.tls.protocol.record.HandshakeFragment;
+import org.secomm.tls.protocol.record.RecordFramer;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.TlsPlaintextRecord;
+import org.secomm.tls.protocol.record.handshake.ClientKeyExchange;
+import org.secomm.tls.protocol.record.handshake.Finished;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+import org.secomm.tls.protocol.record.handshake.ServerHelloDone;
+import org.secomm.tls.util.BufferPool;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class HandshakeFlightTest {
+
+    @Test
+    public void testPackedFlight() throws Exception {
+
+        ClientKeyExchange clientKeyExchange = new ClientKeyExchange();
+        clientKeyExchange.setClientPublicKey(new byte[128]);
+        Finished finished = new Finished();
+        byte[] verifyData = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 };
+        finished.setVerifyData(verifyData);
+
+        HandshakeFlight flight = new HandshakeFlight(RecordLayer.TLS_1_2)
+                .addHandshakeMessage(clientKeyExchange)
+                .addHandshakeMessage(new ServerHelloDone())
+                .addChangeCipherSpec()
+                .addHandshakeMessage(finished);
+        Assert.assertEquals(3, flight.getRecordCount());
+
+        RecordFramer framer = new RecordFramer(null);
+        for (ByteBuffer buffer : flight.toBuffers()) {
+            framer.getReceiveBuffer().put(buffer);
+        }
+        List<TlsPlaintextRecord> records = new ArrayList<>();
+        // Decoding stops at the ChangeCipherSpec and resumes on the next call.
+        Assert.assertEquals(2, framer.decodeRecords(records));
+        Assert.assertEquals(1, framer.decodeRecords(records));
+
+        Assert.assertEquals(TlsConstants.HANDSHAKE, records.get(0).getFragmentType());
+        HandshakeFragment first = records.get(0).getFragment();
+        Assert.assertEquals(2, first.getHandshakeMessages().size());
+        Assert.assertTrue(first.getHandshakeMessages().get(0) instanceof ClientKeyExchange);
+        Assert.assertTrue(first.getHandshakeMessages().get(1) instanceof ServerHelloDone);
+
+        Assert.assertEquals(TlsConstants.CHANGE_CIPHER_SPEC, records.get(1).getFragmentType());
+
+        HandshakeFragment last = records.get(2).getFragment();
+        Finished decoded = last.getHandshakeMessage();
+        Assert.assertArrayEquals(verifyData, decoded.getVerifyData());
+    }
+
+    @Test
+    public void testMessagesSpanningRecords() throws Exception {
+
+        Finished finished = new Finished();
+        byte[] verifyData = new byte[20000];
+        Arrays.fill(verifyData, (byte) 7);
+        finished.setVerifyData(verifyData);
+        HandshakeFlight flight = new HandshakeFlight(RecordLayer.TLS_1_2).addHandshakeMessage(finished);
+
+        RecordFramer framer = new RecordFramer(null);
+        SHA256Digest transcript = new SHA256Digest();
+        framer.getHandshakeContext().setTranscript(transcript);
+        List<TlsPlaintextRecord> records = new ArrayList<>();
+        // The two records don't fit the receive buffer together.
+        int count = 0;
+        for (ByteBuffer buffer : flight.toBuffers()) {
+            framer.getReceiveBuffer().put(buffer);
+            count += framer.decodeRecords(records);
+        }
+        Assert.assertEquals(2, count);
+        HandshakeFragment first = records.get(0).getFragment();
+        Assert.assertTrue(first.getHandshakeMessages().isEmpty());
+        Finished decoded = ((HandshakeFragment) records.get(1).getFragment()).getHandshakeMessage();
+        Assert.assertArrayEquals(verifyData, decoded.getVerifyData());
+        Assert.assertFalse(framer.getHandshakeContext().hasPartialMessage());
+
+        // A record that ends in the middle of the next message's header.
+        byte[] messages = ScriptedServer.concat(ScriptedServer.handshakeMessage(HandshakeMessageTypes.SERVER_HELLO_DONE,
+                new byte[0]), ScriptedServer.handshakeMessage(HandshakeMessageTypes.FINISHED, new byte[12]));
+        records.clear();
+        framer.getReceiveBuffer().put(ScriptedServer.handshakeRecord(Arrays.copyOfRange(messages, 0, 6)));
+        framer.getReceiveBuffer().put(ScriptedServer.handshakeRecord(Arrays.copyOfRange(messages, 6, messages.length)));
+        Assert.assertEquals(2, framer.decodeRecords(records));
+        Assert.assertTrue(((HandshakeFragment) records.get(0).getFragment()).getHandshakeMessage() instanceof ServerHelloDone);
+        Assert.assertTrue(((HandshakeFragment) records.get(1).getFragment()).getHandshakeMessage() instanceof Finished);
+
+        // Each message is in the transcript once, as it was received.
+        SHA256Digest expected = new SHA256Digest();
+        byte[] encodedFinished = new byte[20004];
+        encodedFinished[0] = HandshakeMessageTypes.FINISHED;
+        encodedFinished[2] = (byte) (20000 >> 8);
+        encodedFinished[3] = (byte) 20000;
+        System.arraycopy(verifyData, 0, encodedFinished, 4, verifyData.length);
+        expected.update(encodedFinished, 0, encodedFinished.length);
+        expected.update(messages, 0, messages.length);
+        byte[] expectedHash = new byte[32];
+        byte[] transcriptHash = new byte[32];
+        expected.doFinal(expectedHash, 0);
+        transcript.doFinal(transcriptHash, 0);
+        Assert.assertArrayEquals(expectedHash, transcriptHash);
+    }
+
+    @Test
+    public void testReleaseReturnsArrays() throws Exception {
+
+        ClientKeyExchange clientKeyExchange = new ClientKeyExchange();
+        clientKeyExchange.setClientPublicKey(new byte[300]);
+        HandshakeFlight flight = new HandshakeFlight(RecordLayer.TLS_1_2).addHandshakeMessage(clientKeyExchange);
+        ByteBuffer[] buffers = flight.toBuffers();
+        // The record header, then the message in its pooled array.
+        Assert.assertEquals(2, buffers.length);
+        byte[] encoded = buffers[1].array();
+        Assert.assertTrue(encoded.length > buffers[1].remaining());
+
+        flight.release();
+        Assert.assertSame(encoded, BufferPool.acquire(buffers[1].remaining()));
+    }
+
+    @Test
+    public void testAlertWaitsForFlight() throws Exception {
+
+        // Too small for the flight, so its write is still pending when the alert is sent.
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair(64, Runnable::run);
+        ConnectionState connectionState = new ConnectionState(
+                new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, new SecureRandom()));
+        RecordLayer recordLayer = new RecordLayer(RecordLayer.TLS_1_2, connectionState, client);
+        ClientKeyExchange clientKeyExchange = new ClientKeyExchange();
+        clientKeyExchange.setClientPublicKey(new byte[256]);
+        HandshakeFlight flight = recordLayer.createFlight().addHandshakeMessage(clientKeyExchange);
+        int flightLength = 0;
+        for (ByteBuffer buffer : flight.toBuffers()) {
+            flightLength += buffer.remaining();
+        }
+        recordLayer.sendFlight(flight);
+        recordLayer.sendAlertRecord(new AlertFragment(AlertFragment.FATAL, AlertFragment.INTERNAL_ERROR));
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        while (true) {
+            ByteBuffer buffer = ByteBuffer.allocate(100);
+            CompletableFuture<Integer> read = new CompletableFuture<>();
+            client.getPeer().read(buffer, new CompletionHandler<Integer, ConnectionManager>() {
+                @Override
+                public void completed(Integer result, ConnectionManager attachment) {
+                    read.complete(result);
+                }
+
+                @Override
+                public void failed(Throwable exc, ConnectionManager attachment) {
+                    read.completeExceptionally(exc);
+                }
+            });
+            int count = read.get(10, TimeUnit.SECONDS);
+            if (count < 0) {
+                break;
+            }
+            received.write(buffer.array(), 0, count);
+        }
+        // The whole flight, then the alert, then the connection is closed.
+        byte[] bytes = received.toByteArray();
+        Assert.assertEquals(flightLength + 7, bytes.length);
+        Assert.assertEquals(TlsConstants.HANDSHAKE, bytes[0]);
+        Assert.assertArrayEquals(new byte[] { TlsConstants.ALERT, 0x03, 0x03, 0x00, 0x02,
+                AlertFragment.FATAL, AlertFragment.INTERNAL_ERROR }, Arrays.copyOfRange(bytes, flightLength, bytes.length));
+        Assert.assertFalse(recordLayer.isOpen());
+    }
+
+    @Test
+    public void testOversizedMessage() throws Exception {
+
+        Finished finished = new Finished();
+        finished.setVerifyData(new byte[20000]);
+        HandshakeFlight flight = new HandshakeFlight(RecordLayer.TLS_1_2).addHandshakeMessage(finished);
+        Assert.assertEquals(2, flight.getRecordCount());
+
+        ByteBuffer wire = ByteBuffer.allocate(20004 + 2 * RecordLayer.RECORD_HEADER_LENGTH);
+        for (ByteBuffer buffer : flight.toBuffers()) {
+            wire.put(buffer);
+        }
+        Assert.assertFalse(wire.hasRemaining());
+        wire.flip();
+        Assert.assertEquals(TlsConstants.HANDSHAKE, wire.get(0));
+        Assert.assertEquals(HandshakeFlight.MAX_PLAINTEXT_LENGTH, wire.getShort(3) & 0xffff);
+        int second = RecordLayer.RECORD_HEADER_LENGTH + HandshakeFlight.MAX_PLAINTEXT_LENGTH;
+        Assert.assertEquals(TlsConstants.HANDSHAKE, wire.get(second));
+        Assert.assertEquals(20004 - HandshakeFlight.MAX_PLAINTEXT_LENGTH, wire.getShort(second + 3) & 0xffff);
+    }
+}
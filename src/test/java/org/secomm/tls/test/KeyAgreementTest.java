@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.bouncycastle.crypto.agreement.DHStandardGroups;
+import org.bouncycastle.crypto.params.DHParameters;
+import org.bouncycastle.util.BigIntegers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.crypto.CipherSuiteTranslator;
+import org.secomm.tls.crypto.TlsCryptoException;
+import org.secomm.tls.crypto.agreement.AgreementGroup;
+import org.secomm.tls.crypto.agreement.AgreementGroupFactory;
+import org.secomm.tls.crypto.agreement.AgreementKey;
+import org.secomm.tls.crypto.agreement.DHGroup;
+import org.secomm.tls.crypto.agreement.DHGroupCache;
+import org.secomm.tls.crypto.agreement.EphemeralKeyPool;
+import org.secomm.tls.net.LoopbackConnectionManager;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.ClientHandshake;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.HandshakeFragment;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.TlsPlaintextRecord;
+import org.secomm.tls.protocol.record.extensions.NamedGroups;
+import org.secomm.tls.protocol.record.handshake.ClientKeyExchange;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+import org.secomm.tls.protocol.record.handshake.ServerKeyExchange;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class KeyAgreementTest {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final short[][] ECDHE_CASES = {
+            { CipherSuites.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256, NamedGroups.secp256r1 },
+            { CipherSuites.TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256, NamedGroups.x25519 },
+            { CipherSuites.TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA, NamedGroups.secp384r1 }
+    };
+
+    @Test
+    public void testAgreement() throws Exception {
+
+        short[] groups = { NamedGroups.secp256r1, NamedGroups.secp384r1, NamedGroups.x25519 };
+        int[] publicKeyLengths = { 65, 97, 32 };
+        int[] secretLengths = { 32, 48, 32 };
+        for (int i = 0; i < groups.length; ++i) {
+            AgreementGroup group = AgreementGroupFactory.getGroup(groups[i]);
+            Assert.assertSame(group, AgreementGroupFactory.getGroup(groups[i]));
+            AgreementKey client = group.generateKey(random);
+            AgreementKey server = group.generateKey(random);
+            Assert.assertEquals(publicKeyLengths[i], client.getPublicKey().length);
+            byte[] clientSecret = group.calculateSecret(client, server.getPublicKey());
+            byte[] serverSecret = group.calculateSecret(server, client.getPublicKey());
+            Assert.assertEquals(secretLengths[i], clientSecret.length);
+            Assert.assertArrayEquals(clientSecret, serverSecret);
+        }
+    }
+
+    @Test
+    public void testInvalidPublicKeys() throws Exception {
+
+        AgreementGroup p256 = AgreementGroupFactory.getGroup(NamedGroups.secp256r1);
+        AgreementKey key = p256.generateKey(random);
+        byte[] offCurve = p256.generateKey(random).getPublicKey();
+        offCurve[64] ^= 1;
+        assertRejected(p256, key, offCurve);
+        assertRejected(p256, key, new byte[] { 0 });
+
+        AgreementGroup x25519 = AgreementGroupFactory.getGroup(NamedGroups.x25519);
+        key = x25519.generateKey(random);
+        // A low order point gives an all zero secret.
+        assertRejected(x25519, key, new byte[32]);
+        assertRejected(x25519, key, new byte[31]);
+
+        try {
+            AgreementGroupFactory.getGroup(NamedGroups.x448);
+            Assert.fail("Unsupported group returned");
+        } catch (TlsCryptoException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDHGroups() throws Exception {
+
+        DHParameters ffdhe2048 = DHStandardGroups.rfc7919_ffdhe2048;
+        byte[] p = BigIntegers.asUnsignedByteArray(ffdhe2048.getP());
+        byte[] g = BigIntegers.asUnsignedByteArray(ffdhe2048.getG());
+        DHGroup group = DHGroupCache.getGroup(p, g);
+        Assert.assertTrue(group.isRecognized());
+        Assert.assertEquals(NamedGroups.ffdhe2048, group.getNamedGroup());
+        // A leading zero on p is the same group.
+        byte[] paddedP = new byte[p.length + 1];
+        System.arraycopy(p, 0, paddedP, 1, p.length);
+        Assert.assertSame(group, DHGroupCache.getGroup(paddedP, g));
+
+        // The table result has to agree with a plain modPow on the other side.
+        AgreementKey client = group.generateKey(random);
+        BigInteger x = BigIntegers.createRandomInRange(BigInteger.TWO,
+                ffdhe2048.getP().subtract(BigInteger.TWO), random);
+        BigInteger ys = ffdhe2048.getG().modPow(x, ffdhe2048.getP());
+        byte[] secret = group.calculateSecret(client, BigIntegers.asUnsignedByteArray(ys));
+        BigInteger yc = new BigInteger(1, client.getPublicKey());
+        Assert.assertArrayEquals(BigIntegers.asUnsignedByteArray(yc.modPow(x, ffdhe2048.getP())), secret);
+
+        BigInteger pMinusOne = ffdhe2048.getP().subtract(BigInteger.ONE);
+        assertRejected(group, client, new byte[] { 1 });
+        assertRejected(group, client, BigIntegers.asUnsignedByteArray(pMinusOne));
+        assertRejected(group, client, p);
+
+        // Small or malformed groups are refused.
+        DHParameters small = DHStandardGroups.rfc2409_1024;
+        assertRefused(BigIntegers.asUnsignedByteArray(small.getP()), BigIntegers.asUnsignedByteArray(small.getG()));
+        assertRefused(p, new byte[] { 1 });
+        assertRefused(p, BigIntegers.asUnsignedByteArray(pMinusOne));
+        assertRefused(BigIntegers.asUnsignedByteArray(ffdhe2048.getP().add(BigInteger.ONE)), g);
+
+        // An unknown group is parsed once and kept. Another generator makes it unknown.
+        DHParameters unknown = new DHParameters(ffdhe2048.getP(), BigInteger.valueOf(5));
+        byte[] unknownP = BigIntegers.asUnsignedByteArray(unknown.getP());
+        byte[] unknownG = BigIntegers.asUnsignedByteArray(unknown.getG());
+        DHGroup other = DHGroupCache.getGroup(unknownP, unknownG);
+        Assert.assertFalse(other.isRecognized());
+        Assert.assertSame(other, DHGroupCache.getGroup(unknownP, unknownG));
+        AgreementKey a = other.generateKey(random);
+        AgreementKey b = other.generateKey(random);
+        Assert.assertArrayEquals(other.calculateSecret(a, b.getPublicKey()),
+                other.calculateSecret(b, a.getPublicKey()));
+    }
+
+    @Test
+    public void testEphemeralKeyPool() throws Exception {
+
+        AgreementGroup group = AgreementGroupFactory.getGroup(NamedGroups.x25519);
+        EphemeralKeyPool pool = new EphemeralKeyPool(4);
+        pool.prefill(group);
+        awaitAvailable(pool, group, 4);
+
+        // Pooled keys are handed out once and still agree.
+        AgreementKey first = pool.takeKey(group, random);
+        AgreementKey second = pool.takeKey(group, random);
+        Assert.assertFalse(Arrays.equals(first.getPublicKey(), second.getPublicKey()));
+        Assert.assertArrayEquals(group.calculateSecret(first, second.getPublicKey()),
+                group.calculateSecret(second, first.getPublicKey()));
+        awaitAvailable(pool, group, 4);
+
+        // With the watermark at 0 keys are made on the caller's thread.
+        pool.setWatermark(0);
+        for (int i = 0; i < 6; ++i) {
+            Assert.assertNotNull(pool.takeKey(group, random));
+        }
+        Assert.assertEquals(0, pool.available(AgreementGroupFactory.getGroup(NamedGroups.secp256r1)));
+    }
+
+    private void awaitAvailable(EphemeralKeyPool pool, AgreementGroup group, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && pool.available(group) < count; ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, pool.available(group));
+    }
+
+    private void assertRejected(AgreementGroup group, AgreementKey key, byte[] publicKey) {
+        try {
+            group.calculateSecret(key, publicKey);
+            Assert.fail("Invalid public key accepted");
+        } catch (TlsCryptoException e) {
+            // Expected
+        }
+    }
+
+    private void assertRefused(byte[] p, byte[] g) {
+        try {
+            DHGroupCache.getGroup(p, g);
+            Assert.fail("Invalid group accepted");
+        } catch (TlsCryptoException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testEcdheHandshake() throws Exception {
+
+        for (short[] c : ECDHE_CASES) {
+            ClientKeyExchange clientKeyExchange = handshake(c[0], c[1]);
+            Assert.assertEquals(c[1] == NamedGroups.x25519 ? 32 : c[1] == NamedGroups.secp256r1 ? 65 : 97,
+                    clientKeyExchange.getClientPublicKey().length);
+        }
+    }
+
+    /**
+     * A full handshake against a scripted server.
+     *
+     * @param cipherSuite
+     * @param namedGroup The ECDHE group, or 0 for the captured RSA flight.
+     * @return The client key exchange the server received.
+     * @throws Exception
+     */
+    private ClientKeyExchange handshake(short cipherSuite, short namedGroup) throws Exception {
+
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        ScriptedServer server = new ScriptedServer(client.getPeer());
+        if (namedGroup != 0) {
+            server.respondTo(HandshakeMessageTypes.CLIENT_HELLO, server.ecdheFlight(cipherSuite, namedGroup));
+        } else {
+            server.respondTo(HandshakeMessageTypes.CLIENT_HELLO,
+                    ScriptedServer.loadFlight("rsa-aes128-gcm-server-hello.bin"));
+        }
+        server.respondTo(HandshakeMessageTypes.CLIENT_KEY_EXCHANGE, ScriptedServer.finishedFlight());
+        server.start();
+
+        ConnectionState connectionState = new ConnectionState(
+                new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random));
+        RecordLayer recordLayer = new RecordLayer(RecordLayer.TLS_1_2, connectionState, client);
+        ClientHandshake clientHandshake = new ClientHandshake(connectionState, recordLayer, random);
+        clientHandshake.setCipherSuites(List.of(cipherSuite));
+        clientHandshake.setExtensions(new ArrayList<>());
+        clientHandshake.setCertificateValidator(ScriptedServer.certificateValidator());
+        clientHandshake.setHostName("localhost");
+        Assert.assertNotNull(clientHandshake.doHandshake().getNow(null));
+        Assert.assertNull(server.getFailure());
+        Assert.assertEquals(List.of(HandshakeMessageTypes.CLIENT_HELLO, HandshakeMessageTypes.CLIENT_KEY_EXCHANGE,
+                HandshakeMessageTypes.FINISHED), server.getReceived());
+        return server.getReceived(1);
+    }
+
+    @Test
+    public void testParallelHandshakes() throws Exception {
+
+        // RSA and ECDHE key exchanges encode ClientKeyExchange differently, so
+        // a shared negotiated suite would break these.
+        short[][] cases = {
+                ECDHE_CASES[0], ECDHE_CASES[1], ECDHE_CASES[2],
+                { CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256, 0 }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<ClientKeyExchange>> results = new ArrayList<>();
+            for (int i = 0; i < 32; ++i) {
+                short[] c = cases[i % cases.length];
+                results.add(executor.submit(() -> handshake(c[0], c[1])));
+            }
+            for (int i = 0; i < results.size(); ++i) {
+                ClientKeyExchange clientKeyExchange = results.get(i).get(30, TimeUnit.SECONDS);
+                if (cases[i % cases.length][1] == 0) {
+                    Assert.assertNotNull(clientKeyExchange.getPremasterSecret());
+                } else {
+                    Assert.assertNotNull(clientKeyExchange.getClientPublicKey());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testServerKeyExchangeInHelloRecord() throws Exception {
+
+        // ServerHello and ServerKeyExchange in one record. The key exchange
+        // has to be decoded with the suite from the hello before it.
+        byte[] helloRecord = ScriptedServer.serverHello(new byte[0],
+                CipherSuites.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256, false);
+        AgreementKey serverKey = AgreementGroupFactory.getGroup(NamedGroups.x25519).generateKey(random);
+        ServerKeyExchange.ServerECDHParameters parameters = new ServerKeyExchange.ServerECDHParameters(
+                ServerKeyExchange.ServerECDHParameters.NAMED_CURVE, NamedGroups.x25519, serverKey.getPublicKey());
+        EncodingByteBuffer body = EncodingByteBuffer.allocate(parameters.encodedLength() + 4 + 16);
+        parameters.encodeInto(body);
+        body.putShort((short) 0x0401);
+        body.putShort((short) 16);
+        body.put(new byte[16]);
+        byte[] fragment = ScriptedServer.concat(
+                Arrays.copyOfRange(helloRecord, RecordLayer.RECORD_HEADER_LENGTH, helloRecord.length),
+                ScriptedServer.handshakeMessage(HandshakeMessageTypes.SERVER_KEY_EXCHANGE, body.array()));
+
+        TlsPlaintextRecord record = new TlsPlaintextRecord(TlsConstants.HANDSHAKE, RecordLayer.TLS_1_2);
+        record.decode(EncodingByteBuffer.wrap(fragment));
+        HandshakeFragment handshakeFragment = record.getFragment();
+        ServerKeyExchange serverKeyExchange = (ServerKeyExchange) handshakeFragment.getHandshakeMessages().get(1);
+        Assert.assertEquals(CipherSuiteTranslator.KeyExchangeAlgorithm.ECDHE_RSA,
+                serverKeyExchange.getKeyExchangeAlgorithm());
+        Assert.assertEquals(NamedGroups.x25519, serverKeyExchange.getServerECDHParameters().namedCurve);
+        Assert.assertArrayEquals(serverKey.getPublicKey(), serverKeyExchange.getServerECDHParameters().point);
+        Assert.assertEquals(16, serverKeyExchange.getSignature().length);
+    }
+}
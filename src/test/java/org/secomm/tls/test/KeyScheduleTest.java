@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.modes.AEADCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.junit.Test;
+import org.secomm.tls.crypto.AlgorithmFactory;
+import org.secomm.tls.crypto.CipherSuiteDescriptor;
+import org.secomm.tls.crypto.CipherSuiteTranslator;
+import org.secomm.tls.crypto.KeySchedule;
+import org.secomm.tls.crypto.prf.PRFAlgorithm;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.UnknownCipherSuiteException;
+
+import java.lang.reflect.Field;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyScheduleTest {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private ConnectionState[] createPeers(short cipherSuite) throws Exception {
+
+        byte[] clientRandom = new byte[32];
+        random.nextBytes(clientRandom);
+        byte[] serverRandom = new byte[32];
+        random.nextBytes(serverRandom);
+        byte[] premasterSecret = new byte[48];
+        random.nextBytes(premasterSecret);
+
+        ConnectionState[] peers = new ConnectionState[2];
+        SecurityParameters.ConnectionEnd[] ends = SecurityParameters.ConnectionEnd.values();
+        for (int i = 0; i < 2; ++i) {
+            SecurityParameters parameters = new SecurityParameters(ends[i], random);
+            parameters.setClientRandom(clientRandom);
+            parameters.setServerRandom(serverRandom);
+            CipherSuiteTranslator.setSecurityParameters(parameters, cipherSuite);
+            peers[i] = new ConnectionState(parameters);
+            KeySchedule keySchedule = new KeySchedule(parameters);
+            keySchedule.computeMasterSecret(premasterSecret.clone());
+            keySchedule.deriveKeys(peers[i]);
+            peers[i].activateReadState();
+            peers[i].activateWriteState();
+        }
+        return peers;
+    }
+
+    @Test
+    public void testMasterSecret() throws Exception {
+
+        SecurityParameters parameters = new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random);
+        byte[] serverRandom = new byte[32];
+        random.nextBytes(serverRandom);
+        parameters.setServerRandom(serverRandom);
+        byte[] premasterSecret = new byte[48];
+        random.nextBytes(premasterSecret);
+
+        PRFAlgorithm prf = AlgorithmFactory.getPrfAlgorithm(AlgorithmFactory.PrfAlgorithms.TLS_PRF_SHA256);
+        prf.initialize(premasterSecret);
+        byte[] seed = new byte[64];
+        System.arraycopy(parameters.getClientRandom(), 0, seed, 0, 32);
+        System.arraycopy(serverRandom, 0, seed, 32, 32);
+        byte[] expected = prf.generateRandomBytes("master secret", seed, 48);
+
+        byte[] masterSecret = new KeySchedule(parameters).computeMasterSecret(premasterSecret);
+        assertArrayEquals(expected, masterSecret);
+        assertSame(masterSecret, parameters.getMasterSecret());
+        // The premaster secret is cleared.
+        assertArrayEquals(new byte[48], premasterSecret);
+    }
+
+    @Test
+    public void testLengthsInBytes() throws Exception {
+
+        SecurityParameters parameters = new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random);
+        CipherSuiteTranslator.setSecurityParameters(parameters, (short) 0x39);
+        assertEquals(32, parameters.getEncryptionKeyLength());
+        assertEquals(20, parameters.getMacKeyLength());
+        assertEquals(16, parameters.getRecordIvLength());
+        CipherSuiteTranslator.setSecurityParameters(parameters, (short) 0x9c);
+        assertEquals(16, parameters.getEncryptionKeyLength());
+        assertEquals(0, parameters.getMacKeyLength());
+        assertEquals(4, parameters.getFixedIvLength());
+        CipherSuiteTranslator.setSecurityParameters(parameters, (short) 0xccaa);
+        assertEquals(32, parameters.getEncryptionKeyLength());
+        assertEquals(12, parameters.getFixedIvLength());
+        assertEquals(0, parameters.getRecordIvLength());
+    }
+
+    @Test
+    public void testDescriptors() throws Exception {
+
+        // Every suite has a name, whether it is supported or not.
+        for (Field field : CipherSuites.class.getFields()) {
+            if (field.getType() == short.class) {
+                CipherSuiteDescriptor descriptor = CipherSuiteTranslator.getDescriptor(field.getShort(null));
+                assertNotNull(field.getName(), descriptor);
+                assertEquals(field.getName(), descriptor.getName());
+            }
+        }
+        CipherSuiteDescriptor descriptor = CipherSuiteTranslator.getDescriptor(
+                CipherSuites.TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256);
+        assertTrue(descriptor.isSupported());
+        assertTrue(descriptor.isEllipticCurve());
+        assertEquals(SecurityParameters.BulkCipherAlgorithm.CHACHA20_POLY1305, descriptor.getBulkCipherAlgorithm());
+
+        SecurityParameters parameters = new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random);
+        assertSame(descriptor, CipherSuiteTranslator.setSecurityParameters(parameters, descriptor.getCode()));
+        assertSame(descriptor, parameters.getCipherSuite());
+
+        assertFalse(CipherSuiteTranslator.getDescriptor(CipherSuites.TLS_PSK_WITH_AES_128_GCM_SHA256).isSupported());
+        assertNull(CipherSuiteTranslator.getDescriptor((short) 0x1d));
+        for (short unsupported : new short[] { CipherSuites.TLS_PSK_WITH_AES_128_GCM_SHA256, (short) 0x1d }) {
+            try {
+                CipherSuiteTranslator.setSecurityParameters(parameters, unsupported);
+                fail("Unsupported suite accepted");
+            } catch (UnknownCipherSuiteException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testGcmStates() throws Exception {
+
+        ConnectionState[] peers = createPeers((short) 0x9c);
+        ConnectionState.CipherState clientWrite = peers[0].getWriteState();
+        ConnectionState.CipherState serverRead = peers[1].getReadState();
+        assertNull(clientWrite.getMac());
+        assertArrayEquals(clientWrite.getFixedIv(), serverRead.getFixedIv());
+
+        byte[] message = "application data".getBytes();
+        for (int record = 0; record < 3; ++record) {
+            byte[] nonce = new byte[12];
+            System.arraycopy(clientWrite.getFixedIv(), 0, nonce, 0, 4);
+            nonce[11] = (byte) clientWrite.nextSequenceNumber();
+
+            AEADCipher encrypt = clientWrite.getAeadCipher();
+            encrypt.init(true, new AEADParameters(null, 128, nonce));
+            byte[] ciphertext = new byte[encrypt.getOutputSize(message.length)];
+            int length = encrypt.processBytes(message, 0, message.length, ciphertext, 0);
+            encrypt.doFinal(ciphertext, length);
+
+            AEADCipher decrypt = serverRead.getAeadCipher();
+            decrypt.init(false, new AEADParameters(null, 128, nonce));
+            byte[] plaintext = new byte[decrypt.getOutputSize(ciphertext.length)];
+            length = decrypt.processBytes(ciphertext, 0, ciphertext.length, plaintext, 0);
+            decrypt.doFinal(plaintext, length);
+            assertArrayEquals(message, plaintext);
+        }
+        assertEquals(3, clientWrite.getSequenceNumber());
+    }
+
+    @Test
+    public void testCbcStates() throws Exception {
+
+        ConnectionState[] peers = createPeers((short) 0x33);
+        ConnectionState.CipherState serverWrite = peers[1].getWriteState();
+        ConnectionState.CipherState clientRead = peers[0].getReadState();
+
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        byte[] block = new byte[16];
+        random.nextBytes(block);
+
+        BlockCipher encrypt = serverWrite.getBlockCipher();
+        encrypt.init(true, new ParametersWithIV(null, iv));
+        byte[] ciphertext = new byte[16];
+        encrypt.processBlock(block, 0, ciphertext, 0);
+
+        BlockCipher decrypt = clientRead.getBlockCipher();
+        decrypt.init(false, new ParametersWithIV(null, iv));
+        byte[] plaintext = new byte[16];
+        decrypt.processBlock(ciphertext, 0, plaintext, 0);
+        assertArrayEquals(block, plaintext);
+
+        Mac serverMac = serverWrite.getMac();
+        Mac clientMac = clientRead.getMac();
+        byte[] serverTag = new byte[serverMac.getMacSize()];
+        byte[] clientTag = new byte[clientMac.getMacSize()];
+        for (int i = 0; i < 2; ++i) {
+            serverMac.update(block, 0, block.length);
+            serverMac.doFinal(serverTag, 0);
+            clientMac.update(block, 0, block.length);
+            clientMac.doFinal(clientTag, 0);
+            assertArrayEquals(serverTag, clientTag);
+        }
+        // The other direction has its own keys.
+        Mac otherMac = peers[0].getWriteState().getMac();
+        otherMac.update(block, 0, block.length);
+        otherMac.doFinal(clientTag, 0);
+        assertFalse(Arrays.equals(serverTag, clientTag));
+    }
+}
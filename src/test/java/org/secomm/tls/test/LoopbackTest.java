@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.net.ConnectionManager;
+import org.secomm.tls.net.LoopbackConnectionManager;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.ClientHandshake;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class LoopbackTest {
+
+    private static final String RSA_FLIGHT = "rsa-aes128-gcm-server-hello.bin";
+
+    /**
+     * Records the result of a completed operation. Handlers run inline, so
+     * the result is there as soon as the call returns.
+     */
+    private static final class Result<T> implements CompletionHandler<T, ConnectionManager> {
+
+        T value;
+
+        Throwable failure;
+
+        @Override
+        public void completed(T result, ConnectionManager attachment) {
+            value = result;
+        }
+
+        @Override
+        public void failed(Throwable exc, ConnectionManager attachment) {
+            failure = exc;
+        }
+    }
+
+    @Test
+    public void testPartialReadsAndWrites() throws Exception {
+
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair(16, Runnable::run);
+        LoopbackConnectionManager server = client.getPeer();
+
+        byte[] sent = new byte[40];
+        new SecureRandom().nextBytes(sent);
+        ByteBuffer out = ByteBuffer.wrap(sent);
+        Result<Long> write = new Result<>();
+        client.write(new ByteBuffer[] { out }, write);
+        // Only as much as the ring holds.
+        Assert.assertEquals(Long.valueOf(16), write.value);
+
+        ByteBuffer in = ByteBuffer.allocate(64);
+        Result<Integer> read = new Result<>();
+        server.read(in, read);
+        Assert.assertEquals(Integer.valueOf(16), read.value);
+
+        // A write to a full ring waits for the reader.
+        write = new Result<>();
+        client.write(new ByteBuffer[] { out }, write);
+        Assert.assertEquals(Long.valueOf(16), write.value);
+        write = new Result<>();
+        client.write(new ByteBuffer[] { out }, write);
+        Assert.assertNull(write.value);
+        server.read(in, read);
+        Assert.assertEquals(Long.valueOf(8), write.value);
+        server.read(in, read);
+        Assert.assertEquals(40, in.position());
+        Assert.assertArrayEquals(sent, Arrays.copyOf(in.array(), 40));
+    }
+
+    @Test
+    public void testEndOfStream() throws Exception {
+
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        LoopbackConnectionManager server = client.getPeer();
+
+        ByteBuffer in = ByteBuffer.allocate(16);
+        Result<Integer> read = new Result<>();
+        server.read(in, read);
+        // Nothing written yet, so the read waits.
+        Assert.assertNull(read.value);
+
+        client.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), new Result<>());
+        Assert.assertEquals(Integer.valueOf(3), read.value);
+        client.close();
+        read = new Result<>();
+        server.read(in, read);
+        Assert.assertEquals(Integer.valueOf(-1), read.value);
+
+        Result<Integer> write = new Result<>();
+        server.write(ByteBuffer.wrap(new byte[] { 4 }), write);
+        Assert.assertNotNull(write.failure);
+    }
+
+    @Test
+    public void testScriptedHandshake() throws Exception {
+
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        ScriptedServer server = scriptedServer(client.getPeer(), ScriptedServer.loadFlight(RSA_FLIGHT));
+        server.start();
+
+        CompletableFuture<ConnectionState> future = startHandshake(client);
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals(ConnectionState.CurrentState.HANDSHAKE_COMPLETE, future.get().getCurrentState());
+        Assert.assertEquals(Arrays.asList(HandshakeMessageTypes.CLIENT_HELLO, HandshakeMessageTypes.CLIENT_KEY_EXCHANGE,
+                HandshakeMessageTypes.FINISHED), server.getReceived());
+        Assert.assertNull(server.getFailure());
+    }
+
+    @Test
+    public void testConcurrentHandshakes() throws Exception {
+
+        final int connections = 2000;
+        byte[] helloFlight = ScriptedServer.loadFlight(RSA_FLIGHT);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<CompletableFuture<ConnectionState>> futures = new ArrayList<>(connections);
+            for (int i = 0; i < connections; ++i) {
+                LoopbackConnectionManager client =
+                        LoopbackConnectionManager.createPair(LoopbackConnectionManager.DEFAULT_CAPACITY, executor);
+                scriptedServer(client.getPeer(), helloFlight).start();
+                futures.add(startHandshake(client));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+            // Throughput is measured by HandshakeBenchmark.
+            for (CompletableFuture<ConnectionState> future : futures) {
+                Assert.assertEquals(ConnectionState.CurrentState.HANDSHAKE_COMPLETE, future.get().getCurrentState());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private ScriptedServer scriptedServer(LoopbackConnectionManager connection, byte[] helloFlight) {
+        return new ScriptedServer(connection)
+                .respondTo(HandshakeMessageTypes.CLIENT_HELLO, helloFlight)
+                .respondTo(HandshakeMessageTypes.CLIENT_KEY_EXCHANGE, ScriptedServer.finishedFlight());
+    }
+
+    private CompletableFuture<ConnectionState> startHandshake(ConnectionManager connection) {
+
+        SecureRandom random = new SecureRandom();
+        ConnectionState connectionState = new ConnectionState(
+                new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random));
+        RecordLayer recordLayer = new RecordLayer(RecordLayer.TLS_1_2, connectionState, connection);
+        ClientHandshake clientHandshake = new ClientHandshake(connectionState, recordLayer, random);
+        clientHandshake.setCipherSuites(List.of(CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256));
+        clientHandshake.setExtensions(new ArrayList<>());
+        clientHandshake.setCertificateValidator(ScriptedServer.certificateValidator());
+        clientHandshake.setHostName("localhost");
+        return clientHandshake.doHandshake();
+    }
+}
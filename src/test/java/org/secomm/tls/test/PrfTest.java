@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+import org.secomm.tls.crypto.AlgorithmFactory;
+import org.secomm.tls.crypto.prf.PRFAlgorithm;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class PrfTest {
+
+    private static final byte[] SECRET = Hex.decode("9bbe436ba940f017b17652849a71db35");
+
+    private static final byte[] SEED = Hex.decode("a0ba9f936cda311827a6f796ffd5198c");
+
+    private static final byte[] EXPECTED = Hex.decode(
+            "e3f229ba727be17b8d122620557cd453c2aab21d07c3d495329b52d4e61edb5a" +
+            "6b301791e90d35c9c9a46b4e14baf9af0fa022f7077def17abfd3797c0564bab" +
+            "4fbc91666e9def9b97fce34f796789baa48082d122ee42c5a72e5a5110fff701" +
+            "87347b66");
+
+    @Test
+    public void testSha256Vector() throws Exception {
+
+        PRFAlgorithm prf = AlgorithmFactory.getPrfAlgorithm(AlgorithmFactory.PrfAlgorithms.TLS_PRF_SHA256);
+        prf.initialize(SECRET);
+        assertArrayEquals(EXPECTED, prf.generateRandomBytes("test label", SEED, EXPECTED.length));
+        // Keyed state is reused for the next output.
+        assertArrayEquals(EXPECTED, prf.generateRandomBytes("test label", SEED, EXPECTED.length));
+    }
+
+    @Test
+    public void testSplitSeedAndOffset() throws Exception {
+
+        PRFAlgorithm prf = AlgorithmFactory.getPrfAlgorithm(AlgorithmFactory.PrfAlgorithms.TLS_PRF_SHA256);
+        prf.initialize(SECRET);
+        byte[] output = new byte[EXPECTED.length + 10];
+        prf.generateRandomBytes("test label", Arrays.copyOf(SEED, 5),
+                Arrays.copyOfRange(SEED, 5, SEED.length), output, 10, EXPECTED.length);
+        assertArrayEquals(EXPECTED, Arrays.copyOfRange(output, 10, output.length));
+        assertArrayEquals(new byte[10], Arrays.copyOf(output, 10));
+
+        byte[] prefix = prf.generateRandomBytes("test label", SEED, 32);
+        assertArrayEquals(Arrays.copyOf(EXPECTED, 32), prefix);
+    }
+}
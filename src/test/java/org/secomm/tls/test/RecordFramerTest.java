@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.AlertFragment;
+import org.secomm.tls.protocol.record.HandshakeFragment;
+import org.secomm.tls.protocol.record.RecordFramer;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.TlsPlaintextRecord;
+import org.secomm.tls.protocol.record.handshake.ClientKeyExchange;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RecordFramerTest {
+
+    @Test
+    public void testCoalescedRecords() throws Exception {
+
+        byte[] stream = concatenate(handshakeRecord(), alertRecord(), handshakeRecord());
+        RecordFramer framer = new RecordFramer(null);
+        List<TlsPlaintextRecord> records = new ArrayList<>();
+        framer.getReceiveBuffer().put(stream);
+        Assert.assertEquals(3, framer.decodeRecords(records));
+        Assert.assertEquals(TlsConstants.HANDSHAKE, records.get(0).getFragmentType());
+        Assert.assertEquals(TlsConstants.ALERT, records.get(1).getFragmentType());
+        Assert.assertEquals(TlsConstants.HANDSHAKE, records.get(2).getFragmentType());
+        Assert.assertEquals(0, framer.getReceiveBuffer().position());
+    }
+
+    @Test
+    public void testPartialReads() throws Exception {
+
+        byte[] stream = concatenate(handshakeRecord(), alertRecord());
+        for (boolean direct : new boolean[] { false, true }) {
+            RecordFramer framer = new RecordFramer(null, direct);
+            List<TlsPlaintextRecord> records = new ArrayList<>();
+            // Three bytes at a time splits both headers and both fragments.
+            for (int index = 0; index < stream.length; index += 3) {
+                ByteBuffer receiveBuffer = framer.getReceiveBuffer();
+                receiveBuffer.put(stream, index, Math.min(3, stream.length - index));
+                framer.decodeRecords(records);
+            }
+            Assert.assertEquals(2, records.size());
+            HandshakeFragment fragment = records.get(0).getFragment();
+            Assert.assertTrue(fragment.getHandshakeMessage() instanceof ClientKeyExchange);
+            Assert.assertEquals(TlsConstants.ALERT, records.get(1).getFragmentType());
+        }
+    }
+
+    private byte[] handshakeRecord() {
+        ClientKeyExchange clientKeyExchange = new ClientKeyExchange();
+        clientKeyExchange.setClientPublicKey(new byte[256]);
+        TlsPlaintextRecord record = new TlsPlaintextRecord(TlsConstants.HANDSHAKE, RecordLayer.TLS_1_2);
+        record.setFragment(new HandshakeFragment(clientKeyExchange));
+        return record.encode();
+    }
+
+    private byte[] alertRecord() {
+        TlsPlaintextRecord record = new TlsPlaintextRecord(TlsConstants.ALERT, RecordLayer.TLS_1_2);
+        record.setFragment(new AlertFragment(AlertFragment.WARNING, AlertFragment.CLOSE_NOTIFY));
+        return record.encode();
+    }
+
+    private byte[] concatenate(byte[]... arrays) {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (byte[] array : arrays) {
+            buffer.put(array);
+        }
+        byte[] result = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(result);
+        return result;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.bouncycastle.crypto.modes.AEADCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.crypto.CipherSuiteTranslator;
+import org.secomm.tls.crypto.KeySchedule;
+import org.secomm.tls.net.LoopbackConnectionManager;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.ClientHandshake;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.ApplicationDataFragment;
+import org.secomm.tls.protocol.record.BadRecordMacException;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.RecordProtection;
+import org.secomm.tls.protocol.record.RecordProtectionFactory;
+import org.secomm.tls.protocol.record.TlsPlaintextRecord;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+
+import java.nio.channels.CompletionHandler;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RecordProtectionTest {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private ConnectionState[] createPeers(short cipherSuite) throws Exception {
+
+        byte[] clientRandom = new byte[32];
+        random.nextBytes(clientRandom);
+        byte[] serverRandom = new byte[32];
+        random.nextBytes(serverRandom);
+        byte[] premasterSecret = new byte[48];
+        random.nextBytes(premasterSecret);
+
+        ConnectionState[] peers = new ConnectionState[2];
+        SecurityParameters.ConnectionEnd[] ends = SecurityParameters.ConnectionEnd.values();
+        for (int i = 0; i < 2; ++i) {
+            SecurityParameters parameters = new SecurityParameters(ends[i], random);
+            parameters.setClientRandom(clientRandom);
+            parameters.setServerRandom(serverRandom);
+            CipherSuiteTranslator.setSecurityParameters(parameters, cipherSuite);
+            peers[i] = new ConnectionState(parameters);
+            KeySchedule keySchedule = new KeySchedule(parameters);
+            keySchedule.computeMasterSecret(premasterSecret.clone());
+            keySchedule.deriveKeys(peers[i]);
+            peers[i].activateReadState();
+            peers[i].activateWriteState();
+        }
+        return peers;
+    }
+
+    /**
+     * Client write and server read protections for the same keys.
+     */
+    private RecordProtection[] createPair(short cipherSuite) throws Exception {
+        ConnectionState[] peers = createPeers(cipherSuite);
+        return new RecordProtection[] {
+                RecordProtectionFactory.getProtection(peers[0].getWriteState()),
+                RecordProtectionFactory.getProtection(peers[1].getReadState())
+        };
+    }
+
+    @Test
+    public void testGcmInPlace() throws Exception {
+
+        RecordProtection[] pair = createPair(CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256);
+        RecordProtection sealer = pair[0];
+        RecordProtection opener = pair[1];
+        Assert.assertEquals(8, sealer.getRecordIvLength());
+        Assert.assertEquals(8 + 100 + 16, sealer.getSealedLength(100));
+
+        byte[] content = new byte[100];
+        random.nextBytes(content);
+        for (long sequenceNumber = 0; sequenceNumber < 3; ++sequenceNumber) {
+            // Leave room in front, as the record header would.
+            byte[] buffer = new byte[5 + sealer.getSealedLength(content.length)];
+            System.arraycopy(content, 0, buffer, 5 + sealer.getRecordIvLength(), content.length);
+            int length = sealer.seal(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, buffer, 5, content.length);
+            Assert.assertEquals(buffer.length - 5, length);
+            // The explicit nonce is the sequence number.
+            Assert.assertEquals(sequenceNumber, buffer[12]);
+            Assert.assertFalse(Arrays.equals(content, Arrays.copyOfRange(buffer, 13, 113)));
+
+            int opened = opener.open(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, buffer, 5, length);
+            Assert.assertEquals(content.length, opened);
+            Assert.assertArrayEquals(content, Arrays.copyOfRange(buffer, 13, 113));
+        }
+    }
+
+    @Test
+    public void testGcmTampering() throws Exception {
+
+        RecordProtection[] pair = createPair(CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256);
+        byte[] content = "attack at dawn".getBytes();
+        byte[] record = pair[0].sealRecord(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2,
+                content, 0, content.length);
+        record[record.length - 1] ^= 1;
+        try {
+            pair[1].open(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, record, 5, record.length - 5);
+            Assert.fail("Tampered record opened");
+        } catch (BadRecordMacException e) {
+            // Expected
+        }
+
+        // The content type is authenticated too.
+        pair = createPair(CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256);
+        record = pair[0].sealRecord(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, content, 0, content.length);
+        try {
+            pair[1].open(TlsConstants.HANDSHAKE, RecordLayer.TLS_1_2, record, 5, record.length - 5);
+            Assert.fail("Record opened with the wrong content type");
+        } catch (BadRecordMacException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testChaChaNonce() throws Exception {
+
+        ConnectionState[] peers = createPeers(CipherSuites.TLS_DHE_RSA_WITH_CHACHA20_POLY1305_SHA256);
+        RecordProtection sealer = RecordProtectionFactory.getProtection(peers[0].getWriteState());
+        ConnectionState.CipherState serverRead = peers[1].getReadState();
+        Assert.assertEquals(0, sealer.getRecordIvLength());
+        Assert.assertEquals(100 + 16, sealer.getSealedLength(100));
+
+        byte[] content = new byte[100];
+        random.nextBytes(content);
+        for (long sequenceNumber = 0; sequenceNumber < 3; ++sequenceNumber) {
+            byte[] record = sealer.sealRecord(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2,
+                    content, 0, content.length);
+
+            // RFC 7905 section 2: the sequence number XORed into the fixed IV.
+            byte[] nonce = serverRead.getFixedIv().clone();
+            nonce[11] ^= (byte) sequenceNumber;
+            byte[] additionalData = { 0, 0, 0, 0, 0, 0, 0, (byte) sequenceNumber,
+                    TlsConstants.APPLICATION_DATA, 3, 3, 0, 100 };
+            AEADCipher cipher = serverRead.getAeadCipher();
+            cipher.init(false, new AEADParameters(null, 128, nonce));
+            cipher.processAADBytes(additionalData, 0, additionalData.length);
+            byte[] plaintext = new byte[content.length];
+            int length = cipher.processBytes(record, 5, record.length - 5, plaintext, 0);
+            cipher.doFinal(plaintext, length);
+            Assert.assertArrayEquals(content, plaintext);
+        }
+    }
+
+    @Test
+    public void testChaChaInPlace() throws Exception {
+
+        RecordProtection[] pair = createPair(CipherSuites.TLS_DHE_RSA_WITH_CHACHA20_POLY1305_SHA256);
+        byte[] content = new byte[1000];
+        random.nextBytes(content);
+        for (int i = 0; i < 3; ++i) {
+            byte[] record = pair[0].sealRecord(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2,
+                    content, 0, content.length);
+            int opened = pair[1].open(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, record, 5, record.length - 5);
+            Assert.assertEquals(content.length, opened);
+            Assert.assertArrayEquals(content, Arrays.copyOfRange(record, 5, 5 + opened));
+        }
+
+        byte[] record = pair[0].sealRecord(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2,
+                content, 0, content.length);
+        record[100] ^= 1;
+        try {
+            pair[1].open(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, record, 5, record.length - 5);
+            Assert.fail("Tampered record opened");
+        } catch (BadRecordMacException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCbcInPlace() throws Exception {
+
+        RecordProtection[] pair = createPair(CipherSuites.TLS_DHE_RSA_WITH_AES_128_CBC_SHA);
+        RecordProtection sealer = pair[0];
+        RecordProtection opener = pair[1];
+        Assert.assertEquals(16, sealer.getRecordIvLength());
+        // 16 byte IV, then content, 20 byte MAC and padding to a whole block.
+        Assert.assertEquals(16 + 32, sealer.getSealedLength(11));
+        Assert.assertEquals(16 + 48, sealer.getSealedLength(12));
+
+        byte[] previousIv = null;
+        for (int length = 0; length < 80; ++length) {
+            byte[] content = new byte[length];
+            random.nextBytes(content);
+            byte[] record = sealer.sealRecord(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2,
+                    content, 0, length);
+            int fragmentLength = record.length - 5;
+            Assert.assertEquals(0, (fragmentLength - 16) % 16);
+            byte[] iv = Arrays.copyOfRange(record, 5, 21);
+            Assert.assertFalse(Arrays.equals(previousIv, iv));
+            previousIv = iv;
+
+            int opened = opener.open(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, record, 5, fragmentLength);
+            Assert.assertEquals(length, opened);
+            Assert.assertArrayEquals(content, Arrays.copyOfRange(record, 21, 21 + length));
+        }
+    }
+
+    @Test
+    public void testCbcTampering() throws Exception {
+
+        byte[] content = "attack at dawn".getBytes();
+        // The last byte of each ciphertext block; the final one is the padding length.
+        for (int position = 16; position <= 48; position += 16) {
+            RecordProtection[] pair = createPair(CipherSuites.TLS_DHE_RSA_WITH_AES_256_CBC_SHA);
+            byte[] record = pair[0].sealRecord(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2,
+                    content, 0, content.length);
+            Assert.assertEquals(5 + 16 + 48, record.length);
+            record[5 + position - 1] ^= 1;
+            try {
+                pair[1].open(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, record, 5, record.length - 5);
+                Assert.fail("Tampered record opened");
+            } catch (BadRecordMacException e) {
+                // Expected
+            }
+        }
+
+        RecordProtection[] pair = createPair(CipherSuites.TLS_DHE_RSA_WITH_AES_256_CBC_SHA);
+        try {
+            pair[1].open(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2, new byte[45], 0, 45);
+            Assert.fail("Partial block opened");
+        } catch (BadRecordMacException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSealRecords() throws Exception {
+
+        for (short cipherSuite : new short[] { CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256,
+                CipherSuites.TLS_DHE_RSA_WITH_AES_128_CBC_SHA, CipherSuites.TLS_DHE_RSA_WITH_CHACHA20_POLY1305_SHA256 }) {
+            RecordProtection[] pair = createPair(cipherSuite);
+            byte[] content = new byte[40000];
+            random.nextBytes(content);
+            byte[] records = pair[0].sealRecords(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2,
+                    content, 0, content.length);
+
+            int index = 0;
+            int contentOffset = 0;
+            int recordCount = 0;
+            while (index < records.length) {
+                Assert.assertEquals(TlsConstants.APPLICATION_DATA, records[index]);
+                int fragmentLength = ((records[index + 3] & 0xff) << 8) | (records[index + 4] & 0xff);
+                int opened = pair[1].open(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2,
+                        records, index + 5, fragmentLength);
+                int start = index + 5 + pair[1].getRecordIvLength();
+                Assert.assertArrayEquals(Arrays.copyOfRange(content, contentOffset, contentOffset + opened),
+                        Arrays.copyOfRange(records, start, start + opened));
+                contentOffset += opened;
+                index += 5 + fragmentLength;
+                ++recordCount;
+            }
+            Assert.assertEquals(3, recordCount);
+            Assert.assertEquals(content.length, contentOffset);
+        }
+    }
+
+    @Test
+    public void testApplicationData() throws Exception {
+
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        ScriptedServer server = new ScriptedServer(client.getPeer())
+                .respondTo(HandshakeMessageTypes.CLIENT_HELLO, ScriptedServer.loadFlight("rsa-aes128-gcm-server-hello.bin"))
+                .respondTo(HandshakeMessageTypes.CLIENT_KEY_EXCHANGE, ScriptedServer.finishedFlight())
+                .respondToApplicationData(data -> data);
+        server.start();
+
+        ConnectionState connectionState = new ConnectionState(
+                new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random));
+        RecordLayer recordLayer = new RecordLayer(RecordLayer.TLS_1_2, connectionState, client);
+        ClientHandshake clientHandshake = new ClientHandshake(connectionState, recordLayer, random);
+        clientHandshake.setCipherSuites(List.of(CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256));
+        clientHandshake.setExtensions(new ArrayList<>());
+        clientHandshake.setCertificateValidator(ScriptedServer.certificateValidator());
+        clientHandshake.setHostName("localhost");
+        Assert.assertNotNull(clientHandshake.doHandshake().getNow(null));
+        Assert.assertNull(server.getFailure());
+
+        // More than one record's worth.
+        byte[] data = new byte[40000];
+        random.nextBytes(data);
+        recordLayer.sendApplicationData(data, 0, data.length, null);
+
+        byte[] echoed = new byte[data.length];
+        int[] received = new int[1];
+        recordLayer.readRecords(new CompletionHandler<List<TlsPlaintextRecord>, RecordLayer>() {
+            @Override
+            public void completed(List<TlsPlaintextRecord> records, RecordLayer attachment) {
+                for (TlsPlaintextRecord record : records) {
+                    Assert.assertEquals(TlsConstants.APPLICATION_DATA, record.getFragmentType());
+                    byte[] fragment = ((ApplicationDataFragment) record.getFragment()).getData();
+                    System.arraycopy(fragment, 0, echoed, received[0], fragment.length);
+                    received[0] += fragment.length;
+                }
+                if (received[0] < echoed.length) {
+                    recordLayer.readRecords(this);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, RecordLayer attachment) {
+                Assert.fail(exc.toString());
+            }
+        });
+        Assert.assertEquals(data.length, received[0]);
+        Assert.assertArrayEquals(data, echoed);
+        Assert.assertNull(server.getFailure());
+    }
+}
@@ -0,0 +1,687 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.secomm.tls.crypto.CertificateCache;
+import org.secomm.tls.crypto.CertificateValidator;
+import org.secomm.tls.crypto.CipherSuiteTranslator;
+import org.secomm.tls.crypto.KeySchedule;
+import org.secomm.tls.crypto.agreement.AgreementGroup;
+import org.secomm.tls.crypto.agreement.AgreementGroupFactory;
+import org.secomm.tls.crypto.agreement.AgreementKey;
+import org.secomm.tls.net.ConnectionManager;
+import org.secomm.tls.net.LoopbackConnectionManager;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.TlsConstants;
+import org.secomm.tls.protocol.record.ApplicationDataFragment;
+import org.secomm.tls.protocol.record.ChangeCipherSpecFragment;
+import org.secomm.tls.protocol.record.HandshakeFragment;
+import org.secomm.tls.protocol.record.RecordFramer;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.RecordProtection;
+import org.secomm.tls.protocol.record.RecordProtectionFactory;
+import org.secomm.tls.protocol.record.TlsPlaintextRecord;
+import org.secomm.tls.protocol.record.handshake.ClientHello;
+import org.secomm.tls.protocol.record.handshake.ClientKeyExchange;
+import org.secomm.tls.protocol.record.handshake.Finished;
+import org.secomm.tls.protocol.record.extensions.Extensions;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+import org.secomm.tls.protocol.record.handshake.NewSessionTicket;
+import org.secomm.tls.protocol.record.handshake.ServerHello;
+import org.secomm.tls.protocol.record.handshake.ServerKeyExchange;
+import org.secomm.tls.protocol.record.handshake.TlsHandshakeMessage;
+import org.secomm.tls.util.EncodingByteBuffer;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * TLS 1.2 server stand-in for loopback tests. It decodes the client's records
+ * and answers scripted handshake messages with canned flights, usually
+ * captured from a real server. A captured flight can only be replayed if it
+ * does not depend on the client random, so the captures use RSA key exchange.
+ * ECDHE flights are built for each client around the captured certificate.
+ *
+ * The server does its half of the key schedule, so that the client's checks
+ * pass. It decrypts the premaster secret with the key the flights were
+ * captured with, or takes the master secret of a resumed session. Finished
+ * messages in a scripted flight are placeholders. Their verify data is
+ * computed from the transcript when the flight is sent, and everything after
+ * the ChangeCipherSpec is protected with the server's write state.
+ *
+ * Responses are sent once everything the client has sent so far is read, so
+ * an answer to ClientKeyExchange follows the client's Finished.
+ */
+public class ScriptedServer {
+
+    public static final String SERVER_KEY = "rsa-server-key.der";
+
+    private static PrivateKey serverKey;
+
+    private static CertificateValidator certificateValidator;
+
+    private final LoopbackConnectionManager connection;
+
+    private final RecordFramer recordFramer;
+
+    private final Map<Byte, Function<TlsHandshakeMessage, byte[]>> responses;
+
+    private Function<byte[], byte[]> applicationDataResponse;
+
+    private final List<TlsHandshakeMessage> received;
+
+    private final SecurityParameters securityParameters;
+
+    private final ConnectionState connectionState;
+
+    private final KeySchedule keySchedule;
+
+    private final SHA256Digest transcript;
+
+    private final PrivateKey privateKey;
+
+    private byte[] resumedMasterSecret;
+
+    private AgreementKey ecdheKey;
+
+    private RecordProtection writeProtection;
+
+    private volatile Throwable failure;
+
+    private final CompletionHandler<Integer, ConnectionManager> readHandler =
+            new CompletionHandler<Integer, ConnectionManager>() {
+        @Override
+        public void completed(Integer result, ConnectionManager attachment) {
+            if (result < 0) {
+                connection.close();
+                return;
+            }
+            List<byte[]> flights = new ArrayList<>();
+            try {
+                List<TlsPlaintextRecord> records = new ArrayList<>();
+                // Records after a ChangeCipherSpec are held back until the read state changes.
+                while (recordFramer.decodeRecords(records) > 0) {
+                    for (TlsPlaintextRecord record : records) {
+                        if (!processRecord(record, flights)) {
+                            connection.close();
+                            return;
+                        }
+                    }
+                    records.clear();
+                }
+                if (!flights.isEmpty()) {
+                    ByteBuffer[] buffers = new ByteBuffer[flights.size()];
+                    for (int i = 0; i < buffers.length; ++i) {
+                        buffers[i] = ByteBuffer.wrap(protect(flights.get(i)));
+                    }
+                    // Only one write may be pending, so read again once this one is done.
+                    send(buffers, this);
+                    return;
+                }
+            } catch (Exception e) {
+                failed(e, attachment);
+                return;
+            }
+            connection.read(recordFramer.getReceiveBuffer(), this);
+        }
+
+        @Override
+        public void failed(Throwable exc, ConnectionManager attachment) {
+            failure = exc;
+            connection.close();
+        }
+    };
+
+    /**
+     * @param connection The server end of a loopback pair.
+     */
+    public ScriptedServer(LoopbackConnectionManager connection) {
+        this.connection = connection;
+        this.recordFramer = new RecordFramer(connection);
+        this.responses = new HashMap<>();
+        this.received = new ArrayList<>();
+        this.securityParameters = new SecurityParameters(SecurityParameters.ConnectionEnd.SERVER, new SecureRandom());
+        this.connectionState = new ConnectionState(securityParameters);
+        this.keySchedule = new KeySchedule(securityParameters);
+        this.transcript = new SHA256Digest();
+        recordFramer.getHandshakeContext().setTranscript(transcript);
+        this.privateKey = serverKey();
+    }
+
+    private static synchronized PrivateKey serverKey() {
+        if (serverKey == null) {
+            try {
+                serverKey = loadPrivateKey(SERVER_KEY);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return serverKey;
+    }
+
+    /**
+     * The captured server certificate, issued to localhost.
+     *
+     * @return
+     * @throws Exception
+     */
+    public static X509Certificate serverCertificate() throws Exception {
+        byte[] message = findMessage(loadFlight("rsa-aes128-gcm-server-hello.bin"), HandshakeMessageTypes.CERTIFICATE);
+        // Skip the message header and the chain and certificate lengths.
+        byte[] encoded = new byte[message.length - 10];
+        System.arraycopy(message, 10, encoded, 0, encoded.length);
+        return new CertificateCache().getCertificate(encoded);
+    }
+
+    /**
+     * A validator that trusts the captured certificate. It is shared, so
+     * handshakes after the first find the chain already verified.
+     *
+     * @return
+     */
+    public static synchronized CertificateValidator certificateValidator() {
+        if (certificateValidator == null) {
+            try {
+                certificateValidator = new CertificateValidator(Set.of(new TrustAnchor(serverCertificate(), null)));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return certificateValidator;
+    }
+
+    /**
+     * Send the flight when the client sends a handshake message of the given type.
+     *
+     * @param handshakeType
+     * @param flight Encoded records.
+     * @return This server.
+     */
+    public ScriptedServer respondTo(byte handshakeType, byte[] flight) {
+        return respondTo(handshakeType, message -> flight);
+    }
+
+    /**
+     * Send a flight built from the client's message, for answers that depend
+     * on what the client sent.
+     *
+     * @param handshakeType
+     * @param response Returns the encoded records.
+     * @return This server.
+     */
+    public ScriptedServer respondTo(byte handshakeType, Function<TlsHandshakeMessage, byte[]> response) {
+        responses.put(handshakeType, response);
+        return this;
+    }
+
+    /**
+     * Answer each application data record with the data the function returns.
+     *
+     * @param response
+     * @return This server.
+     */
+    public ScriptedServer respondToApplicationData(Function<byte[], byte[]> response) {
+        applicationDataResponse = response;
+        return this;
+    }
+
+    /**
+     * The master secret of the session the scripted ServerHello resumes.
+     *
+     * @param masterSecret
+     * @return This server.
+     */
+    public ScriptedServer resume(byte[] masterSecret) {
+        resumedMasterSecret = masterSecret;
+        return this;
+    }
+
+    public void start() {
+        connection.read(recordFramer.getReceiveBuffer(), readHandler);
+    }
+
+    private boolean processRecord(TlsPlaintextRecord record, List<byte[]> flights) throws Exception {
+
+        switch (record.getFragmentType()) {
+            case TlsConstants.HANDSHAKE:
+                HandshakeFragment fragment = record.getFragment();
+                List<TlsHandshakeMessage> messages = fragment.getHandshakeMessages();
+                for (int i = 0; i < messages.size(); ++i) {
+                    TlsHandshakeMessage message = messages.get(i);
+                    received.add(message);
+                    // The framer added it to the transcript.
+                    processHandshakeMessage(message);
+                    Function<TlsHandshakeMessage, byte[]> response = responses.get(message.getHandshakeMessageType());
+                    if (response != null) {
+                        flights.add(response.apply(message));
+                    }
+                }
+                return true;
+            case TlsConstants.CHANGE_CIPHER_SPEC:
+                connectionState.activateReadState();
+                recordFramer.setReadProtection(RecordProtectionFactory.getProtection(connectionState.getReadState()));
+                return true;
+            case TlsConstants.APPLICATION_DATA:
+                if (applicationDataResponse != null) {
+                    byte[] data = applicationDataResponse.apply(((ApplicationDataFragment) record.getFragment()).getData());
+                    flights.add(writeProtection.sealRecord(TlsConstants.APPLICATION_DATA, RecordLayer.TLS_1_2,
+                            data, 0, data.length));
+                }
+                return true;
+            default:
+                // Alerts end the conversation.
+                return false;
+        }
+    }
+
+    private void processHandshakeMessage(TlsHandshakeMessage message) throws Exception {
+
+        switch (message.getHandshakeMessageType()) {
+            case HandshakeMessageTypes.CLIENT_HELLO:
+                securityParameters.setClientRandom(((ClientHello) message).getClientRandom());
+                break;
+            case HandshakeMessageTypes.CLIENT_KEY_EXCHANGE:
+                ClientKeyExchange clientKeyExchange = (ClientKeyExchange) message;
+                if (ecdheKey != null) {
+                    AgreementGroup group = AgreementGroupFactory.getGroup(ecdheKey.getNamedGroup());
+                    keySchedule.computeMasterSecret(group.calculateSecret(ecdheKey, clientKeyExchange.getClientPublicKey()));
+                } else {
+                    Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+                    rsa.init(Cipher.DECRYPT_MODE, privateKey);
+                    keySchedule.computeMasterSecret(rsa.doFinal(clientKeyExchange.getPremasterSecret()));
+                }
+                keySchedule.deriveKeys(connectionState);
+                break;
+            case HandshakeMessageTypes.FINISHED:
+                byte[] expected = keySchedule.computeVerifyData(KeySchedule.CLIENT_FINISHED,
+                        recordFramer.getHandshakeContext().getFinishedTranscript());
+                if (!MessageDigest.isEqual(expected, ((Finished) message).getVerifyData())) {
+                    throw new IllegalStateException("Client Finished does not verify");
+                }
+                break;
+        }
+    }
+
+    /**
+     * Add the flight to the transcript, complete its Finished message and
+     * protect the records after its ChangeCipherSpec.
+     *
+     * @param flight
+     * @return The records as sent.
+     * @throws Exception
+     */
+    private byte[] protect(byte[] flight) throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(flight.length + 64);
+        int index = 0;
+        while (index < flight.length) {
+            byte contentType = flight[index];
+            int length = ((flight[index + 3] & 0xff) << 8) | (flight[index + 4] & 0xff);
+            int fragmentOffset = index + RecordLayer.RECORD_HEADER_LENGTH;
+            if (contentType == TlsConstants.HANDSHAKE) {
+                TlsPlaintextRecord record = new TlsPlaintextRecord(contentType, RecordLayer.TLS_1_2);
+                record.decode(EncodingByteBuffer.wrap(flight, fragmentOffset, length));
+                HandshakeFragment fragment = record.getFragment();
+                List<byte[]> encodedMessages = splitMessages(flight, fragmentOffset, length);
+                for (int i = 0; i < fragment.getHandshakeMessages().size(); ++i) {
+                    TlsHandshakeMessage message = fragment.getHandshakeMessages().get(i);
+                    byte[] encoded = encodedMessages.get(i);
+                    if (message instanceof ServerHello) {
+                        startSession((ServerHello) message);
+                    } else if (message instanceof Finished && writeProtection != null) {
+                        Finished finished = new Finished();
+                        finished.setVerifyData(keySchedule.computeVerifyData(KeySchedule.SERVER_FINISHED, transcript));
+                        TlsPlaintextRecord finishedRecord = new TlsPlaintextRecord(contentType, RecordLayer.TLS_1_2);
+                        finishedRecord.setFragment(new HandshakeFragment(finished));
+                        byte[] encodedRecord = finishedRecord.encode();
+                        encoded = new byte[encodedRecord.length - RecordLayer.RECORD_HEADER_LENGTH];
+                        System.arraycopy(encodedRecord, RecordLayer.RECORD_HEADER_LENGTH, encoded, 0, encoded.length);
+                    }
+                    transcript.update(encoded, 0, encoded.length);
+                    if (writeProtection != null) {
+                        out.write(writeProtection.sealRecord(contentType, RecordLayer.TLS_1_2, encoded, 0, encoded.length));
+                    }
+                }
+                if (writeProtection == null) {
+                    out.write(flight, index, RecordLayer.RECORD_HEADER_LENGTH + length);
+                }
+            } else {
+                out.write(flight, index, RecordLayer.RECORD_HEADER_LENGTH + length);
+                if (contentType == TlsConstants.CHANGE_CIPHER_SPEC) {
+                    connectionState.activateWriteState();
+                    // No keys if the script resumes a session it doesn't know.
+                    if (connectionState.getWriteState() != null) {
+                        writeProtection = RecordProtectionFactory.getProtection(connectionState.getWriteState());
+                    }
+                }
+            }
+            index = fragmentOffset + length;
+        }
+        return out.toByteArray();
+    }
+
+    private void startSession(ServerHello serverHello) throws Exception {
+        securityParameters.setServerRandom(serverHello.getServerRandom());
+        recordFramer.getHandshakeContext().setCipherSuite(
+                CipherSuiteTranslator.setSecurityParameters(securityParameters, serverHello.getCipherSuite()));
+        if (resumedMasterSecret != null && serverHello.getSessionId().length > 0) {
+            securityParameters.setMasterSecret(resumedMasterSecret);
+            keySchedule.deriveKeys(connectionState);
+        }
+    }
+
+    private void send(ByteBuffer[] buffers, CompletionHandler<Integer, ConnectionManager> next) {
+        connection.write(buffers, new CompletionHandler<Long, ConnectionManager>() {
+            @Override
+            public void completed(Long result, ConnectionManager attachment) {
+                if (buffers[buffers.length - 1].hasRemaining()) {
+                    connection.write(buffers, this);
+                } else {
+                    connection.read(recordFramer.getReceiveBuffer(), next);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, ConnectionManager attachment) {
+                failure = exc;
+            }
+        });
+    }
+
+    /**
+     * The handshake message types the client has sent, in order.
+     *
+     * @return
+     */
+    public List<Byte> getReceived() {
+        List<Byte> types = new ArrayList<>();
+        for (TlsHandshakeMessage message : received) {
+            types.add(message.getHandshakeMessageType());
+        }
+        return types;
+    }
+
+    public <T extends TlsHandshakeMessage> T getReceived(int index) {
+        return (T) received.get(index);
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * An ECDHE_RSA server's first flight, built for the client's hello:
+     * ServerHello, the captured certificate, a ServerKeyExchange signed with
+     * SHA-256 and the captured key, then ServerHelloDone. The server random is
+     * all zeros, as it is in serverHello.
+     *
+     * @param cipherSuite
+     * @param namedGroup
+     * @return A response to ClientHello.
+     * @throws Exception
+     */
+    public Function<TlsHandshakeMessage, byte[]> ecdheFlight(short cipherSuite, short namedGroup) throws Exception {
+        byte[] certificate = findMessage(loadFlight("rsa-aes128-gcm-server-hello.bin"), HandshakeMessageTypes.CERTIFICATE);
+        AgreementGroup group = AgreementGroupFactory.getGroup(namedGroup);
+        return message -> {
+            try {
+                ecdheKey = group.generateKey(new SecureRandom());
+                ServerKeyExchange.ServerECDHParameters parameters = new ServerKeyExchange.ServerECDHParameters(
+                        ServerKeyExchange.ServerECDHParameters.NAMED_CURVE, namedGroup, ecdheKey.getPublicKey());
+                EncodingByteBuffer encoded = EncodingByteBuffer.allocate(parameters.encodedLength());
+                parameters.encodeInto(encoded);
+
+                Signature signer = Signature.getInstance("SHA256withRSA");
+                signer.initSign(privateKey);
+                signer.update(((ClientHello) message).getClientRandom());
+                signer.update(new byte[ServerHello.SERVER_RANDOM_LENGTH]);
+                signer.update(encoded.array());
+                byte[] signature = signer.sign();
+
+                EncodingByteBuffer body = EncodingByteBuffer.allocate(encoded.array().length + 4 + signature.length);
+                body.put(encoded.array());
+                body.put(TlsConstants.DHE_HASH_SHA256);
+                body.put(TlsConstants.DHE_SIGNATURE_RSA);
+                body.putShort((short) signature.length);
+                body.put(signature);
+
+                return concat(serverHello(new byte[0], cipherSuite, false), handshakeRecord(certificate),
+                        handshakeRecord(handshakeMessage(HandshakeMessageTypes.SERVER_KEY_EXCHANGE, body.array())),
+                        handshakeRecord(handshakeMessage(HandshakeMessageTypes.SERVER_HELLO_DONE, new byte[0])));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    /**
+     * The encoding of the first message of the given type in a flight.
+     *
+     * @param flight
+     * @param handshakeType
+     * @return The message header and body.
+     * @throws Exception
+     */
+    public static byte[] findMessage(byte[] flight, byte handshakeType) throws Exception {
+        int index = 0;
+        while (index < flight.length) {
+            int length = ((flight[index + 3] & 0xff) << 8) | (flight[index + 4] & 0xff);
+            if (flight[index] == TlsConstants.HANDSHAKE) {
+                TlsPlaintextRecord record = new TlsPlaintextRecord(TlsConstants.HANDSHAKE, RecordLayer.TLS_1_2);
+                record.decode(EncodingByteBuffer.wrap(flight, index + RecordLayer.RECORD_HEADER_LENGTH, length));
+                HandshakeFragment fragment = record.getFragment();
+                for (int i = 0; i < fragment.getHandshakeMessages().size(); ++i) {
+                    if (fragment.getHandshakeMessages().get(i).getHandshakeMessageType() == handshakeType) {
+                        return splitMessages(flight, index + RecordLayer.RECORD_HEADER_LENGTH, length).get(i);
+                    }
+                }
+            }
+            index += RecordLayer.RECORD_HEADER_LENGTH + length;
+        }
+        throw new IllegalArgumentException("No handshake message " + handshakeType);
+    }
+
+    /**
+     * The encodings of the handshake messages in a record fragment, headers included.
+     *
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static List<byte[]> splitMessages(byte[] bytes, int offset, int length) {
+        List<byte[]> messages = new ArrayList<>();
+        int index = offset;
+        while (index < offset + length) {
+            int messageLength = ((bytes[index + 1] & 0xff) << 16) | ((bytes[index + 2] & 0xff) << 8)
+                    | (bytes[index + 3] & 0xff);
+            messages.add(Arrays.copyOfRange(bytes, index, index + 4 + messageLength));
+            index += 4 + messageLength;
+        }
+        return messages;
+    }
+
+    public static byte[] handshakeMessage(byte handshakeType, byte[] body) {
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(4 + body.length);
+        buffer.put(handshakeType);
+        buffer.put24Bit(body.length);
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    public static byte[] handshakeRecord(byte[] message) {
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(RecordLayer.RECORD_HEADER_LENGTH + message.length);
+        buffer.put(TlsConstants.HANDSHAKE);
+        buffer.put(RecordLayer.TLS_1_2.majorVersion);
+        buffer.put(RecordLayer.TLS_1_2.minorVersion);
+        buffer.putShort((short) message.length);
+        buffer.put(message);
+        return buffer.array();
+    }
+
+    /**
+     * Load a captured flight from the test resources.
+     *
+     * @param name
+     * @return The encoded records.
+     * @throws IOException
+     */
+    public static byte[] loadFlight(String name) throws IOException {
+        try (InputStream in = ScriptedServer.class.getResourceAsStream("/flights/" + name)) {
+            if (in == null) {
+                throw new IOException("No captured flight " + name);
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    public static PrivateKey loadPrivateKey(String name) throws Exception {
+        byte[] encoded = loadFlight(name);
+        return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(encoded));
+    }
+
+    /**
+     * The server's whole flight when it resumes a session: ServerHello with
+     * the client's session ID, then ChangeCipherSpec and Finished.
+     *
+     * @param sessionId
+     * @param cipherSuite
+     * @return The encoded records.
+     */
+    public static byte[] resumeFlight(byte[] sessionId, short cipherSuite) {
+        return concat(serverHello(sessionId, cipherSuite, false), finishedFlight());
+    }
+
+    /**
+     * A ServerHello record with no extensions other than an empty
+     * SessionTicket, if asked for.
+     *
+     * @param sessionId
+     * @param cipherSuite
+     * @param sessionTicket
+     * @return The encoded record.
+     */
+    public static byte[] serverHello(byte[] sessionId, short cipherSuite, boolean sessionTicket) {
+        int helloLength = 2 + ServerHello.SERVER_RANDOM_LENGTH + 1 + sessionId.length + 2 + 1
+                + (sessionTicket ? 6 : 0);
+        EncodingByteBuffer buffer = EncodingByteBuffer.allocate(RecordLayer.RECORD_HEADER_LENGTH + 4 + helloLength);
+        buffer.put(TlsConstants.HANDSHAKE);
+        buffer.put(RecordLayer.TLS_1_2.majorVersion);
+        buffer.put(RecordLayer.TLS_1_2.minorVersion);
+        buffer.putShort((short) (4 + helloLength));
+        buffer.put(HandshakeMessageTypes.SERVER_HELLO);
+        buffer.put24Bit(helloLength);
+        buffer.put(RecordLayer.TLS_1_2.majorVersion);
+        buffer.put(RecordLayer.TLS_1_2.minorVersion);
+        buffer.put(new byte[ServerHello.SERVER_RANDOM_LENGTH]);
+        buffer.put((byte) sessionId.length);
+        buffer.put(sessionId);
+        buffer.putShort(cipherSuite);
+        buffer.put((byte) 0);
+        if (sessionTicket) {
+            buffer.putShort((short) 4);
+            buffer.putShort(Extensions.SESSION_TICKET);
+            buffer.putShort((short) 0);
+        }
+        return buffer.array();
+    }
+
+    public static byte[] newSessionTicket(byte[] ticket, long lifetimeHint) {
+        NewSessionTicket newSessionTicket = new NewSessionTicket();
+        newSessionTicket.setTicket(ticket);
+        newSessionTicket.setTicketLifetimeHint(lifetimeHint);
+        TlsPlaintextRecord record = new TlsPlaintextRecord(TlsConstants.HANDSHAKE, RecordLayer.TLS_1_2);
+        record.setFragment(new HandshakeFragment(newSessionTicket));
+        return record.encode();
+    }
+
+    /**
+     * Drop the first records of a flight, for instance to replace a captured
+     * ServerHello.
+     *
+     * @param flight
+     * @param count
+     * @return The remaining records.
+     */
+    public static byte[] skipRecords(byte[] flight, int count) {
+        int index = 0;
+        for (int i = 0; i < count; ++i) {
+            index += RecordLayer.RECORD_HEADER_LENGTH + (((flight[index + 3] & 0xff) << 8) | (flight[index + 4] & 0xff));
+        }
+        byte[] remaining = new byte[flight.length - index];
+        System.arraycopy(flight, index, remaining, 0, remaining.length);
+        return remaining;
+    }
+
+    public static byte[] concat(byte[]... flights) {
+        int length = 0;
+        for (byte[] flight : flights) {
+            length += flight.length;
+        }
+        byte[] result = new byte[length];
+        int index = 0;
+        for (byte[] flight : flights) {
+            System.arraycopy(flight, 0, result, index, flight.length);
+            index += flight.length;
+        }
+        return result;
+    }
+
+    /**
+     * The server's final flight. The Finished message is a placeholder that
+     * is completed and protected when it is sent.
+     *
+     * @return The encoded records.
+     */
+    public static byte[] finishedFlight() {
+        TlsPlaintextRecord changeCipherSpec = new TlsPlaintextRecord(TlsConstants.CHANGE_CIPHER_SPEC, RecordLayer.TLS_1_2);
+        changeCipherSpec.setFragment(new ChangeCipherSpecFragment());
+        Finished finished = new Finished();
+        finished.setVerifyData(new byte[12]);
+        TlsPlaintextRecord finishedRecord = new TlsPlaintextRecord(TlsConstants.HANDSHAKE, RecordLayer.TLS_1_2);
+        finishedRecord.setFragment(new HandshakeFragment(finished));
+
+        return concat(changeCipherSpec.encode(), finishedRecord.encode());
+    }
+}
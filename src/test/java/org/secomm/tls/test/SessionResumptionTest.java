@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.net.LoopbackConnectionManager;
+import org.secomm.tls.protocol.CipherSuites;
+import org.secomm.tls.protocol.ClientHandshake;
+import org.secomm.tls.protocol.ConnectionState;
+import org.secomm.tls.protocol.HandshakeException;
+import org.secomm.tls.protocol.ResumableSession;
+import org.secomm.tls.protocol.SecurityParameters;
+import org.secomm.tls.protocol.SessionCache;
+import org.secomm.tls.protocol.record.AlertFragment;
+import org.secomm.tls.protocol.record.RecordLayer;
+import org.secomm.tls.protocol.record.extensions.SessionTicket;
+import org.secomm.tls.protocol.record.extensions.TlsExtension;
+import org.secomm.tls.protocol.record.handshake.ClientHello;
+import org.secomm.tls.protocol.record.handshake.HandshakeMessageTypes;
+import org.secomm.tls.util.LruCache;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class SessionResumptionTest {
+
+    private long now;
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+
+        LruCache<String, Integer> cache = new LruCache<>(2, 1000, () -> now);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        // Touching a makes b the eviction candidate.
+        Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+        cache.put("c", 3);
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+        Assert.assertEquals(Integer.valueOf(3), cache.get("c"));
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testTimeToLive() {
+
+        SessionCache sessionCache = new SessionCache(new LruCache<>(8, 1000, () -> now));
+        ResumableSession session = new ResumableSession(new byte[32], (short) 0x009c, new byte[48]);
+        sessionCache.put("example.com", 443, session);
+        now = 999;
+        Assert.assertSame(session, sessionCache.get("example.com", 443));
+        Assert.assertNull(sessionCache.get("example.com", 8443));
+        now = 1000;
+        Assert.assertNull(sessionCache.get("example.com", 443));
+    }
+
+    @Test
+    public void testKeyedByServerName() {
+
+        SessionCache sessionCache = new SessionCache();
+        ResumableSession first = new ResumableSession(new byte[32], (short) 0x009c, new byte[48]);
+        ResumableSession second = new ResumableSession(new byte[32], (short) 0x009c, new byte[48]);
+        sessionCache.put("10.0.0.1", 443, "a.example.com", first);
+        sessionCache.put("10.0.0.1", 443, "b.example.com", second);
+        Assert.assertSame(first, sessionCache.get("10.0.0.1", 443, "A.example.com"));
+        Assert.assertSame(second, sessionCache.get("10.0.0.1", 443, "b.example.com"));
+        Assert.assertNull(sessionCache.get("10.0.0.1", 443));
+        sessionCache.remove("10.0.0.1", 443, "a.example.com");
+        Assert.assertNull(sessionCache.get("10.0.0.1", 443, "a.example.com"));
+        Assert.assertSame(second, sessionCache.get("10.0.0.1", 443, "b.example.com"));
+    }
+
+    @Test
+    public void testAbbreviatedHandshake() throws Exception {
+
+        ResumableSession session = session(CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256);
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        ScriptedServer server = new ScriptedServer(client.getPeer())
+                .resume(session.getMasterSecret())
+                .respondTo(HandshakeMessageTypes.CLIENT_HELLO,
+                        ScriptedServer.resumeFlight(session.getSessionId(), session.getCipherSuite()));
+        server.start();
+
+        ClientHandshake clientHandshake = clientHandshake(client, session);
+        CompletableFuture<ConnectionState> future = clientHandshake.doHandshake();
+        ConnectionState connectionState = future.getNow(null);
+        Assert.assertNotNull(connectionState);
+        Assert.assertTrue(clientHandshake.isResumed());
+        Assert.assertArrayEquals(session.getMasterSecret(), connectionState.getSecurityParameters().getMasterSecret());
+        Assert.assertSame(session, clientHandshake.getResumableSession());
+        // No certificate and no key exchange.
+        Assert.assertEquals(List.of(HandshakeMessageTypes.CLIENT_HELLO, HandshakeMessageTypes.FINISHED),
+                server.getReceived());
+        Assert.assertNull(server.getFailure());
+    }
+
+    @Test
+    public void testServerDeclinesResumption() throws Exception {
+
+        ResumableSession session = session(CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256);
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        ScriptedServer server = new ScriptedServer(client.getPeer())
+                .respondTo(HandshakeMessageTypes.CLIENT_HELLO,
+                        ScriptedServer.loadFlight("rsa-aes128-gcm-server-hello.bin"))
+                .respondTo(HandshakeMessageTypes.CLIENT_KEY_EXCHANGE, ScriptedServer.finishedFlight());
+        server.start();
+
+        ClientHandshake clientHandshake = clientHandshake(client, session);
+        Assert.assertNotNull(clientHandshake.doHandshake().getNow(null));
+        Assert.assertFalse(clientHandshake.isResumed());
+        Assert.assertEquals(List.of(HandshakeMessageTypes.CLIENT_HELLO, HandshakeMessageTypes.CLIENT_KEY_EXCHANGE,
+                HandshakeMessageTypes.FINISHED), server.getReceived());
+    }
+
+    @Test
+    public void testResumedCipherSuiteMismatch() throws Exception {
+
+        ResumableSession session = session(CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256);
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        new ScriptedServer(client.getPeer())
+                .respondTo(HandshakeMessageTypes.CLIENT_HELLO,
+                        ScriptedServer.resumeFlight(session.getSessionId(), CipherSuites.TLS_DHE_RSA_WITH_AES_128_CBC_SHA))
+                .start();
+
+        CompletableFuture<ConnectionState> future = clientHandshake(client, session).doHandshake();
+        Assert.assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+            Assert.fail("Handshake should have failed");
+        } catch (ExecutionException e) {
+            HandshakeException handshakeException = (HandshakeException) e.getCause();
+            Assert.assertEquals(AlertFragment.ILLEGAL_PARAMETER, handshakeException.getAlertDescription());
+        }
+    }
+
+    @Test
+    public void testPackedSession() {
+
+        byte[] sessionId = new byte[] { 1, 2, 3 };
+        byte[] masterSecret = new byte[48];
+        masterSecret[47] = 9;
+        byte[] ticket = new byte[300];
+        ticket[299] = 7;
+        ResumableSession session = new ResumableSession(sessionId, (short) 0xc02f, masterSecret, ticket, 600);
+        Assert.assertEquals((short) 0xc02f, session.getCipherSuite());
+        Assert.assertArrayEquals(sessionId, session.getSessionId());
+        Assert.assertArrayEquals(masterSecret, session.getMasterSecret());
+        Assert.assertArrayEquals(ticket, session.getTicket());
+        Assert.assertTrue(session.hasTicket());
+
+        session = new ResumableSession(sessionId, (short) 0x009c, masterSecret);
+        Assert.assertArrayEquals(sessionId, session.getSessionId());
+        Assert.assertEquals(0, session.getTicket().length);
+        Assert.assertFalse(session.hasTicket());
+    }
+
+    @Test
+    public void testTicketLifetime() {
+
+        SessionCache sessionCache = new SessionCache(new LruCache<>(8, 3600000, () -> now));
+        sessionCache.put("example.com", 443,
+                new ResumableSession(new byte[0], (short) 0x009c, new byte[48], new byte[16], 60));
+        now = 59999;
+        Assert.assertNotNull(sessionCache.get("example.com", 443));
+        now = 60000;
+        Assert.assertNull(sessionCache.get("example.com", 443));
+    }
+
+    @Test
+    public void testTicketIssued() throws Exception {
+
+        short cipherSuite = CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256;
+        byte[] capturedFlight = ScriptedServer.loadFlight("rsa-aes128-gcm-server-hello.bin");
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        ScriptedServer server = new ScriptedServer(client.getPeer())
+                .respondTo(HandshakeMessageTypes.CLIENT_HELLO, ScriptedServer.concat(
+                        ScriptedServer.serverHello(new byte[0], cipherSuite, true),
+                        ScriptedServer.skipRecords(capturedFlight, 1)))
+                .respondTo(HandshakeMessageTypes.CLIENT_KEY_EXCHANGE, ScriptedServer.concat(
+                        ScriptedServer.newSessionTicket(new byte[64], 300),
+                        ScriptedServer.finishedFlight()));
+        server.start();
+
+        ClientHandshake clientHandshake = clientHandshake(client, null, cipherSuite);
+        Assert.assertNotNull(clientHandshake.doHandshake().getNow(null));
+        // The client asked for a ticket with an empty extension.
+        ClientHello clientHello = server.getReceived(0);
+        Assert.assertEquals(0, sessionTicket(clientHello).getTicket().length);
+    }
+
+    @Test
+    public void testTicketResumption() throws Exception {
+
+        short cipherSuite = CipherSuites.TLS_RSA_WITH_AES_128_GCM_SHA256;
+        byte[] masterSecret = new byte[48];
+        new SecureRandom().nextBytes(masterSecret);
+        byte[] ticket = new byte[128];
+        ticket[0] = 1;
+        byte[] newTicket = new byte[128];
+        newTicket[0] = 2;
+        ResumableSession session = new ResumableSession(new byte[0], cipherSuite, masterSecret, ticket, 0);
+
+        LoopbackConnectionManager client = LoopbackConnectionManager.createPair();
+        ScriptedServer server = new ScriptedServer(client.getPeer())
+                .resume(masterSecret)
+                .respondTo(HandshakeMessageTypes.CLIENT_HELLO, message -> ScriptedServer.concat(
+                        // Accepting the ticket means echoing the client's session ID.
+                        ScriptedServer.serverHello(((ClientHello) message).getSessionId(), cipherSuite, true),
+                        ScriptedServer.newSessionTicket(newTicket, 600),
+                        ScriptedServer.finishedFlight()));
+        server.start();
+
+        ClientHandshake clientHandshake = clientHandshake(client, session, cipherSuite);
+        Assert.assertNotNull(clientHandshake.doHandshake().getNow(null));
+        Assert.assertTrue(clientHandshake.isResumed());
+        ClientHello clientHello = server.getReceived(0);
+        Assert.assertArrayEquals(ticket, sessionTicket(clientHello).getTicket());
+        Assert.assertEquals(32, clientHello.getSessionId().length);
+
+        ResumableSession renewed = clientHandshake.getResumableSession();
+        Assert.assertArrayEquals(newTicket, renewed.getTicket());
+        Assert.assertArrayEquals(masterSecret, renewed.getMasterSecret());
+        Assert.assertEquals(600, renewed.getTicketLifetimeHint());
+    }
+
+    private SessionTicket sessionTicket(ClientHello clientHello) {
+        for (TlsExtension extension : clientHello.getExtensions()) {
+            if (extension instanceof SessionTicket) {
+                return (SessionTicket) extension;
+            }
+        }
+        Assert.fail("No session ticket extension");
+        return null;
+    }
+
+    private ResumableSession session(short cipherSuite) {
+        SecureRandom random = new SecureRandom();
+        byte[] sessionId = new byte[32];
+        random.nextBytes(sessionId);
+        byte[] masterSecret = new byte[48];
+        random.nextBytes(masterSecret);
+        return new ResumableSession(sessionId, cipherSuite, masterSecret);
+    }
+
+    private ClientHandshake clientHandshake(LoopbackConnectionManager connection, ResumableSession session) {
+        return clientHandshake(connection, session, session.getCipherSuite());
+    }
+
+    private ClientHandshake clientHandshake(LoopbackConnectionManager connection, ResumableSession session,
+                                            short cipherSuite) {
+        SecureRandom random = new SecureRandom();
+        ConnectionState connectionState = new ConnectionState(
+                new SecurityParameters(SecurityParameters.ConnectionEnd.CLIENT, random));
+        RecordLayer recordLayer = new RecordLayer(RecordLayer.TLS_1_2, connectionState, connection);
+        ClientHandshake clientHandshake = new ClientHandshake(connectionState, recordLayer, random);
+        clientHandshake.setCipherSuites(List.of(cipherSuite));
+        clientHandshake.setExtensions(new ArrayList<>());
+        clientHandshake.setCertificateValidator(ScriptedServer.certificateValidator());
+        clientHandshake.setHostName("localhost");
+        clientHandshake.setOfferedSession(session);
+        return clientHandshake;
+    }
+}
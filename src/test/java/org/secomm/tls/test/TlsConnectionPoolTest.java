@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2020 Steve Brenneis.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the following
+ * conditions: The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMEN. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *
+ */
+
+package org.secomm.tls.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.secomm.tls.api.TlsConnectionPool;
+import org.secomm.tls.api.TlsConversation;
+import org.secomm.tls.api.TlsInputStream;
+import org.secomm.tls.api.TlsOutputStream;
+import org.secomm.tls.api.TlsPeer;
+import org.secomm.tls.api.TlsResponse;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TlsConnectionPoolTest {
+
+    /**
+     * Only the connection state matters to the pool.
+     */
+    private static class StubPeer implements TlsPeer {
+
+        boolean open = true;
+
+        @Override
+        public String readAll() {
+            return null;
+        }
+
+        @Override
+        public String readAll(String charset) {
+            return null;
+        }
+
+        @Override
+        public String readAll(Charset charset) {
+            return null;
+        }
+
+        @Override
+        public void read(byte[] bytes) {
+        }
+
+        @Override
+        public void write(String message) {
+        }
+
+        @Override
+        public void write(String message, String charset) {
+        }
+
+        @Override
+        public void write(String message, Charset charset) {
+        }
+
+        @Override
+        public void write(byte[] bytes) {
+        }
+
+        @Override
+        public CompletionStage<Void> writeAsync(byte[] bytes) {
+            return null;
+        }
+
+        @Override
+        public CompletionStage<Void> writeAsync(String message) {
+            return null;
+        }
+
+        @Override
+        public CompletableFuture<TlsResponse> exchangeAsync(byte[] payload) {
+            return null;
+        }
+
+        @Override
+        public CompletableFuture<TlsResponse> exchangeAsync(String payload) {
+            return null;
+        }
+
+        @Override
+        public TlsInputStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public TlsOutputStream getOutputStream() {
+            return null;
+        }
+
+        @Override
+        public TlsConversation getConversation() {
+            return null;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    private final AtomicInteger connects = new AtomicInteger();
+
+    private TlsConnectionPool.Connector connector() {
+        return () -> {
+            connects.incrementAndGet();
+            return CompletableFuture.completedFuture(new StubPeer());
+        };
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+
+        TlsConnectionPool pool = new TlsConnectionPool();
+        TlsPeer first = pool.borrow("Example.com", 443, null, connector()).get();
+        TlsPeer second = pool.borrow("example.com", 443, null, connector()).get();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, pool.leasedCount());
+
+        Assert.assertTrue(pool.release(first));
+        Assert.assertTrue(pool.release(second));
+        Assert.assertFalse("Released twice", pool.release(second));
+        Assert.assertEquals(2, pool.idleCount("example.com", 443, null));
+
+        // Most recently released first.
+        Assert.assertSame(second, pool.borrow("example.com", 443, null, connector()).get());
+        Assert.assertSame(first, pool.borrow("example.com", 443, null, connector()).get());
+        Assert.assertEquals(2, connects.get());
+
+        // Other ports and server names are other routes.
+        pool.release(first);
+        pool.borrow("example.com", 8443, null, connector()).get();
+        pool.borrow("example.com", 443, "www.example.com", connector()).get();
+        Assert.assertEquals(4, connects.get());
+        Assert.assertEquals(1, pool.idleCount("example.com", 443, null));
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+
+        AtomicLong now = new AtomicLong(1000L);
+        TlsConnectionPool pool = new TlsConnectionPool(now::get);
+        pool.setMaxIdlePerRoute(1);
+        pool.setMaxIdleMillis(100L);
+        pool.setMaxLifetimeMillis(1000L);
+
+        StubPeer first = (StubPeer) pool.borrow("localhost", 443, null, connector()).get();
+        StubPeer second = (StubPeer) pool.borrow("localhost", 443, null, connector()).get();
+        Assert.assertTrue(pool.release(first));
+        Assert.assertFalse("Idle queue is full", pool.release(second));
+        Assert.assertFalse(second.open);
+
+        // Idle too long.
+        now.addAndGet(100L);
+        Assert.assertNotSame(first, pool.borrow("localhost", 443, null, connector()).get());
+        Assert.assertFalse(first.open);
+
+        // Closed while idle.
+        StubPeer third = (StubPeer) pool.borrow("localhost", 443, null, connector()).get();
+        pool.release(third);
+        third.open = false;
+        Assert.assertNotSame(third, pool.borrow("localhost", 443, null, connector()).get());
+
+        // Too old to go back.
+        StubPeer fourth = (StubPeer) pool.borrow("localhost", 443, null, connector()).get();
+        now.addAndGet(1000L);
+        Assert.assertFalse(pool.release(fourth));
+        Assert.assertFalse(fourth.open);
+
+        StubPeer fifth = (StubPeer) pool.borrow("localhost", 443, null, connector()).get();
+        pool.release(fifth);
+        now.addAndGet(100L);
+        Assert.assertEquals(1, pool.evictExpired());
+        Assert.assertFalse(fifth.open);
+        Assert.assertEquals(0, pool.idleCount("localhost", 443, null));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+
+        TlsConnectionPool pool = new TlsConnectionPool();
+        StubPeer idle = (StubPeer) pool.borrow("localhost", 443, null, connector()).get();
+        StubPeer leased = (StubPeer) pool.borrow("localhost", 443, null, connector()).get();
+        pool.release(idle);
+        pool.close();
+        Assert.assertFalse(idle.open);
+        Assert.assertFalse(pool.release(leased));
+        Assert.assertFalse(leased.open);
+        try {
+            pool.borrow("localhost", 443, null, connector());
+            Assert.fail("Borrowed from a closed pool");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+}